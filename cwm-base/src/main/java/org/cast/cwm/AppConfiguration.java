@@ -195,12 +195,9 @@ public class AppConfiguration implements IAppConfiguration {
 	 */	
 	@Override
 	public File getOptionalFile (String key) {
-		String fileName = getProperty(key);
-		if (fileName == null)
+		File file = getOptionalPath(key);
+		if (file == null)
 			return null;
-		File file = new File(fileName); // Try interpreting as an absolute filename
-		if (!file.isAbsolute())
-			file = new File(baseDirectory, fileName); // Try interpreting relative to base
 		if (!file.exists())
 			throw new ConfigurationException(
 					String.format("File %s specified for configuration property %s does not exist", file, key));
@@ -210,6 +207,20 @@ public class AppConfiguration implements IAppConfiguration {
 		return file;		
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.cast.cwm.IAppConfiguration#getOptionalPath(java.lang.String)
+	 */
+	@Override
+	public File getOptionalPath (String key) {
+		String fileName = getProperty(key);
+		if (fileName == null)
+			return null;
+		File file = new File(fileName); // Try interpreting as an absolute filename
+		if (!file.isAbsolute())
+			file = new File(baseDirectory, fileName); // Try interpreting relative to base
+		return file;
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.cast.cwm.IAppConfiguratio#getFile(java.lang.String)
 	 */
@@ -102,6 +102,14 @@ public interface IAppConfiguration {
 	 */
 	public abstract File getOptionalFile(String key);
 
+	/**
+	 * Return optional property value, which should be a filename, as a File that need not exist yet.
+	 * Filenames can either be absolute, or relative to this AppConfiguration's base directory.
+	 * @param key name of the configuration property
+	 * @return value as a File, or null
+	 */
+	public abstract File getOptionalPath(String key);
+
 	/**
 	 * Return required property value, which should be a filename, as a File.
 	 * Filenames can either be absolute, or relative to this AppConfiguration's base directory
@@ -44,10 +44,12 @@ import org.apache.wicket.request.Response;
 import org.apache.wicket.util.file.File;
 import org.cast.cwm.admin.*;
 import org.cast.cwm.data.*;
+import org.cast.cwm.data.blob.FileBlobStore;
 import org.cast.cwm.data.init.CloseOldLoginSessions;
 import org.cast.cwm.data.init.CreateAdminUser;
 import org.cast.cwm.data.init.CreateDefaultUsers;
 import org.cast.cwm.data.init.IDatabaseInitializer;
+import org.cast.cwm.data.init.MoveBinaryDataToBlobStore;
 import org.cast.cwm.service.*;
 import org.cwm.db.service.HibernateObjectModelProvider;
 import org.cwm.db.service.IModelProvider;
@@ -79,6 +81,25 @@ import java.util.concurrent.LinkedBlockingQueue;
  *  * cwm.instanceId: identifier for the particular server instance
  *  * cwm.sessionTimeout: number of seconds of inactivity before a user's 
  *    session will expire (optional; default = 90 minutes).
+ *  * cwm.eventWriter: whether page view events are written to the database in the background 
+ *    by an {@link EventWriter} (optional; default = false).  Also see cwm.eventWriter.queueSize,
+ *    cwm.eventWriter.batchSize, cwm.eventWriter.offerTimeout (milliseconds), and
+ *    cwm.eventWriter.journal (file for events that can't be written; default is in the temp directory).
+ *  * cwm.mp3Transcoder: whether WAV recordings are converted to MP3 in the background when they are saved,
+ *    by an {@link Mp3Transcoder} (optional; default = true).  Also see cwm.mp3Transcoder.threads and
+ *    cwm.mp3Transcoder.queueSize.
+ *  * cwm.mp3Cache.heapMegabytes, cwm.mp3Cache.diskMegabytes: limits on the total size of converted audio
+ *    that the {@link Mp3Cache} keeps in memory and on disk (optional; defaults = 32 and 512).
+ *    Also cwm.mp3Cache.dir, directory for the disk tier (optional; default is a new temporary directory).
+ *  * cwm.derivedCache.dir, cwm.derivedCache.megabytes: directory and size limit for the {@link DerivedFileCache}
+ *    of converted files such as WAV audio and thumbnails (optional; defaults are a new temporary directory and 256).
+ *  * cwm.thumbnails.heapMegabytes: limit on the total size of image thumbnails that the {@link ThumbnailService}
+ *    keeps in memory (optional; default = 16).  Also cwm.thumbnails.precomputeSizes, comma-separated maximum
+ *    dimensions of thumbnails created when an image is uploaded (optional; default = 100,200; may be empty),
+ *    and cwm.thumbnails.threads and cwm.thumbnails.queueSize for that work.
+ *  * cwm.blobStore: directory where the contents of uploaded files are kept, named by their 
+ *    SHA-256 hash (optional; if not set, contents are kept in the database).  Existing contents are moved
+ *    there by {@link MoveBinaryDataToBlobStore}.
  *  
  *  Also see database initializers in {@link org.cast.cwm.data.init} package
  *  which use additional properties.
@@ -114,6 +135,15 @@ public abstract class CwmApplication extends AuthDataApplication<User> {
 	
 	private LoginSessionCloser loginSessionCloser;
 	
+	@Getter
+	private EventWriter eventWriter;
+	
+	@Getter
+	private Mp3Transcoder mp3Transcoder;
+	
+	@Getter
+	private ThumbnailService thumbnailService;
+	
 	private static final Logger log = LoggerFactory.getLogger(CwmApplication.class);
 		
     // A few things that need to get set up before regular init().
@@ -174,15 +204,59 @@ public abstract class CwmApplication extends AuthDataApplication<User> {
 
 		initResponseTypes();
 		loadContent();
+		initBlobStore();
 		runDatabaseInitializers();
 		configureMountPaths();
 		
 		loginSessionCloser = new LoginSessionCloser(this);
 		loginSessionCloser.start();
 		
+		if (configuration.getBoolean("cwm.eventWriter", false)) {
+			// Not getOptionalFile(), since the journal normally doesn't exist yet
+			File journal = configuration.getOptionalPath("cwm.eventWriter.journal");
+			if (journal == null)
+				journal = new File(System.getProperty("java.io.tmpdir"), getAppId() + "-events.journal");
+			eventWriter = new EventWriter(getHibernateSessionFactory(null), journal,
+					configuration.getInteger("cwm.eventWriter.queueSize", 10000),
+					configuration.getInteger("cwm.eventWriter.batchSize", 100),
+					configuration.getInteger("cwm.eventWriter.offerTimeout", 1000));
+			eventWriter.start();
+		}
+		
+		String mp3CacheDir = configuration.getProperty("cwm.mp3Cache.dir");
+		Mp3Cache.setShared(new Mp3Cache(
+				configuration.getInteger("cwm.mp3Cache.heapMegabytes", 32) * 1024L * 1024L,
+				mp3CacheDir == null ? null : new File(mp3CacheDir),
+				configuration.getInteger("cwm.mp3Cache.diskMegabytes", 512) * 1024L * 1024L));
+		
+		String derivedCacheDir = configuration.getProperty("cwm.derivedCache.dir");
+		DerivedFileCache.setShared(new DerivedFileCache(
+				derivedCacheDir == null ? null : new File(derivedCacheDir),
+				configuration.getInteger("cwm.derivedCache.megabytes", 256) * 1024L * 1024L));
+		
+		if (configuration.getBoolean("cwm.mp3Transcoder", true)) {
+			mp3Transcoder = new Mp3Transcoder(getHibernateSessionFactory(null),
+					configuration.getInteger("cwm.mp3Transcoder.threads", 2),
+					configuration.getInteger("cwm.mp3Transcoder.queueSize", 100));
+		}
+		
+		thumbnailService = new ThumbnailService(getHibernateSessionFactory(null),
+				configuration.getInteger("cwm.thumbnails.heapMegabytes", 16) * 1024L * 1024L,
+				parseSizes(configuration.getString("cwm.thumbnails.precomputeSizes", "100,200")),
+				configuration.getInteger("cwm.thumbnails.threads", 1),
+				configuration.getInteger("cwm.thumbnails.queueSize", 100));
+		
 		log.debug("Finished CWM Application Init");
 	}
 
+	private static int[] parseSizes(String list) {
+		String[] items = list.trim().isEmpty() ? new String[0] : list.split(",");
+		int[] sizes = new int[items.length];
+		for (int i = 0; i < items.length; i++)
+			sizes[i] = Integer.parseInt(items[i].trim());
+		return sizes;
+	}
+
 	private Module[] getInjectionModuleArray() {
 		return getInjectionModules().toArray(new Module[0]);
 	}
@@ -232,6 +306,7 @@ public abstract class CwmApplication extends AuthDataApplication<User> {
 		list.add(new CreateAdminUser());
 		list.add(new CreateDefaultUsers());
 		list.add(new CloseOldLoginSessions());
+		list.add(new MoveBinaryDataToBlobStore());
 		return list;
 	}
 	
@@ -254,6 +329,18 @@ public abstract class CwmApplication extends AuthDataApplication<User> {
 		mountPage("sessions", SessionListPage.class);
 	}
 	
+	/**
+	 * Configure where the contents of {@link BinaryFileData} objects are kept,
+	 * based on the cwm.blobStore property.
+	 */
+	protected void initBlobStore() {
+		File dir = configuration.getOptionalFile("cwm.blobStore");
+		if (dir != null) {
+			log.info("Keeping binary file contents in {}", dir);
+			BinaryFileData.setBlobStore(new FileBlobStore(dir));
+		}
+	}
+	
 	/** 
 	 * Execute database initialization objects given by {@link #getDatabaseInitializers()}.
 	 */
@@ -440,6 +527,12 @@ public abstract class CwmApplication extends AuthDataApplication<User> {
 		log.debug("Running shutdown steps");
 		if (loginSessionCloser != null)
 			loginSessionCloser.interrupt();
+		if (eventWriter != null)
+			eventWriter.shutdown();
+		if (mp3Transcoder != null)
+			mp3Transcoder.shutdown();
+		if (thumbnailService != null)
+			thumbnailService.shutdown();
 		this.getHibernateSessionFactory(null).close();
 		super.onDestroy();
 	}
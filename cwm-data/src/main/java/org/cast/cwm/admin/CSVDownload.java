@@ -21,12 +21,15 @@ package org.cast.cwm.admin;
 
 import lombok.Getter;
 import lombok.Setter;
+import net.databinder.models.hib.HibernateProvider;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.markup.repeater.data.IDataProvider;
 import org.apache.wicket.model.Model;
+import org.apache.wicket.request.Request;
 import org.apache.wicket.request.Response;
+import org.apache.wicket.request.http.WebRequest;
 import org.apache.wicket.request.resource.AbstractResource;
 import org.apache.wicket.request.resource.ContentDisposition;
 import org.apache.wicket.util.string.StringValueConversionException;
@@ -34,12 +37,16 @@ import org.cast.cwm.data.provider.IteratorProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A CSV-formatted downloadable dump of data.
@@ -58,8 +65,24 @@ public class CSVDownload<E extends Serializable> extends AbstractResource {
 	@Setter
 	protected boolean includeDocumentationRow = false;
 
+	/**
+	 * If true, and the client accepts it, the download is gzip-compressed.
+	 */
+	@Getter
+	@Setter
+	protected boolean gzip = false;
+
+	/**
+	 * Number of rows fetched from the database at a time when streaming from a {@link HibernateProvider}.
+	 * The Hibernate session is also cleared after this many rows.
+	 */
+	@Getter
+	@Setter
+	protected int fetchSize = 500;
+
 	protected List<IDataColumn<E>> columns;
 	private IteratorProvider<? extends E> iteratorProvider;
+	private IDataProvider<E> dataProvider;
 
 	/**
 	 * Configure a download with a given iterator provider and set of columns
@@ -80,15 +103,37 @@ public class CSVDownload<E extends Serializable> extends AbstractResource {
 	 * @param dataProvider data provider holding the query
 	 */
 	public CSVDownload(final List<IDataColumn<E>> columns, final IDataProvider<E> dataProvider) {
-		this(columns, new IteratorProvider<E>() {
+		super();
+		this.columns = columns;
+		this.dataProvider = dataProvider;
+	}
 
-			private static final long serialVersionUID = 1L;
+	/**
+	 * Get the iterator over all rows of data.
+	 * If the data comes from a {@link HibernateProvider}, rows are streamed from a database cursor
+	 * rather than all being loaded at once.
+	 *
+	 * @return iterator over all rows
+	 */
+	@SuppressWarnings("unchecked")
+	protected Iterator<? extends E> getIterator() {
+		if (dataProvider instanceof HibernateProvider)
+			return ((HibernateProvider<E>) dataProvider).scroll(fetchSize);
+		if (dataProvider != null)
+			return dataProvider.iterator(0, Long.MAX_VALUE);
+		return iteratorProvider.getIterator();
+	}
 
-			@Override
-			public Iterator<? extends E> getIterator() {
-				return dataProvider.iterator(0, Long.MAX_VALUE);
-			}
-		});
+	/**
+	 * Clean up text -- CSV file cannot have newlines in it
+	 *
+	 * @param value cell value
+	 * @return value with any carriage returns or newlines replaced by spaces
+	 */
+	protected static String cleanValue(String value) {
+		if (value.indexOf('\r') < 0 && value.indexOf('\n') < 0)
+			return value;
+		return value.replace('\r', ' ').replace('\n', ' ');
 	}
 
 	/**
@@ -105,14 +150,22 @@ public class CSVDownload<E extends Serializable> extends AbstractResource {
 		rr.setContentDisposition(ContentDisposition.ATTACHMENT);
 		rr.setContentType("text/csv");
 
+		final boolean compress = gzip && acceptsGzip(attributes.getRequest());
+		if (compress)
+			rr.getHeaders().addHeader("Content-Encoding", "gzip");
+
 		if (rr.dataNeedsToBeWritten(attributes)) {
 			rr.setWriteCallback(new WriteCallback() {
 				@Override
 				public void writeData(Attributes attributes) {
 					Response response = attributes.getResponse();
+					Iterator<? extends E> it = null;
 
 					try {
-						CSVPrinter writer = new CSVPrinter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"),
+						OutputStream out = response.getOutputStream();
+						if (compress)
+							out = new GZIPOutputStream(out, 8192);
+						CSVPrinter writer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")),
 								CSVFormat.EXCEL);
 
 						// Write header row
@@ -135,17 +188,18 @@ public class CSVDownload<E extends Serializable> extends AbstractResource {
 						}
 
 						// Write Data
-						Iterator<? extends E> it = iteratorProvider.getIterator();
+						Model<E> rowModel = new Model<E>();
+						it = getIterator();
 						while (it.hasNext()) {
 							E e = it.next();
+							rowModel.setObject(e);
 							for (IDataColumn<E> col : columns) {
-								String columnValue = col.getItemString(new Model<E>(e));
+								String columnValue = col.getItemString(rowModel);
 								if (columnValue == null) {
 									log.warn("Got a null value for {} of item {}", col.getHeaderString(), e);
 									columnValue = "null";
 								}
-								// Clean up text -- CSV file cannot have newlines in it
-								writer.print(columnValue.replaceAll("[\r\n]", " "));
+								writer.print(cleanValue(columnValue));
 							}
 							writer.println();
 						}
@@ -155,6 +209,14 @@ public class CSVDownload<E extends Serializable> extends AbstractResource {
 						throw new StringValueConversionException("UTF-8 translation not supported?!", e);
 					} catch (IOException e) {
 						throw new WicketRuntimeException("Couldn't write to resource", e);
+					} finally {
+						if (it instanceof Closeable) {
+							try {
+								((Closeable) it).close();
+							} catch (IOException e) {
+								log.warn("Couldn't close iterator: {}", e.getMessage());
+							}
+						}
 					}
 				}
 			});
@@ -163,4 +225,12 @@ public class CSVDownload<E extends Serializable> extends AbstractResource {
 		return rr;
 	}
 
+	private static boolean acceptsGzip(Request request) {
+		if (request instanceof WebRequest) {
+			String accept = ((WebRequest) request).getHeader("Accept-Encoding");
+			return accept != null && accept.contains("gzip");
+		}
+		return false;
+	}
+
 }
\ No newline at end of file
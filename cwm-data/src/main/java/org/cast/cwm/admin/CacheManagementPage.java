@@ -23,17 +23,24 @@ import java.util.Arrays;
 
 import net.databinder.hib.Databinder;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
 
+import org.apache.wicket.Application;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.link.Link;
 import org.apache.wicket.markup.repeater.RepeatingView;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.util.lang.Bytes;
+import org.cast.cwm.CwmApplication;
+import org.cast.cwm.data.Mp3Cache;
+import org.cast.cwm.service.ThumbnailService;
 import org.hibernate.Cache;
 import org.hibernate.stat.Statistics;
 
 /**
  * A page to show some information about Hibernate's cache, and allow the administrator to clear it.
+ * Also shows the usage of the {@link Mp3Cache} and the memory cache of the {@link ThumbnailService}.
  * 
  * At some point, we could extend this to show more interesting statistics such as hit rate per cache - both 
  * EHcache and Hibernate are capable of gathering and reporting a great deal of statistical information.
@@ -76,6 +83,38 @@ public class CacheManagementPage extends AdminPage {
 
 			eView.add(new Label("name", name));
 			eView.add(new Label("items", size > 0 ? String.valueOf(size) : ""));
+			// Byte usage is only tracked cheaply for caches that are sized in bytes;
+			// measuring other caches would require walking every cached object.
+			CacheConfiguration config = cache.getCacheConfiguration();
+			boolean bytesTracked = config.getMaxBytesLocalHeap() > 0 || config.getMaxBytesLocalDisk() > 0;
+			eView.add(new Label("heapBytes", bytesTracked ? formatBytes(cache.calculateInMemorySize()) : ""));
+			eView.add(new Label("diskBytes", bytesTracked && config.getMaxBytesLocalDisk() > 0 ? formatBytes(cache.calculateOnDiskSize()) : ""));
+		}
+
+		Mp3Cache mp3Cache = Mp3Cache.get();
+		add(new Label("mp3Items", String.valueOf(mp3Cache.getSize())));
+		add(new Label("mp3HeapBytes", formatBytes(mp3Cache.getHeapBytes())));
+		add(new Label("mp3MaxHeapBytes", formatBytes(mp3Cache.getMaxHeapBytes())));
+		add(new Label("mp3DiskBytes", formatBytes(mp3Cache.getDiskBytes())));
+		add(new Label("mp3MaxDiskBytes", formatBytes(mp3Cache.getDiskDirectory() == null ? 0 : mp3Cache.getMaxDiskBytes())));
+		add(new Label("mp3HeapHits", String.valueOf(mp3Cache.getHeapHitCount().get())));
+		add(new Label("mp3DiskHits", String.valueOf(mp3Cache.getDiskHitCount().get())));
+		add(new Label("mp3Misses", String.valueOf(mp3Cache.getMissCount().get())));
+		add(new Label("mp3Spills", String.valueOf(mp3Cache.getSpillCount().get())));
+		add(new Label("mp3Evictions", String.valueOf(mp3Cache.getEvictionCount().get())));
+
+		ThumbnailService thumbnails = getThumbnailService();
+		WebMarkupContainer thumbnailView = new WebMarkupContainer("thumbnails");
+		add(thumbnailView);
+		thumbnailView.setVisible(thumbnails != null);
+		if (thumbnails != null) {
+			thumbnailView.add(new Label("thumbItems", String.valueOf(thumbnails.getSize())));
+			thumbnailView.add(new Label("thumbHeapBytes", formatBytes(thumbnails.getHeapBytes())));
+			thumbnailView.add(new Label("thumbMaxHeapBytes", formatBytes(thumbnails.getMaxHeapBytes())));
+			thumbnailView.add(new Label("thumbHeapHits", String.valueOf(thumbnails.getHeapHitCount().get())));
+			thumbnailView.add(new Label("thumbDiskHits", String.valueOf(thumbnails.getDiskHitCount().get())));
+			thumbnailView.add(new Label("thumbMisses", String.valueOf(thumbnails.getMissCount().get())));
+			thumbnailView.add(new Label("thumbEvictions", String.valueOf(thumbnails.getEvictionCount().get())));
 		}
 
 		add(new ClearCacheLink("clear"));
@@ -83,6 +122,16 @@ public class CacheManagementPage extends AdminPage {
 	}
 	
 	
+	private static ThumbnailService getThumbnailService() {
+		if (Application.get() instanceof CwmApplication)
+			return CwmApplication.get().getThumbnailService();
+		return null;
+	}
+	
+	private static String formatBytes (long bytes) {
+		return Bytes.bytes(bytes).toString();
+	}
+	
 	private static class ClearCacheLink extends Link<Void> {
 
 		private static final long serialVersionUID = 1L;
@@ -98,6 +147,10 @@ public class CacheManagementPage extends AdminPage {
 			cache.evictCollectionRegions();
 			cache.evictNaturalIdRegions();
 			cache.evictDefaultQueryRegion();
+			Mp3Cache.get().clear();
+			ThumbnailService thumbnails = getThumbnailService();
+			if (thumbnails != null)
+				thumbnails.clear();
 			
 			getRequestCycle().setResponsePage(CacheManagementPage.class);
 		}
@@ -133,8 +133,21 @@ public class EventLog extends AdminPage {
 	}
 
 	protected SortableHibernateProvider<Event> makeHibernateProvider(OrderingCriteriaBuilder builder) {
-		SortableHibernateProvider<Event> provider = new SortableHibernateProvider<Event>(Event.class, builder);
+		SortableHibernateProvider<Event> provider = new SortableHibernateProvider<Event>(Event.class, builder) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void buildFetch(Criteria criteria) {
+				// Load users and ResponseData elements along with the page of events, to avoid many subsequent queries.
+				criteria.setFetchMode("user", FetchMode.JOIN);
+				criteria.setFetchMode("responseData", FetchMode.JOIN);
+			}
+		};
 		provider.setWrapWithPropertyModel(false);
+		provider.setKeysetPaging(true); // later pages of a large event table shouldn't require scanning all earlier rows
+		provider.setIdPaging(true); // page over distinct ids, then fetch just that page with its joins
+		provider.setPagingIgnoreCase(true); // same order as EventCriteriaBuilder.buildOrdered
 		return provider;
 	}
 
@@ -318,9 +331,6 @@ public class EventLog extends AdminPage {
 				criteria.add(Restrictions.eq("user.permission", true));
 			}
 			
-			// Also load ResponseData elements in the same query, to avoid thousands of subsequent queries.
-			criteria.setFetchMode("responseData", FetchMode.JOIN);
-
 			// The join with periods results in multiple rows for multi-period users.
 			// Unfortunately, this confuses the dataprovider, which still counts the duplicates
 			// and therefore doesn't return a full page full of items each time.
@@ -19,21 +19,27 @@
  */
 package org.cast.cwm.data;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Inheritance;
 import javax.persistence.InheritanceType;
+import javax.persistence.OneToOne;
 
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 
+import org.cast.cwm.data.blob.IBlobStore;
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.GenericGenerator;
@@ -43,6 +49,11 @@ import org.hibernate.envers.Audited;
  * An object that holds a binary file, such as an image
  * or an upload.
  * 
+ * If a blob store has been set with {@link #setBlobStore(IBlobStore)}, the contents
+ * are kept there and this object records only their hash and length.
+ * Otherwise, or for files saved before the blob store was configured, the contents
+ * are held in the data column itself.
+ * 
  * @author jbrookover
  *
  */
@@ -66,10 +77,25 @@ public class BinaryFileData extends PersistedObject {
 	
 	private String mimeType;
 	
+	@Getter(AccessLevel.NONE)
 	private byte[] data;
 	
+	/** SHA-256 hash of the contents, if they are kept in the blob store */
+	@Setter(AccessLevel.NONE)
+	private String contentHash;
+	
+	/** Size of the contents in bytes */
+	@Setter(AccessLevel.NONE)
+	private Long dataLength;
+	
 	private Date lastModified;
 	
+	/** MP3 version of this audio, converted ahead of time by {@link org.cast.cwm.service.Mp3Transcoder} */
+	@OneToOne(fetch = FetchType.LAZY)
+	private BinaryFileData convertedMp3;
+	
+	private static IBlobStore blobStore;
+	
 	protected BinaryFileData() {
 		lastModified = new Date();
 	}
@@ -78,7 +104,104 @@ public class BinaryFileData extends PersistedObject {
 		this();
 		this.name = name.replaceAll("\\s+", "_");
 		this.mimeType = mimeType;
+		setData(data);
+	}
+
+	/**
+	 * @return the blob store where new contents are kept, or null if they are kept in the database
+	 */
+	public static IBlobStore getBlobStore() {
+		return blobStore;
+	}
+
+	/**
+	 * Set the blob store where file contents will be kept, normally at application startup.
+	 * @param store the store, or null to keep new contents in the database
+	 */
+	public static void setBlobStore(IBlobStore store) {
+		blobStore = store;
+	}
+
+	/**
+	 * Get the contents of this file, reading them from the blob store if necessary.
+	 * @return the contents, or null if there are none
+	 */
+	public byte[] getData() {
+		if (data != null || contentHash == null)
+			return data;
+		if (blobStore == null)
+			throw new IllegalStateException("No blob store is configured to read the contents of " + this);
+		try {
+			return blobStore.get(contentHash);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read the contents of " + this, e);
+		}
+	}
+
+	/**
+	 * Open a stream to read the contents of this file.  Contents in the blob store are
+	 * read from there, without loading them into memory.
+	 * @return a stream, which the caller must close; or null if there are no contents
+	 */
+	public InputStream openData() {
+		if (data != null)
+			return new ByteArrayInputStream(data);
+		if (contentHash == null)
+			return null;
+		if (blobStore == null)
+			throw new IllegalStateException("No blob store is configured to read the contents of " + this);
+		try {
+			return blobStore.open(contentHash);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read the contents of " + this, e);
+		}
+	}
+
+	/**
+	 * Replace the contents of this file.  Also updates the last modified date,
+	 * which is used to validate cached copies.
+	 * @param data new contents
+	 */
+	public void setData(byte[] data) {
 		this.data = data;
+		this.contentHash = null;
+		this.dataLength = (data == null) ? null : Long.valueOf(data.length);
+		this.lastModified = new Date();
+		moveDataToBlobStore();
+	}
+	
+	/**
+	 * If the contents of this file are held in the database and a blob store is configured,
+	 * put the contents in the blob store and clear them from this object.
+	 * @return true if the contents were moved
+	 */
+	public boolean moveDataToBlobStore() {
+		if (data == null || blobStore == null)
+			return false;
+		try {
+			contentHash = blobStore.put(data);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not store the contents of " + this, e);
+		}
+		dataLength = Long.valueOf(data.length);
+		data = null;
+		return true;
+	}
+	
+	/**
+	 * @return true if the contents are held in the database rather than a blob store
+	 */
+	public boolean isStoredInline() {
+		return data != null;
+	}
+
+	/**
+	 * @return the MP3 version of this audio, if there is one at least as recent as this file's contents; otherwise null
+	 */
+	public BinaryFileData getCurrentConvertedMp3() {
+		if (convertedMp3 == null || convertedMp3.getLastModified().before(lastModified))
+			return null;
+		return convertedMp3;
 	}
 
 	/**
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Descriptive information about a {@link BinaryFileData}, which can be
+ * looked up without loading the file's contents.
+ *
+ */
+@Getter
+@ToString
+public class BinaryFileInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long id;
+	
+	private final String name;
+	
+	private final String mimeType;
+	
+	private final Date lastModified;
+	
+	/** Size of the data in bytes */
+	private final long length;
+	
+	/** SHA-256 hash of the data if it is in the blob store, otherwise null */
+	private final String contentHash;
+
+	public BinaryFileInfo(long id, String name, String mimeType, Date lastModified, long length, String contentHash) {
+		this.id = id;
+		this.name = name;
+		this.mimeType = mimeType;
+		this.lastModified = lastModified;
+		this.length = length;
+		this.contentHash = contentHash;
+	}
+	
+	/**
+	 * A strong entity tag for the file contents.  This is the content hash if there is one.
+	 * Otherwise it is based on the last modified date, since contents are never changed without updating it.
+	 * @return the tag, including quotation marks, suitable for an ETag header
+	 */
+	public String getETag() {
+		if (contentHash != null)
+			return "\"" + contentHash + "\"";
+		return "\"" + id + "-" + lastModified.getTime() + "-" + length + "\"";
+	}
+
+}
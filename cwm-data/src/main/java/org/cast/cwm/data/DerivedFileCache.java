@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.wicket.Application;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of files derived from stored data, such as audio converted to another format,
+ * kept in a directory on disk and bounded by their total size.
+ * <p>
+ * Keys should include whatever identifies the version of the source data (eg its hash or 
+ * modification date), so that a changed source never finds a stale derivative.  Old versions are
+ * simply never used again, and are evicted as least recently used.
+ * <p>
+ * To add a file, write it to a file from {@link #newTempFile()} and then call {@link #put(String, File)}.
+ * Files already in the directory are indexed at startup, so the cache survives restarts.
+ *
+ * @see WavConverter
+ */
+@Slf4j
+public class DerivedFileCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final String SUFFIX = ".cache";
+
+    private static volatile DerivedFileCache shared;
+
+    @Getter
+    private final File directory;
+
+    @Getter
+    private final long maxBytes;
+
+    // Least recently used first.  Guarded by this.
+    private final LinkedHashMap<String, File> files = new LinkedHashMap<String, File>(16, 0.75f, true);
+
+    private long bytes;
+
+    @Getter
+    private final AtomicLong hitCount = new AtomicLong();
+
+    @Getter
+    private final AtomicLong missCount = new AtomicLong();
+
+    @Getter
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param directory where to keep files; if null the application's default directory is used
+     * @param maxBytes limit on the total size of the files
+     * @see #getDefaultDirectory(String)
+     */
+    public DerivedFileCache(File directory, long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (directory == null)
+            directory = getDefaultDirectory("derived");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalArgumentException("Cannot create cache directory " + directory);
+        this.directory = directory;
+        indexExistingFiles();
+    }
+
+    /**
+     * A directory under the system's temp directory, named for the application.
+     * It is the same on every run, so files left from a previous run are reused or cleaned up
+     * rather than accumulating in a new directory each time.
+     * @param name kind of files kept in the directory
+     * @return the directory, which may not exist yet
+     */
+    static File getDefaultDirectory(String name) {
+        String app = Application.exists() ? Application.get().getName() : "cwm";
+        return new File(System.getProperty("java.io.tmpdir"), name + "-" + app.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * @return the cache shared by the application, which is created with default settings if necessary
+     */
+    public static DerivedFileCache get() {
+        if (shared == null) {
+            synchronized (DerivedFileCache.class) {
+                if (shared == null)
+                    shared = new DerivedFileCache(null, DEFAULT_MAX_BYTES);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Set the cache to be shared by the application.
+     * @param cache the cache
+     */
+    public static void setShared(DerivedFileCache cache) {
+        shared = cache;
+    }
+
+    /**
+     * Look up a cached file.  The file may be evicted at any time, so callers should open it
+     * right away and treat FileNotFoundException as a miss.
+     * @param key key the file was stored with
+     * @return the file, or null if not cached
+     */
+    public synchronized File get(String key) {
+        File file = files.get(key);
+        if (file != null && file.isFile()) {
+            hitCount.incrementAndGet();
+            return file;
+        }
+        if (file != null)
+            removeFile(key);
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return a new, empty file in the cache directory in which to write a derived file 
+     * @throws IOException if it can't be created
+     */
+    public File newTempFile() throws IOException {
+        return File.createTempFile("tmp", ".tmp", directory);
+    }
+
+    /**
+     * Add a file to the cache, replacing any existing file with the same key.
+     * @param key identifies the derived file; letters, digits, '.', '-' and '_' only
+     * @param tempFile completely written file from {@link #newTempFile()}; it is moved into the cache
+     * @return the cached file
+     * @throws IOException if the file can't be moved
+     */
+    public synchronized File put(String key, File tempFile) throws IOException {
+        if (!key.matches("[A-Za-z0-9._-]+"))
+            throw new IllegalArgumentException("Illegal cache key: " + key);
+        removeFile(key);
+        File file = new File(directory, key + SUFFIX);
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not move " + tempFile + " to " + file);
+        }
+        files.put(key, file);
+        bytes += file.length();
+        trim();
+        return file;
+    }
+
+    /**
+     * Remove all files from the cache.
+     */
+    public synchronized void clear() {
+        for (File file : files.values())
+            file.delete();
+        files.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return number of files in the cache
+     */
+    public synchronized int getSize() {
+        return files.size();
+    }
+
+    /**
+     * @return total size of the files in the cache
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    // Must hold the lock
+    private void trim() {
+        Iterator<Map.Entry<String, File>> it = files.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            File file = it.next().getValue();
+            it.remove();
+            bytes -= file.length();
+            file.delete();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    // Must hold the lock
+    private void removeFile(String key) {
+        File file = files.remove(key);
+        if (file != null) {
+            bytes -= file.length();
+            file.delete();
+        }
+    }
+
+    // Add files left from a previous run, oldest first; remove abandoned temp files
+    private synchronized void indexExistingFiles() {
+        File[] existing = directory.listFiles();
+        if (existing == null)
+            return;
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        for (File file : existing) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                files.put(name.substring(0, name.length() - SUFFIX.length()), file);
+                bytes += file.length();
+            } else if (name.endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+        trim();
+        log.debug("Indexed {} existing files in {}", files.size(), directory);
+    }
+
+}
@@ -19,43 +19,146 @@
  */
 package org.cast.cwm.data;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.constructs.blocking.BlockingCache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * Cache for holding converted mp3 audio.
  *
- * A BlockingCache is used to prevent multiple conversions of the same audio from happening.
- * This means that a "get" will lock that key in the cache, such that later "gets" will block
- * until a value has been "put" into the cache.  The lock will timeout and throw an exception
- * after 30 seconds to prevent the possibility of requests blocking forever.
+ * The cache is bounded by the total size of the audio it holds, rather than the number of items.
+ * Recently used items are kept in memory, up to maxHeapBytes; less recently used items are 
+ * written to files in a disk directory, up to maxDiskBytes, and beyond that are discarded.
+ * Items on disk can be read with {@link #openCachedMp3(Long)} as a stream, without loading them into memory.
+ *
+ * The cache also prevents multiple conversions of the same audio from happening.
+ * A "get" that finds nothing will lock that key in the cache, such that later "gets" by other threads will block
+ * until a value has been "put" into the cache.  The wait will time out and throw an exception
+ * after 30 seconds to prevent the possibility of requests blocking forever.  A thread that cannot 
+ * produce the value after all should call {@link #release(Long)} so that others stop waiting.
  *
  * @see org.cast.cwm.data.resource.ConvertedMP3DataResource
- * @see net.sf.ehcache.constructs.blocking.BlockingCache
 */
 @Slf4j
 public class Mp3Cache {
 
-    private static final String CACHE_NAME = Mp3Cache.class.getName();
+    public static final long DEFAULT_MAX_HEAP_BYTES = 32L * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_DISK_BYTES = 512L * 1024 * 1024;
 
     private static final int CACHE_TIMEOUT_MILLIS = 30 * 1000;
 
-    private BlockingCache cache;
+    // Names of the files this class writes: id, then a unique part
+    private static final Pattern FILE_NAME = Pattern.compile("mp3-\\d+-.*\\.mp3");
+
+    private static volatile Mp3Cache shared;
+
+    @Getter
+    private final long maxHeapBytes;
+
+    @Getter
+    private final long maxDiskBytes;
+
+    @Getter
+    private final File diskDirectory;
+
+    // All entries, least recently used first.  Guarded by this.
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    // Keys that a thread is filling in.  Guarded by this.
+    private final Map<Long, KeyLock> locks = new HashMap<Long, KeyLock>();
+
+    private long heapBytes;
+
+    private long diskBytes;
+
+    @Getter
+    private final AtomicLong heapHitCount = new AtomicLong();
+
+    @Getter
+    private final AtomicLong diskHitCount = new AtomicLong();
+
+    @Getter
+    private final AtomicLong missCount = new AtomicLong();
+
+    /** Number of items moved from memory to disk */
+    @Getter
+    private final AtomicLong spillCount = new AtomicLong();
 
+    /** Number of items discarded from the cache altogether */
+    @Getter
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Create a cache with default limits, that writes to the application's directory under the system's temp directory.
+     */
     public Mp3Cache() {
-        Cache underlyingCache = CacheManager.getInstance().getCache(CACHE_NAME);
-        if (underlyingCache == null) {
-            log.warn("Could not find configuration [" + CACHE_NAME + "]; using defaults.");
-            CacheManager.getInstance().addCache(CACHE_NAME);
-            underlyingCache = CacheManager.getInstance().getCache(CACHE_NAME);
+        this(DEFAULT_MAX_HEAP_BYTES, null, DEFAULT_MAX_DISK_BYTES);
+    }
+
+    /**
+     * @param maxHeapBytes total size of audio that will be held in memory
+     * @param diskDirectory directory for audio that doesn't fit in memory; if null a fixed directory 
+     *     under the system's temp directory is used, see {@link DerivedFileCache#getDefaultDirectory(String)}
+     * @param maxDiskBytes total size of audio that will be held on disk; 0 for no disk tier
+     */
+    public Mp3Cache(long maxHeapBytes, File diskDirectory, long maxDiskBytes) {
+        this.maxHeapBytes = maxHeapBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        if (maxDiskBytes > 0) {
+            try {
+                if (diskDirectory == null)
+                    diskDirectory = DerivedFileCache.getDefaultDirectory("mp3cache");
+                if (!diskDirectory.isDirectory() && !diskDirectory.mkdirs())
+                    throw new IOException("Cannot create " + diskDirectory);
+                deleteFiles(diskDirectory); // left from a previous run; not indexed
+            } catch (IOException e) {
+                log.warn("No disk tier for mp3 cache: {}", e.getMessage());
+                diskDirectory = null;
+            }
         }
-        cache = new BlockingCache(underlyingCache);
-        cache.setTimeoutMillis(CACHE_TIMEOUT_MILLIS);
+        this.diskDirectory = (maxDiskBytes > 0) ? diskDirectory : null;
+    }
+
+    /**
+     * @return the cache shared by the application, which is created with default settings if necessary
+     */
+    public static Mp3Cache get() {
+        if (shared == null) {
+            synchronized (Mp3Cache.class) {
+                if (shared == null)
+                    shared = new Mp3Cache();
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Set the cache to be shared by the application.
+     * @param cache the cache
+     */
+    public static void setShared(Mp3Cache cache) {
+        shared = cache;
     }
 
     /**
@@ -66,26 +169,110 @@ public class Mp3Cache {
      * @return date mp3 conversion was cached, or null if not found.
      */
     public Date getCachedDate (Long id) {
-        Element element = cache.get(id);
-        if (element != null)
-            return new Date(element.getLatestOfCreationAndUpdateTime());
-        else
-            return null;
+        Entry entry = lookup(id);
+        return entry == null ? null : new Date(entry.created);
     }
 
     /**
      * Check for an mp3 for the given id and return it.
      * If there is no such item, null is returned, and other threads' calls to this method with the
      * same id will block until the first thread has converted and stored the mp3 into the cache.
+     * Items that are on disk are read into memory; consider {@link #openCachedMp3(Long)} instead.
      * @param id id of the BinaryFileData object with the WAV audio
      * @return byte array for the mp3, or empty byte array if not found.
      */
     public byte[] getCachedMp3 (Long id) {
-        Element element = cache.get(id);
-        if (element != null)
-            return (byte[]) element.getObjectValue();
-        else
+        InputStream in = openCachedMp3(id);
+        if (in == null)
             return new byte[] {};
+        if (in instanceof HeapInputStream)
+            return ((HeapInputStream) in).data;
+        try {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                copy(in, out);
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not read cached mp3 {}: {}", id, e.getMessage());
+            return new byte[] {};
+        }
+    }
+
+    /**
+     * Check for an mp3 for the given id and open a stream to read it, from memory or from disk.
+     * Blocks in the same way as {@link #getCachedDate(Long)}.
+     * @param id id of the BinaryFileData object with the WAV audio
+     * @return a stream of the mp3, which the caller must close; or null if not found.
+     */
+    public InputStream openCachedMp3 (Long id) {
+        Entry entry = lookup(id);
+        if (entry == null)
+            return null;
+        return open(id, entry);
+    }
+
+    /**
+     * Open a stream to read the mp3 for the given id if it is in the cache.
+     * Unlike {@link #openCachedMp3(Long)}, this never blocks or claims the id.
+     * @param id id of the BinaryFileData object with the WAV audio
+     * @return a stream of the mp3, which the caller must close; or null if not found.
+     */
+    public InputStream peekCachedMp3 (Long id) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(id);
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        return open(id, entry);
+    }
+
+    /**
+     * Give up a claim on the given id made by a lookup that found nothing, without storing a value.
+     * Threads waiting for the id are released, and will find nothing.  Does nothing unless the
+     * current thread holds the claim.
+     * @param id id of the BinaryFileData object with the WAV audio
+     */
+    public synchronized void release (Long id) {
+        KeyLock lock = locks.get(id);
+        if (lock != null && lock.owner == Thread.currentThread()) {
+            locks.remove(id);
+            lock.latch.countDown();
+        }
+    }
+
+    private InputStream open (Long id, Entry entry) {
+        synchronized (this) {
+            if (entry.data != null) {
+                heapHitCount.incrementAndGet();
+                return new HeapInputStream(entry.data);
+            }
+            // Open while holding the lock, so the file can't be evicted first
+            try {
+                InputStream in = new FileInputStream(entry.file);
+                diskHitCount.incrementAndGet();
+                return in;
+            } catch (FileNotFoundException e) {
+                log.warn("Cached mp3 file went missing: {}", entry.file);
+                removeEntry(id);
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param id id of the BinaryFileData object with the WAV audio
+     * @return length of the cached mp3 in bytes, or -1 if not found.  Does not block.
+     */
+    public synchronized long getCachedLength (Long id) {
+        Entry entry = entries.get(id);
+        return entry == null ? -1 : entry.length;
     }
 
     /**
@@ -95,16 +282,217 @@ public class Mp3Cache {
      * @return the creation/update date of the cache element
      */
     public Date storeInCache (Long id, byte[] mp3) {
-        Element element = new Element(id, mp3);
-        cache.put(element);
-        return new Date(element.getLatestOfCreationAndUpdateTime());
+        Entry entry = new Entry(mp3);
+        List<Entry> toSpill;
+        synchronized (this) {
+            removeEntry(id);
+            entries.put(id, entry);
+            heapBytes += entry.length;
+            toSpill = trimHeap();
+            KeyLock lock = locks.remove(id);
+            if (lock != null)
+                lock.latch.countDown();
+        }
+        spill(toSpill);
+        return new Date(entry.created);
     }
 
     /**
      * Remove all data from the cache.  Mainly used for testing.
      */
-    public void clear () {
-        cache.removeAll();
+    public synchronized void clear () {
+        for (Long id : new ArrayList<Long>(entries.keySet()))
+            removeEntry(id);
+        for (KeyLock lock : locks.values())
+            lock.latch.countDown();
+        locks.clear();
+    }
+
+    /**
+     * @return number of items in the cache
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return total size of items held in memory
+     */
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * @return total size of items held on disk
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    // Find an entry; if there is none, either claim the key for this thread or wait for the thread that has it.
+    private Entry lookup(Long id) {
+        KeyLock lock;
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            if (entry != null)
+                return entry;
+            lock = locks.get(id);
+            if (lock == null || lock.owner == Thread.currentThread()) {
+                if (lock == null)
+                    locks.put(id, new KeyLock());
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+        try {
+            if (!lock.latch.await(CACHE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                throw new IllegalStateException("Timed out waiting for mp3 " + id + " to be cached");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for mp3 " + id + " to be cached");
+        }
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            if (entry == null)
+                missCount.incrementAndGet();
+            return entry;
+        }
+    }
+
+    // Choose least recently used in-memory entries to move to disk (or discard), until the memory limit is met.
+    // Must hold the lock.
+    private List<Entry> trimHeap() {
+        List<Entry> toSpill = new ArrayList<Entry>();
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        while (heapBytes > maxHeapBytes && it.hasNext()) {
+            Map.Entry<Long, Entry> e = it.next();
+            Entry entry = e.getValue();
+            if (entry.data == null || entry.spilling)
+                continue;
+            heapBytes -= entry.length;
+            if (diskDirectory != null && entry.length <= maxDiskBytes) {
+                entry.spilling = true;
+                entry.id = e.getKey();
+                toSpill.add(entry);
+            } else {
+                it.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+        return toSpill;
+    }
+
+    // Write entries to disk, outside of the lock, and then switch them over to their files.
+    private void spill(List<Entry> toSpill) {
+        for (Entry entry : toSpill) {
+            File file = null;
+            boolean written = false;
+            try {
+                file = File.createTempFile("mp3-" + entry.id + "-", ".mp3", diskDirectory);
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(entry.data);
+                    written = true;
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                log.warn("Could not write mp3 to cache directory: {}", e.getMessage());
+            }
+            synchronized (this) {
+                if (entries.get(entry.id) != entry) {
+                    // Replaced or removed in the meantime
+                    if (file != null)
+                        file.delete();
+                    continue;
+                }
+                if (!written) {
+                    if (file != null)
+                        file.delete();
+                    entries.remove(entry.id);
+                    evictionCount.incrementAndGet();
+                    continue;
+                }
+                entry.file = file;
+                entry.data = null;
+                entry.spilling = false;
+                diskBytes += entry.length;
+                spillCount.incrementAndGet();
+                trimDisk();
+            }
+        }
+    }
+
+    // Discard least recently used entries on disk until the disk limit is met.  Must hold the lock.
+    private void trimDisk() {
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.file == null)
+                continue;
+            it.remove();
+            diskBytes -= entry.length;
+            entry.file.delete();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    // Must hold the lock.
+    private void removeEntry(Long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null)
+            return;
+        if (entry.file != null) {
+            diskBytes -= entry.length;
+            entry.file.delete();
+        } else if (!entry.spilling) {
+            heapBytes -= entry.length;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0)
+            out.write(buffer, 0, n);
+    }
+
+    // Only files this class writes, so other files in a shared directory are left alone
+    private static void deleteFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                if (FILE_NAME.matcher(f.getName()).matches())
+                    f.delete();
+    }
+
+    private static class Entry {
+        final long created = System.currentTimeMillis();
+        final long length;
+        Long id;
+        byte[] data;
+        File file;
+        boolean spilling;
+
+        Entry(byte[] data) {
+            this.data = data;
+            this.length = data.length;
+        }
+    }
+
+    private static class KeyLock {
+        final Thread owner = Thread.currentThread();
+        final CountDownLatch latch = new CountDownLatch(1);
+    }
+
+    // Lets getCachedMp3 return the cached array itself rather than a copy
+    private static class HeapInputStream extends ByteArrayInputStream {
+        final byte[] data;
+
+        HeapInputStream(byte[] data) {
+            super(data);
+            this.data = data;
+        }
     }
 
 }
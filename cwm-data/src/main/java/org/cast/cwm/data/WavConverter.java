@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.wicket.util.io.Streams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts GZipped audio (eg AU) stored in a {@link BinaryFileData} to WAVE format,
+ * which is compatible with more audio players.
+ * <p>
+ * Converted audio is kept in the {@link DerivedFileCache}, under a key that identifies the
+ * version of the source data.  When it is not cached, the conversion is written directly 
+ * to the output as it proceeds, while a copy is saved to the cache.
+ * 
+ * For mp3 we'd need additional Java Sound plugins, eg tritonus
+ */
+public class WavConverter {
+	
+	private static final Logger log = LoggerFactory.getLogger(WavConverter.class);
+
+	public static final String MIME_TYPE = "audio/wave";
+
+	private WavConverter() {
+		// static methods only
+	}
+	
+	/**
+	 * @param bfd source audio
+	 * @return a key that identifies the WAV version of this version of the source audio
+	 */
+	public static String getCacheKey(BinaryFileData bfd) {
+		if (bfd.getContentHash() != null)
+			return "wav-" + bfd.getContentHash();
+		return "wav-" + bfd.getId() + "-" + bfd.getLastModified().getTime();
+	}
+
+	/**
+	 * @param bfd source audio
+	 * @return a strong entity tag for the converted audio, including quotation marks
+	 */
+	public static String getETag(BinaryFileData bfd) {
+		return "\"" + getCacheKey(bfd) + "\"";
+	}
+	
+	/**
+	 * @param bfd source audio
+	 * @return size of the converted audio if it is cached, otherwise -1
+	 */
+	public static long getCachedLength(BinaryFileData bfd) {
+		File cached = DerivedFileCache.get().get(getCacheKey(bfd));
+		return cached == null ? -1 : cached.length();
+	}
+
+	/**
+	 * Check whether the source audio can be converted, by reading just its header.
+	 * @param bfd source audio
+	 * @return true if there is a cached conversion, or the source is in a format that can be converted
+	 */
+	public static boolean canConvert(BinaryFileData bfd) {
+		if (bfd == null)
+			return false;
+		if (getCachedLength(bfd) >= 0)
+			return true;
+		InputStream source = bfd.openData();
+		if (source == null)
+			return false;
+		try {
+			try {
+				AudioSystem.getAudioFileFormat(new BufferedInputStream(new GZIPInputStream(source)));
+				return true;
+			} finally {
+				source.close();
+			}
+		} catch (UnsupportedAudioFileException e) {
+			log.warn("Cannot convert audio of {}: {}", bfd, e.getMessage());
+		} catch (IOException e) {
+			log.warn("Cannot read audio of {}: {}", bfd, e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Write the source audio, converted to WAV, to a stream.
+	 * The cached conversion is used if there is one; otherwise the audio is converted 
+	 * and saved in the cache.
+	 * 
+	 * @param bfd source audio
+	 * @param out destination; not closed
+	 * @return false if there is no source audio or it cannot be converted
+	 * @throws IOException if there is an error reading or writing
+	 */
+	public static boolean write(BinaryFileData bfd, OutputStream out) throws IOException {
+		if (bfd == null)
+			return false;
+		DerivedFileCache cache = DerivedFileCache.get();
+		String key = getCacheKey(bfd);
+		File cached = cache.get(key);
+		if (cached != null) {
+			try {
+				copy(new FileInputStream(cached), out);
+				return true;
+			} catch (FileNotFoundException e) {
+				log.debug("Cached {} was evicted; converting again", key);
+			}
+		}
+		
+		InputStream source = bfd.openData();
+		if (source == null)
+			return false;
+		File tmp = cache.newTempFile();
+		try {
+			AudioInputStream ais = AudioSystem.getAudioInputStream(new BufferedInputStream(new GZIPInputStream(source)));
+			log.debug("Input format: " + ais.getFormat());
+			if (ais.getFrameLength() == AudioSystem.NOT_SPECIFIED) {
+				// The WAVE header must give the length, so the whole stream has to be converted before it can be sent.
+				AudioSystem.write(ais, AudioFileFormat.Type.WAVE, tmp);
+				InputStream in = new FileInputStream(tmp); // opened before it is moved, in case it's evicted right away
+				try {
+					cache.put(key, tmp);
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+				copy(in, out);
+			} else {
+				OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tmp));
+				try {
+					AudioSystem.write(ais, AudioFileFormat.Type.WAVE, new TeeOutputStream(out, fileOut));
+				} finally {
+					fileOut.close();
+				}
+				cache.put(key, tmp);
+			}
+			return true;
+		} catch (UnsupportedAudioFileException e) {
+			log.warn("Cannot convert audio of {}: {}", bfd, e.getMessage());
+			return false;
+		} finally {
+			source.close();
+			if (tmp.exists() && !tmp.delete())
+				log.warn("Could not delete {}", tmp);
+		}
+	}
+
+	/**
+	 * Get the source audio converted to WAV, in memory.
+	 * @param bfd source audio
+	 * @return the WAV data, or null if there is no source audio or it cannot be converted
+	 */
+	public static byte[] getBytes(BinaryFileData bfd) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			return write(bfd, out) ? out.toByteArray() : null;
+		} catch (IOException e) {
+			log.error("Could not convert audio of " + bfd, e);
+			return null;
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		try {
+			Streams.copy(in, out);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import lombok.Getter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A blob store that keeps each distinct content in a file on local disk.
+ * Files are named by their SHA-256 hash, in two levels of subdirectories
+ * (eg, root/3a/7f/3a7f...) so that no single directory gets too large.
+ * <p>
+ * New content is written to a temporary file and then renamed into place,
+ * so a file that exists is always complete.  Since contents never change once stored,
+ * there is no need for locking.
+ */
+public class FileBlobStore implements IBlobStore {
+
+	private static final Logger log = LoggerFactory.getLogger(FileBlobStore.class);
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	@Getter
+	private final File root;
+	
+	private final File tmpDir;
+
+	/**
+	 * @param root directory that holds the stored files; created if necessary
+	 */
+	public FileBlobStore(File root) {
+		this.root = root;
+		this.tmpDir = new File(root, "tmp");
+		if (!tmpDir.isDirectory() && !tmpDir.mkdirs())
+			throw new IllegalArgumentException("Cannot create blob store directory " + tmpDir);
+	}
+
+	@Override
+	public String put(byte[] data) throws IOException {
+		return put(new ByteArrayInputStream(data));
+	}
+
+	@Override
+	public String put(InputStream in) throws IOException {
+		MessageDigest digest = newDigest();
+		File tmp = File.createTempFile("blob", ".tmp", tmpDir);
+		try {
+			OutputStream out = new DigestOutputStream(new FileOutputStream(tmp), digest);
+			try {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) >= 0)
+					out.write(buffer, 0, n);
+			} finally {
+				out.close();
+			}
+			String hash = toHex(digest.digest());
+			File file = getFile(hash);
+			if (file.exists()) {
+				log.debug("Blob {} is already stored", hash);
+				return hash;
+			}
+			File dir = file.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+				throw new IOException("Cannot create directory " + dir);
+			// Rename can fail if another thread stored the same content first, which is fine
+			if (!tmp.renameTo(file) && !file.exists())
+				throw new IOException("Cannot move " + tmp + " to " + file);
+			return hash;
+		} finally {
+			if (tmp.exists() && !tmp.delete())
+				log.warn("Could not delete temporary file {}", tmp);
+		}
+	}
+
+	@Override
+	public boolean contains(String hash) {
+		return getFile(hash).isFile();
+	}
+
+	@Override
+	public long length(String hash) throws IOException {
+		File file = getFile(hash);
+		if (!file.isFile())
+			throw new FileNotFoundException("No blob " + hash);
+		return file.length();
+	}
+
+	@Override
+	public InputStream open(String hash) throws IOException {
+		return new FileInputStream(getFile(hash));
+	}
+
+	@Override
+	public byte[] get(String hash) throws IOException {
+		InputStream in = open(hash);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) length(hash));
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param hash a SHA-256 hash in hex
+	 * @return the file where contents with that hash are stored
+	 */
+	protected File getFile(String hash) {
+		if (hash == null || !hash.matches("[0-9a-f]{64}"))
+			throw new IllegalArgumentException("Not a SHA-256 hash: " + hash);
+		return new File(new File(new File(root, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2*i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2*i+1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage for the contents of binary files, outside of the database.
+ * Contents are addressed by their SHA-256 hash, so storing the same bytes twice 
+ * keeps only one copy.
+ * 
+ * @see FileBlobStore
+ */
+public interface IBlobStore {
+
+	/**
+	 * Store some data, unless identical data is already stored.
+	 * @param data the contents
+	 * @return the SHA-256 hash of the contents, as 64 lowercase hex digits
+	 * @throws IOException if the data could not be stored
+	 */
+	String put(byte[] data) throws IOException;
+
+	/**
+	 * Store the contents of a stream, unless identical data is already stored.
+	 * The stream is read to its end but not closed.
+	 * @param in source of the contents
+	 * @return the SHA-256 hash of the contents, as 64 lowercase hex digits
+	 * @throws IOException if the data could not be read or stored
+	 */
+	String put(InputStream in) throws IOException;
+
+	/**
+	 * @param hash hash returned by one of the put methods
+	 * @return true if contents with this hash are stored
+	 */
+	boolean contains(String hash);
+	
+	/**
+	 * @param hash hash returned by one of the put methods
+	 * @return size of the stored contents, in bytes
+	 * @throws IOException if there are no such contents
+	 */
+	long length(String hash) throws IOException;
+
+	/**
+	 * Open a stream to read stored contents.  The caller must close it.
+	 * @param hash hash returned by one of the put methods
+	 * @return stream of the contents
+	 * @throws IOException if there are no such contents
+	 */
+	InputStream open(String hash) throws IOException;
+
+	/**
+	 * Read stored contents into memory.
+	 * @param hash hash returned by one of the put methods
+	 * @return the contents
+	 * @throws IOException if there are no such contents
+	 */
+	byte[] get(String hash) throws IOException;
+
+}
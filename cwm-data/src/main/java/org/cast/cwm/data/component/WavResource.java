@@ -19,30 +19,28 @@
  */
 package org.cast.cwm.data.component;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
 
 import javax.servlet.http.HttpServletResponse;
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
 
+import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.model.IModel;
+import org.apache.wicket.request.http.WebRequest;
 import org.apache.wicket.request.resource.AbstractResource;
 import org.apache.wicket.request.resource.ContentDisposition;
 import org.apache.wicket.util.time.Time;
+import org.cast.cwm.data.BinaryFileData;
 import org.cast.cwm.data.ResponseData;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.cast.cwm.data.WavConverter;
+import org.cast.cwm.data.resource.UploadedFileResource;
 
 /**
  * Resource that will return the audio data of a ResponseData object, converted to WAV format.
  * 
+ * The converted audio is cached by {@link WavConverter}, and validated with an ETag and
+ * Last-Modified date that are tied to the source audio.  If it isn't cached, conversion is 
+ * streamed to the response, so memory use does not depend on the length of the recording.
+ * 
  * @author bgoldowsky
  *
  */
@@ -50,7 +48,6 @@ public class WavResource extends AbstractResource {
 	
 	IModel<ResponseData> mResponseData;
 	
-	private static final Logger log = LoggerFactory.getLogger(WavResource.class);
 	private static final long serialVersionUID = 1L;
 	
 	/**
@@ -64,20 +61,44 @@ public class WavResource extends AbstractResource {
 
 	@Override
 	protected ResourceResponse newResourceResponse(Attributes attributes) {
-		final ResourceResponse response = new ResourceResponse();
-		response.setContentType("audio/wave");
-		response.setLastModified(Time.valueOf(mResponseData.getObject().getCreateDate()));
+		final BinaryFileData bfd = mResponseData.getObject().getBinaryFileData();
+		if (bfd == null) {
+			ResourceResponse response = new ResourceResponse();
+			response.setError(HttpServletResponse.SC_NOT_FOUND);
+			return response;
+		}
+		
+		final String etag = WavConverter.getETag(bfd);
+		final WebRequest request = (WebRequest) attributes.getRequest();
+		final ResourceResponse response = new ResourceResponse() {
+			@Override
+			public boolean dataNeedsToBeWritten(Attributes attributes) {
+				String ifNoneMatch = request.getHeader("If-None-Match");
+				if (ifNoneMatch != null)
+					return !UploadedFileResource.matchesETag(ifNoneMatch, etag);
+				return super.dataNeedsToBeWritten(attributes);
+			}
+		};
+		response.setContentType(WavConverter.MIME_TYPE);
+		response.setLastModified(Time.valueOf(bfd.getLastModified()));
+		response.getHeaders().addHeader("ETag", etag);
 		
 		if (response.dataNeedsToBeWritten(attributes)) {
 			response.setContentDisposition(ContentDisposition.INLINE);
-			final byte[] audioData = getConverted();
-			if (audioData == null) {
+			if (!WavConverter.canConvert(bfd)) {
 				response.setError(HttpServletResponse.SC_NOT_FOUND);
 			} else {
+				long length = WavConverter.getCachedLength(bfd);
+				if (length >= 0)
+					response.setContentLength(length);
 				response.setWriteCallback(new WriteCallback() {
 					@Override
 					public void writeData(final Attributes attributes) {
-						attributes.getResponse().write(audioData);
+						try {
+							WavConverter.write(bfd, attributes.getResponse().getOutputStream());
+						} catch (IOException e) {
+							throw new WicketRuntimeException("Couldn't write audio of " + bfd, e);
+						}
 					}
 				});
 			}
@@ -85,23 +106,4 @@ public class WavResource extends AbstractResource {
 		return response;
 	}
 
-	private byte[] getConverted() {
-		try {
-			InputStream is = new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(mResponseData.getObject().getBytes())));
-			// For mp3 we'd need additional Java Sound plugins, eg tritonus
-			AudioInputStream ais = AudioSystem.getAudioInputStream(is);
-			log.debug("Input format: " + ais.getFormat());
-			// Set up stream as a buffer
-			ByteArrayOutputStream waveStream = new ByteArrayOutputStream();
-			// Fill it, with proper WAVE header
-			AudioSystem.write(ais, AudioFileFormat.Type.WAVE, waveStream);
-			return waveStream.toByteArray();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (UnsupportedAudioFileException e) {
-			e.printStackTrace();
-		}
-		return null;
-	}
-
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data.init;
+
+import java.util.List;
+
+import net.databinder.hib.Databinder;
+
+import org.apache.wicket.injection.Injector;
+import org.cast.cwm.IAppConfiguration;
+import org.cast.cwm.data.BinaryFileData;
+import org.cast.cwm.service.ICwmService;
+import org.hibernate.Session;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+
+/**
+ * Database initializer that moves the contents of {@link BinaryFileData} objects 
+ * out of the database and into the blob store, if one is configured.
+ * Rows are processed in batches, each committed separately, so an interrupted
+ * migration simply continues the next time the application starts.
+ * 
+ * App Properties expected:
+ *  cwm.blobStore.migrationBatchSize: number of files moved per transaction (optional; default = 50).
+ *
+ */
+public class MoveBinaryDataToBlobStore implements IDatabaseInitializer {
+	
+	private static final Logger log = LoggerFactory.getLogger(MoveBinaryDataToBlobStore.class);
+
+	@Inject
+	private ICwmService cwmService;
+	
+	public MoveBinaryDataToBlobStore() {
+		super();
+		Injector.get().inject(this);
+	}
+
+	@Override
+	public String getName() {
+		return "move binary data to blob store";
+	}
+
+	@Override
+	public boolean isOneTimeOnly() {
+		return false;
+	}
+
+	@Override
+	public boolean run(IAppConfiguration appProperties) {
+		if (BinaryFileData.getBlobStore() == null)
+			return false;
+		int batchSize = appProperties.getInteger("cwm.blobStore.migrationBatchSize", 50);
+		Session session = Databinder.getHibernateSession();
+		long moved = 0;
+		long lastId = 0;
+		while (true) {
+			// Only ids are selected here, so just one batch of contents is in memory at a time
+			@SuppressWarnings("unchecked")
+			List<Long> ids = session.createCriteria(BinaryFileData.class)
+					.add(Restrictions.isNotNull("data"))
+					.add(Restrictions.gt("id", lastId))
+					.setProjection(Projections.id())
+					.addOrder(Order.asc("id"))
+					.setMaxResults(batchSize)
+					.list();
+			if (ids.isEmpty())
+				break;
+			for (Long id : ids) {
+				BinaryFileData bfd = (BinaryFileData) session.get(BinaryFileData.class, id);
+				if (bfd != null && bfd.moveDataToBlobStore())
+					moved++;
+				lastId = id;
+			}
+			cwmService.flushChanges();
+			session.clear();
+			log.info("Moved {} binary files to the blob store", moved);
+		}
+		return moved > 0;
+	}
+
+}
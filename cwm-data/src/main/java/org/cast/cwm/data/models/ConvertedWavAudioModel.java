@@ -19,36 +19,24 @@
  */
 package org.cast.cwm.data.models;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
-
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-
 import lombok.Getter;
 
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.LoadableDetachableModel;
 import org.cast.cwm.data.Response;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.cast.cwm.data.WavConverter;
 
 /**
  * Proof-of-concept Model that reads the GZipped-AU audio data from a Response
  * and makes it available as WAVE data, which is compatible with more audio players.
+ * The conversion is done and cached by {@link WavConverter}; 
+ * to avoid holding the whole recording in memory, use {@link org.cast.cwm.data.component.WavResource}.
  *
  * For mp3 we'd need additional Java Sound plugins, eg tritonus
  */
 public class ConvertedWavAudioModel extends LoadableDetachableModel<byte[]> {
 
 	private static final long serialVersionUID = 1L;
-	private static final Logger log = LoggerFactory.getLogger(ConvertedWavAudioModel.class);
 
 	@Getter
 	private IModel<? extends Response> mResponse;
@@ -66,25 +54,7 @@ public class ConvertedWavAudioModel extends LoadableDetachableModel<byte[]> {
 	protected byte[] load() {
 		if (mResponse == null || mResponse.getObject() == null || mResponse.getObject().getResponseData() == null)
 			return null;
-		try {
-			InputStream is = new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(mResponse.getObject().getResponseData().getBytes())));
-			AudioInputStream ais = AudioSystem.getAudioInputStream(is);
-			log.debug("Input format: " + ais.getFormat());
-			// Set up stream as a buffer
-			ByteArrayOutputStream waveStream = new ByteArrayOutputStream();
-			// Fill it, with proper WAVE header
-			AudioSystem.write(ais, AudioFileFormat.Type.WAVE, waveStream);
-			return (waveStream.toByteArray());
-			// TODO: should this be streamed somehow, eg via PipedOutputStream, rather than doing all conversion ahead of time?
-			// conversion could be pushed to a separate thread.
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (UnsupportedAudioFileException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		return null;
+		return WavConverter.getBytes(mResponse.getObject().getResponseData().getBinaryFileData());
 	}
 	
 	@Override
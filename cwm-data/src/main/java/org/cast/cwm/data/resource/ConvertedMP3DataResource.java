@@ -21,25 +21,31 @@ package org.cast.cwm.data.resource;
 
 import com.google.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
-import net.sf.lamejb.impl.std.StreamEncoderWAVImpl;
-import net.sf.lamejb.jna.std.MpegMode;
-import net.sf.lamejb.std.LameConfig;
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.wicket.Application;
+import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.injection.Injector;
 import org.apache.wicket.request.http.flow.AbortWithHttpErrorCodeException;
 import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.util.io.Streams;
 import org.apache.wicket.util.time.Time;
+import org.cast.cwm.CwmApplication;
 import org.cast.cwm.data.BinaryFileData;
+import org.cast.cwm.data.BinaryFileInfo;
 import org.cast.cwm.data.Mp3Cache;
 import org.cast.cwm.service.ICwmService;
+import org.cast.cwm.service.Mp3Transcoder;
 
 import javax.servlet.http.HttpServletResponse;
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 /**
  * A Resource that converts an audio BinaryFileData to mp3 then serves it to the browser.
- * Caching is used to avoid converting the same data more than once.
+ * 
+ * Normally the mp3 will have been created ahead of time by the {@link Mp3Transcoder},
+ * and is streamed from storage.  Otherwise the conversion is done on demand, and 
+ * caching is used to avoid converting the same data more than once.
  *
  */
 @Slf4j
@@ -48,8 +54,6 @@ public class ConvertedMP3DataResource extends AbstractResource {
     @Inject
     private ICwmService cwmService;
 
-    private static Mp3Cache mp3Cache;
-
     private static final long serialVersionUID = 1L;
 
     public ConvertedMP3DataResource() {
@@ -67,17 +71,39 @@ public class ConvertedMP3DataResource extends AbstractResource {
         // is this 'final' ok?
         final long id = attributes.getParameters().get("id").toLong();
 
+        response.setContentType("audio/mpeg");
+
+        // Use the mp3 converted ahead of time, if there is one; neither file's contents are loaded
+        final BinaryFileInfo convertedInfo = cwmService.getCurrentConvertedMp3Info(id);
+        if (convertedInfo != null) {
+            log.debug("Returning stored mp3 {} for BFD {}", convertedInfo.getId(), id);
+            response.setLastModified(Time.valueOf(convertedInfo.getLastModified()));
+            response.setContentLength(convertedInfo.getLength());
+            if (response.dataNeedsToBeWritten(attributes)) {
+                response.setWriteCallback(new WriteCallback() {
+                    @Override
+                    public void writeData(final Attributes attributes) {
+                        try {
+                            cwmService.copyBinaryFileData(convertedInfo, 0, convertedInfo.getLength(),
+                                    attributes.getResponse().getOutputStream());
+                        } catch (IOException e) {
+                            throw new WicketRuntimeException("Couldn't write mp3 for BFD " + id, e);
+                        }
+                    }
+                });
+            }
+            return response;
+        }
+
         BinaryFileData bfd = cwmService.getById(BinaryFileData.class, id).getObject();
 
         if (bfd == null)
             throw new AbortWithHttpErrorCodeException(HttpServletResponse.SC_NOT_FOUND, "Data not found [id=" + id + "]");
 
-        response.setContentType("audio/mpeg");
-
         response.setLastModified(Time.valueOf(bfd.getLastModified()));
 
         // Test the BFD for sanity
-        if (!"audio/wav".equals(bfd.getMimeType())) {
+        if (!Mp3Transcoder.canConvert(bfd)) {
             log.error("Cannot convert BinaryFileData {} with mime type {} to mp3", id, bfd.getMimeType());
         } else if (bfd.getData() == null) {
             log.warn("Request for mp3 version of empty BinaryFileData {}", id);
@@ -89,25 +115,31 @@ public class ConvertedMP3DataResource extends AbstractResource {
             if (cachedDate != null && cachedDate.after(bfd.getLastModified())) {
                 // Cached version exists, and is more recent than BFD's last modified
                 log.debug("Returning cached mp3 for BFD {}", id);
-                response.setContentLength(cache.getCachedMp3(id).length);
+                response.setContentLength(cache.getCachedLength(id));
             } else {
                 // Cached version doesn't exist, it must be created.
-                InputStream inputStream;
                 long startTime = System.currentTimeMillis();
+                boolean stored = false;
                 try {
-                    inputStream = new BufferedInputStream(new ByteArrayInputStream(bfd.getData()));
-                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                    convert(inputStream, outputStream);
-                    byte[] bytes = outputStream.toByteArray();
+                    byte[] bytes = Mp3Transcoder.convert(bfd.getData());
                     float elapsedTime = (System.currentTimeMillis() - startTime) / 1000f;
                     log.debug(String.format("MP3 conversion of BFD %d: %.2fsec, %d bytes converted to %d bytes",
                             id, elapsedTime, bfd.getData().length, bytes.length));
                     cache.storeInCache(id, bytes);
+                    stored = true;
                     // Set Content-Length header
                     response.setContentLength(bytes.length);
+                    // Keep the result, so that it need not be converted again
+                    Mp3Transcoder transcoder = getTranscoder();
+                    if (transcoder != null)
+                        transcoder.submit(id, bytes);
                 } catch (Exception e) {
                     // exception will generally result in no audio data being written.
-                    e.printStackTrace();
+                    log.error("MP3 conversion of BFD " + id + " failed", e);
+                } finally {
+                    // Don't leave other requests for this audio waiting on a conversion that won't arrive
+                    if (!stored)
+                        cache.release(id);
                 }
             }
         }
@@ -116,35 +148,34 @@ public class ConvertedMP3DataResource extends AbstractResource {
             response.setWriteCallback(new WriteCallback() {
                 @Override
                 public void writeData(final Attributes attributes) {
-                    // Pull mp3 data from cache and write to response.
-                    // Cache will have been filled by code above.
-                    attributes.getResponse().write(getCache().getCachedMp3(id));
+                    // Stream mp3 data from cache (memory or disk) to response.
+                    // Cache will have been filled by code above; if it has been evicted since, or the
+                    // conversion failed, write nothing rather than waiting on or claiming the id.
+                    InputStream in = getCache().peekCachedMp3(id);
+                    if (in == null)
+                        return;
+                    try {
+                        try {
+                            Streams.copy(in, attributes.getResponse().getOutputStream());
+                        } finally {
+                            in.close();
+                        }
+                    } catch (IOException e) {
+                        throw new WicketRuntimeException("Couldn't write mp3 for BFD " + id, e);
+                    }
                 }
             });
         }
         return response;
     }
 
-    private void convert(InputStream inputStream, OutputStream outputStream) throws IOException {
-        try {
-            StreamEncoderWAVImpl encoder = new StreamEncoderWAVImpl(inputStream);
-            LameConfig conf = encoder.getLameConfig();
-
-            conf.setInSamplerate(22050);
-            conf.setBrate(32);
-            conf.setBWriteVbrTag(false);
-            conf.setMode(MpegMode.MONO);
-
-            encoder.encode(outputStream);
-        } finally {
-            inputStream.close();
-            outputStream.close();
-        }
+    private Mp3Transcoder getTranscoder() {
+        if (Application.exists() && Application.get() instanceof CwmApplication)
+            return CwmApplication.get().getMp3Transcoder();
+        return null;
     }
 
     Mp3Cache getCache() {
-        if (mp3Cache == null)
-            mp3Cache = new Mp3Cache();
-        return mp3Cache;
+        return Mp3Cache.get();
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data.resource;
+
+import com.google.inject.Inject;
+import org.apache.wicket.injection.Injector;
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.request.http.flow.AbortWithHttpErrorCodeException;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.ContentDisposition;
+import org.apache.wicket.util.time.Duration;
+import org.apache.wicket.util.time.Time;
+import org.cast.cwm.CwmApplication;
+import org.cast.cwm.data.BinaryFileInfo;
+import org.cast.cwm.service.ICwmService;
+import org.cast.cwm.service.ThumbnailService;
+import org.cast.cwm.service.ThumbnailService.Thumbnail;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Like {@link UploadedFileResource}, but serves a scaled version of an image,
+ * from the application's {@link ThumbnailService}.  Accepts an "id" parameter.
+ * 
+ * The entity tag identifies both the version of the source image and the size, so
+ * conditional requests are answered without creating or loading the thumbnail.
+ *
+ */
+public class ThumbnailUploadedImageResource extends AbstractResource {
+
+	private static final long serialVersionUID = 1L;
+	
+	private final Integer maxWidth;
+	
+	private final Integer maxHeight;
+
+	@Inject
+	private ICwmService cwmService;
+	
+	public ThumbnailUploadedImageResource(Integer maxWidth, Integer maxHeight) {
+		super();
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		Injector.get().inject(this);
+	}
+
+	@Override
+	protected ResourceResponse newResourceResponse(final Attributes attributes) {
+		final long id = attributes.getParameters().get("id").toLong();
+
+		final BinaryFileInfo info = cwmService.getBinaryFileInfo(id);
+		if (info == null || !ThumbnailService.isScalable(info.getMimeType()))
+			throw new AbortWithHttpErrorCodeException(HttpServletResponse.SC_NOT_FOUND, "Image not found [id=" + id + "]");
+		
+		final String etag = "\"" + ThumbnailService.getKey(info, maxWidth, maxHeight, false) + "\"";
+		final WebRequest request = (WebRequest) attributes.getRequest();
+		ResourceResponse response = new ResourceResponse() {
+			@Override
+			public boolean dataNeedsToBeWritten(Attributes attributes) {
+				String ifNoneMatch = request.getHeader("If-None-Match");
+				if (ifNoneMatch != null)
+					return !UploadedFileResource.matchesETag(ifNoneMatch, etag);
+				return super.dataNeedsToBeWritten(attributes);
+			}
+		};
+		response.setLastModified(Time.valueOf(info.getLastModified()));
+		response.getHeaders().addHeader("ETag", etag);
+		response.setCacheDuration(Duration.days(1));
+		response.setCacheScope(WebResponse.CacheScope.PUBLIC);
+
+		if (response.dataNeedsToBeWritten(attributes)) {
+			final Thumbnail thumbnail = CwmApplication.get().getThumbnailService().getThumbnail(info, maxWidth, maxHeight, false);
+			if (thumbnail == null)
+				throw new AbortWithHttpErrorCodeException(HttpServletResponse.SC_NOT_FOUND, "Image could not be read [id=" + id + "]");
+			response.setContentType(thumbnail.getMimeType());
+			response.setContentLength(thumbnail.getData().length);
+			response.setContentDisposition(ContentDisposition.INLINE);
+			response.setWriteCallback(new WriteCallback() {
+				@Override
+				public void writeData(final Attributes attributes) {
+					attributes.getResponse().write(thumbnail.getData());
+				}
+			});
+		}
+		return response;
+	}
+
+}
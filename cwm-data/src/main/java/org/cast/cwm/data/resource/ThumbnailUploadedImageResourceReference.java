@@ -19,12 +19,12 @@
  */
 package org.cast.cwm.data.resource;
 
-import org.apache.wicket.extensions.markup.html.image.resource.ThumbnailImageResource;
 import org.apache.wicket.request.resource.IResource;
 import org.apache.wicket.request.resource.ResourceReference;
 
 /**
  * Like {@link UploadedFileResource}, but assumes resource is an image and scales it to a maximum dimension.
+ * Thumbnails are cached by the application's {@link org.cast.cwm.service.ThumbnailService}.
  * 
  * @author bgoldowsky
  *
@@ -43,7 +43,7 @@ public class ThumbnailUploadedImageResourceReference extends ResourceReference {
 
 	@Override
 	public IResource getResource() {
-		return new ThumbnailImageResource(new UploadedFileResource(), maxSize);
+		return new ThumbnailUploadedImageResource(maxSize, maxSize);
 	}
 
 }
@@ -20,23 +20,30 @@
 package org.cast.cwm.data.resource;
 
 import com.google.inject.Inject;
+import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.injection.Injector;
-import org.apache.wicket.model.IModel;
+import org.apache.wicket.request.http.WebRequest;
 import org.apache.wicket.request.http.WebResponse;
 import org.apache.wicket.request.http.flow.AbortWithHttpErrorCodeException;
 import org.apache.wicket.request.resource.AbstractResource;
 import org.apache.wicket.request.resource.ContentDisposition;
 import org.apache.wicket.util.time.Duration;
 import org.apache.wicket.util.time.Time;
-import org.cast.cwm.data.BinaryFileData;
+import org.cast.cwm.data.BinaryFileInfo;
 import org.cast.cwm.service.ICwmService;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 /**
  * A simple resource that accepts an "id" parameter and serves up
  * the file with the matching ID in the database.  If the file is
  * not found, this will throw a 404 Not Found Error.
+ * 
+ * The file contents are streamed from the database rather than loaded into memory.
+ * Responses carry a strong ETag, and a single byte range may be requested with
+ * a Range header (for instance when seeking in audio or video).  Conditional requests
+ * that result in 304 Not Modified only query the file's metadata.
  *
  * Note: in Wicket 1.4 this could not be cacheable, since WicketFilter would cause database access
  * outside of a proper session context when it checked the last-modified time; this database session
@@ -60,36 +67,136 @@ public class UploadedFileResource extends AbstractResource {
 
 	@Override
 	protected ResourceResponse newResourceResponse(final Attributes attributes) {
-		final ResourceResponse response = new ResourceResponse();
-
-		long id = attributes.getParameters().get("id").toLong();
+		final long id = attributes.getParameters().get("id").toLong();
 
-		IModel<BinaryFileData> mBfd = cwmService.getById(BinaryFileData.class, id);
-		if (mBfd == null || mBfd.getObject() == null)
+		final BinaryFileInfo info = cwmService.getBinaryFileInfo(id);
+		if (info == null)
 			throw new AbortWithHttpErrorCodeException(HttpServletResponse.SC_NOT_FOUND, "Data not found [id=" + id + "]");
-		BinaryFileData bfd = mBfd.getObject();
+		
+		final String etag = info.getETag();
+		final WebRequest request = (WebRequest) attributes.getRequest();
+		final ResourceResponse response = new ResourceResponse() {
+			@Override
+			public boolean dataNeedsToBeWritten(Attributes attributes) {
+				// If-None-Match takes precedence over If-Modified-Since
+				String ifNoneMatch = request.getHeader("If-None-Match");
+				if (ifNoneMatch != null)
+					return !matchesETag(ifNoneMatch, etag);
+				return super.dataNeedsToBeWritten(attributes);
+			}
+		};
 
-		response.setLastModified(Time.valueOf(bfd.getLastModified()));
+		response.setLastModified(Time.valueOf(info.getLastModified()));
+		response.getHeaders().addHeader("ETag", etag);
+		response.getHeaders().addHeader("Accept-Ranges", "bytes");
+		response.setCacheDuration(Duration.days(1));
+		response.setCacheScope(WebResponse.CacheScope.PUBLIC);
 
 		if (response.dataNeedsToBeWritten(attributes)) {
-
-			final byte[] data = bfd.getData();
-			if (data == null)
-				throw new AbortWithHttpErrorCodeException(HttpServletResponse.SC_NOT_FOUND, "Data not found [id=" + id + "]");
-
-			response.setContentType(bfd.getMimeType());
-			response.setContentLength(data.length);
+			final long total = info.getLength();
+			long start = 0;
+			long end = total - 1;
+			
+			// A Range is ignored if If-Range names a different version of the file
+			String rangeHeader = request.getHeader("Range");
+			String ifRange = request.getHeader("If-Range");
+			if (rangeHeader != null && (ifRange == null || ifRange.trim().equals(etag))) {
+				long[] range = parseRange(rangeHeader, total);
+				if (range != null && range.length == 0) {
+					response.setStatusCode(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					response.getHeaders().addHeader("Content-Range", "bytes */" + total);
+					response.setContentLength(0);
+					response.setWriteCallback(new WriteCallback() {
+						@Override
+						public void writeData(final Attributes attributes) {
+						}
+					});
+					return response;
+				}
+				if (range != null) {
+					start = range[0];
+					end = range[1];
+					response.setStatusCode(HttpServletResponse.SC_PARTIAL_CONTENT);
+					response.getHeaders().addHeader("Content-Range", "bytes " + start + "-" + end + "/" + total);
+				}
+			}
+			
+			final long offset = start;
+			final long length = end - start + 1;
+			response.setContentType(info.getMimeType());
+			response.setContentLength(length);
 			response.setContentDisposition(ContentDisposition.INLINE);
-			response.setCacheDuration(Duration.days(1));
-			response.setCacheScope(WebResponse.CacheScope.PUBLIC);
 			response.setWriteCallback(new WriteCallback() {
 				@Override
 				public void writeData(final Attributes attributes) {
-					attributes.getResponse().write(data);
+					try {
+						cwmService.copyBinaryFileData(info, offset, length, attributes.getResponse().getOutputStream());
+					} catch (IOException e) {
+						throw new WicketRuntimeException("Couldn't write data [id=" + id + "]", e);
+					}
 				}
 			});
 		}
 		return response;
 	}
 
+	/**
+	 * Parse a Range header.  Only a single range of bytes is supported; 
+	 * other forms of the header are treated as if there were no Range requested.
+	 * 
+	 * @param header value of the Range header, eg "bytes=0-499", "bytes=500-", or "bytes=-500"
+	 * @param total length of the file
+	 * @return first and last byte positions (inclusive); an empty array if the range 
+	 *   cannot be satisfied; or null if the header is not a single byte range.
+	 */
+	static long[] parseRange(String header, long total) {
+		header = header.trim();
+		if (!header.startsWith("bytes=") || header.indexOf(',') >= 0)
+			return null;
+		String spec = header.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+			return null;
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash+1).trim();
+			long start, end;
+			if (first.isEmpty()) {
+				// Suffix range: the final N bytes
+				if (last.isEmpty())
+					return null;
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0 || total == 0)
+					return new long[0];
+				start = Math.max(0, total - suffix);
+				end = total - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = last.isEmpty() ? total - 1 : Long.parseLong(last);
+				if (end < start)
+					return null; // invalid, so ignored
+				if (start >= total)
+					return new long[0];
+				end = Math.min(end, total - 1);
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Check an If-None-Match header against the current entity tag.
+	 */
+	public static boolean matchesETag(String header, String etag) {
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/"))
+				candidate = candidate.substring(2);
+			if (candidate.equals("*") || candidate.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
 }
@@ -23,16 +23,28 @@ import net.databinder.hib.Databinder;
 import net.databinder.models.hib.HibernateObjectModel;
 import org.apache.wicket.model.IChainingModel;
 import org.apache.wicket.model.IModel;
+import org.cast.cwm.data.BinaryFileData;
+import org.cast.cwm.data.BinaryFileInfo;
 import org.cast.cwm.data.Initialization;
+import org.cast.cwm.data.blob.IBlobStore;
 import org.cast.cwm.data.PersistedObject;
 import org.cast.cwm.data.init.IDatabaseInitializer;
 import org.hibernate.Criteria;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.criterion.Projections;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.persister.entity.AbstractEntityPersister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
 
@@ -58,6 +70,117 @@ public class CwmService implements ICwmService {
 		return new HibernateObjectModel<T>(clazz, id);
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.cast.cwm.service.ICwmService#getBinaryFileInfo(long)
+	 */
+	@Override
+	public BinaryFileInfo getBinaryFileInfo(long id) {
+		Object[] row = (Object[]) Databinder.getHibernateSession()
+				.createQuery("select b.name, b.mimeType, b.lastModified, coalesce(b.dataLength, length(b.data)), b.contentHash "
+						+ "from BinaryFileData b where b.id = :id")
+				.setLong("id", id)
+				.uniqueResult();
+		if (row == null || row[3] == null)
+			return null;
+		return new BinaryFileInfo(id, (String) row[0], (String) row[1], (Date) row[2], ((Number) row[3]).longValue(), (String) row[4]);
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.cast.cwm.service.ICwmService#getCurrentConvertedMp3Info(long)
+	 */
+	@Override
+	public BinaryFileInfo getCurrentConvertedMp3Info(long id) {
+		Object[] row = (Object[]) Databinder.getHibernateSession()
+				.createQuery("select c.id, c.name, c.mimeType, c.lastModified, coalesce(c.dataLength, length(c.data)), c.contentHash "
+						+ "from BinaryFileData b join b.convertedMp3 c where b.id = :id and c.lastModified >= b.lastModified")
+				.setLong("id", id)
+				.uniqueResult();
+		if (row == null || row[4] == null)
+			return null;
+		return new BinaryFileInfo(((Number) row[0]).longValue(), (String) row[1], (String) row[2], (Date) row[3], 
+				((Number) row[4]).longValue(), (String) row[5]);
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.cast.cwm.service.ICwmService#copyBinaryFileData(org.cast.cwm.data.BinaryFileInfo, long, long, java.io.OutputStream)
+	 */
+	@Override
+	public long copyBinaryFileData(BinaryFileInfo file, final long offset, final long length, final OutputStream out) throws IOException {
+		if (file.getContentHash() != null) {
+			IBlobStore store = BinaryFileData.getBlobStore();
+			if (store == null)
+				throw new IllegalStateException("No blob store is configured to read " + file);
+			InputStream in = store.open(file.getContentHash());
+			try {
+				return copy(in, offset, length, out);
+			} finally {
+				in.close();
+			}
+		}
+		
+		final long id = file.getId();
+		Session session = Databinder.getHibernateSession();
+		AbstractEntityPersister persister = (AbstractEntityPersister) session.getSessionFactory().getClassMetadata(BinaryFileData.class);
+		final String sql = "select " + persister.getPropertyColumnNames("data")[0]
+				+ " from " + persister.getTableName()
+				+ " where " + persister.getIdentifierColumnNames()[0] + " = ?";
+		
+		// Write errors (usually a client that went away) are reported as such, not as database errors
+		final IOException[] writeError = new IOException[1];
+		long copied = session.doReturningWork(new ReturningWork<Long>() {
+			@Override
+			public Long execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				try {
+					statement.setLong(1, id);
+					ResultSet rs = statement.executeQuery();
+					if (!rs.next())
+						return 0L;
+					InputStream in = rs.getBinaryStream(1);
+					if (in == null)
+						return 0L;
+					try {
+						return copy(in, offset, length, out);
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					writeError[0] = e;
+					return 0L;
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		if (writeError[0] != null)
+			throw writeError[0];
+		return copied;
+	}
+	
+	private static long copy(InputStream in, long offset, long length, OutputStream out) throws IOException {
+		long skipped = 0;
+		while (skipped < offset) {
+			long n = in.skip(offset - skipped);
+			if (n <= 0) {
+				// skip() may refuse to move; fall back to reading
+				if (in.read() < 0)
+					return 0;
+				n = 1;
+			}
+			skipped += n;
+		}
+		byte[] buffer = new byte[8192];
+		long copied = 0;
+		while (copied < length) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+			if (n < 0)
+				break;
+			out.write(buffer, 0, n);
+			copied += n;
+		}
+		return copied;
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.cast.cwm.service.ICwmService#save(org.cast.cwm.data.PersistedObject)
 	 */
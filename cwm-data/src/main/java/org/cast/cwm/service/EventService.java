@@ -30,6 +30,7 @@ import org.apache.wicket.protocol.http.ClientProperties;
 import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.cycle.RequestCycle;
+import org.cast.cwm.CwmApplication;
 import org.cast.cwm.CwmSession;
 import org.cast.cwm.data.Event;
 import org.cast.cwm.data.LoginSession;
@@ -127,6 +128,26 @@ public class EventService implements IEventService {
 		return modelProvider.modelOf(e);
 	}
 	
+	/**
+	 * Queue an event to be written to the database in the background, if the application 
+	 * has an {@link EventWriter} (see cwm.eventWriter).  Unlike {@link #saveEvent(Event)}, 
+	 * this does not flush or commit anything, and the event gets no id on this thread.
+	 * The event must not be used after it has been queued.
+	 * 
+	 * @param e the Event to be written
+	 * @return true if the event was queued; false if the caller should save it
+	 */
+	protected boolean saveEventAsync (Event e) {
+		EventWriter writer = CwmApplication.get().getEventWriter();
+		if (writer == null)
+			return false;
+		e.setDefaultValues();
+		if (!writer.offer(e))
+			return false;
+		log.debug("Queued event: {}: {}", e.getType(), e.getDetail());
+		return true;
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.cast.cwm.service.IEventService#saveEvent(java.lang.String, java.lang.String, java.lang.String, java.lang.String)
 	 */
@@ -161,7 +182,12 @@ public class EventService implements IEventService {
 	 */
 	@Override
 	public IModel<? extends Event> savePageViewEvent (String detail, String pageName) {
-		return saveEvent(PAGEVIEW_TYPE_NAME, detail, pageName);
+		Event e = newEvent();
+		e.setType(PAGEVIEW_TYPE_NAME);
+		e.setDetail(detail);
+		e.setPage(pageName);
+		// Page views are most of the events, and nothing refers to them
+		return saveEventAsync(e) ? null : saveEvent(e);
 	}
 	
 	/* (non-Javadoc)
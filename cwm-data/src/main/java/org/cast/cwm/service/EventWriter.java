@@ -0,0 +1,508 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+import org.cast.cwm.data.Event;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A separate Thread that writes {@link Event}s to the database in batches.
+ * Allows requests to return without waiting for a database commit for every logged event.
+ * <p>
+ * Events are placed on a bounded queue by {@link #offer(Event)}, and written by this thread
+ * using a {@link StatelessSession}, one transaction per batch.  With hibernate.jdbc.batch_size
+ * configured, each batch is sent as JDBC batch inserts.
+ * <p>
+ * What is queued is a {@link Record} of the event's property values, with the entities it refers to
+ * (such as its User and LoginSession) replaced by their ids.  So this thread shares no objects with
+ * the request that logged the event, and the journal holds no object graphs.
+ * <p>
+ * If the queue is full, {@link #offer(Event)} waits up to offerTimeout milliseconds and then
+ * returns false, in which case the caller should save the event itself.
+ * Events that cannot be written because the database is unavailable, or that are still queued
+ * at shutdown, are appended to a local journal file.  The journal is replayed to the database 
+ * when the writer starts and once the database is available again.
+ *
+ */
+public class EventWriter extends Thread {
+	
+	private final SessionFactory sessionFactory;
+	
+	private final BlockingQueue<Record> queue;
+	
+	private final File journal;
+	
+	@Getter
+	private final int batchSize;
+	
+	@Getter
+	private final long offerTimeout;
+
+	/** Time after a failed write during which events go directly to the journal. */
+	@Getter
+	private final long retryDelay = 5000;
+	
+	/** Time allowed at shutdown for writing events that are still queued. */
+	@Getter
+	private final long shutdownTimeout = 10000;
+	
+	/** File for events that could not be written even though the database was available. */
+	private final File failedFile;
+	
+	private volatile boolean running = true;
+	
+	private volatile boolean journalPending;
+	
+	private volatile long retryAfter = 0;
+	
+	private final AtomicLong queuedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong journaledCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	
+	private static final Logger log = LoggerFactory.getLogger(EventWriter.class);
+	
+	/**
+	 * Create an EventWriter.  Call {@link #start()} to begin writing events.
+	 * 
+	 * @param sessionFactory source of database sessions
+	 * @param journal file where events will be saved if they can't be written to the database
+	 * @param queueSize maximum number of events waiting to be written
+	 * @param batchSize maximum number of events written in one transaction
+	 * @param offerTimeout milliseconds that {@link #offer(Event)} will wait for space in a full queue
+	 */
+	public EventWriter (SessionFactory sessionFactory, File journal, int queueSize, int batchSize, long offerTimeout) {
+		super("EventWriter");
+		this.sessionFactory = sessionFactory;
+		this.journal = journal;
+		this.failedFile = new File(journal.getPath() + ".failed");
+		this.queue = new ArrayBlockingQueue<Record>(queueSize);
+		this.batchSize = batchSize;
+		this.offerTimeout = offerTimeout;
+		this.journalPending = journal.exists() || new File(journal.getPath() + ".replay").exists();
+		this.setDaemon(true);
+	}
+	
+	/**
+	 * Queue an event to be written to the database.
+	 * The event's default values should already have been set.  Its values are recorded 
+	 * when it is queued; the event object itself is not written and does not get an id.
+	 * 
+	 * @param event the Event
+	 * @return true if the event was queued; false if the writer is shut down, the queue stayed full,
+	 * 		or the event could not be recorded.
+	 */
+	public boolean offer (Event event) {
+		if (!running)
+			return false;
+		Record record;
+		try {
+			record = record(event);
+		} catch (RuntimeException e) {
+			log.error("Could not record event {}", event, e);
+			return false;
+		}
+		try {
+			if (queue.offer(record, offerTimeout, TimeUnit.MILLISECONDS)) {
+				queuedCount.incrementAndGet();
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		rejectedCount.incrementAndGet();
+		log.warn("Event queue is full; saving event on request thread");
+		return false;
+	}
+	
+	/**
+	 * Stop accepting events, write any that are still queued, and wait for this thread to finish.
+	 * Events that can't be written in time are saved to the journal.
+	 */
+	public void shutdown() {
+		running = false;
+		interrupt();
+		try {
+			join(shutdownTimeout + retryDelay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// If the thread did not finish, save whatever it left behind
+		List<Record> remaining = new ArrayList<Record>();
+		queue.drainTo(remaining);
+		if (!remaining.isEmpty())
+			appendTo(journal, remaining);
+	}
+	
+	@Override
+	public void run() {
+		log.debug("EventWriter starting");
+		List<Record> batch = new ArrayList<Record>(batchSize);
+		long deadline = 0;
+		while (running || !queue.isEmpty()) {
+			if (!running) {
+				if (deadline == 0)
+					deadline = System.currentTimeMillis() + shutdownTimeout;
+				if (System.currentTimeMillis() > deadline)
+					break;
+			}
+			try {
+				if (journalPending && running && System.currentTimeMillis() >= retryAfter)
+					replayJournal();
+				Record first = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+				if (first == null)
+					continue;
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				writeOrSave(batch);
+			} catch (InterruptedException e) {
+				// Interrupted by shutdown(); keep going until the queue is written out
+			} catch (Exception e) {
+				// Catch all other exceptions so that they don't terminate the thread
+				log.error("Unexpected exception while writing events", e);
+				if (!batch.isEmpty())
+					appendTo(journal, batch);
+			} finally {
+				batch.clear();
+			}
+		}
+		List<Record> remaining = new ArrayList<Record>();
+		queue.drainTo(remaining);
+		if (!remaining.isEmpty())
+			appendTo(journal, remaining);
+		log.debug("EventWriter exiting");
+	}
+	
+	/**
+	 * Write a batch of events to the database, or to the journal if the database is unavailable.
+	 * After a failure, events go straight to the journal for {@link #retryDelay} milliseconds
+	 * rather than waiting on the database again.
+	 * Events that fail individually while others succeed are set aside in a separate file
+	 * so that they aren't retried forever.
+	 */
+	private void writeOrSave (List<Record> batch) {
+		boolean available = System.currentTimeMillis() >= retryAfter && write(batch);
+		if (batch.isEmpty())
+			return;
+		if (available) {
+			log.error("Could not write {} events; saving them to {}", batch.size(), failedFile);
+			appendTo(failedFile, batch);
+		} else {
+			appendTo(journal, batch);
+		}
+		batch.clear();
+	}
+	
+	/**
+	 * Write a batch of events in a single transaction.
+	 * If that fails, the events are tried one at a time, so that one bad event doesn't hold back the rest.
+	 * 
+	 * @param batch events to write; on return this contains only those that could not be written
+	 * @return true if the database is available, that is, if any event was written or none failed.
+	 */
+	protected boolean write (List<Record> batch) {
+		try {
+			insert(batch);
+			writtenCount.addAndGet(batch.size());
+			batchCount.incrementAndGet();
+			batch.clear();
+			return true;
+		} catch (RuntimeException e) {
+			log.warn("Failed to write batch of {} events: {}", batch.size(), e.getMessage());
+		}
+		List<Record> failed = new ArrayList<Record>();
+		boolean anyWritten = false;
+		if (batch.size() > 1) {
+			for (int i=0; i<batch.size(); i++) {
+				Record event = batch.get(i);
+				try {
+					insert(Collections.singletonList(event));
+					writtenCount.incrementAndGet();
+					batchCount.incrementAndGet();
+					anyWritten = true;
+				} catch (RuntimeException e) {
+					failed.add(event);
+					if (!anyWritten) {
+						// Nothing is getting through; assume the database is down
+						failed.addAll(batch.subList(i+1, batch.size()));
+						break;
+					}
+				}
+			}
+		} else {
+			failed.addAll(batch);
+		}
+		batch.clear();
+		batch.addAll(failed);
+		if (!anyWritten)
+			retryAfter = System.currentTimeMillis() + retryDelay;
+		return anyWritten;
+	}
+	
+	private void insert (List<Record> events) {
+		StatelessSession session = sessionFactory.openStatelessSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			for (Record event : events)
+				session.insert(toEvent(event));
+			tx.commit();
+		} catch (RuntimeException e) {
+			if (tx != null && tx.isActive())
+				tx.rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+	
+	/**
+	 * Append events to a journal file.
+	 * Each entry is the length of a serialized {@link Record} followed by its bytes.
+	 */
+	protected synchronized void appendTo (File file, List<Record> events) {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			for (Record event : events) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(bytes);
+				oos.writeObject(event);
+				oos.close();
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+			if (file.equals(journal)) {
+				journaledCount.addAndGet(events.size());
+				journalPending = true;
+			}
+			log.warn("Saved {} events to {}", events.size(), file);
+		} catch (IOException e) {
+			log.error("Could not write events to {}; {} events lost", file, events.size(), e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					log.error("Could not close journal: {}", e.getMessage());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Write any events in the journal to the database.  The journal is moved aside while it is read,
+	 * and any events that still can't be written are appended to a new journal.
+	 */
+	protected void replayJournal () {
+		File replaying = new File(journal.getPath() + ".replay");
+		synchronized (this) {
+			journalPending = false;
+			if (!replaying.exists() && (!journal.exists() || !journal.renameTo(replaying)))
+				return;
+		}
+		log.info("Replaying event journal {}", replaying);
+		DataInputStream in = null;
+		List<Record> batch = new ArrayList<Record>(batchSize);
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(replaying)));
+			Record event;
+			while ((event = readEvent(in)) != null) {
+				batch.add(event);
+				if (batch.size() == batchSize)
+					writeOrSave(batch);
+			}
+			if (!batch.isEmpty())
+				writeOrSave(batch);
+		} catch (IOException e) {
+			// Most likely a record that was only partly written when the server stopped
+			log.error("Could not read all of event journal {}: {}", replaying, e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					log.error("Could not close journal: {}", e.getMessage());
+				}
+			}
+		}
+		if (!replaying.delete())
+			log.warn("Could not delete replayed journal {}", replaying);
+		if (journal.exists())
+			journalPending = true;
+	}
+	
+	private Record readEvent (DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (Record) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown event class in journal: " + e.getMessage());
+		} finally {
+			ois.close();
+		}
+	}
+	
+	/**
+	 * Record an event's persistent property values.  Entities are recorded by id, and collections are left out.
+	 * 
+	 * @param event the event
+	 * @return the record
+	 * @throws IllegalArgumentException if a property value is neither an entity nor Serializable
+	 */
+	protected Record record (Event event) {
+		ClassMetadata metadata = sessionFactory.getClassMetadata(event.getClass());
+		Type[] types = metadata.getPropertyTypes();
+		Object[] values = metadata.getPropertyValues(event);
+		Serializable[] recorded = new Serializable[values.length];
+		for (int i=0; i<values.length; i++) {
+			Object value = values[i];
+			if (value == null || types[i].isCollectionType())
+				continue;
+			if (types[i].isEntityType())
+				recorded[i] = getIdentifier((EntityType) types[i], value);
+			else if (value instanceof Serializable)
+				recorded[i] = (Serializable) value;
+			else
+				throw new IllegalArgumentException("Property " + metadata.getPropertyNames()[i] + " is not Serializable");
+		}
+		return new Record(metadata.getEntityName(), recorded);
+	}
+	
+	private Serializable getIdentifier (EntityType type, Object entity) {
+		if (entity instanceof HibernateProxy)
+			return ((HibernateProxy) entity).getHibernateLazyInitializer().getIdentifier();
+		return sessionFactory.getClassMetadata(type.getAssociatedEntityName()).getIdentifier(entity, (SessionImplementor) null);
+	}
+	
+	/**
+	 * Create an event from its record, referring to new entity instances that hold only the ids
+	 * of the recorded entities, which is all that inserting the event needs.
+	 * 
+	 * @param record the record
+	 * @return a new, unsaved Event
+	 */
+	protected Event toEvent (Record record) {
+		ClassMetadata metadata = sessionFactory.getClassMetadata(record.entityName);
+		Type[] types = metadata.getPropertyTypes();
+		Object[] values = new Object[types.length];
+		for (int i=0; i<types.length; i++) {
+			Serializable value = record.values[i];
+			if (value != null && types[i].isEntityType())
+				values[i] = sessionFactory.getClassMetadata(((EntityType) types[i]).getAssociatedEntityName())
+						.instantiate(value, (SessionImplementor) null);
+			else
+				values[i] = value;
+		}
+		Event event = (Event) metadata.instantiate(null, (SessionImplementor) null);
+		metadata.setPropertyValues(event, values);
+		return event;
+	}
+	
+	/**
+	 * The persistent property values of an {@link Event}, in the order of its {@link ClassMetadata},
+	 * with entities replaced by their ids.
+	 */
+	protected static class Record implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private final String entityName;
+		
+		private final Serializable[] values;
+		
+		private Record (String entityName, Serializable[] values) {
+			this.entityName = entityName;
+			this.values = values;
+		}
+	}
+	
+	/** Number of events accepted onto the queue. */
+	public long getQueuedCount() {
+		return queuedCount.get();
+	}
+
+	/** Number of events written to the database. */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/** Number of batch transactions committed. */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/** Number of events saved to the journal. */
+	public long getJournaledCount() {
+		return journaledCount.get();
+	}
+	
+	/** Number of events that were not accepted because the queue stayed full. */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+	
+	/** Number of events currently waiting to be written. */
+	public int getQueueLength() {
+		return queue.size();
+	}
+	
+}
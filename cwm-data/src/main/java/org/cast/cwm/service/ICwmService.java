@@ -20,9 +20,13 @@
 package org.cast.cwm.service;
 
 import org.apache.wicket.model.IModel;
+import org.cast.cwm.data.BinaryFileData;
+import org.cast.cwm.data.BinaryFileInfo;
 import org.cast.cwm.data.PersistedObject;
 import org.cast.cwm.data.init.IDatabaseInitializer;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 public interface ICwmService {
@@ -44,6 +48,39 @@ public interface ICwmService {
 	 */
 	<T extends PersistedObject> IModel<T> getById(Class<T> clazz, long id);
 
+	/**
+	 * Look up the name, type, date and size of a {@link BinaryFileData}
+	 * without loading its contents.
+	 * 
+	 * @param id database ID of the file
+	 * @return the information, or null if there is no such file or it has no data
+	 */
+	BinaryFileInfo getBinaryFileInfo(long id);
+
+	/**
+	 * Look up the MP3 converted ahead of time from a {@link BinaryFileData}, if it is current,
+	 * without loading either file's contents.
+	 * 
+	 * @param id database ID of the source file
+	 * @return information about the MP3, or null if there is none at least as recent as the source
+	 * @see BinaryFileData#getCurrentConvertedMp3()
+	 */
+	BinaryFileInfo getCurrentConvertedMp3Info(long id);
+
+	/**
+	 * Copy all or part of the contents of a {@link BinaryFileData} to a stream.
+	 * The data is read as a stream, from the blob store or the database,
+	 * rather than being loaded into memory all at once.
+	 * 
+	 * @param file information about the file, from {@link #getBinaryFileInfo(long)}
+	 * @param offset number of bytes to skip at the start of the data
+	 * @param length maximum number of bytes to copy
+	 * @param out destination stream
+	 * @return the number of bytes copied
+	 * @throws IOException if the data could not be written
+	 */
+	long copyBinaryFileData(BinaryFileInfo file, long offset, long length, OutputStream out) throws IOException;
+
 	/**
 	 * Add a {@link PersistedObject} to the datastore.
 	 * Does not take a model as parameter because you usually won't have one for a
@@ -59,10 +59,12 @@ public interface IEventService extends IEventLogger {
 	public abstract IModel<? extends Event> saveLoginEvent();
 
 	/**
-	 * Save a page view event.
+	 * Save a page view event.  Unlike the other methods, this may queue the event to be
+	 * written in the background, and does not commit other changes.
 	 * 
 	 * @param detail
 	 * @param pageName
+	 * @return model of the saved event, or null if it was queued
 	 */
 	public abstract IModel<? extends Event> savePageViewEvent(String detail, String pageName);
 
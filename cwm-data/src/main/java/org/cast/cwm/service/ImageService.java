@@ -20,16 +20,13 @@
 package org.cast.cwm.service;
 
 import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 import javax.imageio.ImageIO;
 
@@ -37,7 +34,6 @@ import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
 
-import org.apache.sanselan.Sanselan;
 import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.injection.Injector;
 import org.apache.wicket.markup.ComponentTag;
@@ -46,41 +42,25 @@ import org.apache.wicket.request.resource.DynamicImageResource;
 import org.apache.wicket.request.resource.IResource;
 import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.util.time.Time;
-import org.cast.cwm.data.BinaryFileData;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.cast.cwm.CwmApplication;
+import org.cast.cwm.data.BinaryFileInfo;
+import org.cast.cwm.service.ThumbnailService.Thumbnail;
 
 import com.google.inject.Inject;
 /**
- * TODO: Compare for quality with https://cwiki.apache.org/WICKET/uploaddownload.html as it was suggested by Igor
+ * Scaled images, for datastore images and external URLs.  Scaling and caching 
+ * are done by the application's {@link ThumbnailService}.
  * 
  * @author jbrookover
  *
  */
 public class ImageService {
 
-	private static final Logger log = LoggerFactory.getLogger(ImageService.class);
-	
 	@Inject
 	private ICwmService cwmService;
 
-	protected static Map<ScaledImageKey, ScaledImage> scaledImageCache;
-	protected static final int MAX_SCALED_ENTRIES = 1000;
-	protected static Color FILL_COLOR = new Color(248, 248, 248); // #F8F8F8
-	protected static Color EDGE_COLOR = new Color(217, 217, 217); // #D9D9D9
-	
-	static {
-		scaledImageCache = Collections.synchronizedMap(new LinkedHashMap<ScaledImageKey, ScaledImage>(500, (float) 0.75, true) {
-
-			private static final long serialVersionUID = 1L;
-			
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<ScaledImageKey, ScaledImage> eldest) {
-				return size() > MAX_SCALED_ENTRIES;
-			}
-		});
-		
-	}
+	protected static Color FILL_COLOR = ThumbnailService.FILL_COLOR;
+	protected static Color EDGE_COLOR = ThumbnailService.EDGE_COLOR;
 
 	protected static ImageService instance = new ImageService();
 
@@ -105,46 +85,9 @@ public class ImageService {
 	 */
 	@Deprecated
 	public BufferedImage resizeToBufferedImage(BufferedImage original, Integer maxW, Integer maxH, boolean exact) {
-
 		if (original == null)
 			return null;
-
-		boolean resizeRequired = false;
-		
-		int w = original.getWidth();
-		int h = original.getHeight();
-		if (maxW != null && w > maxW) {
-			float factor = (float) maxW / w;
-			w = (int) (w * (factor));
-			h = (int) (h * (factor));
-			resizeRequired = true;
-		}
-		if (maxH != null && h > maxH) {
-			float factor = (float) maxH / h;
-			w = (int) (w * (factor));
-			h = (int) (h * (factor));
-			resizeRequired = true;
-		}
-
-		if (!resizeRequired && !exact)
-			return original;
-
-		BufferedImage resized = new BufferedImage(exact ? maxW : w, exact ? maxH : h, BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = resized.createGraphics();
-		
-		// Fill with Light Gray if we might have gaps
-		if (exact) {
-			g.setColor(FILL_COLOR);
-			g.fillRect(0, 0, resized.getWidth() - 1, resized.getHeight() - 1);
-			g.setColor(EDGE_COLOR);
-			g.drawRect(0, 0, resized.getWidth() - 1, resized.getHeight() - 1);
-		}
-
-		g.drawImage(original, exact ? Math.abs(maxW - w) / 2 : 0, exact ? Math.abs(maxH - h) / 2 : 0, w, h, FILL_COLOR, null);
-		g.dispose();
-
-		return resized;
-
+		return ThumbnailService.scale(original, maxW, maxH, exact);
 	}
 
 	public BufferedImage resizeToBufferedImage(BufferedImage original, Integer maxW, Integer maxH) {
@@ -222,35 +165,28 @@ public class ImageService {
 	 */
 	@Deprecated
 	public ScaledImage getScaledImage(ScaledImageKey key) {
-		ScaledImage thumb = scaledImageCache.get(key);
-		
-		if (thumb != null)
-			return thumb;
+		Thumbnail thumb = null;
+		Time lastModified = Time.now();
+		ThumbnailService thumbnails = CwmApplication.get().getThumbnailService();
 		
 		if (key.getKey() instanceof Long) {
-			Long datastoreId = (Long) key.getKey();
-			BinaryFileData data = cwmService.getById(BinaryFileData.class, datastoreId).getObject();
-			thumb = new ScaledImage(resizeToBufferedImage(data.getData(), key.getWidth(), key.getHeight()));
-			try {
-				thumb.setType(Sanselan.getImageInfo(data.getData()).getFormat().extension.toLowerCase());
-			} catch (Exception e) {
-				log.warn("Failed to determine image type: {}", datastoreId);
-			}
+			BinaryFileInfo info = cwmService.getBinaryFileInfo((Long) key.getKey());
+			thumb = thumbnails.getThumbnail(info, key.getWidth(), key.getHeight(), false);
+			if (info != null)
+				lastModified = Time.valueOf(info.getLastModified());
 			
 		} else if (key.getKey() instanceof String) {
 			String url = (String) key.getKey();
 			if(url.startsWith("http://")) {
 				try {
-					BufferedImage externalImage = ImageIO.read(new URL(url));
-					thumb = new ScaledImage(resizeToBufferedImage(externalImage, key.getWidth(), key.getHeight()));
-				} catch (Exception e) {
+					thumb = thumbnails.getThumbnail(new URL(url), key.getWidth(), key.getHeight());
+				} catch (MalformedURLException e) {
 					throw new WicketRuntimeException(e);
 				}
 			}
 		}
 		
-		scaledImageCache.put(key, thumb);
-		return thumb;
+		return thumb == null ? null : new ScaledImage(thumb, lastModified);
 	}
 	
 	public Image getScaledImageComponent(String wicketId, Long datastoreId, Integer maxWidth, Integer maxHeight) {		
@@ -272,9 +208,7 @@ public class ImageService {
 	}
 	
 	public ScaledImageResourceReference getResourceReference(Long datastoreId, Integer maxWidth, Integer maxHeight) {
-		BinaryFileData data = cwmService.getById(BinaryFileData.class, datastoreId).getObject();
-		String name = datastoreId.toString() + "_" + (data == null ? "unknown.png" : data.getName());
-		return getResourceReference(name, datastoreId, maxWidth, maxHeight);
+		return getResourceReference(datastoreId.toString(), datastoreId, maxWidth, maxHeight);
 		
 	}
 	
@@ -323,14 +257,21 @@ public class ImageService {
 
 		@Override
 		protected byte[] getImageData(Attributes attributes) {
-			ScaledImage image = ImageService.get().getScaledImage(lookupKey);
+			ScaledImage image = getScaledImage();
+			if (image == null)
+				return null;
 			setFormat(image.getType() == null ? "jpg" : image.getType());
 			setLastModifiedTime(image.getLastModified());
-			return toImageData(image.getImage());
+			return image.getData();
 		}
 		
+		public ScaledImage getScaledImage() {
+			return ImageService.get().getScaledImage(lookupKey);
+		}
+
 		public BufferedImage getBufferedImage() {
-			return ImageService.get().getScaledImage(lookupKey).getImage();
+			ScaledImage image = getScaledImage();
+			return image == null ? null : image.getImage();
 		}
 
 	}
@@ -374,11 +315,11 @@ public class ImageService {
 		protected void onComponentTag(final ComponentTag tag)
 		{
 			super.onComponentTag(tag);
-			ScaledImageResource resource = (ScaledImageResource) getImageResource();
+			ScaledImage image = ((ScaledImageResource) getImageResource()).getScaledImage();
 			
-			if (resource.getBufferedImage() != null) {
-				tag.put("width", resource.getBufferedImage().getWidth());
-				tag.put("height", resource.getBufferedImage().getHeight());
+			if (image != null) {
+				tag.put("width", image.getWidth());
+				tag.put("height", image.getHeight());
 			}
 		}
 	}
@@ -394,13 +335,29 @@ public class ImageService {
 	@Setter
 	public static class ScaledImage {
 		
-		private String type; // "png" or "jpg"
+		private String type; // "png" or "jpeg"
 		private Time lastModified;
-		private BufferedImage image;
+		private byte[] data;
+		private int width;
+		private int height;
 		
-		public ScaledImage(BufferedImage image) {
-			this.image = image;
-			this.lastModified = Time.now();
+		public ScaledImage(Thumbnail thumbnail, Time lastModified) {
+			this.type = thumbnail.getFormat();
+			this.lastModified = lastModified;
+			this.data = thumbnail.getData();
+			this.width = thumbnail.getWidth();
+			this.height = thumbnail.getHeight();
+		}
+		
+		/**
+		 * @return the image, decoded from its data
+		 */
+		public BufferedImage getImage() {
+			try {
+				return ImageIO.read(new ByteArrayInputStream(data));
+			} catch (IOException e) {
+				throw new WicketRuntimeException(e);
+			}
 		}
 	}
 	
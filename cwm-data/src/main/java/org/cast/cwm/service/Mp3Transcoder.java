@@ -0,0 +1,245 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import net.sf.lamejb.impl.std.StreamEncoderWAVImpl;
+import net.sf.lamejb.jna.std.MpegMode;
+import net.sf.lamejb.std.LameConfig;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.cast.cwm.data.BinaryFileData;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts WAV audio to MP3 ahead of time, so that playback doesn't wait for the encoder.
+ * <p>
+ * Conversions are requested with {@link #submit(long)} once a WAV {@link BinaryFileData} has 
+ * been committed, and are run on a small pool of worker threads with a bounded queue.  
+ * The result is saved as another BinaryFileData, linked from the source with
+ * {@link BinaryFileData#setConvertedMp3(BinaryFileData)}, replacing and deleting any outdated one.  If the queue is full the request is
+ * dropped; {@link org.cast.cwm.data.resource.ConvertedMP3DataResource} still converts on demand 
+ * when there is no current MP3.
+ *
+ */
+public class Mp3Transcoder {
+	
+	private static final Logger log = LoggerFactory.getLogger(Mp3Transcoder.class);
+
+	public static final String SOURCE_MIME_TYPE = "audio/wav";
+	
+	private final SessionFactory sessionFactory;
+
+	private final ThreadPoolExecutor executor;
+	
+	// Ids that are queued or being converted, so that repeated requests don't convert twice
+	private final Set<Long> pending = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	
+	@Getter
+	private final AtomicLong convertedCount = new AtomicLong();
+
+	@Getter
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	@Getter
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * @param sessionFactory used to read source files and save converted ones
+	 * @param threads number of conversions that can run at once
+	 * @param queueSize number of conversions that can wait for a thread
+	 */
+	public Mp3Transcoder(SessionFactory sessionFactory, int threads, int queueSize) {
+		this.sessionFactory = sessionFactory;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Mp3Transcoder-" + count.incrementAndGet());
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+	
+	/**
+	 * @param bfd a file
+	 * @return true if this transcoder would convert the given file
+	 */
+	public static boolean canConvert(BinaryFileData bfd) {
+		return bfd != null && SOURCE_MIME_TYPE.equals(bfd.getMimeType());
+	}
+
+	/**
+	 * Request conversion of a WAV file.  The file must already be committed to the database.
+	 * @param id id of the source BinaryFileData
+	 * @return true if the conversion was queued or is already pending
+	 */
+	public boolean submit(long id) {
+		return submit(id, null);
+	}
+
+	/**
+	 * Save an MP3 that has already been converted from a WAV file, in the background.
+	 * This lets on-demand conversions be kept for later requests.
+	 * @param id id of the source BinaryFileData
+	 * @param mp3 the converted audio
+	 * @return true if the save was queued or a conversion is already pending
+	 */
+	public boolean submit(final long id, final byte[] mp3) {
+		if (!pending.add(id))
+			return true;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						transcode(id, mp3);
+					} finally {
+						pending.remove(id);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pending.remove(id);
+			rejectedCount.incrementAndGet();
+			log.debug("Conversion queue is full; BinaryFileData {} will be converted on demand", id);
+			return false;
+		}
+	}
+	
+	/**
+	 * Convert a file, unless it already has a current MP3, and save the result.
+	 * @param id id of the source BinaryFileData
+	 * @param mp3 audio already converted from the source, or null to convert it here
+	 */
+	protected void transcode(long id, byte[] mp3) {
+		Session session = sessionFactory.openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			BinaryFileData source = (BinaryFileData) session.get(BinaryFileData.class, id);
+			if (!canConvert(source) || source.getCurrentConvertedMp3() != null) {
+				tx.rollback();
+				return;
+			}
+			if (mp3 == null) {
+				byte[] wav = source.getData();
+				if (wav == null) {
+					tx.rollback();
+					return;
+				}
+				long startTime = System.currentTimeMillis();
+				mp3 = convert(wav);
+				log.debug("MP3 conversion of BFD {}: {}ms, {} bytes converted to {} bytes",
+						new Object[] { id, System.currentTimeMillis() - startTime, wav.length, mp3.length });
+			}
+			BinaryFileData derived = new BinaryFileData(source.getName() + ".mp3", "audio/mpeg", mp3);
+			session.save(derived);
+			// Nothing else refers to an MP3 once the source has been re-recorded
+			BinaryFileData superseded = source.getConvertedMp3();
+			source.setConvertedMp3(derived);
+			if (superseded != null)
+				session.delete(superseded);
+			tx.commit();
+			convertedCount.incrementAndGet();
+		} catch (Exception e) {
+			failedCount.incrementAndGet();
+			log.error("Could not convert BinaryFileData " + id + " to MP3", e);
+			if (tx != null && tx.isActive())
+				tx.rollback();
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Encode WAV audio as MP3.
+	 * @param wav the WAV data
+	 * @return the MP3 data
+	 * @throws IOException if the audio can't be read or encoded
+	 */
+	public static byte[] convert(byte[] wav) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		convert(new BufferedInputStream(new ByteArrayInputStream(wav)), outputStream);
+		return outputStream.toByteArray();
+	}
+
+	private static void convert(InputStream inputStream, OutputStream outputStream) throws IOException {
+		try {
+			StreamEncoderWAVImpl encoder = new StreamEncoderWAVImpl(inputStream);
+			LameConfig conf = encoder.getLameConfig();
+
+			conf.setInSamplerate(22050);
+			conf.setBrate(32);
+			conf.setBWriteVbrTag(false);
+			conf.setMode(MpegMode.MONO);
+
+			encoder.encode(outputStream);
+		} finally {
+			inputStream.close();
+			outputStream.close();
+		}
+	}
+
+	/**
+	 * @return number of conversions waiting for a thread
+	 */
+	public int getQueueLength() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stop accepting conversions and wait briefly for running ones to finish.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+				log.warn("{} MP3 conversions were not finished at shutdown", executor.getQueue().size());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -35,6 +35,7 @@ import org.apache.wicket.extensions.markup.html.repeater.data.sort.SortOrder;
 import org.apache.wicket.extensions.markup.html.repeater.data.table.ISortableDataProvider;
 import org.apache.wicket.markup.html.form.upload.FileUpload;
 import org.apache.wicket.model.IModel;
+import org.cast.cwm.CwmApplication;
 import org.cast.cwm.data.BinaryFileData;
 import org.cast.cwm.data.IResponseType;
 import org.cast.cwm.data.Period;
@@ -288,8 +289,37 @@ public class ResponseService implements IResponseService {
 		// Persist Changes
 		cwmService.flushChanges();
 		
+		requestMp3(dbFile);
+		requestThumbnails(dbFile);
+		
 		return new HibernateObjectModel<BinaryFileData>(dbFile);
 	}
+	
+	/**
+	 * Start converting newly saved audio to MP3 in the background, if it is WAV audio.
+	 * Must be called after the file is committed.
+	 * @param bd the saved file, or null
+	 */
+	protected void requestMp3(BinaryFileData bd) {
+		if (!Mp3Transcoder.canConvert(bd))
+			return;
+		Mp3Transcoder transcoder = CwmApplication.get().getMp3Transcoder();
+		if (transcoder != null)
+			transcoder.submit(bd.getId());
+	}
+
+	/**
+	 * Start creating the usual thumbnails of a newly saved image in the background.
+	 * Must be called after the file is committed.
+	 * @param bd the saved file, or null
+	 */
+	protected void requestThumbnails(BinaryFileData bd) {
+		if (bd == null || !ThumbnailService.isScalable(bd.getMimeType()))
+			return;
+		ThumbnailService thumbnails = CwmApplication.get().getThumbnailService();
+		if (thumbnails != null)
+			thumbnails.precompute(bd.getId());
+	}
 
 	/* (non-Javadoc)
 	 * @see org.cast.cwm.service.IResponseService#saveSVGResponse(org.apache.wicket.model.IModel, java.lang.String, java.lang.String)
@@ -335,6 +365,9 @@ public class ResponseService implements IResponseService {
 
 		// Flush changes to datastore
 		cwmService.flushChanges();
+		
+		requestMp3(bd);
+		requestThumbnails(bd);
 	}
 	
 	/* (non-Javadoc)
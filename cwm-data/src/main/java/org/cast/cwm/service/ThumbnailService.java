@@ -0,0 +1,650 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.service;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import lombok.Getter;
+
+import org.apache.commons.io.FileUtils;
+import org.cast.cwm.data.BinaryFileData;
+import org.cast.cwm.data.BinaryFileInfo;
+import org.cast.cwm.data.DerivedFileCache;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates and caches scaled versions of uploaded images.
+ * <p>
+ * Thumbnails are kept encoded, in a memory cache limited by total bytes that can be read 
+ * without locking, and in the {@link DerivedFileCache} on disk so that they survive restarts.  
+ * Cache keys include the version of the source file, so a changed image is never served
+ * a stale thumbnail.  When several requests miss the same thumbnail at once, only one of them
+ * decodes the original.
+ * <p>
+ * Images are reduced in steps of at most half their size, which avoids the aliasing 
+ * of a single large bilinear step.  Commonly used sizes can be created in the background
+ * when an image is uploaded, with {@link #precompute(long)}.
+ *
+ */
+public class ThumbnailService {
+	
+	private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+	
+	protected static final Color FILL_COLOR = new Color(248, 248, 248); // #F8F8F8
+	protected static final Color EDGE_COLOR = new Color(217, 217, 217); // #D9D9D9
+
+	// Approximate memory used by an entry apart from the image data
+	private static final int ENTRY_OVERHEAD = 200;
+
+	private final SessionFactory sessionFactory;
+	
+	@Getter
+	private final long maxHeapBytes;
+	
+	private final int[] precomputeSizes;
+
+	private final ThreadPoolExecutor executor;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	
+	// Thumbnails being created, so that concurrent requests for one wait for it rather than repeating the work
+	private final ConcurrentHashMap<String, FutureTask<Thumbnail>> loading = new ConcurrentHashMap<String, FutureTask<Thumbnail>>();
+
+	// Ids of files queued for precomputing
+	private final Set<Long> pending = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+	private final AtomicLong heapBytes = new AtomicLong();
+	
+	private final AtomicLong clock = new AtomicLong();
+	
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	@Getter
+	private final AtomicLong heapHitCount = new AtomicLong();
+
+	@Getter
+	private final AtomicLong diskHitCount = new AtomicLong();
+
+	@Getter
+	private final AtomicLong missCount = new AtomicLong();
+
+	@Getter
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @param sessionFactory used to read source images that are not in the blob store
+	 * @param maxHeapBytes limit on the total size of thumbnails kept in memory
+	 * @param precomputeSizes maximum dimensions of the thumbnails created by {@link #precompute(long)}
+	 * @param threads number of threads that precompute thumbnails
+	 * @param queueSize number of files that can wait to be precomputed
+	 */
+	public ThumbnailService(SessionFactory sessionFactory, long maxHeapBytes, int[] precomputeSizes, int threads, int queueSize) {
+		this.sessionFactory = sessionFactory;
+		this.maxHeapBytes = maxHeapBytes;
+		this.precomputeSizes = precomputeSizes.clone();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ThumbnailService-" + count.incrementAndGet());
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+	
+	/**
+	 * @param mimeType type of a file
+	 * @return true if thumbnails can be made of files of this type
+	 */
+	public static boolean isScalable(String mimeType) {
+		return mimeType != null && mimeType.startsWith("image/") && !mimeType.startsWith("image/svg");
+	}
+	
+	/**
+	 * Get a scaled version of an uploaded image.  The image is not enlarged; 
+	 * unless exact is set the thumbnail may be smaller than the given dimensions in one direction.
+	 * 
+	 * @param info the source image
+	 * @param maxW maximum width, or null for no limit
+	 * @param maxH maximum height, or null for no limit
+	 * @param exact if true, the thumbnail will be exactly maxW x maxH, with gaps filled in with gray
+	 * @return the thumbnail, or null if the file is not an image that can be read
+	 */
+	public Thumbnail getThumbnail(final BinaryFileInfo info, final Integer maxW, final Integer maxH, final boolean exact) {
+		if (info == null || !isScalable(info.getMimeType()))
+			return null;
+		final String format = getFormat(info.getMimeType());
+		final String key = getKey(info, maxW, maxH, exact);
+		return get(key, new Callable<Thumbnail>() {
+			@Override
+			public Thumbnail call() throws IOException {
+				Thumbnail thumbnail = readFromDisk(key, format);
+				if (thumbnail != null) {
+					diskHitCount.incrementAndGet();
+					return thumbnail;
+				}
+				missCount.incrementAndGet();
+				BufferedImage original = readSource(info);
+				if (original == null)
+					return null;
+				return create(key, format, original, maxW, maxH, exact, true);
+			}
+		});
+	}
+
+	/**
+	 * Get a scaled version of an image from another server.  These are only kept in memory.
+	 * 
+	 * @param url location of the image
+	 * @param maxW maximum width, or null for no limit
+	 * @param maxH maximum height, or null for no limit
+	 * @return the thumbnail, or null if the image could not be read
+	 */
+	public Thumbnail getThumbnail(final URL url, final Integer maxW, final Integer maxH) {
+		final String key = "url-" + dimension(maxW) + "x" + dimension(maxH) + "-" + url;
+		return get(key, new Callable<Thumbnail>() {
+			@Override
+			public Thumbnail call() throws IOException {
+				missCount.incrementAndGet();
+				BufferedImage original = ImageIO.read(url);
+				if (original == null)
+					return null;
+				String format = url.getPath().toLowerCase().matches(".*\\.jpe?g") ? "jpeg" : "png";
+				return create(key, format, original, maxW, maxH, false, false);
+			}
+		});
+	}
+
+	/**
+	 * Create thumbnails of a newly uploaded image in the background, in each of the configured sizes.
+	 * The file must already be committed to the database.
+	 * @param id id of the source BinaryFileData
+	 * @return true if the work was queued or is already pending
+	 */
+	public boolean precompute(final long id) {
+		if (precomputeSizes.length == 0)
+			return false;
+		if (!pending.add(id))
+			return true;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						precomputeNow(id);
+					} catch (Exception e) {
+						log.error("Could not create thumbnails of BinaryFileData " + id, e);
+					} finally {
+						pending.remove(id);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pending.remove(id);
+			log.debug("Thumbnail queue is full; thumbnails of BinaryFileData {} will be created on demand", id);
+			return false;
+		}
+	}
+	
+	/**
+	 * Create any of the configured thumbnail sizes of a file that are not already cached.
+	 * The original is decoded at most once.  Results are saved to disk only.
+	 * @param id id of the source BinaryFileData
+	 * @throws IOException if the source can't be read or a thumbnail can't be saved
+	 */
+	protected void precomputeNow(long id) throws IOException {
+		BinaryFileInfo info = readInfo(id);
+		if (info == null || !isScalable(info.getMimeType()))
+			return;
+		String format = getFormat(info.getMimeType());
+		BufferedImage original = null;
+		for (int size : precomputeSizes) {
+			String key = getKey(info, size, size, false);
+			if (entries.containsKey(key) || DerivedFileCache.get().get(key) != null)
+				continue;
+			if (original == null) {
+				original = readSource(info);
+				if (original == null)
+					return;
+			}
+			create(key, format, original, size, size, false, true);
+		}
+	}
+	
+	private Thumbnail get(String key, Callable<Thumbnail> loader) {
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			entry.lastUsed = clock.incrementAndGet();
+			heapHitCount.incrementAndGet();
+			return entry.thumbnail;
+		}
+		FutureTask<Thumbnail> task = new FutureTask<Thumbnail>(loader);
+		FutureTask<Thumbnail> existing = loading.putIfAbsent(key, task);
+		if (existing == null) {
+			try {
+				task.run();
+				Thumbnail thumbnail = getResult(key, task);
+				if (thumbnail != null)
+					store(thumbnail);
+				return thumbnail;
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+		return getResult(key, existing);
+	}
+	
+	private Thumbnail getResult(String key, FutureTask<Thumbnail> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			log.warn("Could not create thumbnail {}: {}", key, cause.getMessage());
+			return null;
+		}
+	}
+	
+	private void store(Thumbnail thumbnail) {
+		long weight = weight(thumbnail);
+		if (weight > maxHeapBytes)
+			return;
+		Entry old = entries.put(thumbnail.getKey(), new Entry(thumbnail, clock.incrementAndGet()));
+		heapBytes.addAndGet(old == null ? weight : weight - weight(old.thumbnail));
+		if (heapBytes.get() > maxHeapBytes)
+			evict();
+	}
+	
+	/**
+	 * Remove the least recently used thumbnails until the memory cache is well under its limit.
+	 * Only one thread evicts at a time; others carry on.
+	 */
+	private void evict() {
+		if (!evictionLock.tryLock())
+			return;
+		try {
+			long target = maxHeapBytes - maxHeapBytes / 4;
+			if (heapBytes.get() <= target)
+				return;
+			// Access times are copied, since they can change during sorting
+			List<Object[]> candidates = new ArrayList<Object[]>(entries.size());
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+				candidates.add(new Object[] { e.getKey(), e.getValue(), e.getValue().lastUsed });
+			Collections.sort(candidates, new Comparator<Object[]>() {
+				@Override
+				public int compare(Object[] a, Object[] b) {
+					long la = (Long) a[2];
+					long lb = (Long) b[2];
+					return la < lb ? -1 : (la == lb ? 0 : 1);
+				}
+			});
+			for (Object[] candidate : candidates) {
+				if (heapBytes.get() <= target)
+					break;
+				Entry entry = (Entry) candidate[1];
+				if (entries.remove(candidate[0], entry)) {
+					heapBytes.addAndGet(-weight(entry.thumbnail));
+					evictionCount.incrementAndGet();
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private Thumbnail create(String key, String format, BufferedImage original, 
+			Integer maxW, Integer maxH, boolean exact, boolean persist) throws IOException {
+		long startTime = System.currentTimeMillis();
+		BufferedImage scaled = scale(original, maxW, maxH, exact);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!ImageIO.write(scaled, format, out))
+			throw new IOException("No image writer for " + format);
+		byte[] data = out.toByteArray();
+		log.debug("Created thumbnail {}: {}ms, {} bytes", new Object[] { key, System.currentTimeMillis() - startTime, data.length });
+		if (persist)
+			writeToDisk(key, data);
+		return new Thumbnail(key, data, format, scaled.getWidth(), scaled.getHeight());
+	}
+	
+	private void writeToDisk(String key, byte[] data) {
+		DerivedFileCache cache = DerivedFileCache.get();
+		try {
+			File tmp = cache.newTempFile();
+			try {
+				OutputStream out = new FileOutputStream(tmp);
+				try {
+					out.write(data);
+				} finally {
+					out.close();
+				}
+				cache.put(key, tmp);
+			} finally {
+				if (tmp.exists() && !tmp.delete())
+					log.warn("Could not delete {}", tmp);
+			}
+		} catch (IOException e) {
+			log.warn("Could not save thumbnail {}: {}", key, e.getMessage());
+		}
+	}
+	
+	private Thumbnail readFromDisk(String key, String format) throws IOException {
+		File file = DerivedFileCache.get().get(key);
+		if (file == null)
+			return null;
+		byte[] data;
+		try {
+			data = FileUtils.readFileToByteArray(file);
+		} catch (FileNotFoundException e) {
+			return null; // evicted
+		}
+		int[] size = readSize(data);
+		if (size == null) {
+			log.warn("Cached thumbnail {} could not be read", key);
+			return null;
+		}
+		return new Thumbnail(key, data, format, size[0], size[1]);
+	}
+	
+	/**
+	 * Read the dimensions of an encoded image from its header.
+	 * @return width and height, or null if the image can't be read
+	 */
+	private static int[] readSize(byte[] data) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in);
+				return new int[] { reader.getWidth(0), reader.getHeight(0) };
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Look up a file's description in a new database session.
+	 * @param id id of a BinaryFileData
+	 * @return information about the file, or null if there is no such file
+	 */
+	protected BinaryFileInfo readInfo(long id) {
+		Session session = sessionFactory.openSession();
+		try {
+			BinaryFileData bfd = (BinaryFileData) session.get(BinaryFileData.class, id);
+			if (bfd == null)
+				return null;
+			return new BinaryFileInfo(id, bfd.getName(), bfd.getMimeType(), bfd.getLastModified(),
+					bfd.getDataLength() == null ? 0 : bfd.getDataLength(), bfd.getContentHash());
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Decode an uploaded image.  Contents in the blob store are read from there directly;
+	 * others are read in a new database session.
+	 * @param info the source file
+	 * @return the image, or null if there are no contents or they are not a readable image
+	 * @throws IOException if the contents can't be read
+	 */
+	protected BufferedImage readSource(BinaryFileInfo info) throws IOException {
+		InputStream in;
+		if (info.getContentHash() != null && BinaryFileData.getBlobStore() != null) {
+			in = BinaryFileData.getBlobStore().open(info.getContentHash());
+		} else {
+			Session session = sessionFactory.openSession();
+			try {
+				BinaryFileData bfd = (BinaryFileData) session.get(BinaryFileData.class, info.getId());
+				in = bfd == null ? null : bfd.openData();
+			} finally {
+				session.close();
+			}
+		}
+		if (in == null)
+			return null;
+		try {
+			return ImageIO.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Scale an image to fit within the given dimensions.  The image is not enlarged.
+	 * Large reductions are done in several steps, each at most halving the size, 
+	 * which keeps detail that a single bilinear step would lose.
+	 * 
+	 * @param original the image
+	 * @param maxW maximum width, or null for no limit
+	 * @param maxH maximum height, or null for no limit
+	 * @param exact if true and both dimensions are given, the result will be exactly maxW x maxH, 
+	 *   with gaps filled in with gray
+	 * @return the scaled image; the original if no change was needed
+	 */
+	public static BufferedImage scale(BufferedImage original, Integer maxW, Integer maxH, boolean exact) {
+		exact = exact && maxW != null && maxH != null;
+		int w = original.getWidth();
+		int h = original.getHeight();
+		if (maxW != null && w > maxW) {
+			h = Math.max(1, Math.round((float) h * maxW / w));
+			w = maxW;
+		}
+		if (maxH != null && h > maxH) {
+			w = Math.max(1, Math.round((float) w * maxH / h));
+			h = maxH;
+		}
+		if (w == original.getWidth() && h == original.getHeight() && !exact)
+			return original;
+
+		int type = original.getTransparency() == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+		BufferedImage current = original;
+		int currentW = original.getWidth();
+		int currentH = original.getHeight();
+		while (currentW > w || currentH > h) {
+			currentW = Math.max(w, currentW / 2);
+			currentH = Math.max(h, currentH / 2);
+			BufferedImage step = new BufferedImage(currentW, currentH, type);
+			Graphics2D g = step.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(current, 0, 0, currentW, currentH, null);
+			g.dispose();
+			current = step;
+		}
+		if (!exact)
+			return current;
+		
+		BufferedImage framed = new BufferedImage(maxW, maxH, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = framed.createGraphics();
+		g.setColor(FILL_COLOR);
+		g.fillRect(0, 0, maxW, maxH);
+		g.setColor(EDGE_COLOR);
+		g.drawRect(0, 0, maxW - 1, maxH - 1);
+		g.drawImage(current, Math.abs(maxW - w) / 2, Math.abs(maxH - h) / 2, null);
+		g.dispose();
+		return framed;
+	}
+
+	/**
+	 * @param info the source image
+	 * @param maxW maximum width, or null
+	 * @param maxH maximum height, or null
+	 * @param exact whether the thumbnail is padded to the exact size
+	 * @return a key identifying the thumbnail of this version of the source
+	 */
+	public static String getKey(BinaryFileInfo info, Integer maxW, Integer maxH, boolean exact) {
+		String version = info.getContentHash() != null 
+				? info.getContentHash() 
+				: info.getId() + "-" + info.getLastModified().getTime();
+		return "thumb-" + version + "-" + dimension(maxW) + "x" + dimension(maxH) 
+				+ (exact ? "-exact" : "") + "." + getFormat(info.getMimeType());
+	}
+
+	private static String dimension(Integer max) {
+		return max == null ? "any" : max.toString();
+	}
+	
+	/**
+	 * Thumbnails of JPEG images are JPEG; all others are PNG, which keeps transparency.
+	 */
+	private static String getFormat(String mimeType) {
+		return mimeType.matches("image/(p?jpeg|jpg)") ? "jpeg" : "png";
+	}
+	
+	private static long weight(Thumbnail thumbnail) {
+		return thumbnail.getData().length + ENTRY_OVERHEAD;
+	}
+	
+	/**
+	 * Remove all thumbnails from memory.  Those on disk are cleared with the {@link DerivedFileCache}.
+	 */
+	public void clear() {
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (entries.remove(e.getKey(), e.getValue()))
+				heapBytes.addAndGet(-weight(e.getValue().thumbnail));
+		}
+	}
+	
+	/**
+	 * @return number of thumbnails in memory
+	 */
+	public int getSize() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return approximate memory used by thumbnails
+	 */
+	public long getHeapBytes() {
+		return heapBytes.get();
+	}
+
+	/**
+	 * Stop precomputing thumbnails.  Queued work is abandoned, since it can be done on demand.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static class Entry {
+		final Thumbnail thumbnail;
+		volatile long lastUsed;
+		
+		Entry(Thumbnail thumbnail, long lastUsed) {
+			this.thumbnail = thumbnail;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	/**
+	 * An encoded, scaled image.
+	 */
+	@Getter
+	public static class Thumbnail implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+		
+		private final byte[] data;
+		
+		/** Image format name, "png" or "jpeg" */
+		private final String format;
+		
+		private final int width;
+		
+		private final int height;
+
+		public Thumbnail(String key, byte[] data, String format, int width, int height) {
+			this.key = key;
+			this.data = data;
+			this.format = format;
+			this.width = width;
+			this.height = height;
+		}
+		
+		public String getMimeType() {
+			return "image/" + format;
+		}
+		
+		/**
+		 * @return a strong entity tag, including quotation marks
+		 */
+		public String getETag() {
+			return "\"" + key + "\"";
+		}
+	}
+
+}
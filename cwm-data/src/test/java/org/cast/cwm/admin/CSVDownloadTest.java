@@ -19,6 +19,10 @@
  */
 package org.cast.cwm.admin;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
 import org.apache.wicket.markup.repeater.data.IDataProvider;
 import org.apache.wicket.markup.repeater.data.ListDataProvider;
 import org.apache.wicket.model.IModel;
@@ -27,8 +31,13 @@ import org.cast.cwm.data.Event;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 public class CSVDownloadTest {
 
@@ -56,6 +65,36 @@ public class CSVDownloadTest {
 		tester.startResource(new CSVDownload<Event>(getDataColumns(2), getDataProvider(2)));
 		tester.assertContains("^Column0,Column1\r\ndata,data\r\ndata,data\r\n$");
 	}
+	
+	@Test
+	public void gzipWhenAccepted() throws IOException {
+		CSVDownload<Event> download = new CSVDownload<Event>(getDataColumns(1), getDataProvider(2));
+		download.setGzip(true);
+		tester.getRequest().setHeader("Accept-Encoding", "gzip, deflate");
+		tester.startResource(download);
+		assertEquals("gzip", tester.getLastResponse().getHeader("Content-Encoding"));
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(tester.getLastResponse().getBinaryContent()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		for (int n = in.read(buf); n >= 0; n = in.read(buf))
+			out.write(buf, 0, n);
+		assertEquals("Column0\r\ndata\r\ndata\r\n", out.toString("UTF-8"));
+	}
+	
+	@Test
+	public void noGzipUnlessAccepted() {
+		CSVDownload<Event> download = new CSVDownload<Event>(getDataColumns(1), getDataProvider(2));
+		download.setGzip(true);
+		tester.startResource(download);
+		assertNull(tester.getLastResponse().getHeader("Content-Encoding"));
+		tester.assertContains("^Column0\r\ndata\r\ndata\r\n$");
+	}
+	
+	@Test
+	public void newlinesAreReplaced() {
+		assertSame("no newlines", CSVDownload.cleanValue("no newlines"));
+		assertEquals("one two  three", CSVDownload.cleanValue("one\ntwo\r\nthree"));
+	}
 
 	
 	private List<IDataColumn<Event>> getDataColumns(int nColumns) {
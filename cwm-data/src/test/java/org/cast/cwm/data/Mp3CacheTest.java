@@ -21,12 +21,21 @@ package org.cast.cwm.data;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import net.jcip.annotations.NotThreadSafe;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Exchanger;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -34,6 +43,9 @@ import static org.junit.Assert.*;
 @NotThreadSafe
 public class Mp3CacheTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private Mp3Cache cache;
 
     private byte[] data = new byte[] { 1, 2, 3 };
@@ -61,6 +73,117 @@ public class Mp3CacheTest {
         assertNull("Should be null if not previously stored", cache.getCachedDate(2L));
     }
 
+    @Test
+    public void movesLeastRecentlyUsedToDisk() throws IOException {
+        Mp3Cache small = new Mp3Cache(100, folder.newFolder("small"), 1000);
+        try {
+            small.storeInCache(1L, new byte[60]);
+            small.storeInCache(2L, new byte[60]);
+            assertEquals("Only one item fits in memory", 60, small.getHeapBytes());
+            assertEquals(60, small.getDiskBytes());
+            assertEquals(1, small.getSpillCount().get());
+
+            InputStream in = small.openCachedMp3(1L);
+            assertTrue("Older item should be read from disk", in instanceof FileInputStream);
+            assertEquals(60, readAll(in).length);
+            assertEquals(1, small.getDiskHitCount().get());
+            assertEquals(60, small.getCachedMp3(2L).length);
+            assertEquals(1, small.getHeapHitCount().get());
+        } finally {
+            small.clear();
+        }
+    }
+
+    @Test
+    public void evictsBeyondDiskLimit() throws IOException {
+        Mp3Cache small = new Mp3Cache(100, folder.newFolder("small"), 150);
+        try {
+            for (long id = 1; id <= 5; id++)
+                small.storeInCache(id, new byte[60]);
+            assertEquals(3, small.getSize());
+            assertEquals(2, small.getEvictionCount().get());
+            assertEquals(-1, small.getCachedLength(1L));
+            assertEquals(60, small.getCachedLength(5L));
+            assertEquals("Only current files should be on disk", 2, small.getDiskDirectory().list().length);
+        } finally {
+            small.clear();
+        }
+        assertEquals(0, small.getDiskDirectory().list().length);
+    }
+
+    @Test
+    public void discardsWithoutDiskTier() {
+        Mp3Cache small = new Mp3Cache(100, null, 0);
+        small.storeInCache(1L, new byte[60]);
+        small.storeInCache(2L, new byte[60]);
+        assertEquals(1, small.getSize());
+        assertEquals(1, small.getEvictionCount().get());
+        assertNull(small.getDiskDirectory());
+    }
+
+    @Test
+    public void removesOnlyItsOwnFilesAtStartup() throws IOException {
+        File dir = folder.newFolder("shared");
+        File leftover = new File(dir, "mp3-12-345.mp3");
+        File other = new File(dir, "song.mp3");
+        assertTrue(leftover.createNewFile());
+        assertTrue(other.createNewFile());
+        new Mp3Cache(100, dir, 1000);
+        assertFalse("Files from a previous run should be removed", leftover.exists());
+        assertTrue("Other files should be kept", other.exists());
+    }
+
+    @Test
+    public void defaultDirectoryIsReused() {
+        Mp3Cache first = new Mp3Cache(100, null, 1000);
+        assertNotNull(first.getDiskDirectory());
+        assertEquals(first.getDiskDirectory(), new Mp3Cache(100, null, 1000).getDiskDirectory());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0)
+                out.write(b);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void peekDoesNotClaim() throws Exception {
+        assertNull(cache.peekCachedMp3(1L));
+        // Another thread's lookup should find nothing at once, rather than wait for this one
+        assertNull(lookupOnOtherThread(1L).get(5, TimeUnit.SECONDS));
+        cache.storeInCache(2L, data);
+        assertArrayEquals(data, readAll(cache.peekCachedMp3(2L)));
+    }
+
+    @Test
+    public void releaseWakesWaitingThreads() throws Exception {
+        assertNull(cache.getCachedDate(1L)); // claims the id
+        FutureTask<Date> other = lookupOnOtherThread(1L);
+        Thread.sleep(200);
+        assertFalse("Other thread should wait while the id is claimed", other.isDone());
+        cache.release(1L);
+        assertNull(other.get(5, TimeUnit.SECONDS));
+    }
+
+    private FutureTask<Date> lookupOnOtherThread(final Long id) {
+        FutureTask<Date> task = new FutureTask<Date>(new Callable<Date>() {
+            @Override
+            public Date call() {
+                Date date = cache.getCachedDate(id);
+                cache.release(id);
+                return date;
+            }
+        });
+        new Thread(task).start();
+        return task;
+    }
+
     @Test // FIXME this fails occasionally
     public void blocksForSecondRead() throws Exception {
         // These will accept the values from the secondary thread.
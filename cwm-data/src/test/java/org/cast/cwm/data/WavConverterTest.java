@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WavConverterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private DerivedFileCache cache;
+	
+	private BinaryFileData audio;
+
+	@Before
+	public void setUp() throws IOException {
+		cache = new DerivedFileCache(folder.getRoot(), 1024 * 1024);
+		DerivedFileCache.setShared(cache);
+		audio = new BinaryFileData("recording", "audio/x-gzip", getGzippedAu(8000));
+	}
+	
+	@After
+	public void tearDown() {
+		DerivedFileCache.setShared(null);
+	}
+	
+	@Test
+	public void convertsAndCaches() throws IOException {
+		assertTrue(WavConverter.canConvert(audio));
+		assertEquals("Not cached yet", -1, WavConverter.getCachedLength(audio));
+		
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		assertTrue(WavConverter.write(audio, first));
+		byte[] wav = first.toByteArray();
+		assertEquals("RIFF", new String(wav, 0, 4, "US-ASCII"));
+		assertEquals("WAVE", new String(wav, 8, 4, "US-ASCII"));
+		assertEquals(wav.length, WavConverter.getCachedLength(audio));
+		
+		long hits = cache.getHitCount().get();
+		assertArrayEquals("Second conversion should come from the cache", wav, WavConverter.getBytes(audio));
+		assertEquals(hits + 1, cache.getHitCount().get());
+	}
+	
+	@Test
+	public void newContentsAreConvertedAgain() throws IOException, InterruptedException {
+		String oldKey = WavConverter.getCacheKey(audio);
+		WavConverter.getBytes(audio);
+		Thread.sleep(2); // so last modified date differs
+		audio.setData(getGzippedAu(4000));
+		assertFalse(oldKey.equals(WavConverter.getCacheKey(audio)));
+		assertEquals(-1, WavConverter.getCachedLength(audio));
+		assertEquals(44 + 4000 * 2, WavConverter.getBytes(audio).length);
+	}
+	
+	@Test
+	public void rejectsUnknownFormat() throws IOException {
+		ByteArrayOutputStream gz = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(gz);
+		out.write("not audio".getBytes("US-ASCII"));
+		out.close();
+		BinaryFileData text = new BinaryFileData("text", "audio/x-gzip", gz.toByteArray());
+		assertFalse(WavConverter.canConvert(text));
+		assertNull(WavConverter.getBytes(text));
+	}
+	
+	@Test
+	public void cacheEvictsLeastRecentlyUsed() throws IOException {
+		DerivedFileCache small = new DerivedFileCache(folder.newFolder("small"), 100);
+		small.put("a", write(small, 60));
+		small.put("b", write(small, 60));
+		assertNull(small.get("a"));
+		assertEquals(1, small.getSize());
+		assertEquals(60, small.getBytes());
+		assertEquals(1, small.getEvictionCount().get());
+		
+		DerivedFileCache reopened = new DerivedFileCache(small.getDirectory(), 100);
+		assertEquals("Existing files should be indexed", 60, reopened.get("b").length());
+	}
+	
+	@Test
+	public void defaultDirectoryIsReused() {
+		File directory = new DerivedFileCache(null, 100).getDirectory();
+		assertTrue(directory.isDirectory());
+		assertEquals("Each run should use the same directory", directory, new DerivedFileCache(null, 100).getDirectory());
+	}
+	
+	private static File write(DerivedFileCache cache, int length) throws IOException {
+		File tmp = cache.newTempFile();
+		FileOutputStream out = new FileOutputStream(tmp);
+		out.write(new byte[length]);
+		out.close();
+		return tmp;
+	}
+
+	private static byte[] getGzippedAu(int frames) throws IOException {
+		AudioFormat format = new AudioFormat(8000f, 16, 1, true, true);
+		AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(new byte[frames * 2]), format, frames);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		AudioSystem.write(ais, AudioFileFormat.Type.AU, out);
+		out.close();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.data.blob;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.cast.cwm.data.BinaryFileData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileBlobStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private FileBlobStore store;
+	
+	@Before
+	public void setUp() {
+		store = new FileBlobStore(folder.getRoot());
+	}
+	
+	@After
+	public void tearDown() {
+		BinaryFileData.setBlobStore(null);
+	}
+	
+	@Test
+	public void storesContentUnderItsHash() throws IOException {
+		String hash = store.put("abc".getBytes("UTF-8"));
+		// Known SHA-256 of "abc"
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash);
+		assertTrue(store.contains(hash));
+		assertEquals(3, store.length(hash));
+		assertArrayEquals("abc".getBytes("UTF-8"), store.get(hash));
+		assertTrue(new File(folder.getRoot(), "ba/78/" + hash).isFile());
+	}
+	
+	@Test
+	public void deduplicatesIdenticalContent() throws IOException {
+		String first = store.put(new byte[] { 1, 2, 3 });
+		String second = store.put(new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+		assertEquals(first, second);
+		assertEquals("Only one copy should be stored", 1, new File(folder.getRoot(), first.substring(0, 2) + "/" + first.substring(2, 4)).list().length);
+		assertEquals("Temporary files should be cleaned up", 0, new File(folder.getRoot(), "tmp").list().length);
+	}
+	
+	@Test
+	public void doesNotContainUnknownHash() {
+		assertFalse(store.contains("0000000000000000000000000000000000000000000000000000000000000000"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsMalformedHash() throws IOException {
+		store.open("../../etc/passwd");
+	}
+	
+	@Test
+	public void binaryFileDataKeepsOnlyHash() throws IOException {
+		BinaryFileData.setBlobStore(store);
+		BinaryFileData bfd = new BinaryFileData("test", "text/plain", "abc".getBytes("UTF-8"));
+		assertFalse(bfd.isStoredInline());
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", bfd.getContentHash());
+		assertEquals(Long.valueOf(3), bfd.getDataLength());
+		assertArrayEquals("abc".getBytes("UTF-8"), bfd.getData());
+	}
+	
+	@Test
+	public void binaryFileDataMovesInlineContent() throws IOException {
+		BinaryFileData bfd = new BinaryFileData("test", "text/plain", new byte[] { 4, 5, 6 });
+		assertTrue(bfd.isStoredInline());
+		assertNull(bfd.getContentHash());
+		
+		BinaryFileData.setBlobStore(store);
+		assertTrue(bfd.moveDataToBlobStore());
+		assertFalse(bfd.isStoredInline());
+		assertTrue(store.contains(bfd.getContentHash()));
+		assertArrayEquals(new byte[] { 4, 5, 6 }, bfd.getData());
+		assertFalse("Nothing left to move", bfd.moveDataToBlobStore());
+	}
+}
@@ -25,16 +25,22 @@ import org.apache.wicket.model.Model;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
 import org.apache.wicket.util.tester.WicketTester;
 import org.cast.cwm.data.BinaryFileData;
+import org.cast.cwm.data.BinaryFileInfo;
 import org.cast.cwm.service.ICwmService;
 import org.cast.cwm.test.CwmTestApplication;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
@@ -82,6 +88,24 @@ public class ConvertedMP3DataResourceTest {
         assertEquals("expected length of output", 112327, bytes.length);
 	}
 	
+	@Test
+	public void streamsStoredMp3WithoutLoadingSource() throws IOException {
+		final byte[] mp3 = new byte[] { (byte) 0xFF, (byte) 0xFB, 1, 2 };
+		BinaryFileInfo info = new BinaryFileInfo(2L, "sample.mp3", "audio/mpeg", new Date(), mp3.length, null);
+		when(cwmService.getCurrentConvertedMp3Info(1L)).thenReturn(info);
+		when(cwmService.copyBinaryFileData(eq(info), eq(0L), eq((long) mp3.length), any(OutputStream.class))).thenAnswer(new Answer<Long>() {
+			@Override
+			public Long answer(InvocationOnMock invocation) throws Throwable {
+				((OutputStream) invocation.getArguments()[3]).write(mp3);
+				return (long) mp3.length;
+			}
+		});
+		PageParameters pp = new PageParameters().add("id", 1);
+		tester.startResourceReference(new ConvertedMP3DataResourceReference(), pp);
+		verify(cwmService, never()).getById(BinaryFileData.class, 1L);
+		assertArrayEquals(mp3, tester.getLastResponse().getBinaryContent());
+	}
+	
 	private BinaryFileData getSampleWavData() {
         // Load sample WAV data
         InputStream wavStream = this.getClass().getClassLoader().getResourceAsStream("sample.wav");
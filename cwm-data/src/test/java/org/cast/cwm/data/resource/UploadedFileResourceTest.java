@@ -19,27 +19,35 @@
  */
 package org.cast.cwm.data.resource;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.apache.wicket.model.IModel;
-import org.apache.wicket.model.Model;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
 import org.apache.wicket.util.tester.WicketTester;
-import org.cast.cwm.data.BinaryFileData;
+import org.cast.cwm.data.BinaryFileInfo;
 import org.cast.cwm.service.ICwmService;
 import org.cast.cwm.test.GuiceInjectedTestApplication;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class UploadedFileResourceTest {
 
@@ -47,17 +55,27 @@ public class UploadedFileResourceTest {
 	
 	private ICwmService cwmService;
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static final byte[] DATA = new byte[] { 'a', 'b', 'c' };
+	
+	private BinaryFileInfo info = new BinaryFileInfo(1L, "BFD", "text/plain", new Date(1000000000000L), DATA.length, null);
+
 	@Before
-	public void setUp() {
+	public void setUp() throws IOException {
 		
 		Map<Class<? extends Object>, Object> injectionMap = new HashMap<Class<? extends Object>, Object>();
 		
-		BinaryFileData sampleBFD = getBinaryFileDataObject();
-		IModel<BinaryFileData> mSampleBFD = Model.of(sampleBFD);
-
 		cwmService = mock(ICwmService.class);
-		when(cwmService.getById(BinaryFileData.class, 1L)).thenReturn(mSampleBFD);
+		when(cwmService.getBinaryFileInfo(1L)).thenReturn(info);
+		when(cwmService.copyBinaryFileData(eq(info), anyLong(), anyLong(), any(OutputStream.class))).thenAnswer(new Answer<Long>() {
+			@Override
+			public Long answer(InvocationOnMock invocation) throws Throwable {
+				Object[] args = invocation.getArguments();
+				int offset = ((Long) args[1]).intValue();
+				int length = (int) Math.min((Long) args[2], DATA.length - offset);
+				((OutputStream) args[3]).write(DATA, offset, length);
+				return (long) length;
+			}
+		});
 		injectionMap.put(ICwmService.class, cwmService);
 		
 		GuiceInjectedTestApplication application = new GuiceInjectedTestApplication(injectionMap);
@@ -70,7 +88,7 @@ public class UploadedFileResourceTest {
 		tester.startResourceReference(new UploadedFileResourceReference(), pp);
 		//tester.dumpPage();
 		
-		verify(cwmService).getById(BinaryFileData.class, 1L);
+		verify(cwmService).getBinaryFileInfo(1L);
 		tester.assertContains("^abc$");
 		assertEquals("Content type is not correct", "text/plain", tester.getLastResponse().getContentType());
 		assertEquals("Wrong content disposition", "inline", tester.getContentDispositionFromResponseHeader());
@@ -89,8 +107,51 @@ public class UploadedFileResourceTest {
 		assertEquals("Should send 404 error", 404, tester.getLastResponse().getStatus());
 	}
 	
-	private BinaryFileData getBinaryFileDataObject() {
-		BinaryFileData bfd = new BinaryFileData("BFD", "text/plain", new byte[] { 'a', 'b', 'c' });
-		return bfd;
+	@Test
+	public void sendsETag() {
+		PageParameters pp = new PageParameters().add("id", 1);
+		tester.startResourceReference(new UploadedFileResourceReference(), pp);
+		assertEquals(info.getETag(), tester.getLastResponse().getHeader("ETag"));
+		assertEquals("bytes", tester.getLastResponse().getHeader("Accept-Ranges"));
+	}
+	
+	@Test
+	public void matchingETagDoesNotReadData() throws IOException {
+		PageParameters pp = new PageParameters().add("id", 1);
+		tester.getRequest().setHeader("If-None-Match", info.getETag());
+		tester.startResourceReference(new UploadedFileResourceReference(), pp);
+		assertEquals("Should send 304", 304, tester.getLastResponse().getStatus());
+		verify(cwmService, never()).copyBinaryFileData(any(BinaryFileInfo.class), anyLong(), anyLong(), any(OutputStream.class));
+	}
+	
+	@Test
+	public void sendsRequestedRange() {
+		PageParameters pp = new PageParameters().add("id", 1);
+		tester.getRequest().setHeader("Range", "bytes=1-");
+		tester.startResourceReference(new UploadedFileResourceReference(), pp);
+		assertEquals("Should send 206", 206, tester.getLastResponse().getStatus());
+		assertEquals("bytes 1-2/3", tester.getLastResponse().getHeader("Content-Range"));
+		tester.assertContains("^bc$");
+	}
+	
+	@Test
+	public void rejectsUnsatisfiableRange() {
+		PageParameters pp = new PageParameters().add("id", 1);
+		tester.getRequest().setHeader("Range", "bytes=5-9");
+		tester.startResourceReference(new UploadedFileResourceReference(), pp);
+		assertEquals("Should send 416", 416, tester.getLastResponse().getStatus());
+		assertEquals("bytes */3", tester.getLastResponse().getHeader("Content-Range"));
+	}
+	
+	@Test
+	public void parsesRanges() {
+		assertArrayEquals(new long[] { 0, 499 }, UploadedFileResource.parseRange("bytes=0-499", 1000));
+		assertArrayEquals(new long[] { 500, 999 }, UploadedFileResource.parseRange("bytes=500-", 1000));
+		assertArrayEquals(new long[] { 900, 999 }, UploadedFileResource.parseRange("bytes=-100", 1000));
+		assertArrayEquals(new long[] { 0, 999 }, UploadedFileResource.parseRange("bytes=0-5000", 1000));
+		assertArrayEquals(new long[0], UploadedFileResource.parseRange("bytes=1000-", 1000));
+		assertNull(UploadedFileResource.parseRange("bytes=0-1,5-6", 1000));
+		assertNull(UploadedFileResource.parseRange("bytes=9-1", 1000));
+		assertNull(UploadedFileResource.parseRange("items=0-1", 1000));
 	}
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cast.cwm.data.Event;
+import org.cast.cwm.data.User;
+import org.cast.cwm.service.EventWriter.Record;
+import org.cast.cwm.test.TestIdSetter;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.ManyToOneType;
+import org.hibernate.type.StringType;
+import org.hibernate.type.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class EventWriterTest {
+	
+	private SessionFactory sessionFactory;
+	private StatelessSession session;
+	private Transaction transaction;
+	private File journal;
+	
+	@Before
+	public void setUp() throws Exception {
+		sessionFactory = mock(SessionFactory.class);
+		session = mock(StatelessSession.class);
+		transaction = mock(Transaction.class);
+		when(sessionFactory.openStatelessSession()).thenReturn(session);
+		when(session.beginTransaction()).thenReturn(transaction);
+		mockMetadata();
+		journal = File.createTempFile("events", ".journal");
+		journal.delete();
+	}
+	
+	// Metadata for Events with properties type, detail and user
+	private void mockMetadata() {
+		Type userType = new ManyToOneType(null, User.class.getName());
+		
+		ClassMetadata eventMetadata = mock(ClassMetadata.class);
+		when(sessionFactory.getClassMetadata(Event.class)).thenReturn(eventMetadata);
+		when(sessionFactory.getClassMetadata(Event.class.getName())).thenReturn(eventMetadata);
+		when(eventMetadata.getEntityName()).thenReturn(Event.class.getName());
+		when(eventMetadata.getPropertyNames()).thenReturn(new String[] { "type", "detail", "user" });
+		when(eventMetadata.getPropertyTypes()).thenReturn(new Type[] { StringType.INSTANCE, StringType.INSTANCE, userType });
+		when(eventMetadata.getPropertyValues(any())).thenAnswer(new Answer<Object[]>() {
+			@Override
+			public Object[] answer(InvocationOnMock invocation) {
+				Event e = (Event) invocation.getArguments()[0];
+				return new Object[] { e.getType(), e.getDetail(), e.getUser() };
+			}
+		});
+		when(eventMetadata.instantiate(any(Serializable.class), any(SessionImplementor.class))).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				return new Event();
+			}
+		});
+		doAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				Event e = (Event) invocation.getArguments()[0];
+				Object[] values = (Object[]) invocation.getArguments()[1];
+				e.setType((String) values[0]);
+				e.setDetail((String) values[1]);
+				e.setUser((User) values[2]);
+				return null;
+			}
+		}).when(eventMetadata).setPropertyValues(any(), any(Object[].class));
+		
+		ClassMetadata userMetadata = mock(ClassMetadata.class);
+		when(sessionFactory.getClassMetadata(User.class.getName())).thenReturn(userMetadata);
+		when(userMetadata.getIdentifier(any(), any(SessionImplementor.class))).thenAnswer(new Answer<Serializable>() {
+			@Override
+			public Serializable answer(InvocationOnMock invocation) {
+				return ((User) invocation.getArguments()[0]).getId();
+			}
+		});
+		when(userMetadata.instantiate(any(Serializable.class), any(SessionImplementor.class))).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				User user = new User();
+				TestIdSetter.setId(User.class, user, (Long) invocation.getArguments()[0]);
+				return user;
+			}
+		});
+	}
+	
+	@After
+	public void tearDown() {
+		journal.delete();
+		new File(journal.getPath() + ".failed").delete();
+	}
+	
+	@Test
+	public void writesQueuedEventsInBatches() {
+		EventWriter writer = new EventWriter(sessionFactory, journal, 100, 10, 100);
+		for (int i=0; i<25; i++)
+			assertTrue(writer.offer(newEvent(i)));
+		List<Record> batch = new ArrayList<Record>();
+		for (int i=0; i<10; i++)
+			batch.add(writer.record(newEvent(i)));
+		assertTrue(writer.write(batch));
+		assertTrue(batch.isEmpty());
+		verify(session, times(10)).insert(any(Event.class));
+		verify(transaction, times(1)).commit();
+		
+		writer.start();
+		writer.shutdown();
+		assertEquals(25 + 10, writer.getWrittenCount());
+		assertEquals(1 + 3, writer.getBatchCount());
+		assertEquals(0, writer.getJournaledCount());
+		assertFalse(journal.exists());
+	}
+	
+	@Test
+	public void rejectsWhenQueueIsFull() {
+		EventWriter writer = new EventWriter(sessionFactory, journal, 2, 10, 10);
+		assertTrue(writer.offer(newEvent(1)));
+		assertTrue(writer.offer(newEvent(2)));
+		assertFalse(writer.offer(newEvent(3)));
+		assertEquals(1, writer.getRejectedCount());
+	}
+	
+	@Test
+	public void journalsEventsWhenDatabaseIsDown() {
+		doThrow(new HibernateException("down")).when(transaction).commit();
+		EventWriter writer = new EventWriter(sessionFactory, journal, 100, 10, 100);
+		for (int i=0; i<15; i++)
+			writer.offer(newEvent(i));
+		writer.start();
+		writer.shutdown();
+		assertEquals(0, writer.getWrittenCount());
+		assertEquals(15, writer.getJournaledCount());
+		assertTrue(journal.length() > 0);
+		
+		// A new writer replays the journal once the database is back
+		reset(transaction);
+		EventWriter next = new EventWriter(sessionFactory, journal, 100, 10, 100);
+		next.replayJournal();
+		assertEquals(15, next.getWrittenCount());
+		assertFalse(journal.exists());
+	}
+	
+	@Test
+	public void journalsOnlyValuesAndIds() {
+		doThrow(new HibernateException("down")).when(transaction).commit();
+		User user = new User();
+		TestIdSetter.setId(User.class, user, 2L);
+		user.setFirstName("Mickey");
+		Event event = newEvent(1);
+		event.setUser(user);
+		EventWriter writer = new EventWriter(sessionFactory, journal, 100, 10, 100);
+		writer.offer(event);
+		writer.start();
+		writer.shutdown();
+		assertEquals(1, writer.getJournaledCount());
+		
+		reset(transaction);
+		ArgumentCaptor<Object> inserted = ArgumentCaptor.forClass(Object.class);
+		new EventWriter(sessionFactory, journal, 100, 10, 100).replayJournal();
+		verify(session, times(2)).insert(inserted.capture());
+		Event replayed = (Event) inserted.getValue();
+		assertFalse(replayed == event);
+		assertEquals("event 1", replayed.getDetail());
+		assertEquals(Long.valueOf(2), replayed.getUser().getId());
+		assertNull(replayed.getUser().getFirstName());
+	}
+	
+	@Test
+	public void setsAsideEventsThatFailAlone() {
+		doThrow(new HibernateException("bad event")).when(session).insert(argThat(new ArgumentMatcher<Object>() {
+			@Override
+			public boolean matches(Object o) {
+				return o instanceof Event && "event 99".equals(((Event) o).getDetail());
+			}
+		}));
+		EventWriter writer = new EventWriter(sessionFactory, journal, 100, 10, 100);
+		List<Record> batch = new ArrayList<Record>();
+		batch.add(writer.record(newEvent(1)));
+		batch.add(writer.record(newEvent(99)));
+		batch.add(writer.record(newEvent(2)));
+		assertTrue(writer.write(batch));
+		assertEquals(1, batch.size());
+		assertEquals(2, writer.getWrittenCount());
+	}
+	
+	private Event newEvent(int n) {
+		Event event = new Event();
+		event.setType("test");
+		event.setDetail("event " + n);
+		return event;
+	}
+	
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+
+import org.cast.cwm.data.BinaryFileData;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Mp3TranscoderTest {
+
+	private SessionFactory sessionFactory;
+	private Session session;
+	private Transaction transaction;
+	private Mp3Transcoder transcoder;
+	
+	private byte[] mp3 = new byte[] { (byte) 0xFF, (byte) 0xFB, 1, 2 };
+
+	@Before
+	public void setUp() {
+		sessionFactory = mock(SessionFactory.class);
+		session = mock(Session.class);
+		transaction = mock(Transaction.class);
+		when(sessionFactory.openSession()).thenReturn(session);
+		when(session.beginTransaction()).thenReturn(transaction);
+		transcoder = new Mp3Transcoder(sessionFactory, 1, 10);
+	}
+	
+	@After
+	public void tearDown() {
+		transcoder.shutdown();
+	}
+	
+	@Test
+	public void savesMp3AndLinksItToSource() {
+		BinaryFileData wav = new BinaryFileData("recording", "audio/wav", new byte[] { 1, 2, 3 });
+		when(session.get(BinaryFileData.class, 1L)).thenReturn(wav);
+		
+		transcoder.transcode(1L, mp3);
+		
+		verify(session).save(any(BinaryFileData.class));
+		verify(transaction).commit();
+		verify(session).close();
+		assertNotNull("Source should be linked to the mp3", wav.getCurrentConvertedMp3());
+		assertEquals("audio/mpeg", wav.getConvertedMp3().getMimeType());
+		assertArrayEquals(mp3, wav.getConvertedMp3().getData());
+		assertEquals(1, transcoder.getConvertedCount().get());
+	}
+	
+	@Test
+	public void ignoresOtherTypes() {
+		BinaryFileData other = new BinaryFileData("upload", "audio/mpeg", new byte[] { 1, 2, 3 });
+		when(session.get(BinaryFileData.class, 1L)).thenReturn(other);
+		
+		transcoder.transcode(1L, mp3);
+		
+		verify(session, never()).save(any(BinaryFileData.class));
+		verify(transaction, never()).commit();
+		verify(session).close();
+	}
+	
+	@Test
+	public void doesNotConvertTwice() {
+		BinaryFileData wav = new BinaryFileData("recording", "audio/wav", new byte[] { 1, 2, 3 });
+		BinaryFileData existing = new BinaryFileData("recording.mp3", "audio/mpeg", mp3);
+		wav.setConvertedMp3(existing);
+		when(session.get(BinaryFileData.class, 1L)).thenReturn(wav);
+		
+		transcoder.transcode(1L, null);
+		
+		verify(session, never()).save(any(BinaryFileData.class));
+		assertSame(existing, wav.getCurrentConvertedMp3());
+	}
+	
+	@Test
+	public void deletesSupersededMp3() {
+		BinaryFileData wav = new BinaryFileData("recording", "audio/wav", new byte[] { 1, 2, 3 });
+		BinaryFileData outdated = new BinaryFileData("recording.mp3", "audio/mpeg", mp3);
+		outdated.setLastModified(new Date(wav.getLastModified().getTime() - 1000));
+		wav.setConvertedMp3(outdated);
+		when(session.get(BinaryFileData.class, 1L)).thenReturn(wav);
+		
+		transcoder.transcode(1L, mp3);
+		
+		verify(session).save(any(BinaryFileData.class));
+		verify(session).delete(outdated);
+		assertNotSame(outdated, wav.getCurrentConvertedMp3());
+	}
+	
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cast.cwm.data.BinaryFileInfo;
+import org.cast.cwm.data.DerivedFileCache;
+import org.cast.cwm.service.ThumbnailService.Thumbnail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThumbnailServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DerivedFileCache cache;
+	
+	private TestThumbnailService service;
+
+	@Before
+	public void setUp() {
+		cache = new DerivedFileCache(folder.getRoot(), 1024 * 1024);
+		DerivedFileCache.setShared(cache);
+		service = new TestThumbnailService(1024 * 1024);
+	}
+	
+	@After
+	public void tearDown() {
+		service.shutdown();
+		DerivedFileCache.setShared(null);
+	}
+	
+	@Test
+	public void scalesInStepsToFit() {
+		BufferedImage scaled = ThumbnailService.scale(image(1000, 500), 100, 100, false);
+		assertEquals(100, scaled.getWidth());
+		assertEquals(50, scaled.getHeight());
+	}
+
+	@Test
+	public void doesNotEnlarge() {
+		BufferedImage original = image(80, 60);
+		assertSame(original, ThumbnailService.scale(original, 100, 100, false));
+	}
+
+	@Test
+	public void exactPadsToSize() {
+		BufferedImage scaled = ThumbnailService.scale(image(400, 200), 100, 100, true);
+		assertEquals(100, scaled.getWidth());
+		assertEquals(100, scaled.getHeight());
+		assertEquals(ThumbnailService.FILL_COLOR.getRGB(), scaled.getRGB(50, 10));
+	}
+
+	@Test
+	public void cachesInMemoryAndOnDisk() {
+		BinaryFileInfo info = info(1, "image/png");
+		Thumbnail first = service.getThumbnail(info, 50, 50, false);
+		assertNotNull(first);
+		assertEquals(50, first.getWidth());
+		assertEquals(25, first.getHeight());
+		assertEquals("image/png", first.getMimeType());
+		
+		assertSame(first, service.getThumbnail(info, 50, 50, false));
+		assertEquals(1, service.getHeapHitCount().get());
+		
+		service.clear();
+		Thumbnail fromDisk = service.getThumbnail(info, 50, 50, false);
+		assertArrayEquals(first.getData(), fromDisk.getData());
+		assertEquals(50, fromDisk.getWidth());
+		assertEquals(25, fromDisk.getHeight());
+		assertEquals(1, service.getDiskHitCount().get());
+		assertEquals("Original should only be decoded once", 1, service.reads.get());
+	}
+	
+	@Test
+	public void newVersionIsNotServedStaleThumbnail() {
+		service.getThumbnail(info(1, "image/png"), 50, 50, false);
+		BinaryFileInfo changed = new BinaryFileInfo(1, "picture", "image/png", new Date(2000), 100, null);
+		service.getThumbnail(changed, 50, 50, false);
+		assertEquals(2, service.reads.get());
+	}
+	
+	@Test
+	public void ignoresFilesThatAreNotImages() {
+		assertNull(service.getThumbnail(info(1, "audio/wav"), 50, 50, false));
+		assertNull(service.getThumbnail(info(1, "image/svg+xml"), 50, 50, false));
+		assertEquals(0, service.reads.get());
+	}
+	
+	@Test
+	public void memoryIsBoundedByBytes() {
+		int length = service.getThumbnail(info(1, "image/png"), 50, 50, false).getData().length;
+		service.shutdown();
+		service = new TestThumbnailService(length * 3);
+		for (int i = 1; i <= 20; i++)
+			service.getThumbnail(info(i, "image/png"), 50, 50, false);
+		assertTrue(service.getHeapBytes() <= service.getMaxHeapBytes());
+		assertTrue(service.getEvictionCount().get() > 0);
+	}
+
+	@Test
+	public void concurrentRequestsDecodeOnce() throws Exception {
+		final BinaryFileInfo info = info(1, "image/jpeg");
+		service.gate = new CountDownLatch(1);
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Thumbnail>> results = new ArrayList<Future<Thumbnail>>();
+			for (int i = 0; i < 4; i++) {
+				results.add(threads.submit(new Callable<Thumbnail>() {
+					@Override
+					public Thumbnail call() {
+						return service.getThumbnail(info, 50, 50, false);
+					}
+				}));
+			}
+			Thread.sleep(100);
+			service.gate.countDown();
+			Thumbnail first = results.get(0).get();
+			assertEquals("image/jpeg", first.getMimeType());
+			for (Future<Thumbnail> result : results)
+				assertSame(first, result.get());
+			assertEquals(1, service.reads.get());
+		} finally {
+			threads.shutdown();
+		}
+	}
+	
+	private static BinaryFileInfo info(long id, String mimeType) {
+		return new BinaryFileInfo(id, "picture", mimeType, new Date(1000), 100, null);
+	}
+
+	private static BufferedImage image(int w, int h) {
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < w; x++)
+			for (int y = 0; y < h; y++)
+				image.setRGB(x, y, ((x / 10 + y / 10) % 2 == 0 ? Color.BLUE : Color.YELLOW).getRGB());
+		return image;
+	}
+	
+	/**
+	 * Reads a generated image instead of the database, and counts reads.
+	 */
+	private static class TestThumbnailService extends ThumbnailService {
+		
+		final AtomicInteger reads = new AtomicInteger();
+		
+		volatile CountDownLatch gate;
+		
+		TestThumbnailService(long maxHeapBytes) {
+			super(null, maxHeapBytes, new int[0], 1, 10);
+		}
+
+		@Override
+		protected BufferedImage readSource(BinaryFileInfo info) throws IOException {
+			reads.incrementAndGet();
+			if (gate != null) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			return image(400, 200);
+		}
+	}
+
+}
@@ -22,7 +22,9 @@ package net.databinder;
 import java.util.HashSet;
 
 import net.databinder.hib.Databinder;
+import net.databinder.models.hib.HibernateBatchLoader;
 
+import org.apache.wicket.MetaDataKey;
 import org.apache.wicket.request.IRequestHandler;
 import org.apache.wicket.request.Url;
 import org.apache.wicket.request.cycle.IRequestCycleListener;
@@ -45,6 +47,11 @@ public class DBRequestCycleListener implements IRequestCycleListener {
 	/** Keys for session factories that have been opened for this request */ 
 	protected HashSet<Object> keys = new HashSet<Object>();
 
+	/** Prepared statement count from Hibernate statistics at the start of the request */
+	private static final MetaDataKey<Long> STATEMENT_COUNT_KEY = new MetaDataKey<Long>() {
+		private static final long serialVersionUID = 1L;
+	};
+
 	private static final Logger log = LoggerFactory.getLogger(DBRequestCycleListener.class);
 
 	public DBRequestCycleListener() {
@@ -79,7 +86,11 @@ public class DBRequestCycleListener implements IRequestCycleListener {
 	 * @return newly opened session
 	 */
 	protected org.hibernate.Session openHibernateSession(Object key) {
-		org.hibernate.Session sess = Databinder.getHibernateSessionFactory(key).openSession();
+		SessionFactory sf = Databinder.getHibernateSessionFactory(key);
+		RequestCycle cycle = RequestCycle.get();
+		if (key == null && cycle != null && sf.getStatistics().isStatisticsEnabled())
+			cycle.setMetaData(STATEMENT_COUNT_KEY, sf.getStatistics().getPrepareStatementCount());
+		org.hibernate.Session sess = sf.openSession();
 		sess.beginTransaction();
 		ManagedSessionContext.bind(sess);
 		keys.add(key);
@@ -98,6 +109,7 @@ public class DBRequestCycleListener implements IRequestCycleListener {
 	 */
 	@Override
 	public void onEndRequest(RequestCycle cycle) {
+		logStatementCount(cycle);
 		for (Object key : keys) {
 			SessionFactory sf = Databinder.getHibernateSessionFactory(key);
 			if (ManagedSessionContext.hasBind(sf)) {
@@ -108,6 +120,24 @@ public class DBRequestCycleListener implements IRequestCycleListener {
 		log.debug("onEndRequest complete {}", cycle.getRequest().getUrl());
 	}
 
+	/**
+	 * If Hibernate statistics are enabled, log the number of SQL statements prepared
+	 * during this request.  The count is global to the session factory, so it will 
+	 * include statements from any concurrent requests.
+	 */
+	protected void logStatementCount(RequestCycle cycle) {
+		Long start = cycle.getMetaData(STATEMENT_COUNT_KEY);
+		if (start == null || !log.isDebugEnabled())
+			return;
+		long count = Databinder.getHibernateSessionFactory(null).getStatistics().getPrepareStatementCount() - start;
+		HibernateBatchLoader loader = HibernateBatchLoader.getIfUsed();
+		if (loader != null)
+			log.debug("{} SQL statements for {}, including {} batch queries loading {} entities", 
+					new Object[] { count, cycle.getRequest().getUrl(), loader.getQueryCount(), loader.getLoadedCount() });
+		else
+			log.debug("{} SQL statements for {}", count, cycle.getRequest().getUrl());
+	}
+
 	@Override
 	public void onDetach(RequestCycle cycle) {
 		// no action needed
@@ -0,0 +1,158 @@
+/*
+ * Databinder: a simple bridge from Wicket to Hibernate
+ * Copyright (C) 2008  Nathan Hamblen nathan@technically.us
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.databinder.models.hib;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.hibernate.Session;
+import org.hibernate.criterion.Restrictions;
+
+/**
+ * Loads entities for {@link HibernateObjectModel}s in batches.
+ * <p>
+ * A model that is bound to an entity id but has not loaded it, because it was just constructed
+ * with the id or was deserialized, registers the id with the loader for the current request cycle.
+ * The first model to load an entity of a registered class then loads up to {@link #BATCH_SIZE}
+ * registered entities of that class with one IN query, so that the other models find their
+ * entities already in the Hibernate session.  A table of N models thus costs one query rather than N.
+ * <p>
+ * Registered ids are kept only for the request cycle, never in the Wicket session.  Models that 
+ * stay in memory between requests are not registered again, and load their entities individually.
+ * Only the default session factory is supported.
+ */
+public class HibernateBatchLoader {
+
+	/** Maximum number of ids registered in one request. */
+	public static final int MAX_PENDING = 1000;
+	
+	/** Maximum number of ids in a single IN query. */
+	public static final int BATCH_SIZE = 100;
+	
+	private static final MetaDataKey<HibernateBatchLoader> REQUEST_KEY = new MetaDataKey<HibernateBatchLoader>() {
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final Map<Class<?>, Set<Serializable>> pending;
+	
+	private int pendingCount = 0;
+	
+	private int queryCount = 0;
+	
+	private int loadedCount = 0;
+	
+	HibernateBatchLoader(Map<Class<?>, Set<Serializable>> pending) {
+		this.pending = pending;
+	}
+
+	/**
+	 * Get the loader for the current request cycle, creating it if necessary.
+	 * @return the loader, or null if there is no request cycle
+	 */
+	public static HibernateBatchLoader get() {
+		RequestCycle cycle = RequestCycle.get();
+		if (cycle == null)
+			return null;
+		HibernateBatchLoader loader = cycle.getMetaData(REQUEST_KEY);
+		if (loader == null) {
+			loader = new HibernateBatchLoader(new HashMap<Class<?>, Set<Serializable>>());
+			cycle.setMetaData(REQUEST_KEY, loader);
+		}
+		return loader;
+	}
+	
+	/**
+	 * @return the loader for the current request cycle if one has been used, otherwise null
+	 */
+	public static HibernateBatchLoader getIfUsed() {
+		RequestCycle cycle = RequestCycle.get();
+		return cycle == null ? null : cycle.getMetaData(REQUEST_KEY);
+	}
+	
+	/**
+	 * Register an entity id to be loaded in a batch later in the current request.
+	 * Does nothing outside of a request cycle.
+	 * @param entityClass class of the entity
+	 * @param id the entity's id
+	 */
+	public static void register(Class<?> entityClass, Serializable id) {
+		HibernateBatchLoader loader = get();
+		if (loader != null)
+			loader.add(entityClass, id);
+	}
+	
+	void add(Class<?> entityClass, Serializable id) {
+		if (pendingCount >= MAX_PENDING)
+			return;
+		Set<Serializable> ids = pending.get(entityClass);
+		if (ids == null) {
+			ids = new LinkedHashSet<Serializable>();
+			pending.put(entityClass, ids);
+		}
+		if (ids.add(id))
+			pendingCount++;
+	}
+
+	/**
+	 * Load an entity.  If its id was registered, it is loaded along with other registered
+	 * entities of the same class, up to {@link #BATCH_SIZE} in all.
+	 * 
+	 * @param sess the Hibernate session
+	 * @param entityClass class of the entity
+	 * @param id id of the entity
+	 * @return the entity, or null if there is none with that id
+	 */
+	public Object load(Session sess, Class<?> entityClass, Serializable id) {
+		Set<Serializable> ids = pending.get(entityClass);
+		if (ids != null && ids.remove(id)) {
+			List<Serializable> batch = new ArrayList<Serializable>(Math.min(ids.size() + 1, BATCH_SIZE));
+			batch.add(id);
+			Iterator<Serializable> it = ids.iterator();
+			while (batch.size() < BATCH_SIZE && it.hasNext()) {
+				batch.add(it.next());
+				it.remove();
+			}
+			String idProperty = sess.getSessionFactory().getClassMetadata(entityClass).getIdentifierPropertyName();
+			loadedCount += sess.createCriteria(entityClass)
+					.add(Restrictions.in(idProperty, batch))
+					.list().size();
+			queryCount++;
+		}
+		// Found in the Hibernate session if it was just loaded
+		return sess.get(entityClass, id);
+	}
+	
+	/** @return number of IN queries run in this request */
+	public int getQueryCount() {
+		return queryCount;
+	}
+	
+	/** @return number of entities loaded by IN queries in this request */
+	public int getLoadedCount() {
+		return loadedCount;
+	}
+}
@@ -30,6 +30,8 @@ import org.hibernate.Session;
 import org.hibernate.proxy.HibernateProxyHelper;
 
 import javax.persistence.Version;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -64,6 +66,7 @@ public class HibernateObjectModel<T> extends LoadableWritableModel<T> implements
 	public HibernateObjectModel(Class objectClass, Serializable entityId) {
 		this.objectClass = objectClass;
 		this.objectId = entityId;
+		registerForBatch();
 	}
 
 	/**
@@ -197,6 +200,9 @@ public class HibernateObjectModel<T> extends LoadableWritableModel<T> implements
 		}
 		Session sess = Databinder.getHibernateSession(factoryKey);
 		if (objectId != null) {
+			HibernateBatchLoader loader = (factoryKey == null) ? HibernateBatchLoader.get() : null;
+			if (loader != null)
+				return (T) loader.load(sess, objectClass, objectId);
 			return (T) sess.get(objectClass, objectId);
 		}
 
@@ -252,18 +258,33 @@ public class HibernateObjectModel<T> extends LoadableWritableModel<T> implements
 		return null;
 	}
 
-	/** Compares contained objects if present, otherwise calls super-implementation.*/
+	/** 
+	 * If either model is bound to an id, they are equal only if both are bound to the same class and id, 
+	 * so that neither object needs to be loaded and {@link #hashCode()} agrees.
+	 * Otherwise compares contained objects if present, or calls super-implementation.
+	 */
 	@Override
 	public boolean equals(Object obj) {
+		if (obj instanceof HibernateObjectModel) {
+			HibernateObjectModel other = (HibernateObjectModel) obj;
+			if (objectId != null || other.objectId != null)
+				return objectId != null && objectId.equals(other.objectId)
+						&& objectClass != null && objectClass.equals(other.objectClass);
+		}
 		Object target = getObject();
 		if (target != null && obj instanceof HibernateObjectModel)
 			return target.equals(((HibernateObjectModel)obj).getObject());
 		return super.equals(obj);
 	}
 	
-	/** @return hash of contained object if present, otherwise from super-implementation.*/
+	/** 
+	 * @return hash of the id if bound to one, so that the object need not be loaded; 
+	 * otherwise hash of contained object if present, otherwise from super-implementation.
+	 */
 	@Override
 	public int hashCode() {
+		if (objectId != null)
+			return objectId.hashCode();
 		Object target = getObject();
 		if (target == null)
 			return super.hashCode();
@@ -271,6 +292,17 @@ public class HibernateObjectModel<T> extends LoadableWritableModel<T> implements
 	}
 
 
+    // Let this entity be loaded along with others of its class
+    private void registerForBatch() {
+        if (objectId != null && objectClass != null && factoryKey == null)
+            HibernateBatchLoader.register(objectClass, objectId);
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        registerForBatch();
+    }
+
     @Override
     protected void onDetach() {
         super.onDetach();
@@ -18,16 +18,38 @@
  */
 package net.databinder.models.hib;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import net.databinder.hib.Databinder;
 import net.databinder.models.PropertyDataProvider;
 
+import org.apache.wicket.extensions.markup.html.repeater.util.SortParam;
 import org.apache.wicket.model.IDetachable;
 import org.apache.wicket.model.IModel;
+import org.apache.wicket.util.lang.PropertyResolver;
+import org.cwm.db.ResultSetIterator;
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
+import org.hibernate.NullPrecedence;
+import org.hibernate.ScrollMode;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.ProjectionList;
 import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.internal.CriteriaImpl;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.stat.Statistics;
+import org.hibernate.transform.ResultTransformer;
 
 /**
  * Provides query results to DataView and related components. Like the Hibernate model classes,
@@ -47,6 +69,41 @@ public class HibernateProvider<T> extends PropertyDataProvider<T> {
 	
 	private Object factoryKey;
 	
+	/**
+	 * How results of a {@link QueryBuilder} query are loaded.
+	 */
+	public enum FetchStrategy {
+		/** {@link org.hibernate.Query#iterate()}: select ids, then load each entity not already in the session or cache with its own select. */
+		ITERATE,
+		/** {@link org.hibernate.Query#list()}: load all entities of the page with a single select. */
+		LIST,
+		/** {@link org.hibernate.Query#scroll(ScrollMode)}: like LIST, but reads rows from a forward-only cursor. */
+		SCROLL,
+		/** Select ids, then load entities that aren't already in the session or cache with batched IN queries. */
+		BATCH
+	}
+	
+	private FetchStrategy fetchStrategy = FetchStrategy.LIST;
+	
+	private int fetchBatchSize = 50;
+	
+	// Counts of SQL statements issued while loading pages, if Hibernate statistics are enabled
+	private long pageCount = 0;
+	private long statementCount = 0;
+	private long lastPageStatementCount = -1;
+	
+	private boolean keysetPaging = false;
+	
+	private boolean idPaging = false;
+	
+	private boolean pagingIgnoreCase = false;
+	
+	// Sort and criteria that the keyset boundaries were recorded for
+	private String keysetSort;
+	
+	// Maps the offset of a row to the sort value and id of the row just before it
+	private TreeMap<Long, Serializable[]> keysetBoundaries = new TreeMap<Long, Serializable[]>();
+	
 	/**
 	 * Provides all entities of the given class.
 	 */
@@ -168,28 +225,447 @@ public class HibernateProvider<T> extends PropertyDataProvider<T> {
 		return this;
 	}
 	
+	/** @return true if keyset paging is turned on */
+	public boolean isKeysetPaging() {
+		return keysetPaging;
+	}
+	
+	/**
+	 * Turn keyset (seek) paging on or off.  This only applies to criteria-based providers.
+	 * <p>
+	 * In this mode, the provider remembers the sort value and id of the last row of each page it returns.
+	 * When a later page is requested, the query restricts results to rows after the nearest remembered 
+	 * row, as in <code>WHERE (sortKey, id) &gt; (?, ?)</code>, rather than having the database skip over
+	 * all of the earlier rows.  Results are ordered by the property from {@link #getPagingSort()} and then
+	 * by id; any ordering added by {@link OrderingCriteriaBuilder#buildOrdered(Criteria)} is not used.
+	 * Null sort values come after all others in ascending order, and before them in descending order.
+	 * <p>
+	 * Remembered rows are discarded when the sort or the criteria change, as seen by comparing
+	 * {@link Criteria#toString()}, so restriction values should have a toString() that reflects their value.
+	 * They are kept when rows are added or removed, so that a page continues from the row where the previous
+	 * page ended, even in a table that grows with each page view; a later page may therefore be
+	 * shifted by the number of rows inserted before it since that page's boundary was recorded.
+	 * Returning to the first page picks up any new rows.
+	 * 
+	 * @param keysetPaging true to use keyset paging
+	 * @return this, for chaining
+	 */
+	public HibernateProvider<T> setKeysetPaging(boolean keysetPaging) {
+		this.keysetPaging = keysetPaging;
+		clearKeysetBoundaries();
+		return this;
+	}
+	
+	/** @return true if id paging is turned on */
+	public boolean isIdPaging() {
+		return idPaging;
+	}
+	
+	/**
+	 * Turn id paging on or off.  This only applies to criteria-based providers.
+	 * <p>
+	 * In this mode, each page is found with a query that selects only distinct ids, so the database can 
+	 * apply the limit itself even when the criteria involve joins.  The entities for just that page
+	 * of ids are then loaded with a second query, to which {@link #buildFetch(Criteria)} can add fetch joins.
+	 * As with keyset paging, results are ordered by the property from {@link #getPagingSort()} and then by id.
+	 * The size is also computed as a count of distinct ids.
+	 * 
+	 * @param idPaging true to use id paging
+	 * @return this, for chaining
+	 */
+	public HibernateProvider<T> setIdPaging(boolean idPaging) {
+		this.idPaging = idPaging;
+		return this;
+	}
+	
+	/** @return true if keyset and id paging order strings case-insensitively */
+	public boolean isPagingIgnoreCase() {
+		return pagingIgnoreCase;
+	}
+	
+	/**
+	 * Order by the sort property case-insensitively when keyset or id paging is on, to match
+	 * an {@link OrderingCriteriaBuilder} that does so.  Since the keyset restriction cannot compare
+	 * case-insensitively, pages sorted by a string property are then found by offset.
+	 * 
+	 * @param pagingIgnoreCase true to ignore case
+	 * @return this, for chaining
+	 */
+	public HibernateProvider<T> setPagingIgnoreCase(boolean pagingIgnoreCase) {
+		this.pagingIgnoreCase = pagingIgnoreCase;
+		clearKeysetBoundaries();
+		return this;
+	}
+	
+	/**
+	 * Add fetch instructions to the criteria that loads a page of entities by id when id paging is on.
+	 * Default implementation does nothing.
+	 * @param criteria criteria restricted to the ids of one page
+	 */
+	protected void buildFetch(Criteria criteria) {
+	}
+	
+	/**
+	 * Forget the page boundaries remembered for keyset paging.
+	 * Call this if the criteria change in a way that doesn't change their toString().
+	 */
+	public void clearKeysetBoundaries() {
+		keysetBoundaries.clear();
+		keysetSort = null;
+	}
+	
+	/**
+	 * The sort used for keyset paging and id paging.  Default implementation returns null,
+	 * which means results are ordered only by id.
+	 * @return the sort property and direction, or null
+	 */
+	protected SortParam<String> getPagingSort() {
+		return null;
+	}
+	
 	/**
 	 * It should not normally be necessary to override (or call) this default implementation.
 	 */
 	@Override
-	@SuppressWarnings("unchecked")
 	public Iterator<T> iterator(long first, long count) {
-		Session sess =  Databinder.getHibernateSession(factoryKey);
-		
+		return iterator(Databinder.getHibernateSession(factoryKey), first, count);
+	}
+	
+	@SuppressWarnings("unchecked")
+	Iterator<T> iterator(Session sess, long first, long count) {
+		Statistics stats = sess.getSessionFactory().getStatistics();
+		long startCount = stats.isStatisticsEnabled() ? stats.getPrepareStatementCount() : -1;
+
 		if(queryBuilder != null) {
 			org.hibernate.Query q = queryBuilder.build(sess);
 			q.setFirstResult((int)first);
 			q.setMaxResults((int)count);
-			return q.iterate();
+			return countStatements(queryIterator(sess, q), stats, startCount);
 		}			
 		
+		if (keysetPaging || idPaging)
+			return countStatements(sortedPageIterator(sess, first, count), stats, startCount);
+		
 		Criteria crit = sess.createCriteria(objectClass);
 		if (criteriaBuilder != null)
 			criteriaBuilder.buildOrdered(crit);
 		
 		crit.setFirstResult((int)first);
 		crit.setMaxResults((int)count);
-		return crit.list().iterator();
+		return countStatements(crit.list().iterator(), stats, startCount);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Iterator<T> queryIterator(Session sess, org.hibernate.Query q) {
+		switch (fetchStrategy) {
+		case ITERATE:
+			return q.iterate();
+		case SCROLL:
+			return new ResultSetIterator<T>(objectClass, q.scroll(ScrollMode.FORWARD_ONLY));
+		case BATCH:
+			return batchLoad(sess, (Iterator<T>) q.iterate()).iterator();
+		default:
+			return q.list().iterator();
+		}
+	}
+	
+	/**
+	 * Collect the results of {@link org.hibernate.Query#iterate()}, which are uninitialized proxies
+	 * for entities that aren't already loaded, and initialize them with IN queries of up to 
+	 * fetchBatchSize ids each.  Entities in the second-level cache are left to be loaded from there.
+	 */
+	List<T> batchLoad(Session sess, Iterator<T> it) {
+		List<T> results = new ArrayList<T>();
+		Map<Class<?>, List<Serializable>> toLoad = new HashMap<Class<?>, List<Serializable>>();
+		SessionFactory factory = sess.getSessionFactory();
+		while (it.hasNext()) {
+			T result = it.next();
+			results.add(result);
+			if (result instanceof HibernateProxy && !Hibernate.isInitialized(result)) {
+				LazyInitializer init = ((HibernateProxy) result).getHibernateLazyInitializer();
+				Class<?> entityClass = init.getPersistentClass();
+				if (factory.getCache().containsEntity(entityClass, init.getIdentifier()))
+					continue;
+				if (!toLoad.containsKey(entityClass))
+					toLoad.put(entityClass, new ArrayList<Serializable>());
+				toLoad.get(entityClass).add(init.getIdentifier());
+			}
+		}
+		for (Map.Entry<Class<?>, List<Serializable>> entry : toLoad.entrySet()) {
+			String idProperty = factory.getClassMetadata(entry.getKey()).getIdentifierPropertyName();
+			List<Serializable> ids = entry.getValue();
+			for (int i=0; i<ids.size(); i+=fetchBatchSize) {
+				// Loading the entities into the session also initializes the proxies
+				sess.createCriteria(entry.getKey())
+					.add(Restrictions.in(idProperty, ids.subList(i, Math.min(i+fetchBatchSize, ids.size()))))
+					.list();
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Wrap a page of results so that the number of statements issued for it is recorded 
+	 * once it has been read to the end.
+	 */
+	private Iterator<T> countStatements(final Iterator<T> it, final Statistics stats, final long startCount) {
+		if (startCount < 0)
+			return it;
+		return new Iterator<T>() {
+			private boolean counted = false;
+			@Override
+			public boolean hasNext() {
+				boolean hasNext = it.hasNext();
+				if (!hasNext && !counted) {
+					counted = true;
+					lastPageStatementCount = stats.getPrepareStatementCount() - startCount;
+					statementCount += lastPageStatementCount;
+					pageCount++;
+				}
+				return hasNext;
+			}
+			@Override
+			public T next() {
+				return it.next();
+			}
+			@Override
+			public void remove() {
+				it.remove();
+			}
+		};
+	}
+	
+	/** @return how results of a query-based provider are loaded */
+	public FetchStrategy getFetchStrategy() {
+		return fetchStrategy;
+	}
+
+	/**
+	 * Set how results of a query-based provider are loaded.  The default is {@link FetchStrategy#LIST}.
+	 * @param fetchStrategy the strategy
+	 * @return this, for chaining
+	 */
+	public HibernateProvider<T> setFetchStrategy(FetchStrategy fetchStrategy) {
+		this.fetchStrategy = fetchStrategy;
+		return this;
+	}
+
+	/** @return maximum number of ids in each IN query for {@link FetchStrategy#BATCH} */
+	public int getFetchBatchSize() {
+		return fetchBatchSize;
+	}
+
+	/**
+	 * Set the maximum number of ids in each IN query for {@link FetchStrategy#BATCH}.
+	 * @param fetchBatchSize number of ids
+	 * @return this, for chaining
+	 */
+	public HibernateProvider<T> setFetchBatchSize(int fetchBatchSize) {
+		this.fetchBatchSize = fetchBatchSize;
+		return this;
+	}
+
+	/**
+	 * Number of pages for which statements have been counted.  Statements are only counted 
+	 * when Hibernate statistics are enabled, and since the counts are global to the session factory,
+	 * they include statements issued concurrently by other requests.
+	 * @return number of pages read
+	 */
+	public long getPageCount() {
+		return pageCount;
+	}
+
+	/** @return total SQL statements counted while reading pages */
+	public long getStatementCount() {
+		return statementCount;
+	}
+
+	/** @return SQL statements counted while reading the most recent page, or -1 if not counted */
+	public long getLastPageStatementCount() {
+		return lastPageStatementCount;
+	}
+	
+	/**
+	 * Get a page using the sort from {@link #getPagingSort()} with id as a tie-breaker,
+	 * for keyset paging and/or id paging.
+	 */
+	@SuppressWarnings("unchecked")
+	Iterator<T> sortedPageIterator(Session sess, long first, long count) {
+		SortParam<String> sort = getPagingSort();
+		boolean ascending = (sort == null) || sort.isAscending();
+		String idProperty = sess.getSessionFactory().getClassMetadata(objectClass).getIdentifierPropertyName();
+		
+		Criteria crit = sess.createCriteria(objectClass);
+		if (criteriaBuilder != null)
+			criteriaBuilder.buildUnordered(crit);
+		
+		// Boundaries only apply to the sort and criteria they were recorded with
+		String sortKey = ((sort == null) ? "" : sort.getProperty() + (ascending ? " asc" : " desc")) + " " + crit;
+		if (!sortKey.equals(keysetSort)) {
+			keysetBoundaries.clear();
+			keysetSort = sortKey;
+		}
+		
+		long skip = first;
+		if (keysetPaging) {
+			Map.Entry<Long, Serializable[]> boundary = keysetBoundaries.floorEntry(first);
+			if (boundary != null) {
+				Serializable[] key = boundary.getValue();
+				crit.add(after(sort == null ? null : sort.getProperty(), ascending, idProperty, key[0], key[1]));
+				skip = first - boundary.getKey();
+			}
+		}
+		if (sort != null)
+			crit.addOrder(pagingOrder(sort.getProperty(), ascending, pagingIgnoreCase));
+		crit.addOrder(ascending ? Order.asc(idProperty) : Order.desc(idProperty));
+		crit.setFirstResult((int)skip);
+		crit.setMaxResults((int)count);
+		
+		List<T> list;
+		int rowCount;
+		Serializable[] lastKey = null;
+		if (idPaging) {
+			// Select only distinct ids (and the sort value, which the database needs for ordering).
+			// Grouping rather than "select distinct" lets the order use lower() for case-insensitive sorts.
+			ProjectionList columns = Projections.projectionList().add(Projections.groupProperty(idProperty));
+			if (sort != null)
+				columns.add(Projections.groupProperty(sort.getProperty()));
+			crit.setProjection(columns);
+			List<Object> rows = crit.list();
+			List<Serializable> ids = new ArrayList<Serializable>(rows.size());
+			for (Object r : rows) {
+				Object[] row = (r instanceof Object[]) ? (Object[]) r : new Object[] { r };
+				ids.add((Serializable) row[0]);
+				Object sortValue = (row.length < 2) ? null : row[1];
+				lastKey = isSeekable(sortValue) ? new Serializable[] { (Serializable) sortValue, (Serializable) row[0] } : null;
+			}
+			rowCount = rows.size();
+			list = fetchByIds(sess, idProperty, ids);
+		} else {
+			list = crit.list();
+			rowCount = list.size();
+			if (!list.isEmpty()) {
+				T last = list.get(list.size()-1);
+				Object sortValue = (sort == null) ? null : PropertyResolver.getValue(sort.getProperty(), last);
+				if (isSeekable(sortValue))
+					lastKey = new Serializable[] { (Serializable) sortValue, sess.getIdentifier(last) };
+			}
+		}
+		
+		// Remember where the next page starts
+		if (keysetPaging && lastKey != null)
+			keysetBoundaries.put(first + rowCount, lastKey);
+		return list.iterator();
+	}
+	
+	/**
+	 * Load the entities with the given ids, with fetching set up by {@link #buildFetch(Criteria)}.
+	 * @return the entities, in the same order as the ids
+	 */
+	@SuppressWarnings("unchecked")
+	private List<T> fetchByIds(Session sess, String idProperty, List<Serializable> ids) {
+		List<T> result = new ArrayList<T>(ids.size());
+		if (ids.isEmpty())
+			return result;
+		Criteria fetch = sess.createCriteria(objectClass);
+		fetch.add(Restrictions.in(idProperty, ids));
+		buildFetch(fetch);
+		fetch.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+		Map<Serializable, T> byId = new HashMap<Serializable, T>();
+		for (Object o : fetch.list())
+			byId.put(sess.getIdentifier(o), (T) o);
+		for (Serializable id : ids) {
+			T o = byId.get(id);
+			if (o != null)
+				result.add(o);
+		}
+		return result;
+	}
+	
+	// Whether a row with the given sort value can be used as a keyset boundary
+	private boolean isSeekable(Object sortValue) {
+		if (sortValue == null)
+			return true;
+		if (pagingIgnoreCase && sortValue instanceof String)
+			return false; // the restriction would compare case-sensitively
+		return sortValue instanceof Serializable;
+	}
+	
+	/**
+	 * Order for keyset and id paging.  Null placement is explicit, since databases differ, and 
+	 * {@link #after(String, boolean, String, Serializable, Serializable)} must agree with it.
+	 */
+	static Order pagingOrder(String property, boolean ascending, boolean ignoreCase) {
+		Order order = ascending ? Order.asc(property).nulls(NullPrecedence.LAST) : Order.desc(property).nulls(NullPrecedence.FIRST);
+		return ignoreCase ? order.ignoreCase() : order;
+	}
+	
+	/**
+	 * Restriction to rows that come after the given sort value and id, in the order given by
+	 * {@link #pagingOrder(String, boolean, boolean)} and then id.  Null sort values come last
+	 * in ascending order and first in descending order.
+	 * @param property sort property, or null if sorting only by id
+	 * @param ascending sort direction
+	 * @param idProperty name of the id property
+	 * @param value sort value of the boundary row, which may be null
+	 * @param id id of the boundary row
+	 */
+	static Criterion after(String property, boolean ascending, String idProperty, Serializable value, Serializable id) {
+		Criterion idAfter = ascending ? Restrictions.gt(idProperty, id) : Restrictions.lt(idProperty, id);
+		if (property == null)
+			return idAfter;
+		if (ascending) {
+			if (value == null) // only later nulls remain
+				return Restrictions.and(Restrictions.isNull(property), idAfter);
+			return Restrictions.disjunction()
+					.add(Restrictions.gt(property, value))
+					.add(Restrictions.and(Restrictions.eq(property, value), idAfter))
+					.add(Restrictions.isNull(property));
+		} else {
+			if (value == null) // later nulls, then all non-null values
+				return Restrictions.or(Restrictions.and(Restrictions.isNull(property), idAfter),
+						Restrictions.isNotNull(property));
+			return Restrictions.or(Restrictions.lt(property, value),
+					Restrictions.and(Restrictions.eq(property, value), idAfter));
+		}
+	}
+	
+	/**
+	 * Iterate over all results with a forward-only database cursor, rather than loading them all
+	 * into memory as {@link #iterator(long, long)} does.  Results are read-only, and the session 
+	 * is cleared every fetchSize rows, so each result should be used before moving to the next.
+	 * The iterator is a {@link ResultSetIterator}, which should be closed if it is not read to the end.
+	 * <p>
+	 * Scrolling bypasses a criteria's result transformer.  If the criteria set
+	 * {@link Criteria#DISTINCT_ROOT_ENTITY}, entities already returned are skipped instead;
+	 * results of a criteria with any other transformer are listed rather than scrolled.
+	 * 
+	 * @param fetchSize number of rows to fetch from the database at a time
+	 * @return iterator over all results
+	 */
+	public Iterator<T> scroll(int fetchSize) {
+		return scroll(Databinder.getHibernateSession(factoryKey), fetchSize);
+	}
+	
+	@SuppressWarnings("unchecked")
+	Iterator<T> scroll(Session sess, int fetchSize) {
+		if(queryBuilder != null) {
+			org.hibernate.Query q = queryBuilder.build(sess);
+			q.setFetchSize(fetchSize);
+			q.setReadOnly(true);
+			return new ResultSetIterator<T>(objectClass, q.scroll(ScrollMode.FORWARD_ONLY), sess, fetchSize);
+		}
+		
+		Criteria crit = sess.createCriteria(objectClass);
+		if (criteriaBuilder != null)
+			criteriaBuilder.buildOrdered(crit);
+		ResultTransformer transformer = (crit instanceof CriteriaImpl) ? ((CriteriaImpl) crit).getResultTransformer() : null;
+		boolean distinct = (transformer == Criteria.DISTINCT_ROOT_ENTITY);
+		if (transformer != null && transformer != Criteria.ROOT_ENTITY && !distinct)
+			return crit.list().iterator();
+		crit.setFetchSize(fetchSize);
+		crit.setReadOnly(true);
+		return new ResultSetIterator<T>(objectClass, crit.scroll(ScrollMode.FORWARD_ONLY), sess, fetchSize, distinct);
 	}
 	
 	/**
@@ -210,7 +686,11 @@ public class HibernateProvider<T> extends PropertyDataProvider<T> {
 		
 		if (criteriaBuilder != null)
 			criteriaBuilder.buildUnordered(crit);
-		crit.setProjection(Projections.rowCount());
+		if (idPaging)
+			crit.setProjection(Projections.countDistinct(
+					sess.getSessionFactory().getClassMetadata(objectClass).getIdentifierPropertyName()));
+		else
+			crit.setProjection(Projections.rowCount());
 		Number size = (Number) crit.uniqueResult();
 		return size == null ? 0 : size.longValue();
 	}
@@ -21,6 +21,8 @@ package net.databinder.models.hib;
 import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortState;
 import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortStateLocator;
 import org.apache.wicket.extensions.markup.html.repeater.data.table.ISortableDataProvider;
+import org.apache.wicket.extensions.markup.html.repeater.util.SingleSortState;
+import org.apache.wicket.extensions.markup.html.repeater.util.SortParam;
 
 /**
  * <h1>SortableHibernateProvider</h1>
@@ -63,4 +65,16 @@ public class SortableHibernateProvider<T> extends HibernateProvider<T> implement
         sortStateLocator = null;
         this.sortState = state;
     }
+
+    /**
+     * Keyset and id paging use the current sort, if it is a {@link SingleSortState}.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected SortParam<String> getPagingSort() {
+        ISortState state = getSortState();
+        if (state instanceof SingleSortState)
+            return ((SingleSortState<String>) state).getSort();
+        return null;
+    }
 }
@@ -19,37 +19,106 @@
  */
 package org.cwm.db;
 
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 
-public class ResultSetIterator<T> implements Iterator<T> {
+/**
+ * Iterates over the first column of a {@link ScrollableResults}, which may be forward-only.
+ * <p>
+ * When constructed with a Session and a clear interval, the session is cleared after 
+ * every clearInterval rows, so that a long result set does not fill up the session.  
+ * The session is only cleared just before moving to the next row, so each value remains 
+ * attached while the caller works with it.
+ * <p>
+ * Scrolled criteria results are not passed through the criteria's result transformer, so a
+ * criteria that joins a collection and relies on {@link org.hibernate.Criteria#DISTINCT_ROOT_ENTITY}
+ * returns its root entity once per joined row.  A distinct iterator skips those repeats; it keeps
+ * the id of every entity returned so far.
+ * The results are closed once the last row has been read, or when {@link #close()} is called.
+ */
+public class ResultSetIterator<T> implements Iterator<T>, Closeable {
 	
 	private ScrollableResults results;
 	
-	// Our internal pointer is always pointing to what will be returned later by next().
-	// This flag is true if there is a valid "next" result?
+	private Session session;
+	
+	private int clearInterval;
+	
+	// Number of rows read
+	private int count = 0;
+	
+	// Ids of entities returned so far, if distinct
+	private Set<Serializable> returnedIds;
+	
+	// True if the results have been moved to a row that next() has not yet returned.
+	private boolean advanced = false;
+	
+	// True if the row the results are pointing at is valid.
 	private boolean isValid; 
 
 	public ResultSetIterator(Class<T> resultClass, ScrollableResults scrollableResults) {
+		this(resultClass, scrollableResults, null, 0);
+	}
+
+	/**
+	 * Construct an iterator that clears the session periodically.
+	 * 
+	 * @param resultClass class of the results
+	 * @param scrollableResults the results
+	 * @param session session that the results are loaded into
+	 * @param clearInterval number of rows between calls to {@link Session#clear()}; 0 to never clear.
+	 */
+	public ResultSetIterator(Class<T> resultClass, ScrollableResults scrollableResults, Session session, int clearInterval) {
+		this(resultClass, scrollableResults, session, clearInterval, false);
+	}
+
+	/**
+	 * Construct an iterator that clears the session periodically, and optionally returns each entity only once.
+	 * 
+	 * @param resultClass class of the results, which must be entities if distinct
+	 * @param scrollableResults the results
+	 * @param session session that the results are loaded into
+	 * @param clearInterval number of rows between calls to {@link Session#clear()}; 0 to never clear.
+	 * @param distinct true to skip rows whose entity has already been returned
+	 */
+	public ResultSetIterator(Class<T> resultClass, ScrollableResults scrollableResults, Session session, int clearInterval, boolean distinct) {
 		this.results = scrollableResults;
-		isValid = results.first(); // will set to true if there are any results.
+		this.session = session;
+		this.clearInterval = clearInterval;
+		if (distinct)
+			returnedIds = new HashSet<Serializable>();
 	}
 
 	@Override
 	public boolean hasNext() {
+		while (!advanced && results != null) {
+			if (session != null && clearInterval > 0 && count > 0 && count % clearInterval == 0)
+				session.clear();
+			isValid = results.next();
+			if (!isValid) {
+				close();
+				break;
+			}
+			count++;
+			advanced = (returnedIds == null) || returnedIds.add(session.getIdentifier(results.get(0)));
+		}
 		return isValid;
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public T next() {
-		if (!isValid)
+		if (!hasNext())
 			throw new NoSuchElementException();
-		T value = (T) results.get(0);
-		isValid = results.next();
-		return value;
+		advanced = false;
+		return (T) results.get(0);
 	}
 
 	@Override
@@ -57,4 +126,14 @@ public class ResultSetIterator<T> implements Iterator<T> {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public void close() {
+		if (results != null) {
+			results.close();
+			results = null;
+		}
+		isValid = false;
+		advanced = true;
+	}
+
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.databinder.models.hib;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.metadata.ClassMetadata;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HibernateBatchLoaderTest {
+	
+	private static class Entity {
+	}
+
+	private Session sess;
+	
+	private Criteria criteria;
+	
+	@Before
+	public void setUp() {
+		sess = mock(Session.class);
+		SessionFactory factory = mock(SessionFactory.class);
+		ClassMetadata metadata = mock(ClassMetadata.class);
+		criteria = mock(Criteria.class);
+		when(sess.getSessionFactory()).thenReturn(factory);
+		when(factory.getClassMetadata(Entity.class)).thenReturn(metadata);
+		when(metadata.getIdentifierPropertyName()).thenReturn("id");
+		when(sess.createCriteria(Entity.class)).thenReturn(criteria);
+		when(criteria.add(any(Criterion.class))).thenReturn(criteria);
+	}
+
+	@Test
+	public void loadsPageOfModelsInOneQuery() {
+		HibernateBatchLoader loader = new HibernateBatchLoader(pending(50));
+		for (long id=1; id<=50; id++)
+			loader.load(sess, Entity.class, id);
+		verify(sess, times(1)).createCriteria(Entity.class);
+		verify(criteria, times(1)).list();
+		assertEquals(1, loader.getQueryCount());
+		assertEquals(50, loader.getLoadedCount());
+		for (long id=1; id<=50; id++)
+			verify(sess).get(Entity.class, id);
+	}
+
+	@Test
+	public void capsEachLoadAtBatchSize() {
+		HibernateBatchLoader loader = new HibernateBatchLoader(pending(HibernateBatchLoader.BATCH_SIZE * 2 + 1));
+		loader.load(sess, Entity.class, 1L);
+		assertEquals(1, loader.getQueryCount());
+		assertEquals(HibernateBatchLoader.BATCH_SIZE, loader.getLoadedCount());
+		// Already loaded with the first batch
+		loader.load(sess, Entity.class, 2L);
+		assertEquals(1, loader.getQueryCount());
+		// Still pending, so loaded with the next batch
+		loader.load(sess, Entity.class, (long) HibernateBatchLoader.BATCH_SIZE * 2);
+		assertEquals(2, loader.getQueryCount());
+		verify(criteria, times(2)).list();
+	}
+
+	@Test
+	public void unregisteredIdIsLoadedAlone() {
+		HibernateBatchLoader loader = new HibernateBatchLoader(pending(50));
+		loader.load(sess, Entity.class, 51L);
+		verify(sess, never()).createCriteria(Entity.class);
+		verify(sess).get(Entity.class, 51L);
+		assertEquals(0, loader.getQueryCount());
+	}
+
+	@Test
+	public void loadsRegisteredItemsWithOneStatement() {
+		TestDatabase.createItems(60, 0);
+		HibernateBatchLoader loader = new HibernateBatchLoader(new HashMap<Class<?>, Set<Serializable>>());
+		for (long id=1; id<=50; id++)
+			loader.add(Item.class, id);
+		Session real = TestDatabase.getSessionFactory().openSession();
+		try {
+			long before = TestDatabase.getStatementCount();
+			for (long id=1; id<=50; id++)
+				assertEquals(Long.valueOf(id), ((Item) loader.load(real, Item.class, id)).getId());
+			assertEquals(1, TestDatabase.getStatementCount() - before);
+			
+			// Unregistered ids are loaded one at a time
+			before = TestDatabase.getStatementCount();
+			for (long id=51; id<=60; id++)
+				assertEquals(Long.valueOf(id), ((Item) loader.load(real, Item.class, id)).getId());
+			assertEquals(10, TestDatabase.getStatementCount() - before);
+		} finally {
+			real.close();
+		}
+		assertEquals(1, loader.getQueryCount());
+		assertEquals(50, loader.getLoadedCount());
+	}
+
+	// Ids 1 to count registered for Entity, with list() returning a row for each
+	private Map<Class<?>, Set<Serializable>> pending(int count) {
+		Set<Serializable> ids = new LinkedHashSet<Serializable>();
+		List<Object> rows = new ArrayList<Object>();
+		for (long id=1; id<=Math.min(count, HibernateBatchLoader.BATCH_SIZE); id++)
+			rows.add(new Entity());
+		for (long id=1; id<=count; id++)
+			ids.add(id);
+		when(criteria.list()).thenReturn(rows);
+		Map<Class<?>, Set<Serializable>> pending = new HashMap<Class<?>, Set<Serializable>>();
+		pending.put(Entity.class, ids);
+		return pending;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.databinder.models.hib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class HibernateObjectModelTest {
+	
+	private static class Entity {
+	}
+
+	// No Hibernate session is available here, so loading would throw
+	@Test
+	public void boundModelsCompareByIdWithoutLoading() {
+		HibernateObjectModel<Entity> a = new HibernateObjectModel<Entity>(Entity.class, 1L);
+		HibernateObjectModel<Entity> b = new HibernateObjectModel<Entity>(Entity.class, 1L);
+		HibernateObjectModel<Entity> c = new HibernateObjectModel<Entity>(Entity.class, 2L);
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertFalse(a.equals(c));
+		assertFalse(a.isAttached());
+		assertFalse(b.isAttached());
+		assertFalse(c.isAttached());
+	}
+
+	@Test
+	public void boundAndUnboundModelsAreNotEqual() {
+		HibernateObjectModel<Entity> bound = new HibernateObjectModel<Entity>(Entity.class, 1L);
+		HibernateObjectModel<Entity> unbound = new HibernateObjectModel<Entity>(Entity.class);
+		assertFalse(bound.equals(unbound));
+		assertFalse(unbound.equals(bound));
+		assertFalse(bound.isAttached());
+		assertFalse(unbound.isAttached());
+	}
+}
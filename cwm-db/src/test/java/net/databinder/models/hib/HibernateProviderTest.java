@@ -0,0 +1,320 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.databinder.models.hib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.wicket.extensions.markup.html.repeater.util.SortParam;
+import org.hibernate.Cache;
+import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Order;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.sql.JoinType;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class HibernateProviderTest {
+	
+	private static class Entity {
+	}
+
+	// Keyset restriction, where null sort values come last in ascending order and first in descending order
+	@Test
+	public void idOnly() {
+		assertEquals("id>7", HibernateProvider.after(null, true, "id", null, 7L).toString());
+		assertEquals("id<7", HibernateProvider.after(null, false, "id", null, 7L).toString());
+	}
+
+	@Test
+	public void ascendingKeepsLaterValuesAndNulls() {
+		String c = HibernateProvider.after("name", true, "id", "m", 7L).toString();
+		assertTrue(c, c.contains("name>m"));
+		assertTrue(c, c.contains("name=m"));
+		assertTrue(c, c.contains("id>7"));
+		assertTrue(c, c.contains("name is null"));
+		assertFalse(c, c.contains("name is not null"));
+	}
+
+	@Test
+	public void ascendingAfterNullKeepsOnlyLaterNulls() {
+		String c = HibernateProvider.after("name", true, "id", null, 7L).toString();
+		assertTrue(c, c.contains("name is null"));
+		assertTrue(c, c.contains("id>7"));
+		assertFalse(c, c.contains(" or "));
+		assertFalse(c, c.contains("name is not null"));
+	}
+
+	@Test
+	public void descendingExcludesNulls() {
+		String c = HibernateProvider.after("name", false, "id", "m", 7L).toString();
+		assertTrue(c, c.contains("name<m"));
+		assertTrue(c, c.contains("name=m"));
+		assertTrue(c, c.contains("id<7"));
+		assertFalse(c, c.contains("is null"));
+		assertFalse(c, c.contains("is not null"));
+	}
+
+	@Test
+	public void descendingAfterNullKeepsLaterNullsAndAllValues() {
+		String c = HibernateProvider.after("name", false, "id", null, 7L).toString();
+		assertTrue(c, c.contains("name is null"));
+		assertTrue(c, c.contains("id<7"));
+		assertTrue(c, c.contains(" or "));
+		assertTrue(c, c.contains("name is not null"));
+		assertFalse(c, c.contains("name<"));
+	}
+
+	@Test
+	public void batchLoadsPageInOneQuery() {
+		Session sess = mockSession();
+		List<Object> page = proxies(50);
+		List<Object> results = new HibernateProvider<Object>(Entity.class).batchLoad(sess, page.iterator());
+		assertEquals(page, results);
+		// with the ids query, two statements for the page
+		verify(sess, times(1)).createCriteria(Entity.class);
+	}
+
+	@Test
+	public void batchLoadSplitsByFetchBatchSize() {
+		Session sess = mockSession();
+		HibernateProvider<Object> provider = new HibernateProvider<Object>(Entity.class).setFetchBatchSize(20);
+		provider.batchLoad(sess, proxies(50).iterator());
+		// 49 ids not in the second-level cache
+		verify(sess, times(3)).createCriteria(Entity.class);
+	}
+
+	@Test
+	public void idPagingLoadsPageWithTwoQueries() {
+		Session sess = mock(Session.class);
+		SessionFactory factory = mock(SessionFactory.class);
+		ClassMetadata metadata = mock(ClassMetadata.class);
+		Criteria ids = mock(Criteria.class);
+		Criteria fetch = mock(Criteria.class);
+		when(sess.getSessionFactory()).thenReturn(factory);
+		when(factory.getClassMetadata(Entity.class)).thenReturn(metadata);
+		when(metadata.getIdentifierPropertyName()).thenReturn("id");
+		when(sess.createCriteria(Entity.class)).thenReturn(ids, fetch, ids, fetch);
+		
+		// Ids 1 to 50 in order; the fetch query returns their entities in reverse
+		List<Object> idRows = new ArrayList<Object>();
+		List<Object> entities = new ArrayList<Object>();
+		for (long id=1; id<=50; id++) {
+			Entity e = new Entity();
+			idRows.add(id);
+			entities.add(0, e);
+			when(sess.getIdentifier(e)).thenReturn(id);
+		}
+		when(ids.list()).thenReturn(idRows);
+		when(fetch.list()).thenReturn(entities);
+		
+		HibernateProvider<Object> provider = new HibernateProvider<Object>(Entity.class)
+				.setKeysetPaging(true).setIdPaging(true);
+		Iterator<Object> page = provider.sortedPageIterator(sess, 0, 50);
+		for (int i=49; i>=0; i--)
+			assertSame(entities.get(i), page.next());
+		assertFalse(page.hasNext());
+		verify(sess, times(2)).createCriteria(Entity.class);
+		verify(ids, never()).add(any(Criterion.class));
+		
+		// The next page seeks past the last id rather than skipping rows
+		provider.sortedPageIterator(sess, 50, 50);
+		verify(sess, times(4)).createCriteria(Entity.class);
+		ArgumentCaptor<Criterion> restriction = ArgumentCaptor.forClass(Criterion.class);
+		verify(ids).add(restriction.capture());
+		assertEquals("id>50", restriction.getValue().toString());
+		verify(ids, times(2)).setFirstResult(0);
+	}
+
+	// Session in which the entity with id 0 is in the second-level cache
+	private Session mockSession() {
+		Session sess = mock(Session.class);
+		SessionFactory factory = mock(SessionFactory.class);
+		Cache cache = mock(Cache.class);
+		ClassMetadata metadata = mock(ClassMetadata.class);
+		Criteria criteria = mock(Criteria.class);
+		when(sess.getSessionFactory()).thenReturn(factory);
+		when(factory.getCache()).thenReturn(cache);
+		when(cache.containsEntity(Entity.class, 0L)).thenReturn(true);
+		when(factory.getClassMetadata(Entity.class)).thenReturn(metadata);
+		when(metadata.getIdentifierPropertyName()).thenReturn("id");
+		when(sess.createCriteria(Entity.class)).thenReturn(criteria);
+		when(criteria.add(any(Criterion.class))).thenReturn(criteria);
+		return sess;
+	}
+
+	// Uninitialized proxies, as returned by Query.iterate(), with ids from 0
+	private List<Object> proxies(int count) {
+		List<Object> proxies = new ArrayList<Object>();
+		for (long id=0; id<count; id++) {
+			HibernateProxy proxy = mock(HibernateProxy.class);
+			LazyInitializer init = mock(LazyInitializer.class);
+			when(proxy.getHibernateLazyInitializer()).thenReturn(init);
+			when(init.isUninitialized()).thenReturn(true);
+			when(init.getPersistentClass()).thenReturn(Entity.class);
+			when(init.getIdentifier()).thenReturn(id);
+			proxies.add(proxy);
+		}
+		return proxies;
+	}
+
+	@Test
+	public void listLoadsPageWithOneStatement() {
+		assertEquals(1, pageStatements(HibernateProvider.FetchStrategy.LIST));
+	}
+
+	@Test
+	public void scrollLoadsPageWithOneStatement() {
+		assertEquals(1, pageStatements(HibernateProvider.FetchStrategy.SCROLL));
+	}
+
+	@Test
+	public void batchLoadsPageWithTwoStatements() {
+		assertEquals(2, pageStatements(HibernateProvider.FetchStrategy.BATCH));
+	}
+
+	@Test
+	public void iterateLoadsEachEntitySeparately() {
+		assertEquals(51, pageStatements(HibernateProvider.FetchStrategy.ITERATE));
+	}
+
+	/**
+	 * Read items 21 to 70 of 100 from a real session with the given strategy, checking each one.
+	 * @return statements counted by the provider for the page, which must agree with the session factory's count
+	 */
+	private long pageStatements(HibernateProvider.FetchStrategy strategy) {
+		TestDatabase.createItems(100, 0);
+		HibernateProvider<Item> provider = new HibernateProvider<Item>("from Item order by id").setFetchStrategy(strategy);
+		Session sess = TestDatabase.getSessionFactory().openSession();
+		try {
+			long before = TestDatabase.getStatementCount();
+			Iterator<Item> it = provider.iterator(sess, 20, 50);
+			long id = 21;
+			while (it.hasNext()) {
+				Item item = it.next();
+				assertEquals(Long.valueOf(id), item.getId());
+				assertEquals(id % 10 == 1 ? null : String.format("item %04d", id), item.getName());
+				id++;
+			}
+			assertEquals(71, id);
+			assertEquals(TestDatabase.getStatementCount() - before, provider.getLastPageStatementCount());
+			return provider.getLastPageStatementCount();
+		} finally {
+			sess.close();
+		}
+	}
+
+	@Test
+	public void idPagingLoadsEachPageOfJoinedCriteriaWithTwoStatements() {
+		TestDatabase.createItems(30, 3);
+		HibernateProvider<Item> provider = new HibernateProvider<Item>(Item.class, new CriteriaBuilder() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public void build(Criteria criteria) {
+				criteria.createAlias("parts", "p", JoinType.LEFT_OUTER_JOIN);
+				criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+			}
+		}) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected SortParam<String> getPagingSort() {
+				return new SortParam<String>("name", true);
+			}
+			@Override
+			protected void buildFetch(Criteria criteria) {
+				criteria.setFetchMode("parts", FetchMode.JOIN);
+			}
+		}.setKeysetPaging(true).setIdPaging(true);
+		
+		// By name, then the items with null names by id
+		List<Long> expected = new ArrayList<Long>();
+		for (long id=1; id<=30; id++)
+			if (id % 10 != 1)
+				expected.add(id);
+		expected.addAll(Arrays.asList(1L, 11L, 21L));
+		
+		Session sess = TestDatabase.getSessionFactory().openSession();
+		try {
+			List<Long> ids = new ArrayList<Long>();
+			for (int first=0; first<30; first+=7) {
+				long before = TestDatabase.getStatementCount();
+				Iterator<Item> it = provider.iterator(sess, first, 7);
+				while (it.hasNext()) {
+					Item item = it.next();
+					assertTrue("Parts should be fetched with the page", Hibernate.isInitialized(item.getParts()));
+					assertEquals(3, item.getParts().size());
+					ids.add(item.getId());
+				}
+				assertEquals(2, provider.getLastPageStatementCount());
+				assertEquals(2, TestDatabase.getStatementCount() - before);
+			}
+			assertEquals(expected, ids);
+		} finally {
+			sess.close();
+		}
+	}
+
+	@Test
+	public void scrollReturnsEachRootOfJoinedCriteriaOnce() {
+		TestDatabase.createItems(30, 3);
+		HibernateProvider<Item> provider = new HibernateProvider<Item>(Item.class, new CriteriaBuilder() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public void build(Criteria criteria) {
+				criteria.createAlias("parts", "p", JoinType.LEFT_OUTER_JOIN);
+				criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+				// Repeats of an item are not adjacent
+				criteria.addOrder(Order.asc("p.id"));
+			}
+		});
+		Session sess = TestDatabase.getSessionFactory().openSession();
+		try {
+			List<Long> ids = new ArrayList<Long>();
+			Iterator<Item> it = provider.scroll(sess, 7);
+			while (it.hasNext())
+				ids.add(it.next().getId());
+			assertEquals(30, ids.size());
+			assertEquals(30, new HashSet<Long>(ids).size());
+		} finally {
+			sess.close();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.databinder.models.hib;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+/**
+ * Entity for tests against {@link TestDatabase}; each {@link Item} has any number of parts.
+ */
+@Entity
+public class Part {
+	
+	@Id
+	@GeneratedValue
+	private Long id;
+	
+	@ManyToOne
+	private Item item;
+	
+	public Part() {
+	}
+	
+	public Part(Item item) {
+		this.item = item;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Item getItem() {
+		return item;
+	}
+}
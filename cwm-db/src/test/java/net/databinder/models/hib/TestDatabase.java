@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.databinder.models.hib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.dialect.H2Dialect;
+
+/**
+ * In-memory H2 database holding {@link Item}s and {@link Part}s, with Hibernate statistics enabled
+ * so that tests can count the statements they issue.
+ */
+public class TestDatabase {
+	
+	private static SessionFactory factory;
+
+	public static synchronized SessionFactory getSessionFactory() {
+		if (factory == null) {
+			Configuration config = new Configuration()
+					.setProperty(Environment.DRIVER, "org.h2.Driver")
+					.setProperty(Environment.URL, "jdbc:h2:mem:cwm-db-test;DB_CLOSE_DELAY=-1")
+					.setProperty(Environment.USER, "sa")
+					.setProperty(Environment.DIALECT, H2Dialect.class.getName())
+					.setProperty(Environment.HBM2DDL_AUTO, "create")
+					.setProperty(Environment.GENERATE_STATISTICS, "true")
+					.addAnnotatedClass(Item.class)
+					.addAnnotatedClass(Part.class);
+			factory = config.buildSessionFactory(
+					new StandardServiceRegistryBuilder().applySettings(config.getProperties()).build());
+		}
+		return factory;
+	}
+	
+	/**
+	 * Replace the contents of the database with items numbered from 1, each with some parts.
+	 * Parts are numbered round-robin, so that ordering a join by part id interleaves the items.
+	 * Every tenth item, starting with the first, has a null name.
+	 * 
+	 * @param count number of items
+	 * @param partsPerItem number of parts for each item
+	 */
+	public static void createItems(int count, int partsPerItem) {
+		Session sess = getSessionFactory().openSession();
+		try {
+			Transaction tx = sess.beginTransaction();
+			sess.createQuery("delete from Part").executeUpdate();
+			sess.createQuery("delete from Item").executeUpdate();
+			List<Item> items = new ArrayList<Item>();
+			for (long id=1; id<=count; id++) {
+				Item item = new Item(id, id % 10 == 1 ? null : String.format("item %04d", id));
+				sess.save(item);
+				items.add(item);
+			}
+			// Parts of different items are interleaved in id order
+			for (int i=0; i<partsPerItem; i++)
+				for (Item item : items)
+					sess.save(new Part(item));
+			tx.commit();
+		} finally {
+			sess.close();
+		}
+	}
+	
+	/** @return number of statements prepared so far by the session factory */
+	public static long getStatementCount() {
+		return getSessionFactory().getStatistics().getPrepareStatementCount();
+	}
+}
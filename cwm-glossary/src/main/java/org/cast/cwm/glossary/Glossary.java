@@ -77,6 +77,13 @@ public class Glossary {
 	@Getter
 	private Map<String, String> mapIdToShortDef = new HashMap<String, String>();
 	
+	/**
+	 * Incremented every time an entry is added, so that cached structures
+	 * built from these maps can tell when they need to be rebuilt.
+	 */
+	@Getter
+	private int version = 0;
+	
 	final protected static LengthComparator glossTermComparator = new LengthComparator();
 	
 	/**
@@ -108,6 +115,7 @@ public class Glossary {
 		if (!mapFirstCharToIds.get(firstChar).contains(id))
 			mapFirstCharToIds.get(firstChar).add(id);
 		Collections.sort(mapFirstCharToIds.get(firstChar), new GlossaryIdentifierComparator());
+		version++;
 	}
 
 	/**
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.glossary;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Finds glossary terms in text, using an Aho-Corasick automaton built from all terms at once.
+ * This finds the first occurrence of every term with a single pass over the text, 
+ * rather than one regular expression search per term.
+ * <p>
+ * Matching follows the same rules as the regular expression <code>\bterm\b</code> with
+ * spaces in the term matching any run of whitespace: it is case-insensitive, 
+ * and a match must start and end at word boundaries.
+ */
+public class GlossaryMatcher {
+	
+	private final String[] terms;
+	
+	private final int[] termLengths;
+	
+	private final Node root = new Node();
+
+	/**
+	 * Build a matcher for the given terms.
+	 * @param terms glossary terms, as they appear in {@link Glossary#getMapTermToId()}
+	 */
+	public GlossaryMatcher (Collection<String> terms) {
+		this.terms = terms.toArray(new String[terms.size()]);
+		this.termLengths = new int[this.terms.length];
+		for (int i=0; i<this.terms.length; i++) {
+			String normalized = normalize(this.terms[i]);
+			termLengths[i] = normalized.length();
+			if (normalized.length() > 0)
+				add(normalized, i);
+		}
+		buildFailureLinks();
+	}
+	
+	/**
+	 * Find the first occurrence of each term in the given text.
+	 * 
+	 * @param text the text to search
+	 * @return map from each term found to its location, as an array of {start, end} offsets into the text.
+	 *   Terms appear in the order in which their first occurrences end.
+	 */
+	public Map<String, int[]> findFirstOccurrences (String text) {
+		Map<String, int[]> found = new LinkedHashMap<String, int[]>();
+		// Offsets in the original text of each character fed to the automaton
+		int[] offsets = new int[text.length()];
+		int fed = 0;
+		boolean prevSpace = false;
+		Node node = root;
+		for (int i=0; i<text.length(); i++) {
+			char c = text.charAt(i);
+			if (isSpace(c)) {
+				if (prevSpace)
+					continue; // runs of whitespace are treated as a single space
+				prevSpace = true;
+				c = ' ';
+			} else {
+				prevSpace = false;
+				c = Character.toLowerCase(c);
+			}
+			offsets[fed] = i;
+			
+			while (node != root && node.get(c) == null)
+				node = node.fail;
+			Node next = node.get(c);
+			node = (next == null) ? root : next;
+			
+			for (Node out = node.terms != null ? node : node.output; out != null; out = out.output) {
+				for (int t : out.terms) {
+					String term = terms[t];
+					if (found.containsKey(term))
+						continue;
+					int start = offsets[fed - termLengths[t] + 1];
+					int end = i + 1;
+					if (isBoundary(text, start) && isBoundary(text, end))
+						found.put(term, new int[] { start, end });
+				}
+			}
+			fed++;
+		}
+		return found;
+	}
+	
+	/**
+	 * Normalize a term the same way that text is normalized while matching.
+	 */
+	protected static String normalize (String term) {
+		StringBuilder sb = new StringBuilder(term.length());
+		boolean prevSpace = false;
+		for (int i=0; i<term.length(); i++) {
+			char c = term.charAt(i);
+			if (isSpace(c)) {
+				if (!prevSpace)
+					sb.append(' ');
+				prevSpace = true;
+			} else {
+				sb.append(Character.toLowerCase(c));
+				prevSpace = false;
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Same set of characters as \s in a regular expression.
+	 */
+	private static boolean isSpace (char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+	
+	/**
+	 * Same definition of a word character as \b in a regular expression.
+	 */
+	private static boolean isWordChar (char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+	
+	private static boolean isBoundary (String text, int index) {
+		boolean before = index > 0 && isWordChar(text.charAt(index-1));
+		boolean after = index < text.length() && isWordChar(text.charAt(index));
+		return before != after;
+	}
+	
+	private void add (String term, int index) {
+		Node node = root;
+		for (int i=0; i<term.length(); i++)
+			node = node.getOrCreate(term.charAt(i));
+		node.addTerm(index);
+	}
+	
+	/**
+	 * Breadth-first pass to set each node's failure link (longest proper suffix that is also
+	 * a prefix of some term) and output link (nearest node on the failure chain that ends a term).
+	 */
+	private void buildFailureLinks() {
+		Queue<Node> queue = new LinkedList<Node>();
+		for (int i=0; i<root.size; i++) {
+			root.children[i].fail = root;
+			queue.add(root.children[i]);
+		}
+		while (!queue.isEmpty()) {
+			Node node = queue.remove();
+			for (int i=0; i<node.size; i++) {
+				char c = node.keys[i];
+				Node child = node.children[i];
+				Node f = node.fail;
+				while (f != root && f.get(c) == null)
+					f = f.fail;
+				Node target = f.get(c);
+				child.fail = (target == null || target == child) ? root : target;
+				child.output = child.fail.terms != null ? child.fail : child.fail.output;
+				queue.add(child);
+			}
+		}
+	}
+	
+	/**
+	 * A state in the automaton.  Children are kept in a sorted array, since most nodes have very few.
+	 */
+	private static class Node {
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private int size = 0;
+		private Node fail;
+		private Node output;
+		private int[] terms;
+		
+		private Node get (char c) {
+			int i = Arrays.binarySearch(keys, 0, size, c);
+			return i >= 0 ? children[i] : null;
+		}
+		
+		private Node getOrCreate (char c) {
+			int i = Arrays.binarySearch(keys, 0, size, c);
+			if (i >= 0)
+				return children[i];
+			i = -(i+1);
+			if (size == keys.length) {
+				int capacity = Math.max(2, size*2);
+				keys = Arrays.copyOf(keys, capacity);
+				children = Arrays.copyOf(children, capacity);
+			}
+			System.arraycopy(keys, i, keys, i+1, size-i);
+			System.arraycopy(children, i, children, i+1, size-i);
+			Node child = new Node();
+			keys[i] = c;
+			children[i] = child;
+			size++;
+			return child;
+		}
+		
+		private void addTerm (int index) {
+			if (terms == null) {
+				terms = new int[] { index };
+			} else {
+				terms = Arrays.copyOf(terms, terms.length+1);
+				terms[terms.length-1] = index;
+			}
+		}
+	}
+
+}
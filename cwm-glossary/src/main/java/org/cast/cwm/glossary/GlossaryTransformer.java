@@ -28,11 +28,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.wicket.util.time.Time;
-import org.cast.cwm.xml.transform.IDOMTransformer;
+import org.cast.cwm.xml.transform.IDOMVisitable;
+import org.cast.cwm.xml.transform.IDOMVisitor;
 import org.cast.cwm.xml.transform.TransformParameters;
 import org.w3c.dom.Document;
 import org.w3c.dom.DocumentFragment;
@@ -59,7 +58,7 @@ import org.w3c.dom.Text;
  * @author jbrookover
  *
  */
-public class GlossaryTransformer implements IDOMTransformer, Serializable {
+public class GlossaryTransformer implements IDOMVisitable, Serializable {
 
 	private static final long serialVersionUID = 1L;
 
@@ -109,6 +108,14 @@ public class GlossaryTransformer implements IDOMTransformer, Serializable {
 	 */
 	protected Set<String> usedEntryIds;
 	
+	/**
+	 * Matcher built from the {@link #glossaryMap}; rebuilt only when the map changes.
+	 */
+	private transient GlossaryMatcher matcher;
+	private transient Map<String, String> matcherMap;
+	private transient int matcherSize;
+	private transient int matcherVersion;
+	
 	/**
 	 * Empty Constructor.  This is used by subclassses that do not use a
 	 * {@link Glossary} object.  In such cases, the subclasses should override
@@ -139,6 +146,40 @@ public class GlossaryTransformer implements IDOMTransformer, Serializable {
 		return elt;
 	}
 	
+	/**
+	 * Returns a visitor that links glossary words as part of a shared walk of the DOM.
+	 * Returns null, so that {@link #applyTransform(Element, TransformParameters)} is used instead, if there is
+	 * no glossary map or if this is a subclass that overrides the methods the walk would bypass.
+	 */
+	@Override
+	public IDOMVisitor newVisitor(Element root, TransformParameters params) {
+		if (glossaryMap == null || !isVisitable())
+			return null;
+		usedEntryIds = new TreeSet<String>();
+		return new GlossaryVisitor(root);
+	}
+	
+	/**
+	 * @return false if a subclass overrides applyTransform or glosswordsToLinks
+	 */
+	protected boolean isVisitable() {
+		for (Class<?> c = getClass(); c != GlossaryTransformer.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("applyTransform", Element.class, TransformParameters.class);
+				return false;
+			} catch (NoSuchMethodException e) {
+				// not overridden here
+			}
+			try {
+				c.getDeclaredMethod("glosswordsToLinks", Node.class);
+				return false;
+			} catch (NoSuchMethodException e) {
+				// not overridden here
+			}
+		}
+		return true;
+	}
+	
 	/**
 	 * This method returns the last modified time of the
 	 * underlying {@link Glossary} object.  Implementations
@@ -198,26 +239,19 @@ public class GlossaryTransformer implements IDOMTransformer, Serializable {
 			new HashMap<String, TreeSet<WordLocation>>();
 
 		// Search for any and all glossary words in the node
-		// Create a WordLocation object for each word.
+		// Create a WordLocation object for the first occurrence of each word.
 		// Note: These WordLocations can overlap (e.g. "mature ecosystem" will match both "mature ecosystem" and "ecosystem")
-		for(String glossword : glossaryMap.keySet()) {
-			// Build a regex to match glossary word or phrase
-			String regex = "\\b" + glossword.replace(" ", "\\s+") + "\\b"; 
-			// log.debug("Checking {} with pattern {}", parent, regex);
-			Pattern p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-			Matcher m = p.matcher(oriText); // get a matcher object
-			boolean found = m.find();
-			if(found) {
-				String entryId = glossaryMap.get(glossword);
-				WordLocation wordLoc = new WordLocation(glossword, m.start(), m.end());
-				if(entryIdWordLocations.containsKey(entryId)) {
-					entryIdWordLocations.get(entryId).add(wordLoc);
-				}
-				else {  //create new set of word locations for entryId
-					TreeSet<WordLocation> wordLocations = new TreeSet<WordLocation>(new WordLocComparator());
-					wordLocations.add(wordLoc);
-					entryIdWordLocations.put(entryId, wordLocations);
-				}
+		for(Map.Entry<String, int[]> match : getMatcher().findFirstOccurrences(oriText).entrySet()) {
+			String glossword = match.getKey();
+			String entryId = glossaryMap.get(glossword);
+			WordLocation wordLoc = new WordLocation(glossword, match.getValue()[0], match.getValue()[1]);
+			if(entryIdWordLocations.containsKey(entryId)) {
+				entryIdWordLocations.get(entryId).add(wordLoc);
+			}
+			else {  //create new set of word locations for entryId
+				TreeSet<WordLocation> wordLocations = new TreeSet<WordLocation>(new WordLocComparator());
+				wordLocations.add(wordLoc);
+				entryIdWordLocations.put(entryId, wordLocations);
 			}
 		}
 		
@@ -273,6 +307,23 @@ public class GlossaryTransformer implements IDOMTransformer, Serializable {
 		parent.replaceChild(frag, origTextNode);
 	}
 	
+	/**
+	 * Get the matcher for the current {@link #glossaryMap}.  The matcher is built once and reused
+	 * until the map is replaced, changes size, or the underlying {@link Glossary} has entries added.
+	 * 
+	 * @return the matcher
+	 */
+	protected synchronized GlossaryMatcher getMatcher() {
+		int version = (glossary == null ? 0 : glossary.getVersion());
+		if (matcher == null || matcherMap != glossaryMap || matcherSize != glossaryMap.size() || matcherVersion != version) {
+			matcher = new GlossaryMatcher(glossaryMap.keySet());
+			matcherMap = glossaryMap;
+			matcherSize = glossaryMap.size();
+			matcherVersion = version;
+		}
+		return matcher;
+	}
+	
 	/** 
 	 * Create and return a glossary link
 	 * This will be an element whose local name is "gl" and whose namespace is the same as the 
@@ -290,6 +341,45 @@ public class GlossaryTransformer implements IDOMTransformer, Serializable {
 		return linkElement;
 	}
 	
+	/**
+	 * Does the work of {@link GlossaryTransformer#glosswordsToLinks(Node)} during a walk of the DOM.
+	 */
+	protected class GlossaryVisitor implements IDOMVisitor {
+		
+		private final Element root;
+		
+		protected GlossaryVisitor(Element root) {
+			this.root = root;
+		}
+
+		@Override
+		public boolean enter(Element elt) {
+			return elt == root || (!glosswordBlockingElements.contains(elt.getLocalName())
+					&& !glosswordBlockingClasses.contains(elt.getAttributeNS(null, "class")));
+		}
+
+		@Override
+		public void text(Text text) {
+			Node parent = text.getParentNode();
+			if (glosswordCheckElements.contains(parent.getNodeName())) {
+				try {
+					replaceGlossWords(parent, text);
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+
+		@Override
+		public void leave(Element elt) {
+		}
+
+		@Override
+		public Element finish(Element root) {
+			return root;
+		}
+	}
+	
 	/** 
 	 * Stores beginning and ending character positions of a glossary word within a text block.
 	 */
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.glossary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.cast.cwm.xml.transform.DOMWalker;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+public class GlossaryMatcherTest {
+	
+	private static final Logger log = LoggerFactory.getLogger(GlossaryMatcherTest.class);
+	
+	@Test
+	public void findsFirstOccurrenceAtWordBoundaries() {
+		GlossaryMatcher matcher = new GlossaryMatcher(Arrays.asList("gas", "mature ecosystem", "ecosystem", "ion"));
+		Map<String,int[]> found = matcher.findFirstOccurrences("Gases and GAS; a Mature\n  ecosystem, an ecosystem.");
+		assertEquals(3, found.size());
+		assertArrayEquals(new int[] { 10, 13 }, found.get("gas"));
+		assertArrayEquals(new int[] { 17, 35 }, found.get("mature ecosystem"));
+		assertArrayEquals(new int[] { 26, 35 }, found.get("ecosystem"));
+		assertFalse(found.containsKey("ion"));
+	}
+	
+	@Test
+	public void agreesWithRegularExpressions() {
+		Random random = new Random(42);
+		List<String> terms = makeTerms(random, 2000);
+		GlossaryMatcher matcher = new GlossaryMatcher(terms);
+		for (int i=0; i<50; i++) {
+			String text = makeText(random, terms, 200);
+			Map<String,int[]> expected = findByRegex(terms, text);
+			Map<String,int[]> actual = matcher.findFirstOccurrences(text);
+			assertEquals(expected.keySet(), actual.keySet());
+			for (String term : expected.keySet())
+				assertArrayEquals(term, expected.get(term), actual.get(term));
+		}
+	}
+	
+	@Test
+	public void transformerLinksFirstOccurrenceOnce() throws Exception {
+		Map<String,String> map = new HashMap<String,String>();
+		map.put("gas", "Gas");
+		map.put("gaseous", "Gas");
+		map.put("mature ecosystem", "Ecosystem");
+		Document doc = parse("<level1><p>A gaseous gas and a mature   ecosystem.</p><p>More gas.</p></level1>");
+		new MapGlossaryTransformer(map).applyTransform(doc.getDocumentElement(), null);
+		NodeList links = doc.getElementsByTagName("gl");
+		assertEquals(2, links.getLength());
+		assertEquals("gaseous", links.item(0).getTextContent());
+		assertEquals("Gas", ((Element)links.item(0)).getAttribute("entryId"));
+		assertEquals("mature   ecosystem", links.item(1).getTextContent());
+		assertEquals("A gaseous gas and a mature   ecosystem.More gas.", doc.getDocumentElement().getTextContent());
+	}
+	
+	@Test
+	public void sharedWalkMatchesTransform() throws Exception {
+		Random random = new Random(13);
+		List<String> terms = makeTerms(random, 300);
+		Map<String,String> map = new HashMap<String,String>();
+		for (String term : terms)
+			map.put(term, "id-" + term.charAt(0));
+		StringBuilder book = new StringBuilder("<level1>");
+		for (int i=0; i<100; i++) {
+			book.append(i % 10 == 0 ? "<sidebar><p>" : "<p>").append(makeText(random, terms, 30))
+				.append("<em>").append(makeText(random, terms, 5)).append("</em>")
+				.append(i % 10 == 0 ? "</p></sidebar>" : "</p>");
+		}
+		book.append("</level1>");
+		
+		Document transformed = parse(book.toString());
+		new MapGlossaryTransformer(map).applyTransform(transformed.getDocumentElement(), null);
+		Document walked = parse(book.toString());
+		Element root = walked.getDocumentElement();
+		DOMWalker.walk(root, new MapGlossaryTransformer(map).newVisitor(root, null));
+		
+		assertTrue(transformed.getElementsByTagName("gl").getLength() > 0);
+		assertTrue(transformed.getDocumentElement().isEqualNode(walked.getDocumentElement()));
+	}
+	
+	@Test
+	public void benchmark() throws Exception {
+		Random random = new Random(7);
+		List<String> terms = makeTerms(random, 2000);
+		Map<String,String> map = new HashMap<String,String>();
+		for (String term : terms)
+			map.put(term, "id-" + term);
+		StringBuilder book = new StringBuilder("<level1>");
+		for (int i=0; i<500; i++)
+			book.append("<p>").append(makeText(random, terms, 60)).append("</p>");
+		book.append("</level1>");
+		
+		NodeList paragraphs = parse(book.toString()).getElementsByTagName("p");
+		long regexStart = System.nanoTime();
+		for (int i=0; i<paragraphs.getLength(); i++)
+			findByRegex(terms, paragraphs.item(i).getTextContent());
+		long regexTime = System.nanoTime() - regexStart;
+		
+		Document doc = parse(book.toString());
+		long matcherStart = System.nanoTime();
+		new MapGlossaryTransformer(map).applyTransform(doc.getDocumentElement(), null);
+		long matcherTime = System.nanoTime() - matcherStart;
+		
+		log.info("Glossary of {} terms over 500 paragraphs: regex search {}ms, transform with matcher {}ms", 
+				new Object[] { terms.size(), regexTime/1000000, matcherTime/1000000 });
+		assertTrue(doc.getElementsByTagName("gl").getLength() > 0);
+	}
+	
+	/**
+	 * The per-term search that GlossaryTransformer used before GlossaryMatcher.
+	 */
+	private Map<String,int[]> findByRegex (List<String> terms, String text) {
+		Map<String,int[]> found = new HashMap<String,int[]>();
+		for (String term : terms) {
+			Matcher m = Pattern.compile("\\b" + term.replace(" ", "\\s+") + "\\b", Pattern.CASE_INSENSITIVE).matcher(text);
+			if (m.find())
+				found.put(term, new int[] { m.start(), m.end() });
+		}
+		return found;
+	}
+	
+	private List<String> makeTerms (Random random, int count) {
+		List<String> terms = new ArrayList<String>();
+		while (terms.size() < count) {
+			String term = makeWord(random);
+			if (random.nextInt(4) == 0)
+				term = term + " " + makeWord(random);
+			if (!terms.contains(term))
+				terms.add(term);
+		}
+		return terms;
+	}
+	
+	private String makeText (Random random, List<String> terms, int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<words; i++) {
+			String word = random.nextInt(5) == 0 ? terms.get(random.nextInt(terms.size())) : makeWord(random);
+			if (random.nextInt(8) == 0)
+				word = word.toUpperCase();
+			sb.append(word).append(random.nextInt(10) == 0 ? ",\n  " : " ");
+		}
+		return sb.toString();
+	}
+	
+	private String makeWord (Random random) {
+		char[] word = new char[2 + random.nextInt(6)];
+		for (int i=0; i<word.length; i++)
+			word[i] = (char) ('a' + random.nextInt(6));
+		return new String(word);
+	}
+	
+	private Document parse (String xml) throws Exception {
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+	}
+	
+	private static class MapGlossaryTransformer extends GlossaryTransformer {
+		private static final long serialVersionUID = 1L;
+		
+		public MapGlossaryTransformer(Map<String,String> map) {
+			super();
+			this.glossaryMap = map;
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import java.io.UnsupportedEncodingException;
+
+import org.w3c.dom.Element;
+
+/**
+ * A {@link TransformResult} that does not retain the transformed DOM.  Instead it keeps the serialized
+ * markup as UTF-8 bytes, plus a {@link WicketNodeIndex} of the elements that will become Wicket components.
+ * This is typically a fraction of the memory used by a DOM, and is all that {@link org.cast.cwm.xml.component.XmlComponent}
+ * needs to render.
+ * 
+ * {@link #getElement()} still works, but re-parses the markup each time it is called.
+ * 
+ * @author borisgoldowsky
+ */
+public class CompactTransformResult extends TransformResult {
+
+	private static final String ENCODING = "UTF-8";
+	
+	private final byte[] markup;
+	
+	private final WicketNodeIndex wicketNodeIndex;
+
+	private static final long serialVersionUID = 1L;
+
+	public CompactTransformResult (Element element) {
+		this(element, null);
+	}
+	
+	/**
+	 * @param element the transformed DOM
+	 * @param wicketNodeIndex an index of the element that was already built, or null to build one now
+	 */
+	public CompactTransformResult (Element element, WicketNodeIndex wicketNodeIndex) {
+		super(null);
+		if (element != null) {
+			try {
+				markup = serialize(element).getBytes(ENCODING);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			this.wicketNodeIndex = (wicketNodeIndex != null) ? wicketNodeIndex : new WicketNodeIndex(element);
+		} else {
+			markup = null;
+			this.wicketNodeIndex = null;
+		}
+	}
+	
+	@Override
+	public Element getElement() {
+		if (markup == null)
+			return null;
+		return parse(getString());
+	}
+	
+	@Override
+	public String getString() {
+		if (markup == null)
+			return null;
+		try {
+			return new String(markup, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return markup == null;
+	}
+	
+	@Override
+	public WicketNodeIndex getWicketNodeIndex() {
+		return wicketNodeIndex;
+	}
+	
+}
@@ -20,12 +20,27 @@
 package org.cast.cwm.xml;
 
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.MemoryUnit;
+import net.sf.ehcache.config.PersistenceConfiguration;
+import net.sf.ehcache.config.PersistenceConfiguration.Strategy;
+import net.sf.ehcache.config.SizeOfPolicyConfiguration;
+import net.sf.ehcache.config.SizeOfPolicyConfiguration.MaxDepthExceededBehavior;
 
 import org.apache.wicket.util.time.Time;
 import org.cast.cwm.xml.transform.TransformParameters;
@@ -35,6 +50,11 @@ import org.slf4j.LoggerFactory;
 /**
  * A cache of TransformResult objects.
  * 
+ * Unless the application's ehcache configuration defines a cache with this class's name,
+ * the cache is created with a byte-based size limit: a hot tier of DOM results on the heap, 
+ * and a cold tier on local disk.  Only the serialized markup of each {@link TransformResult} 
+ * is written to disk; the DOM is re-parsed from it if a disk-tier entry is used again.
+ * 
  * @author borisgoldowsky
  *
  */
@@ -44,13 +64,44 @@ public class DomCache {
 	private static final Logger log = LoggerFactory.getLogger(DomCache.class);
 	private static CacheManager manager;
 	private static final String CACHE_NAME = DomCache.class.getName();
+	
+	public static final long DEFAULT_MAX_BYTES_HEAP = 64 * 1024 * 1024;
+
+	public static final long DEFAULT_MAX_BYTES_DISK = 512 * 1024 * 1024;
+	
+	/**
+	 * Limit on the number of objects ehcache will visit when measuring a single entry.
+	 * Transformed DOMs of large sections can easily contain more than ehcache's default of 1000.
+	 */
+	private static final int MAX_SIZEOF_DEPTH = 1000000;
 
 	public DomCache() {
+		this(DEFAULT_MAX_BYTES_HEAP, DEFAULT_MAX_BYTES_DISK);
+	}
+
+	/**
+	 * Construct a cache, creating it with the given limits if it is not already configured.
+	 * @param maxBytesHeap size limit of the in-memory tier
+	 * @param maxBytesDisk size limit of the disk tier; 0 for no disk tier
+	 */
+	public DomCache(long maxBytesHeap, long maxBytesDisk) {
 		manager = CacheManager.getInstance();
 		Cache cache = manager.getCache(CACHE_NAME);
         if (cache == null) {
-            log.warn("Could not find configuration [" + CACHE_NAME + "]; using defaults.");
-            manager.addCache(CACHE_NAME);
+            log.info("Could not find configuration [" + CACHE_NAME + "]; using {} bytes heap and {} bytes disk.", maxBytesHeap, maxBytesDisk);
+            CacheConfiguration config = new CacheConfiguration()
+            	.name(CACHE_NAME)
+            	.maxBytesLocalHeap(maxBytesHeap, MemoryUnit.BYTES)
+            	.sizeOfPolicy(new SizeOfPolicyConfiguration()
+            		.maxDepth(MAX_SIZEOF_DEPTH)
+            		.maxDepthExceededBehavior(MaxDepthExceededBehavior.CONTINUE));
+            if (maxBytesDisk > 0) {
+            	config.maxBytesLocalDisk(maxBytesDisk, MemoryUnit.BYTES)
+            		.persistence(new PersistenceConfiguration().strategy(Strategy.LOCALTEMPSWAP));
+            } else {
+            	config.persistence(new PersistenceConfiguration().strategy(Strategy.NONE));
+            }
+            manager.addCacheIfAbsent(new Cache(config));
         }
 	}
 	
@@ -58,19 +109,39 @@ public class DomCache {
 		return manager.getEhcache(CACHE_NAME);		
 	}
 	
+	/**
+	 * Construct the key under which the result of the given transform of the given XML is cached.
+	 * Callers that need to look up the same entry several times, or coordinate on it, can compute
+	 * this once and use the key-based methods.
+	 * 
+	 * The key is a {@link DOMKey} fingerprint if the model key and all parameter values are simple values,
+	 * otherwise an {@link ObjectKey} that compares the objects themselves.
+	 */
+	public Serializable getKey (ICacheableModel<? extends IXmlPointer> mXml, String transform, TransformParameters params) {
+		Serializable xmlKey = mXml.getKey();
+		if (DOMKey.canFingerprint(xmlKey, params))
+			return new DOMKey(xmlKey, transform, params);
+		return new ObjectKey(xmlKey, transform, params);
+	}
+
 	public Element get (ICacheableModel<? extends IXmlPointer> mXml, String transform, TransformParameters params) {
-		DOMKey key = new DOMKey(mXml.getKey(), transform, params);
-		Element cacheElt = getCache().get(key);
-		return cacheElt;
+		return get(getKey(mXml, transform, params));
+	}
+	
+	public Element get (Serializable key) {
+		return getCache().get(key);
 	}
 	
 	public void put (ICacheableModel<? extends IXmlPointer> mXml, String transform, TransformResult tr, TransformParameters params) {
-		DOMKey key = new DOMKey(mXml.getKey(), transform, params);
+		put(getKey(mXml, transform, params), tr);
+	}
+	
+	public void put (Serializable key, TransformResult tr) {
 		getCache().put(new Element(key, tr));
 	}
 	
 	public Time lastUpdated (ICacheableModel<? extends IXmlPointer> mXml, String transform, TransformParameters params) {
-		Element cacheElt = getCache().get(new DOMKey(mXml.getKey(), transform, params));
+		Element cacheElt = get(mXml, transform, params);
 		long updated = 0;
 		if (cacheElt != null) {
 			updated = cacheElt.getLastUpdateTime();
@@ -82,23 +153,126 @@ public class DomCache {
 
 	
 	/**
-	 * A key composed of the model (which uniquely points to some XML) and the registered name of the transformer.
-	 * TODO: may be better to use the hashCodes so the cache just has to do string comparison, not call our equals() method.
+	 * A key composed of the model (which uniquely points to some XML), the registered name of the transformer,
+	 * and any transform parameters.  These are reduced to a 128-bit fingerprint when the key is constructed,
+	 * so cache lookups only compare two longs rather than walking the parameter map.
+	 * 
+	 * Values are included by their class and String representation, so only values whose String form
+	 * determines their value are accepted; see {@link #canFingerprint(Serializable, TransformParameters)}.
+	 * 
 	 * @author borisgoldowsky
 	 *
 	 */
-	@Data
-	protected static class DOMKey implements Serializable {
-		private Serializable xmlKey;
-		private String transform;
-		private TransformParameters params;
+	@EqualsAndHashCode
+	public static class DOMKey implements Serializable {
+		@Getter private final long high;
+		@Getter private final long low;
 		
 		private static final long serialVersionUID = 1L;
 
 		public DOMKey (Serializable xmlKey, String transform, TransformParameters params) {
+			if (!canFingerprint(xmlKey, params))
+				throw new IllegalArgumentException("Model key and transform parameters must be simple values: " + xmlKey + ", " + params);
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			update(digest, xmlKey);
+			update(digest, transform);
+			if (params != null) {
+				// Sort so that the fingerprint does not depend on hash order
+				for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(params).entrySet()) {
+					update(digest, entry.getKey());
+					update(digest, entry.getValue());
+				}
+			}
+			byte[] hash = digest.digest();
+			long h = 0, l = 0;
+			for (int i=0; i<8; i++) {
+				h = (h << 8) | (hash[i] & 0xff);
+				l = (l << 8) | (hash[i+8] & 0xff);
+			}
+			this.high = h;
+			this.low = l;
+		}
+		
+		/**
+		 * Whether the given model key and parameters can be fingerprinted: each must be null or a String, Boolean, Character,
+		 * Enum or one of the JDK's numeric types, so that equal fingerprints mean equal values.
+		 */
+		public static boolean canFingerprint (Serializable xmlKey, TransformParameters params) {
+			if (!isSimpleValue(xmlKey))
+				return false;
+			if (params != null) {
+				for (Object value : params.values())
+					if (!isSimpleValue(value))
+						return false;
+			}
+			return true;
+		}
+		
+		private static boolean isSimpleValue (Object value) {
+			return value == null || value instanceof String || value instanceof Boolean || value instanceof Character
+					|| value instanceof Enum
+					|| value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+					|| value instanceof Double || value instanceof Float
+					|| value instanceof BigInteger || value instanceof BigDecimal;
+		}
+		
+		private static void update (MessageDigest digest, Object value) {
+			if (value == null) {
+				update(digest, (String) null);
+			} else if (value instanceof Enum) {
+				// Enum toString() may be overridden; the declaring class and name identify the constant
+				update(digest, ((Enum<?>) value).getDeclaringClass().getName());
+				update(digest, ((Enum<?>) value).name());
+			} else {
+				update(digest, value.getClass().getName());
+				update(digest, value.toString());
+			}
+		}
+		
+		private static void update (MessageDigest digest, String value) {
+			try {
+				if (value != null)
+					digest.update(value.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			// Separator, so that adjacent values can't run together
+			digest.update((byte) (value == null ? 1 : 0));
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("DOMKey[%016x%016x]", high, low);
+		}
+	}
+	
+	/**
+	 * A key for XML or transform parameters that can't be fingerprinted.  It holds the objects themselves
+	 * and relies on their equals() and hashCode().  The parameters are copied, so later changes to the
+	 * caller's map don't affect the key.
+	 */
+	@Data
+	protected static class ObjectKey implements Serializable {
+		private final Serializable xmlKey;
+		private final String transform;
+		private final TransformParameters params;
+		
+		private static final long serialVersionUID = 1L;
+
+		public ObjectKey (Serializable xmlKey, String transform, TransformParameters params) {
 			this.xmlKey = xmlKey;
 			this.transform = transform;
-			this.params = params;
+			if (params == null) {
+				this.params = null;
+			} else {
+				this.params = new TransformParameters();
+				this.params.putAll(params);
+			}
 		}
 	}
 	
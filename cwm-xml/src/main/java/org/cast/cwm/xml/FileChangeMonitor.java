@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches files for changes on a single background thread, and tells registered listeners about them.
+ * This keeps filesystem access off request threads: code that serves requests only needs to check
+ * a flag set by its listener.
+ * <p>
+ * Changes are found by comparing each file's modification time and length with those seen on the 
+ * previous pass, every {@link #getInterval()} milliseconds.
+ *
+ */
+public class FileChangeMonitor {
+	
+	private static final Logger log = LoggerFactory.getLogger(FileChangeMonitor.class);
+
+	/**
+	 * Milliseconds between checks.
+	 */
+	@Getter
+	private final long interval;
+
+	private final ConcurrentMap<File, WatchedFile> files = new ConcurrentHashMap<File, WatchedFile>();
+	
+	private final Thread thread;
+	
+	/**
+	 * Number of changes detected.
+	 */
+	@Getter
+	private final AtomicLong changeCount = new AtomicLong();
+	
+	public FileChangeMonitor(long interval) {
+		this.interval = interval;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(FileChangeMonitor.this.interval);
+						checkAll();
+					}
+				} catch (InterruptedException e) {
+					// stopping
+				}
+			}
+		}, "FileChangeMonitor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Start watching a file.  Changes after this call will be reported to the listener.
+	 * A file that does not exist yet may be watched; its creation is reported as a change.
+	 * 
+	 * @param file the file
+	 * @param listener will be called on the monitor's thread
+	 */
+	public synchronized void watch(File file, IFileChangeListener listener) {
+		file = file.getAbsoluteFile();
+		WatchedFile watched = files.get(file);
+		if (watched == null) {
+			watched = new WatchedFile(file);
+			files.put(file, watched);
+		}
+		watched.listeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Stop telling a listener about changes to a file.  The file is no longer checked once it has no listeners.
+	 * 
+	 * @param file the file
+	 * @param listener a listener passed to {@link #watch(File, IFileChangeListener)}
+	 */
+	public synchronized void unwatch(File file, IFileChangeListener listener) {
+		file = file.getAbsoluteFile();
+		WatchedFile watched = files.get(file);
+		if (watched != null) {
+			watched.listeners.remove(listener);
+			if (watched.listeners.isEmpty())
+				files.remove(file);
+		}
+	}
+	
+	/**
+	 * @return number of files being watched
+	 */
+	public int getSize() {
+		return files.size();
+	}
+
+	/**
+	 * Check all files once, and notify listeners of any that have changed.
+	 * This is normally only called by the monitor's thread.
+	 */
+	public void checkAll() {
+		for (WatchedFile watched : files.values()) {
+			if (watched.update()) {
+				changeCount.incrementAndGet();
+				log.debug("{} changed", watched.file);
+				for (IFileChangeListener listener : watched.listeners) {
+					try {
+						listener.fileChanged(watched.file);
+					} catch (RuntimeException e) {
+						log.error("Error notifying " + listener + " of change to " + watched.file, e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop watching.
+	 */
+	public void shutdown() {
+		thread.interrupt();
+	}
+	
+	/**
+	 * @return true until the monitor's thread has stopped
+	 */
+	public boolean isRunning() {
+		return thread.isAlive();
+	}
+	
+	private static class WatchedFile {
+		private final File file;
+		private final CopyOnWriteArrayList<IFileChangeListener> listeners = new CopyOnWriteArrayList<IFileChangeListener>();
+		private long lastModified;
+		private long length;
+		
+		private WatchedFile(File file) {
+			this.file = file;
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+		}
+		
+		/**
+		 * @return true if the file has changed since the last call
+		 */
+		private synchronized boolean update() {
+			long newLastModified = file.lastModified();
+			long newLength = file.length();
+			if (newLastModified == lastModified && newLength == length)
+				return false;
+			lastModified = newLastModified;
+			length = newLength;
+			return true;
+		}
+	}
+
+}
@@ -23,6 +23,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
 
@@ -36,6 +37,7 @@ import org.cast.cwm.IRelativeLinkSource;
 import org.cast.cwm.InputStreamNotFoundException;
 
 @ToString
+@EqualsAndHashCode
 public class FileXmlDocumentSource implements IInputStreamProvider, IRelativeLinkSource {
 
 	private static final long serialVersionUID = 1L;
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import java.io.File;
+
+/**
+ * Interface for classes that want to be told when a file watched by a {@link FileChangeMonitor} changes.
+ *
+ */
+public interface IFileChangeListener {
+	
+	/**
+	 * Called on the monitor's thread when the file is modified, replaced, or deleted.
+	 * Implementations should just record that something has changed, and return quickly.
+	 */
+	public void fileChanged(File file);
+
+}
@@ -19,28 +19,44 @@
  */
 package org.cast.cwm.xml;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import lombok.Getter;
+import lombok.Setter;
 
 import org.w3c.dom.Element;
 import org.w3c.dom.bootstrap.DOMImplementationRegistry;
 import org.w3c.dom.ls.DOMImplementationLS;
 import org.w3c.dom.ls.LSSerializer;
+import org.xml.sax.InputSource;
 
 /**
  * Holds both the Element and serialized String form of the result of a transformation.
  * The serialized string version will be created as necessary and then cached.
+ * When this object is itself serialized (for instance when it is moved to a disk cache), only the
+ * String form is written, and the Element is re-parsed from it when next needed.
  * 
  * @author borisgoldowsky
  */
 public class TransformResult implements Serializable {
 
-	@Getter
-	protected Element element;
+	protected transient Element element;
 	
 	protected String string;
 	
+	/**
+	 * A key that identifies this particular result: it is built from the content, transform and 
+	 * parameters, and the versions of the XML and transformer that produced it, so it only changes
+	 * when the result does.  Suitable for caching things derived from this result, such as parsed Wicket markup.
+	 */
+	@Getter @Setter
+	private String cacheKey;
+	
 	private static final long serialVersionUID = 1L;
 
 	public TransformResult (Element element) {
@@ -48,6 +64,29 @@ public class TransformResult implements Serializable {
 		this.string = null;
 	}
 	
+	public Element getElement() {
+		if (element == null && string != null) {
+			element = parse(string);
+		}
+		return element;
+	}
+	
+	/**
+	 * @return true if the transform produced no content.
+	 */
+	public boolean isEmpty() {
+		return element == null && string == null;
+	}
+	
+	/**
+	 * Return a precomputed index of the wicket:id elements in the result, if this
+	 * implementation keeps one.
+	 * @return the index, or null if callers should search the DOM instead.
+	 */
+	public WicketNodeIndex getWicketNodeIndex() {
+		return null;
+	}
+	
 	public String getString() {
 		if (string == null && element != null) {
 			string = serialize(element);
@@ -80,5 +119,21 @@ public class TransformResult implements Serializable {
 			return writer.writeToString(res);
 		}
 	}
+	
+	protected Element parse (String markup) {
+		try {
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware(true);
+			return dbf.newDocumentBuilder().parse(new InputSource(new StringReader(markup))).getDocumentElement();
+		} catch (Exception e) {
+			throw new RuntimeException("Could not re-parse cached transform result", e);
+		}
+	}
+	
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		if (string == null && element != null)
+			string = serialize(element); // make sure the String form exists, since the Element is not written
+		out.defaultWriteObject();
+	}
 
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.cast.cwm.xml.transform.IDOMVisitor;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+/**
+ * A compact, precomputed table of the elements in a transformed DOM that bear a wicket:id attribute.
+ * For each such element it records the element name, its attributes, and the position of its nearest
+ * wicket:id-bearing ancestor, in document order.  This is everything needed to build the Wicket
+ * component hierarchy for a piece of transformed markup without keeping the DOM itself.
+ * 
+ * @see CompactTransformResult
+ * 
+ * @author borisgoldowsky
+ */
+public class WicketNodeIndex implements Serializable {
+	
+	public static final String WICKET_NS = "http://wicket.apache.org";
+
+	private static final long serialVersionUID = 1L;
+	
+	private final Entry[] entries;
+	
+	/**
+	 * Build an index of all wicket:id elements in the given DOM, including the element itself.
+	 */
+	public WicketNodeIndex (Element root) {
+		List<Entry> list = new ArrayList<Entry>();
+		collect(root, -1, list);
+		entries = list.toArray(new Entry[list.size()]);
+	}
+	
+	private WicketNodeIndex (List<Entry> list) {
+		entries = list.toArray(new Entry[list.size()]);
+	}
+	
+	private static void collect (Element elt, int parent, List<Entry> list) {
+		if (elt.hasAttributeNS(WICKET_NS, "id")) {
+			list.add(new Entry(elt, parent));
+			parent = list.size()-1;
+		}
+		for (Node child = elt.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE)
+				collect((Element) child, parent, list);
+		}
+	}
+	
+	/**
+	 * @return the number of wicket:id elements
+	 */
+	public int size() {
+		return entries.length;
+	}
+	
+	/**
+	 * @param i position in document order
+	 * @return the wicket:id of the ith element
+	 */
+	public String getWicketId (int i) {
+		return entries[i].wicketId;
+	}
+	
+	/**
+	 * @param i position in document order
+	 * @return the position of the nearest ancestor that has a wicket:id, or -1 if none.
+	 */
+	public int getParent (int i) {
+		return entries[i].parent;
+	}
+	
+	/**
+	 * Create a skeleton DOM containing only the wicket:id elements, with their attributes
+	 * but without any other content, nested as they were in the original DOM.
+	 * 
+	 * @return array of skeleton elements, in the same order as this index.
+	 */
+	public Element[] toElements() {
+		Document doc;
+		try {
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware(true);
+			doc = dbf.newDocumentBuilder().newDocument();
+		} catch (ParserConfigurationException e) {
+			throw new RuntimeException(e);
+		}
+		Element root = doc.createElementNS(null, "skeleton");
+		doc.appendChild(root);
+		Element[] elements = new Element[entries.length];
+		for (int i=0; i<entries.length; i++) {
+			elements[i] = entries[i].toElement(doc);
+			Element parent = entries[i].parent < 0 ? root : elements[entries[i].parent];
+			parent.appendChild(elements[i]);
+		}
+		return elements;
+	}
+	
+	/**
+	 * Builds an index as part of a walk of the DOM, so that one can be made without a separate pass.
+	 * Entries are made when the walk finishes, so they reflect changes made by earlier visitors.
+	 */
+	public static class Collector implements IDOMVisitor {
+		
+		private Element root;
+		private final List<Element> elements = new ArrayList<Element>();
+		private final List<Integer> parents = new ArrayList<Integer>();
+		private final Deque<Element> open = new ArrayDeque<Element>();
+		private final Deque<Integer> openPositions = new ArrayDeque<Integer>();
+		private WicketNodeIndex index;
+
+		@Override
+		public boolean enter(Element elt) {
+			if (root == null)
+				root = elt;
+			if (elt.hasAttributeNS(WICKET_NS, "id")) {
+				parents.add(openPositions.isEmpty() ? -1 : openPositions.peek());
+				elements.add(elt);
+				open.push(elt);
+				openPositions.push(elements.size()-1);
+			}
+			return true;
+		}
+
+		@Override
+		public void text(Text text) {
+		}
+
+		@Override
+		public void leave(Element elt) {
+			if (elt == open.peek()) {
+				open.pop();
+				openPositions.pop();
+			}
+		}
+
+		@Override
+		public Element finish(Element result) {
+			if (result == root) {
+				List<Entry> list = new ArrayList<Entry>(elements.size());
+				for (int i=0; i<elements.size(); i++)
+					list.add(new Entry(elements.get(i), parents.get(i)));
+				index = new WicketNodeIndex(list);
+			}
+			return result;
+		}
+		
+		/**
+		 * @return the index, or null if the walk did not complete or another visitor replaced the root
+		 */
+		public WicketNodeIndex getIndex() {
+			return index;
+		}
+	}
+	
+	private static class Entry implements Serializable {
+		
+		private final String wicketId;
+		private final int parent;
+		private final String namespaceURI;
+		private final String qualifiedName;
+		
+		/**
+		 * Attributes as consecutive (namespace URI, qualified name, value) triples.
+		 */
+		private final String[] attributes;
+
+		private static final long serialVersionUID = 1L;
+		
+		private Entry (Element elt, int parent) {
+			this.wicketId = elt.getAttributeNS(WICKET_NS, "id");
+			this.parent = parent;
+			this.namespaceURI = elt.getNamespaceURI();
+			this.qualifiedName = elt.getNodeName();
+			NamedNodeMap atts = elt.getAttributes();
+			this.attributes = new String[3*atts.getLength()];
+			for (int i=0; i<atts.getLength(); i++) {
+				Attr att = (Attr) atts.item(i);
+				attributes[3*i] = att.getNamespaceURI();
+				attributes[3*i+1] = att.getName();
+				attributes[3*i+2] = att.getValue();
+			}
+		}
+		
+		private Element toElement (Document doc) {
+			Element elt = doc.createElementNS(namespaceURI, qualifiedName);
+			for (int i=0; i<attributes.length; i+=3)
+				elt.setAttributeNS(attributes[i], attributes[i+1], attributes[i+2]);
+			return elt;
+		}
+	}
+
+}
@@ -19,15 +19,28 @@
  */
 package org.cast.cwm.xml;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lombok.Getter;
 import lombok.Setter;
 
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
 import org.apache.wicket.injection.Injector;
 import org.apache.wicket.util.time.Time;
 import org.cast.cwm.IInputStreamProvider;
@@ -44,6 +57,10 @@ import com.google.inject.Inject;
  * A class that parses and holds the high level structure of an XML document.  Also,
  * maintains a static map of all parsed documents.
  * 
+ * The parsed structure is kept in an immutable {@link Snapshot}.  When the source changes,
+ * a new snapshot is built on a background thread and then replaces the old one, so readers
+ * never wait for parsing; they see the previous version until the new one is complete.
+ * 
  * @author bgoldowsky
  *
  */
@@ -52,6 +69,11 @@ public class XmlDocument implements Serializable, Comparable<XmlDocument> {
 	private static final long serialVersionUID = 1L;
 	private static final Logger log = LoggerFactory.getLogger(XmlDocument.class);
 	
+	/**
+	 * Single background thread shared by all documents for reloading.
+	 */
+	private static ExecutorService reloadExecutor;
+	
 	/**
 	 * A set of observers that are watching this document for changes.
 	 */
@@ -59,17 +81,46 @@ public class XmlDocument implements Serializable, Comparable<XmlDocument> {
 	
 	@Getter @Setter protected String name;
 	@Getter @Setter protected int sortOrder = -1; // The order of this document within the curriculum
-	@Getter protected XmlSection tocSection;
-	@Getter protected String documentNamespace;
 
 	@Getter protected IInputStreamProvider xmlFile;
 	protected XmlParser parser;
-	protected Time lastModified;
 	protected Time lastCheckedTime;
 	
-	protected Map<String,XmlSection> idMap;
-	protected Map<String,XmlSection> longDescMap;
-	protected Map<Serializable, List<XmlSection>> labelMap;
+	/**
+	 * The current version of the parsed document.
+	 */
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+	
+	/**
+	 * Incremented whenever any document's snapshot is replaced, so that indexes built over
+	 * several documents can tell in constant time whether any of them has been reloaded.
+	 */
+	private static final AtomicLong snapshotVersion = new AtomicLong();
+	
+	/**
+	 * Modification time of the last version of the source that was read, whether or not it could be parsed.
+	 */
+	private volatile Time lastAttempted;
+	
+	/**
+	 * Held while reading the source, since the parser is not thread-safe.  Readers never take it.
+	 */
+	private final ReentrantLock reloadLock = new ReentrantLock();
+	
+	/**
+	 * True while a background reload is queued or running.
+	 */
+	private final AtomicBoolean reloadPending = new AtomicBoolean(false);
+	
+	/**
+	 * True if the source is watched by the XmlService, so it need not be checked periodically.
+	 */
+	protected boolean watched;
+	
+	/**
+	 * Set when the XmlService reports that the source has changed.
+	 */
+	protected final AtomicBoolean changed = new AtomicBoolean(false);
 	
 	@Inject
 	private IXmlService xmlService;
@@ -81,40 +132,47 @@ public class XmlDocument implements Serializable, Comparable<XmlDocument> {
 		this.xmlFile = xmlFile;
 		this.parser = parser;
 		this.observers = observers;
+		// Watch first, so that changes made while the document is being read are not missed
+		this.watched = xmlService.watchForChanges(xmlFile, new IFileChangeListener() {
+			@Override
+			public void fileChanged(File file) {
+				changed.set(true);
+			}
+		});
 		updateIfModified();
 	}
 
 	/**
-	 * Read the XML document associated with this object and set up all associated sections, ID cache, etc.
+	 * Read the XML document associated with this object and build a new snapshot of its sections, ID cache, etc.
+	 * @param lastModified modification time of the source being read
 	 */
-	private void readXML()  {
+	private Snapshot readXML(Time lastModified)  {
 		log.debug("Reading XML document for {}", name);
-		idMap = new HashMap<String, XmlSection>();
+		Map<String,XmlSection> idMap = new HashMap<String, XmlSection>();
 		parser.setIdMap(idMap);
 		parser.setDoc(this);
+		XmlSection tocSection;
 		try {
-			this.tocSection = parser.parse(this.xmlFile.getInputStream());
+			tocSection = parser.parse(this.xmlFile.getInputStream());
 		} catch (InputStreamNotFoundException e) {
 			throw new RuntimeException(e);
 		}
+		XmlSectionNavigation.build(tocSection);
 		// FIXME put LD processing back in?
-		// this.longDescMap = parser.generateLongDescriptions(this.tocSection);
-		this.documentNamespace = tocSection.getElement().getNamespaceURI();
-		
-		if (observers != null)
-			for (IDocumentObserver obs : observers)
-				obs.xmlUpdated(this);
+		// longDescMap = parser.generateLongDescriptions(tocSection);
 		
-		labelMap = new HashMap<Serializable, List<XmlSection>>();
-		parseLabels(this.tocSection);
+		Map<Serializable, List<XmlSection>> labelMap = new HashMap<Serializable, List<XmlSection>>();
+		parseLabels(tocSection, labelMap);
+		return new Snapshot(tocSection, idMap, labelMap, null, lastModified);
 	}
 	
 	/**
-	 * Adds sections to {@link #labelMap} based on {@link XmlSection#getLabels()}.
+	 * Adds sections to a label map based on {@link XmlSection#getLabels()}.
 	 * 
 	 * @param sec the root section that will be searched
+	 * @param labelMap the map to add to
 	 */
-	protected void parseLabels(XmlSection sec) {
+	protected void parseLabels(XmlSection sec, Map<Serializable, List<XmlSection>> labelMap) {
 		
 		for(Serializable label : sec.getLabels()) {
 			if (labelMap.get(label) == null)
@@ -123,67 +181,174 @@ public class XmlDocument implements Serializable, Comparable<XmlDocument> {
 		}
 		if (sec.getChildren() != null) {
 			for (XmlSection child : sec.getChildren()) {
-				parseLabels(child);
+				parseLabels(child, labelMap);
 			}
 		}
 	}
 
 	/**
-	 * Check and return the last modified time, updating the in-memory data if file has been modified.
-	 * To avoid constantly reading the disk, this will only actually check based on XmlService's updateCheckInterval,
-	 * otherwise returning the remembered value.
+	 * Check and return the last modified time of the current version of the document.
+	 * If the file has been modified, a reload is started in the background and the time
+	 * of the current version is returned until it is complete.
+	 * To avoid constantly reading the disk, this will only actually check when the XmlService has reported
+	 * a change, or for sources that are not watched, based on XmlService's updateCheckInterval.
 	 */
 	public Time getLastModified() {
         doUpdateCheck();
-		return lastModified;
+		Snapshot current = snapshot.get();
+		return current == null ? null : current.lastModified;
 	}
 
     /**
      * Do a routine check to see if document needs updating.
-     * This method can be called frequently; it will do nothing if the update-check interval
+     * This method can be called frequently; if the source is watched, it will do nothing unless a change 
+     * has been reported.  Otherwise it will do nothing if the update-check interval
      * has not elapsed since the last check.  If we haven't checked recently, then the
-     * underlying file will be checked to see if it has changed, and if so, this XmlDocument object
-     * will be updated.
+     * underlying file will be checked on a background thread to see if it has changed, and if so, 
+     * this XmlDocument object will be updated.
      *
-     * @return true if an update was actually made.
+     * @return true if a background check was started.
      */
     public boolean doUpdateCheck() {
+        if (watched)
+            return changed.get() && scheduleReload();
         // Only actually look at the disk to find last-modified time every 10 seconds or so (whatever value is set in XmlService)
-        if (lastCheckedTime == null || lastCheckedTime.elapsedSince().seconds() > xmlService.getUpdateCheckInterval())
-            return updateIfModified();
+        if (lastCheckedTime == null || lastCheckedTime.elapsedSince().seconds() > xmlService.getUpdateCheckInterval()) {
+            lastCheckedTime = Time.now();
+            return scheduleReload();
+        }
         return false;
     }
 
+	/**
+	 * Queue a call to {@link #updateIfModified()} on the background thread, unless one is already pending.
+	 * @return true if the call was queued
+	 */
+	protected boolean scheduleReload() {
+		if (!reloadPending.compareAndSet(false, true))
+			return false;
+		final Application application = Application.exists() ? Application.get() : null;
+		try {
+			getReloadExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					// Observers and parsers may expect to find the application
+					ThreadContext.setApplication(application);
+					try {
+						changed.set(false);
+						updateIfModified();
+					} catch (RuntimeException e) {
+						log.error("Could not reload " + name, e);
+					} finally {
+						reloadPending.set(false);
+						ThreadContext.detach();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			reloadPending.set(false);
+			return false;
+		}
+	}
+	
+	private static synchronized ExecutorService getReloadExecutor() {
+		if (reloadExecutor == null) {
+			reloadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "XmlDocument-reload");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return reloadExecutor;
+	}
+	
+	/**
+	 * Stop the background reload thread, abandoning any queued reloads.
+	 * It will be restarted if another reload is requested.
+	 * Called by {@link org.cast.cwm.xml.service.XmlService#shutdown()}.
+	 */
+	public static synchronized void shutdownReloads() {
+		if (reloadExecutor != null) {
+			reloadExecutor.shutdownNow();
+			reloadExecutor = null;
+		}
+	}
+
 	/**
 	 * Check the disk (or DAV server, etc) to see if underlying file has been modified.
-	 * If so, update the XMLDocument.
+	 * If so, read it and replace the current version of the document, then notify observers.
+	 * This is done on the calling thread; normally it is called from the background thread 
+	 * by {@link #doUpdateCheck()}.
      * @return true if the document was updated.
 	 */
-	synchronized protected boolean updateIfModified() {
-		log.trace("checking last modified time of {}", this);
-		lastCheckedTime = Time.now();
-		Time newLM = xmlFile.lastModifiedTime();
-		if (lastModified==null || newLM.after(lastModified)) {
-			lastModified = newLM;
-			try {
-				readXML();
-                return true;
-			} catch (Exception e) {
-				// Log error, but allow program to go ahead with previously cached doc.
-				e.printStackTrace();
+	protected boolean updateIfModified() {
+		reloadLock.lock();
+		try {
+			log.trace("checking last modified time of {}", this);
+			lastCheckedTime = Time.now();
+			Time newLM = xmlFile.lastModifiedTime();
+			if (lastAttempted == null || newLM.after(lastAttempted)) {
+				lastAttempted = newLM;
+				try {
+					snapshot.set(readXML(newLM));
+					snapshotVersion.incrementAndGet();
+				} catch (Exception e) {
+					// Log error, but allow program to go ahead with previously cached doc.
+					log.error("Could not read XML document " + name + "; continuing with previous version", e);
+					return false;
+				}
+				if (observers != null)
+					for (IDocumentObserver obs : observers)
+						obs.xmlUpdated(this);
+				return true;
 			}
+	        return false;
+		} finally {
+			reloadLock.unlock();
 		}
-        return false;
+	}
+	
+	/**
+	 * @return the current version of the parsed document
+	 */
+	protected Snapshot getSnapshot() {
+		return snapshot.get();
+	}
+	
+	/**
+	 * @return a number that changes whenever the snapshot of any document is replaced.
+	 * Read it before reading the snapshots it should cover.
+	 */
+	protected static long getSnapshotVersion() {
+		return snapshotVersion.get();
+	}
+	
+	/**
+	 * @return the root section, or null if the document has never been read successfully
+	 */
+	public XmlSection getTocSection() {
+		Snapshot current = snapshot.get();
+		return current == null ? null : current.tocSection;
+	}
+	
+	public String getDocumentNamespace() {
+		Snapshot current = snapshot.get();
+		return current == null ? null : current.documentNamespace;
 	}
 	
 	/**
 	 * Get an XmlSection from this book by its id.
 	 * 
 	 * @param id
-	 * @return
+	 * @return the section, or null if not found
 	 */
 	public XmlSection getById(String id) {
-		return idMap.get(id);
+		Snapshot current = snapshot.get();
+		return current == null ? null : current.idMap.get(id);
 	}
 	
 	/**
@@ -195,12 +360,13 @@ public class XmlDocument implements Serializable, Comparable<XmlDocument> {
 	 * @return the matching XmlSection, or null if not found.
 	 */
 	public XmlSection getByLabel(Serializable label, Integer num) {
-		if (labelMap == null || num < 1)
+		Snapshot current = snapshot.get();
+		if (current == null || num < 1)
 			return null;
-		List<XmlSection> labels = labelMap.get(label);
+		List<XmlSection> labels = current.labelMap.get(label);
 		if (labels == null || num > labels.size())
 			return null;
-		return labelMap.get(label).get(num-1);
+		return labels.get(num-1);
 	}
 	
 	/**
@@ -209,10 +375,11 @@ public class XmlDocument implements Serializable, Comparable<XmlDocument> {
 	 * @return number of elements; 0 if no elements have that label.
 	 */
 	public int getLabelCount(Serializable label) {
-		if (labelMap == null || labelMap.get(label) == null)
+		Snapshot current = snapshot.get();
+		if (current == null || current.labelMap.get(label) == null)
 			return 0;
 		else
-			return labelMap.get(label).size();
+			return current.labelMap.get(label).size();
 	}
 	
 	/**
@@ -224,23 +391,32 @@ public class XmlDocument implements Serializable, Comparable<XmlDocument> {
 	 * @return the index, or -1 if the element was not found or does not itself have the given label.
 	 */
 	public int getLabelIndex(Serializable label, XmlSection sec) {
-		if (labelMap == null || labelMap.get(label) == null || !labelMap.get(label).contains(sec))
+		Snapshot current = snapshot.get();
+		if (current == null || sec == null || !this.equals(sec.getXmlDocument()))
+			return -1;
+		Map<String,Integer> positions = current.labelPositions.get(label);
+		if (positions == null)
 			return -1;
-		int position = labelMap.get(label).indexOf(sec);
-		return (position==-1) ? -1 : position+1;
+		Integer position = positions.get(sec.getId());
+		return (position==null) ? -1 : position+1;
 	}
 	
 	public Document getDocument() {
-		return tocSection.getElement().getOwnerDocument();
+		XmlSection toc = getTocSection();
+		return toc == null ? null : toc.getElement().getOwnerDocument();
 	}
 	
 	public XmlSection getLongDescSection (String imageId) {
-		return longDescMap.get(imageId);
+		Snapshot current = snapshot.get();
+		Map<String, XmlSection> longDescMap = (current == null) ? null : current.longDescMap;
+		return longDescMap == null ? null : longDescMap.get(imageId);
 	}
 	
 	public XmlDocument addObserver(IDocumentObserver observer, boolean callImmediately) {
-		if (observers == null)
-			 observers = new ArrayList<IDocumentObserver>();
+		// Observers are called from the reload thread, so the list must be safe to add to while iterating
+		if (!(observers instanceof CopyOnWriteArrayList))
+			observers = (observers == null) ? new CopyOnWriteArrayList<IDocumentObserver>()
+					: new CopyOnWriteArrayList<IDocumentObserver>(observers);
 		this.observers.add(observer);
 		if (callImmediately)
 			observer.xmlUpdated(this);
@@ -257,5 +433,44 @@ public class XmlDocument implements Serializable, Comparable<XmlDocument> {
 	public int compareTo(XmlDocument other) {
 		return this.getSortOrder() - other.getSortOrder();
 	}
+	
+	/**
+	 * One version of the parsed document.  Never modified once it is created.
+	 */
+	protected static class Snapshot implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+
+		protected final XmlSection tocSection;
+		protected final String documentNamespace;
+		protected final Map<String,XmlSection> idMap;
+		protected final Map<Serializable, List<XmlSection>> labelMap;
+		/** Label -> (section ID -> 0-based position in labelMap's list) */
+		protected final Map<Serializable, Map<String,Integer>> labelPositions;
+		protected final Map<String,XmlSection> longDescMap;
+		
+		/** Modification time of the source this was read from */
+		protected final Time lastModified;
+		
+		protected Snapshot(XmlSection tocSection, Map<String,XmlSection> idMap, Map<Serializable, List<XmlSection>> labelMap, 
+				Map<String,XmlSection> longDescMap, Time lastModified) {
+			this.tocSection = tocSection;
+			this.documentNamespace = tocSection.getElement().getNamespaceURI();
+			this.idMap = Collections.unmodifiableMap(idMap);
+			Map<Serializable, List<XmlSection>> labels = new HashMap<Serializable, List<XmlSection>>();
+			Map<Serializable, Map<String,Integer>> positions = new HashMap<Serializable, Map<String,Integer>>();
+			for (Map.Entry<Serializable, List<XmlSection>> e : labelMap.entrySet()) {
+				labels.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+				Map<String,Integer> byId = new HashMap<String,Integer>();
+				for (int i=e.getValue().size()-1; i>=0; i--)
+					byId.put(e.getValue().get(i).getId(), i); // first occurrence wins, as with indexOf
+				positions.put(e.getKey(), byId);
+			}
+			this.labelMap = Collections.unmodifiableMap(labels);
+			this.labelPositions = Collections.unmodifiableMap(positions);
+			this.longDescMap = longDescMap == null ? null : Collections.unmodifiableMap(longDescMap);
+			this.lastModified = lastModified;
+		}
+	}
 
 }
@@ -21,24 +21,35 @@ package org.cast.cwm.xml;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import lombok.Getter;
-import lombok.Setter;
 
 /**
  * An ordered list of XmlDocument objects.
  * This class supports some convenient operations over a whole set of XML documents,
  * such as locating pages (or in general, Label counts) that are numbered sequentially
  * over several files.
+ * 
+ * Label lookups use a combined index of label counts over all the documents.  The index records
+ * the document version counter when it was built, and is rebuilt when any document is reloaded.
+ * Documents should be added with {@link #add(XmlDocument...)} or {@link #setDocumentList(List)}
+ * rather than by changing the list returned by {@link #getDocumentList()}.
  *  
  * @author borisgoldowsky
  *
  */
-public class XmlDocumentList implements Iterable<XmlDocument> {
+public class XmlDocumentList implements Iterable<XmlDocument>, Serializable {
 	
-	@Getter @Setter protected List<XmlDocument> documentList;
+	private static final long serialVersionUID = 1L;
+
+	@Getter protected List<XmlDocument> documentList;
+	
+	private transient volatile LabelIndex labelIndex;
 	
 	public XmlDocumentList () {
 		documentList = new ArrayList<XmlDocument>();
@@ -47,9 +58,15 @@ public class XmlDocumentList implements Iterable<XmlDocument> {
 	public XmlDocumentList add (XmlDocument... documents) {
 		for (XmlDocument doc : documents)
 			documentList.add(doc);
+		labelIndex = null;
 		return this;
 	}
 	
+	public void setDocumentList(List<XmlDocument> documentList) {
+		this.documentList = documentList;
+		labelIndex = null;
+	}
+	
 	/**
 	 * Get the XmlSection for the Nth label from this ordered list of XmlDocuments.
 	 * As with {@link XmlDocument#getByLabel(Serializable, Integer)}, 
@@ -60,13 +77,22 @@ public class XmlDocumentList implements Iterable<XmlDocument> {
 	 * @return the XmlSection, or null.
 	 */
 	public XmlSection getByLabel(Serializable label, int num) {
-		for (XmlDocument doc : documentList) {
-			if (num > doc.getLabelCount(label))
-				num -= doc.getLabelCount(label);
+		LabelIndex index = getLabelIndex();
+		int[] offsets = index.getOffsets(label);
+		if (num < 1 || num > offsets[offsets.length-1])
+			return null;
+		// Find the document where offsets[low] < num <= offsets[low+1]
+		int low = 0;
+		int high = offsets.length-1;
+		while (high - low > 1) {
+			int mid = (low + high) >>> 1;
+			if (offsets[mid] < num)
+				low = mid;
 			else
-				return doc.getByLabel(label, num);
+				high = mid;
 		}
-		return null;
+		List<XmlSection> sections = index.snapshots[low].labelMap.get(label);
+		return sections.get(num - offsets[low] - 1);
 	}
 	
 	/**
@@ -82,12 +108,10 @@ public class XmlDocumentList implements Iterable<XmlDocument> {
 		if (count == -1)
 			return -1;  // sec wasn't found at all, or doesn't have the given label.
 		// Add to count the number of labels in each preceding document.
-		for (XmlDocument doc : documentList) {
-			if (doc == sec.getXmlDocument())
-				break;
-			count += doc.getLabelCount(label);
-		}
-		return count;
+		LabelIndex index = getLabelIndex();
+		Integer position = index.positions.get(sec.getXmlDocument());
+		int[] offsets = index.getOffsets(label);
+		return count + offsets[position == null ? offsets.length-1 : position];
 	}
 	
 	/**
@@ -96,15 +120,80 @@ public class XmlDocumentList implements Iterable<XmlDocument> {
 	 * @return total count.
 	 */
 	public int getLabelCount(Serializable label) {
-		int count = 0;
-		for (XmlDocument doc : documentList)
-			count += doc.getLabelCount(label);
-		return count;
+		int[] offsets = getLabelIndex().getOffsets(label);
+		return offsets[offsets.length-1];
+	}
+	
+	/**
+	 * Return the current label index, building a new one if documents have been added or reloaded.
+	 */
+	protected LabelIndex getLabelIndex() {
+		LabelIndex index = labelIndex;
+		if (index != null && index.isCurrent(documentList))
+			return index;
+		synchronized (this) {
+			index = labelIndex;
+			if (index != null && index.isCurrent(documentList))
+				return index;
+			index = new LabelIndex(documentList.toArray(new XmlDocument[0]));
+			labelIndex = index;
+			return index;
+		}
 	}
 	
 	@Override
 	public Iterator<XmlDocument> iterator() {
 		return documentList.iterator();
 	}
+	
+	/**
+	 * Label counts across the documents of the list, for the versions of the documents that were
+	 * current when it was created.
+	 * For each label, offsets[i] is the number of sections with that label in the documents before
+	 * document i, and the last element is the total.
+	 */
+	protected static class LabelIndex {
+		
+		protected final XmlDocument[] documents;
+		
+		/** Value of {@link XmlDocument#getSnapshotVersion()} before the snapshots were read */
+		protected final long version;
+		
+		protected final XmlDocument.Snapshot[] snapshots;
+		
+		protected final Map<XmlDocument, Integer> positions = new IdentityHashMap<XmlDocument, Integer>();
+		
+		private final Map<Serializable, int[]> offsets = new ConcurrentHashMap<Serializable, int[]>();
+		
+		protected LabelIndex(XmlDocument[] documents) {
+			this.documents = documents;
+			this.version = XmlDocument.getSnapshotVersion();
+			this.snapshots = new XmlDocument.Snapshot[documents.length];
+			for (int i=documents.length-1; i>=0; i--) {
+				snapshots[i] = documents[i].getSnapshot();
+				positions.put(documents[i], i); // first occurrence wins
+			}
+		}
+		
+		/**
+		 * @return true if the list still has as many documents, and no document has been reloaded since this index was built
+		 */
+		protected boolean isCurrent(List<XmlDocument> documentList) {
+			return documentList.size() == documents.length && XmlDocument.getSnapshotVersion() == version;
+		}
+		
+		protected int[] getOffsets(Serializable label) {
+			int[] result = offsets.get(label);
+			if (result == null) {
+				result = new int[documents.length+1];
+				for (int i=0; i<documents.length; i++) {
+					List<XmlSection> sections = (snapshots[i] == null) ? null : snapshots[i].labelMap.get(label);
+					result[i+1] = result[i] + (sections == null ? 0 : sections.size());
+				}
+				offsets.put(label, result);
+			}
+			return result;
+		}
+	}
 
 }
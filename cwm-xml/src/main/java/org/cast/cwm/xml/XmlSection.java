@@ -56,6 +56,15 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 	@Getter protected List<XmlSection> children = new ArrayList<XmlSection>();
 	@Getter @Setter
 	protected int sortOrder = -1; // The order of this section within a document.
+	
+	// Precomputed positions and links; see XmlSectionNavigation
+	protected XmlSectionNavigation navigation;
+	protected int siblingIndex;
+	protected int preorderPosition;
+	protected int postorderPosition;
+	protected int subtreeSize;
+	protected XmlSection followingSameType;
+	protected XmlSection precedingSameType;
 
 	/**
 	 * Set up an XmlSection with the basic values.
@@ -82,13 +91,33 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 			throw new RuntimeException("Could not instantiate " + this.getClassName());
 		}
 		child.init(xmlDocument, this, id, elt, title);
+		if (navigation != null)
+			navigation.markStale();
 		if (children == null)
 			children = new ArrayList<XmlSection>();
 		children.add(child);
 		return child;
 	}
 	
+	/**
+	 * @return true if navigation tables have been computed for this section's tree and are still current.
+	 */
+	protected boolean isNavigable() {
+		return navigation != null && !navigation.isStale();
+	}
+	
+	/**
+	 * @return this section's position in document order within the whole tree (0 is the root), 
+	 * or -1 if navigation tables have not been computed.
+	 * @see XmlSectionNavigation#getByPosition(int)
+	 */
+	public int getPosition() {
+		return isNavigable() ? preorderPosition : -1;
+	}
+	
 	public int getIndex () {
+		if (isNavigable())
+			return siblingIndex;
 		if (parent != null)
 			return parent.children.indexOf(this);
 		else
@@ -128,6 +157,8 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 	 * @return
 	 */
 	public XmlSection getFollowing() {
+		if (isNavigable())
+			return navigation.getByPosition(preorderPosition + subtreeSize);
 		XmlSection sibling = getNext();
 		if (sibling != null)
 			return sibling;
@@ -141,6 +172,8 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 	 * @return
 	 */
 	public XmlSection getPreceding() {
+		if (isNavigable())
+			return navigation.getByPostorderPosition(postorderPosition - subtreeSize);
 		XmlSection sibling = getPrev();
 		if (sibling != null)
 			return sibling;
@@ -156,6 +189,8 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 	 * @return a matching XmlSection or null
 	 */
 	public XmlSection getFollowingOfType(String type) {
+		if (isNavigable())
+			return navigation.getFollowingOfType(type, preorderPosition);
 		return traverseForwardForType(type, false);
 	}
 	
@@ -166,6 +201,8 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 	 * @return a matching XmlSection or null
 	 */
 	public XmlSection getPrecedingOfType(String type) {
+		if (isNavigable())
+			return navigation.getPrecedingOfType(type, postorderPosition);
 		return traverseBackwardForType(type, false);
 	}
 	
@@ -174,6 +211,8 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 	 * @return a matching XmlSection or null
 	 */
 	public XmlSection getFollowingSameType() {
+		if (isNavigable())
+			return followingSameType;
 		return getFollowingOfType(getType());
 	}
 
@@ -182,6 +221,8 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 	 * @return a matching XmlSection or null
 	 */
 	public XmlSection getPrecedingSameType() {
+		if (isNavigable())
+			return precedingSameType;
 		return getPrecedingOfType(getType());
 	}
 
@@ -281,6 +322,8 @@ public class XmlSection implements IXmlPointer, Serializable, Comparable<XmlSect
 	 * @return true if given section is a descendant of this section.
 	 */
 	public boolean isAncestorOf(XmlSection sec) {
+		if (isNavigable() && sec.navigation == navigation)
+			return sec.preorderPosition > preorderPosition && sec.preorderPosition < preorderPosition + subtreeSize;
 		do {
 			sec = sec.parent;
 			if (this.equals(sec)) {
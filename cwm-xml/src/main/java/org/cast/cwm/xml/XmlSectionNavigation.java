@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Navigation tables for a tree of {@link XmlSection}s.  These are computed once when the document is read,
+ * so that sibling positions and following/preceding lookups do not need to search the tree.
+ * 
+ * Sections are numbered in document order (preorder) and in postorder.  Following sections are found in
+ * preorder; preceding sections in reverse postorder, which is the order {@link XmlSection#getPrecedingOfType(String)}
+ * has always visited them.
+ * 
+ * If the tree is changed with {@link XmlSection#addChild(String, org.w3c.dom.Element, String)}, the tables are
+ * marked stale and sections fall back to walking the tree until {@link #build(XmlSection)} is called again.
+ *
+ */
+public class XmlSectionNavigation implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final XmlSection[] preorder;
+	
+	private final XmlSection[] postorder;
+	
+	/**
+	 * Element type -> sorted preorder positions of sections of that type.
+	 */
+	private final Map<String,int[]> preorderByType;
+
+	/**
+	 * Element type -> sorted postorder positions of sections of that type.
+	 */
+	private final Map<String,int[]> postorderByType;
+	
+	private volatile boolean stale;
+	
+	private XmlSectionNavigation(List<XmlSection> preorder, List<XmlSection> postorder) {
+		this.preorder = preorder.toArray(new XmlSection[preorder.size()]);
+		this.postorder = postorder.toArray(new XmlSection[postorder.size()]);
+		this.preorderByType = linkFollowing(this.preorder);
+		this.postorderByType = linkPreceding(this.postorder);
+	}
+
+	/**
+	 * Compute navigation tables for the given tree and attach them to each of its sections.
+	 * 
+	 * @param root the root section
+	 * @return the new tables
+	 */
+	public static XmlSectionNavigation build(XmlSection root) {
+		List<XmlSection> preorder = new ArrayList<XmlSection>();
+		List<XmlSection> postorder = new ArrayList<XmlSection>();
+		number(root, 0, preorder, postorder);
+		XmlSectionNavigation navigation = new XmlSectionNavigation(preorder, postorder);
+		for (XmlSection sec : preorder)
+			sec.navigation = navigation;
+		return navigation;
+	}
+	
+	private static void number(XmlSection sec, int siblingIndex, List<XmlSection> preorder, List<XmlSection> postorder) {
+		sec.siblingIndex = siblingIndex;
+		sec.preorderPosition = preorder.size();
+		preorder.add(sec);
+		if (sec.children != null) {
+			for (int i=0; i<sec.children.size(); i++)
+				number(sec.children.get(i), i, preorder, postorder);
+		}
+		sec.subtreeSize = preorder.size() - sec.preorderPosition;
+		sec.postorderPosition = postorder.size();
+		postorder.add(sec);
+	}
+	
+	private static Map<String,int[]> linkFollowing(XmlSection[] preorder) {
+		Map<String,List<Integer>> positions = new HashMap<String,List<Integer>>();
+		Map<String,XmlSection> lastOfType = new HashMap<String,XmlSection>();
+		for (int i=0; i<preorder.length; i++) {
+			XmlSection sec = preorder[i];
+			sec.followingSameType = null;
+			String type = getType(sec);
+			if (type == null)
+				continue;
+			XmlSection previous = lastOfType.put(type, sec);
+			if (previous != null)
+				previous.followingSameType = sec;
+			addPosition(positions, type, i);
+		}
+		return toArrays(positions);
+	}
+
+	private static Map<String,int[]> linkPreceding(XmlSection[] postorder) {
+		Map<String,List<Integer>> positions = new HashMap<String,List<Integer>>();
+		Map<String,XmlSection> lastOfType = new HashMap<String,XmlSection>();
+		for (int i=0; i<postorder.length; i++) {
+			XmlSection sec = postorder[i];
+			String type = getType(sec);
+			if (type == null) {
+				sec.precedingSameType = null;
+				continue;
+			}
+			sec.precedingSameType = lastOfType.put(type, sec);
+			addPosition(positions, type, i);
+		}
+		return toArrays(positions);
+	}
+	
+	private static String getType(XmlSection sec) {
+		return sec.getElement() == null ? null : sec.getType();
+	}
+	
+	private static void addPosition(Map<String,List<Integer>> positions, String type, int position) {
+		List<Integer> list = positions.get(type);
+		if (list == null) {
+			list = new ArrayList<Integer>();
+			positions.put(type, list);
+		}
+		list.add(position);
+	}
+	
+	private static Map<String,int[]> toArrays(Map<String,List<Integer>> positions) {
+		Map<String,int[]> arrays = new HashMap<String,int[]>();
+		for (Map.Entry<String,List<Integer>> entry : positions.entrySet()) {
+			int[] array = new int[entry.getValue().size()];
+			for (int i=0; i<array.length; i++)
+				array[i] = entry.getValue().get(i);
+			arrays.put(entry.getKey(), array);
+		}
+		return arrays;
+	}
+	
+	/**
+	 * @return the section at the given position in document order, or null if out of range
+	 */
+	public XmlSection getByPosition(int position) {
+		return (position >= 0 && position < preorder.length) ? preorder[position] : null;
+	}
+
+	/**
+	 * @return the section at the given position in postorder, or null if out of range
+	 */
+	protected XmlSection getByPostorderPosition(int position) {
+		return (position >= 0 && position < postorder.length) ? postorder[position] : null;
+	}
+
+	/**
+	 * @return the first section of the given type after the given preorder position, or null
+	 */
+	protected XmlSection getFollowingOfType(String type, int position) {
+		int[] positions = preorderByType.get(type);
+		if (positions == null)
+			return null;
+		int i = Arrays.binarySearch(positions, position+1);
+		if (i < 0)
+			i = -i - 1; // first position after
+		return i < positions.length ? preorder[positions[i]] : null;
+	}
+	
+	/**
+	 * @return the last section of the given type before the given postorder position, or null
+	 */
+	protected XmlSection getPrecedingOfType(String type, int position) {
+		int[] positions = postorderByType.get(type);
+		if (positions == null)
+			return null;
+		int i = Arrays.binarySearch(positions, position-1);
+		if (i < 0)
+			i = -i - 2; // last position before
+		return i >= 0 ? postorder[positions[i]] : null;
+	}
+	
+	/**
+	 * @return the number of sections in the tree
+	 */
+	public int size() {
+		return preorder.length;
+	}
+	
+	public boolean isStale() {
+		return stale;
+	}
+	
+	/**
+	 * Note that the tree has changed, so these tables should no longer be used.
+	 */
+	public void markStale() {
+		stale = true;
+	}
+
+}
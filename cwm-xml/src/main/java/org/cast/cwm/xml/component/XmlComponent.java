@@ -25,6 +25,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -36,6 +37,7 @@ import org.apache.wicket.behavior.Behavior;
 import org.apache.wicket.markup.ComponentTag;
 import org.apache.wicket.markup.IMarkupCacheKeyProvider;
 import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.MarkupFactory;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.panel.Panel;
@@ -45,6 +47,7 @@ import org.apache.wicket.util.resource.StringResourceStream;
 import org.cast.cwm.xml.ICacheableModel;
 import org.cast.cwm.xml.IXmlPointer;
 import org.cast.cwm.xml.TransformResult;
+import org.cast.cwm.xml.WicketNodeIndex;
 import org.cast.cwm.xml.XmlSection;
 import org.cast.cwm.xml.service.IXmlService;
 import org.cast.cwm.xml.transform.TransformParameters;
@@ -73,6 +76,11 @@ public class XmlComponent extends Panel implements IMarkupResourceStreamProvider
 	private boolean updateable = false;  // Will this XmlComponent ever be redrawn via Ajax?
 	private String transformName;
 	
+	private String markupCacheKey; // Key most recently used to cache this component's markup
+	
+	// Whether each subclass leaves getTransformedMarkup() alone, so the transform result identifies its markup
+	private static final Map<Class<?>, Boolean> markupFromResult = new ConcurrentHashMap<Class<?>, Boolean>();
+	
 	@Getter @Setter
 	private TransformParameters transformParameters = null;
 	
@@ -107,7 +115,7 @@ public class XmlComponent extends Panel implements IMarkupResourceStreamProvider
 	
 	public boolean isEmpty () {
 		TransformResult res = xmlService.getTransformed(getModel(), transformName, transformParameters);
-		return res.getElement() == null;
+		return res == null || res.isEmpty();
 	}
 
 	/** 
@@ -119,10 +127,34 @@ public class XmlComponent extends Panel implements IMarkupResourceStreamProvider
 	 */
 	protected void addDynamicComponents() {
 		TransformResult transformResult = xmlService.getTransformed(getModel(), transformName, transformParameters);
-		Element dom = transformResult.getElement();
+		final Set<String> wicketIds = new HashSet<String>();
+		WicketNodeIndex index = transformResult.getWicketNodeIndex();
+		if (index != null)
+			addDynamicComponents(index, wicketIds);
+		else
+			addDynamicComponents(transformResult.getElement(), wicketIds);
+		
+		// Remove any stale components that might have been added during previous renders.
+		List<Component> removeList = new ArrayList<Component>(); // To be removed
+		if (updateable) {
+			for (int i = 0; i < size(); i++) {
+				if (!wicketIds.contains(get(i).getId()))
+					removeList.add(get(i));
+			}
+			for(Component c: removeList)
+				c.remove();
+		}
+		
+	}
+	
+	/**
+	 * Add components for the wicket:id elements found by searching the transformed DOM.
+	 * @param dom the transformed DOM
+	 * @param wicketIds collects the IDs of components added directly to this component
+	 */
+	private void addDynamicComponents(Element dom, Set<String> wicketIds) {
 		NodeList componentNodes = xmlService.getWicketNodes(dom, true);
 		Map<Element,Component> componentMap = new HashMap<Element,Component>(); // Mapping of Nodes to Components; used for nesting
-		final Set<String> wicketIds = new HashSet<String>();
 		
 		for (int i=0; i<componentNodes.getLength(); i++) {
 		
@@ -140,49 +172,67 @@ public class XmlComponent extends Panel implements IMarkupResourceStreamProvider
 				parent = parent.getParentNode();
 			}
 			
-			// Check to see if a component is a direct child and if
-			// one already exists with that id. If so, no need to 
-			// regenerate, but mark that it's valid.
-			if (updateable && container == null && get(id) != null) {
-				wicketIds.add(id);
-				continue;
-			}
-
-			// If no container, add directly to the document. If container exists, add 
-			// the component only if one does not already exist with that wicket:id.  This allows
-			// panels, subclasses, etc to add components to this markup and not be overridden
-			// or duplicated.
-			if (container == null) {
-				log.trace("Adding Dynamic Component to Root Panel {}: {}.", id, e);
-				wicketIds.add(id); // Valid child, for removing stale children later.
-				Component c = getDynamicComponent(id,e);
-				add(c);
+			Component c = addDynamicComponent(id, e, container, wicketIds);
+			if (c != null)
 				componentMap.put(e, c);
-
-			} else {
-				Component c = container.get(id);
-				if (c == null) {
-					c = getDynamicComponent(id, e);
-					log.trace("Adding Dynamic Component ({}) to Container ({}).", id, container.getId());
-					container.add(c);
-					componentMap.put(e, c);
-				} else {
-					componentMap.put(e, c);
-				}
-			}
 		}
+	}
+	
+	/**
+	 * Add components for the wicket:id elements listed in a precomputed index.
+	 * No DOM searching is needed; elements passed to {@link #getDynamicComponent(String, Element)}
+	 * are skeletons built from the index.
+	 * @param index the index of wicket:id elements
+	 * @param wicketIds collects the IDs of components added directly to this component
+	 */
+	private void addDynamicComponents(WicketNodeIndex index, Set<String> wicketIds) {
+		Element[] elements = index.toElements();
+		Component[] components = new Component[index.size()];
 		
-		// Remove any stale components that might have been added during previous renders.
-		List<Component> removeList = new ArrayList<Component>(); // To be removed
-		if (updateable) {
-			for (int i = 0; i < size(); i++) {
-				if (!wicketIds.contains(get(i).getId()))
-					removeList.add(get(i));
+		for (int i=0; i<index.size(); i++) {
+			String id = index.getWicketId(i);
+			
+			// Nearest enclosing wicket:id element that was mapped to a component is the container.
+			MarkupContainer container = null;
+			for (int p = index.getParent(i); container == null && p >= 0; p = index.getParent(p))
+				container = (MarkupContainer) components[p];
+			
+			components[i] = addDynamicComponent(id, elements[i], container, wicketIds);
+		}
+	}
+	
+	/**
+	 * Add a component for a single wicket:id element, unless there already is one.
+	 * @return the component for this element, or null if an existing component was kept without being mapped
+	 */
+	private Component addDynamicComponent(String id, Element e, MarkupContainer container, Set<String> wicketIds) {
+		// Check to see if a component is a direct child and if
+		// one already exists with that id. If so, no need to 
+		// regenerate, but mark that it's valid.
+		if (updateable && container == null && get(id) != null) {
+			wicketIds.add(id);
+			return null;
+		}
+
+		// If no container, add directly to the document. If container exists, add 
+		// the component only if one does not already exist with that wicket:id.  This allows
+		// panels, subclasses, etc to add components to this markup and not be overridden
+		// or duplicated.
+		if (container == null) {
+			log.trace("Adding Dynamic Component to Root Panel {}: {}.", id, e);
+			wicketIds.add(id); // Valid child, for removing stale children later.
+			Component c = getDynamicComponent(id,e);
+			add(c);
+			return c;
+		} else {
+			Component c = container.get(id);
+			if (c == null) {
+				c = getDynamicComponent(id, e);
+				log.trace("Adding Dynamic Component ({}) to Container ({}).", id, container.getId());
+				container.add(c);
 			}
-			for(Component c: removeList)
-				c.remove();
+			return c;
 		}
-		
 	}
 	
 	/**
@@ -237,9 +287,48 @@ public class XmlComponent extends Panel implements IMarkupResourceStreamProvider
 		return new StringResourceStream(getTransformedMarkup());
 	}
 
+	/**
+	 * Markup is cached by Wicket under a key identifying the current transform result, so it is
+	 * only re-parsed when the XML content, transformer or parameters change.
+	 * When the result changes, markup cached for the previous result is discarded.
+	 * Markup is not cached unless {@link #isMarkupCacheable()}.
+	 */
 	@Override
 	public String getCacheKey(MarkupContainer container, Class<?> containerClass) {
-		return null;
+		if (!isMarkupCacheable())
+			return null;
+		TransformResult transformResult = xmlService.getTransformed(getModel(), transformName, transformParameters);
+		if (transformResult == null || transformResult.getCacheKey() == null)
+			return null;
+		String key = containerClass.getName() + ":" + transformResult.getCacheKey();
+		if (markupCacheKey != null && !markupCacheKey.equals(key))
+			MarkupFactory.get().getMarkupCache().removeMarkup(markupCacheKey);
+		markupCacheKey = key;
+		return key;
+	}
+	
+	/**
+	 * Whether markup can be cached under the key of the transform result.  By default this is true
+	 * unless a subclass overrides {@link #getTransformedMarkup()}, since the override's output
+	 * may depend on more than the transform result.  Subclasses whose override depends only on
+	 * the result can return true.
+	 */
+	protected boolean isMarkupCacheable() {
+		Boolean cacheable = markupFromResult.get(getClass());
+		if (cacheable == null) {
+			cacheable = true;
+			for (Class<?> c = getClass(); c != XmlComponent.class; c = c.getSuperclass()) {
+				try {
+					c.getDeclaredMethod("getTransformedMarkup");
+					cacheable = false;
+					break;
+				} catch (NoSuchMethodException e) {
+					// not overridden here
+				}
+			}
+			markupFromResult.put(getClass(), cacheable);
+		}
+		return cacheable;
 	}
 	
 	/**
@@ -19,7 +19,6 @@
  */
 package org.cast.cwm.xml.parser;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URL;
@@ -30,7 +29,6 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
@@ -45,7 +43,6 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import com.google.inject.Inject;
 
@@ -63,8 +60,38 @@ public class DtbookParser extends XmlParser implements Serializable {
 	private static final long serialVersionUID = 1L;
 	private static final Logger log = LoggerFactory.getLogger(DtbookParser.class);
 	private static final String IDGENERATORSTRING = "gen"; 
+	private static final String DTBOOK_NS = "http://www.daisy.org/z3986/2005/dtbook/";
 	private transient XPathExpression idFinder = null;
 	
+	/**
+	 * Parsers and catalog resolvers are reused for all documents parsed on the same thread.
+	 */
+	private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>() {
+		@Override
+		protected DocumentBuilder initialValue() {
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware(true);
+			dbf.setXIncludeAware(true);
+			try {
+				return dbf.newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+	
+	private static final ThreadLocal<XMLCatalogResolver> catalogResolver = new ThreadLocal<XMLCatalogResolver>() {
+		@Override
+		protected XMLCatalogResolver initialValue() {
+			// Locate the Dtbook XMLCatalogResolver
+			URL catResource = DtbookParser.class.getClassLoader().getResource("cwm-xml-catalog.xml");
+			if (catResource == null)
+				throw new IllegalStateException("Cannot find XML Catalog");
+			String [] catalogs = {catResource.toString()};
+			return new XMLCatalogResolver(catalogs);
+		}
+	};
+	
 	public DtbookParser () {
 		super();
 		Injector.get().inject(this);
@@ -117,20 +144,12 @@ public class DtbookParser extends XmlParser implements Serializable {
 		idSerial = 0;
 		elementCounter = 0;
 
-		// Locate the Dtbook XMLCatalogResolver
-		URL catResource = DtbookParser.class.getClassLoader().getResource("cwm-xml-catalog.xml");
-		if (catResource == null)
-			throw new IllegalStateException("Cannot find XML Catalog");
-		String [] catalogs = {catResource.toString()};
-		XMLCatalogResolver resolver = new XMLCatalogResolver(catalogs);
 		// Parse the XML stream
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		dbf.setXIncludeAware(true);
 		Document document;
 		try {
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			db.setEntityResolver(resolver);
+			DocumentBuilder db = documentBuilder.get();
+			db.reset();
+			db.setEntityResolver(catalogResolver.get());
 			document = db.parse(in);
 		} catch (Exception e) {
 			throw new RuntimeException("Couldn't parse XML Document", e);
@@ -196,51 +215,57 @@ public class DtbookParser extends XmlParser implements Serializable {
 		// Set the order of this section in this document
 		section.setSortOrder(elementCounter++);
 		
-		// Find all ID attributes that are descendants, and add to the ID Map.
-		// (some of these may get reassigned later to children of this element)
-		if (getIdMap() != null) {
-			try {
-				NodeList eltsWithIds = (NodeList) getIdFinder().evaluate(elt, XPathConstants.NODESET);
-				for (int i=0; i<eltsWithIds.getLength(); i++) {
-					String id = eltsWithIds.item(i).getTextContent();
-					addToIdMap(id, section);
-				}
-			} catch (XPathExpressionException e) {
-				throw new RuntimeException(e);
-			}
-		}
-		
-		// Stop Parsing if this element does not have a designated child element
-		if (thisElt.childElt == null)
-			return;
+		// The element's own ID belongs to this section.
+		if (elt.hasAttribute("id"))
+			addToIdMap(elt.getAttribute("id"), section);
 		
-		// Get designated child elements, stop parsing if none found
-		NodeList nl = elt.getElementsByTagName(thisElt.childElt);
-		if (nl == null)
-			return;
+		// Walk the content of this element once, assigning IDs to this section and
+		// creating child sections as the designated child elements are found.
+		int found = walk(section, elt, thisElt);
 
 		// If tocLevel is false, this element has a single child that we fall through to
 		// for information, without creating a new XmlSection
 		// TODO: "TocLevel" is misleading, especially when the Root XmlSection object is called "Toc"
-		if (!thisElt.tocLevel) {
-			if (nl.getLength() != 1)
-				throw new IllegalStateException("Expected Single child for Node, but found more than one: " + elt.getLocalName());
-			fillIn(section, (Element)nl.item(0));
-			return;
-		} 
-		
-		// Finally, parse designated child elements and recursively create new XmlSections for each.
-		for (int i=0; i<nl.getLength(); i++) {
-			Element child = (Element) nl.item(i);
-			// Make sure all elements we work with have IDs; generate if necessary
-			String id = child.getAttributeNS(null, "id");
-			if (id == null || id.equals("")) {
-				id = IDGENERATORSTRING + String.valueOf(idSerial++);
-				child.setAttribute("id", id);
+		if (thisElt.childElt != null && !thisElt.tocLevel && found != 1)
+			throw new IllegalStateException("Expected Single child for Node, but found " + found + ": " + elt.getLocalName());
+	}
+	
+	/**
+	 * Process the descendants of an element that belong to the given section.
+	 * Any IDs found are added to the ID map for this section.  Designated child elements
+	 * are handed to {@link #fillIn(XmlSection, Element)}, either as new child sections or,
+	 * for elements that are not TOC levels, as part of the same section.  Their content is
+	 * not walked here, so each node in the document is visited only once.
+	 * 
+	 * @return the number of designated child elements found.
+	 */
+	private int walk(XmlSection section, Element elt, DtbookElement thisElt) {
+		int found = 0;
+		for (Node node = elt.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() != Node.ELEMENT_NODE)
+				continue;
+			Element child = (Element) node;
+			if (thisElt.childElt != null && thisElt.childElt.equals(child.getTagName())) {
+				found++;
+				if (thisElt.tocLevel) {
+					// Make sure all elements we work with have IDs; generate if necessary
+					String id = child.getAttributeNS(null, "id");
+					if (id == null || id.equals("")) {
+						id = IDGENERATORSTRING + String.valueOf(idSerial++);
+						child.setAttribute("id", id);
+					}
+					XmlSection subsect = section.addChild(id, child, "Title Unknown");
+					fillIn(subsect, child);
+				} else if (found == 1) {
+					fillIn(section, child);
+				}
+			} else {
+				if (child.hasAttribute("id"))
+					addToIdMap(child.getAttribute("id"), section);
+				found += walk(section, child, thisElt);
 			}
-			XmlSection subsect = section.addChild(id, child, "Title Unknown");
-			fillIn(subsect, child);
 		}
+		return found;
 	}
 
 	/**
@@ -273,21 +298,24 @@ public class DtbookParser extends XmlParser implements Serializable {
 		return idFinder;
 	}
 	
+	/**
+	 * Find the document title, in /dtbook/book/frontmatter/doctitle.
+	 */
 	protected String findTitle(Element element) {
-		XPathFactory factory= XPathFactory.newInstance();
-		XPath xPath=factory.newXPath();
-		xPath.setNamespaceContext(xmlService.getNamespaceContext());
-		
-		try {
-			XPathExpression xp = xPath.compile("/dtb:dtbook/dtb:book/dtb:frontmatter/dtb:doctitle");
-			Node doctitle = (Node) xp.evaluate(element, XPathConstants.NODE);
-			if (doctitle != null)
-				return normalizeTitle(doctitle.getTextContent());
-		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+		Element doctitle = element.getOwnerDocument().getDocumentElement();
+		if (!isDtbookElement(doctitle, "dtbook"))
+			return "";
+		String[] path = { "book", "frontmatter", "doctitle" };
+		for (String localName : path) {
+			doctitle = getChildByLocalName(doctitle, localName);
+			if (!isDtbookElement(doctitle, localName))
+				return "";
 		}
-		
-		return "";
+		return normalizeTitle(doctitle.getTextContent());
+	}
+	
+	private boolean isDtbookElement (Element elt, String localName) {
+		return elt != null && localName.equals(elt.getLocalName()) && DTBOOK_NS.equals(elt.getNamespaceURI());
 	}
 
 	
@@ -29,6 +29,7 @@ import org.cast.cwm.IInputStreamProvider;
 import org.cast.cwm.xml.FileXmlDocumentSource;
 import org.cast.cwm.xml.ICacheableModel;
 import org.cast.cwm.xml.IDocumentObserver;
+import org.cast.cwm.xml.IFileChangeListener;
 import org.cast.cwm.xml.IXmlPointer;
 import org.cast.cwm.xml.TransformResult;
 import org.cast.cwm.xml.XmlDocument;
@@ -36,6 +37,7 @@ import org.cast.cwm.xml.XmlSection;
 import org.cast.cwm.xml.parser.XmlParser;
 import org.cast.cwm.xml.transform.IDOMTransformer;
 import org.cast.cwm.xml.transform.TransformParameters;
+import org.cast.cwm.xml.transform.XslTemplatesRegistry;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
@@ -55,6 +57,23 @@ public interface IXmlService {
 	 */
 	public int getUpdateCheckInterval();
 	
+	/**
+	 * Arrange for a listener to be told when the given source changes, so that the
+	 * caller does not need to check it on request threads.
+	 * @param source a document or stylesheet
+	 * @param listener the listener to notify
+	 * @return true if the source will be watched; false if it cannot be (for instance
+	 *   because it is not a local file), in which case the caller must check it periodically itself.
+	 */
+	public boolean watchForChanges(IInputStreamProvider source, IFileChangeListener listener);
+	
+	/**
+	 * Stop telling a listener about changes to a source.
+	 * @param source a source passed to {@link #watchForChanges(IInputStreamProvider, IFileChangeListener)}
+	 * @param listener the listener that was passed with it
+	 */
+	public void stopWatching(IInputStreamProvider source, IFileChangeListener listener);
+	
 	/*
 	 * TODO: hide this implementation detail
 	 */
@@ -186,6 +205,22 @@ public interface IXmlService {
 	IDOMTransformer loadXSLTransformer(String name, IInputStreamProvider xslSource,
 			boolean forceUniqueWicketIds, IInputStreamProvider... dependentDocuments);
 
+	/**
+	 * Return the registry holding compiled stylesheets for XSL transformers.
+	 * {@link XslTemplatesRegistry#compileAll()} should be called once all transformers are loaded,
+	 * so that stylesheets are not compiled on request threads; {@link XmlService} does this
+	 * when the application finishes initializing.
+	 * @return the registry, or null if each transformer should manage its own.
+	 */
+	public XslTemplatesRegistry getTemplatesRegistry();
+
+	/**
+	 * Stop the background threads that watch files, reload documents, recompile stylesheets
+	 * and refresh cached transforms.  The application's onDestroy() must call this, unless the
+	 * service was created during application initialization, in which case it is called automatically.
+	 */
+	public void shutdown();
+
 	/**
 	 * Register the provided DOM Transformer under the name provided.
 	 */
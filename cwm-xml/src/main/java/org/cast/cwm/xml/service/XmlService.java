@@ -21,10 +21,25 @@ package org.cast.cwm.xml.service;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
@@ -35,16 +50,23 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
 import lombok.Getter;
+import lombok.Setter;
 
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
 import org.apache.wicket.util.file.File;
 import org.apache.wicket.util.time.Time;
 import org.cast.cwm.IInputStreamProvider;
+import org.cast.cwm.xml.CompactTransformResult;
 import org.cast.cwm.xml.DomCache;
+import org.cast.cwm.xml.FileChangeMonitor;
 import org.cast.cwm.xml.FileXmlDocumentSource;
 import org.cast.cwm.xml.ICacheableModel;
 import org.cast.cwm.xml.IDocumentObserver;
+import org.cast.cwm.xml.IFileChangeListener;
 import org.cast.cwm.xml.IXmlPointer;
 import org.cast.cwm.xml.TransformResult;
+import org.cast.cwm.xml.WicketNodeIndex;
 import org.cast.cwm.xml.XmlDocument;
 import org.cast.cwm.xml.XmlSection;
 import org.cast.cwm.xml.parser.XmlParser;
@@ -52,6 +74,7 @@ import org.cast.cwm.xml.transform.EnsureUniqueWicketIds;
 import org.cast.cwm.xml.transform.IDOMTransformer;
 import org.cast.cwm.xml.transform.TransformChain;
 import org.cast.cwm.xml.transform.TransformParameters;
+import org.cast.cwm.xml.transform.XslTemplatesRegistry;
 import org.cast.cwm.xml.transform.XslTransformer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,11 +85,15 @@ import org.w3c.dom.NodeList;
  * Service class to deal with XML Documents.
  * Has methods to load XML documents, set up and request XSL transforms, 
  * manage caching and updating from the filesystem, etc.
+ * <p>
+ * Background threads are stopped by {@link #shutdown()}.  This happens automatically when the 
+ * application is destroyed if the service was created while it was initializing; otherwise
+ * the application's onDestroy() must call it.
  *  
  * @author bgoldowsky
  *
  */
-public class XmlService implements IXmlService {
+public class XmlService implements IXmlService, IApplicationListener {
 	
 	/**
 	 * Keeps track of all XmlDocuments in the system, hashed by their name.
@@ -91,10 +118,84 @@ public class XmlService implements IXmlService {
 	@Getter
 	private int updateCheckInterval = 10;
 	
+	/**
+	 * If true, local XML and XSL files are watched by a background {@link FileChangeMonitor}, which tells
+	 * documents and transformers when they have changed.  Otherwise, and for sources that are not
+	 * local files, the sources are checked on request threads every {@link #updateCheckInterval} seconds.
+	 * Must be set before any documents or transformers are loaded.
+	 */
+	@Getter @Setter
+	private boolean watchFiles = true;
+	
+	/**
+	 * Milliseconds between checks by the {@link FileChangeMonitor}.
+	 * Must be set before any documents or transformers are loaded.
+	 */
+	@Getter @Setter
+	private long fileMonitorInterval = 2000;
+	
+	private FileChangeMonitor fileChangeMonitor;
+	
 	/**
 	 * Cache for DOMs generated by transforming XML.
 	 */
 	private DomCache domCache;
+	
+	/**
+	 * Transforms currently being computed, by cache key.  Used to ensure that concurrent
+	 * requests for the same uncached content only cause a single transform.
+	 */
+	private final ConcurrentMap<Serializable, FutureTask<TransformResult>> pendingTransforms = new ConcurrentHashMap<Serializable, FutureTask<TransformResult>>();
+	
+	/**
+	 * If true, an outdated cached transform result will continue to be returned while a replacement
+	 * is computed in the background, rather than making the requesting thread wait for a new transform.
+	 * Content updates then become visible on the first request after the background transform completes.
+	 * Models passed to {@link #getTransformed(ICacheableModel, String, TransformParameters)} must be 
+	 * usable outside of a request thread for this to be turned on.
+	 */
+	@Getter @Setter
+	private boolean serveStaleWhileRevalidating = false;
+	
+	/**
+	 * Number of background threads used to re-transform outdated content.
+	 * Must be set before the first background transform is requested.
+	 */
+	@Getter @Setter
+	private int refreshThreads = 2;
+	
+	/**
+	 * Maximum number of background re-transforms that may be waiting for a thread.
+	 * Must be set before the first background transform is requested.
+	 */
+	@Getter @Setter
+	private int refreshQueueSize = 200;
+	
+	/**
+	 * If false, transform results are cached as {@link CompactTransformResult}s: serialized markup plus
+	 * an index of the wicket:id elements, rather than a DOM.  This saves considerable memory, but
+	 * {@link org.cast.cwm.xml.component.XmlComponent#getDynamicComponent(String, Element)} will then be passed skeleton elements
+	 * that have their attributes and wicket:id descendants, but no other content.
+	 */
+	@Getter @Setter
+	private boolean retainTransformedDom = true;
+	
+	private ThreadPoolExecutor refreshExecutor;
+	
+	/**
+	 * Keys that have a background re-transform queued or running.
+	 */
+	private final Set<Serializable> refreshingKeys = Collections.newSetFromMap(new ConcurrentHashMap<Serializable, Boolean>());
+
+	private final AtomicLong transformCount = new AtomicLong();
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 * Compiled XSL stylesheets for all XslTransformers.
+	 */
+	@Getter
+	private XslTemplatesRegistry templatesRegistry = new XslTemplatesRegistry();
 
 	@Getter
 	private NamespaceContext namespaceContext = new CwmNamespaceContext();
@@ -102,8 +203,68 @@ public class XmlService implements IXmlService {
 	private static final Logger log = LoggerFactory.getLogger(XmlService.class);
 
 	public XmlService () {
+		// Compile stylesheets once the application has loaded its transformers, and stop threads when it is destroyed
+		if (Application.exists())
+			Application.get().getApplicationListeners().add(this);
+	}
+	
+	@Override
+	public void onAfterInitialized(Application application) {
+		templatesRegistry.compileAll();
+	}
+	
+	@Override
+	public void onBeforeDestroyed(Application application) {
+		shutdown();
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.cast.cwm.xml.service.IXmlService#shutdown()
+	 */
+	@Override
+	public synchronized void shutdown() {
+		if (fileChangeMonitor != null) {
+			fileChangeMonitor.shutdown();
+			fileChangeMonitor = null;
+		}
+		if (refreshExecutor != null) {
+			refreshExecutor.shutdownNow();
+			refreshExecutor = null;
+		}
+		templatesRegistry.shutdown();
+		XmlDocument.shutdownReloads();
+		log.debug("Stopped XmlService background threads");
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.cast.cwm.xml.service.IXmlService#watchForChanges(org.cast.cwm.IInputStreamProvider, org.cast.cwm.xml.IFileChangeListener)
+	 */
+	@Override
+	public boolean watchForChanges(IInputStreamProvider source, IFileChangeListener listener) {
+		if (!watchFiles || !(source instanceof FileXmlDocumentSource))
+			return false;
+		getFileChangeMonitor().watch(((FileXmlDocumentSource) source).getFile(), listener);
+		return true;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.cast.cwm.xml.service.IXmlService#stopWatching(org.cast.cwm.IInputStreamProvider, org.cast.cwm.xml.IFileChangeListener)
+	 */
+	@Override
+	public synchronized void stopWatching(IInputStreamProvider source, IFileChangeListener listener) {
+		if (fileChangeMonitor != null && source instanceof FileXmlDocumentSource)
+			fileChangeMonitor.unwatch(((FileXmlDocumentSource) source).getFile(), listener);
+	}
+
+	/**
+	 * @return the monitor that watches local files, which is started when first needed
+	 */
+	public synchronized FileChangeMonitor getFileChangeMonitor() {
+		if (fileChangeMonitor == null)
+			fileChangeMonitor = new FileChangeMonitor(fileMonitorInterval);
+		return fileChangeMonitor;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.cast.cwm.xml.service.IXMLService#addTransformerDirectory(java.lang.String)
 	 */
@@ -243,6 +404,7 @@ public class XmlService implements IXmlService {
 		XslTransformer xsl = new XslTransformer(xslResource);
 		for (IInputStreamProvider r : dependentResources)
 			xsl.addDependentResources(r);
+		templatesRegistry.register(xsl);
 		IDOMTransformer transformer;
 		if (forceUniqueWicketIds)
 			transformer = new TransformChain(xsl, new EnsureUniqueWicketIds());
@@ -277,39 +439,182 @@ public class XmlService implements IXmlService {
 	public TransformResult getTransformed (ICacheableModel<? extends IXmlPointer> mXmlPtr, String transformName, TransformParameters params) {
 		log.trace("Entering getTransformed({}, {})", mXmlPtr, transformName);
 		IDOMTransformer transformer = getTransformer(transformName);
+		if (transformer == null)
+			throw new IllegalArgumentException("Transformer not registered: " + transformName);
 		// Getting the last modified time of these resources has the side effect of updating them if necessary.
 		// Do that whether or not we have a cached DOM.
 		Time xmlTime = mXmlPtr.getLastModified();
 		Time transTime = transformer.getLastModified(params);
 		// Now check the cache to see if it's as up to date as the XML and XSL files.
-		net.sf.ehcache.Element cacheElement = getDomCache().get(mXmlPtr, transformName, params);
-		if (cacheElement != null) {
-			// Compare last-modified times of cache, XML, and transformer.
-			Time cacheTime = Time.millis(cacheElement.getLastUpdateTime() != 0 ? cacheElement.getLastUpdateTime() : cacheElement.getCreationTime());
-			// This call to getLastModified() will also update the XML if necessary
-			if ((xmlTime==null || xmlTime.before(cacheTime)) && (transTime==null || transTime.before(cacheTime))) {
-				// Cache is still valid
-				log.trace("Returning cached DOM");
-				return (TransformResult) cacheElement.getObjectValue();
-			}
+		Serializable key = getDomCache().getKey(mXmlPtr, transformName, params);
+		net.sf.ehcache.Element cacheElement = getDomCache().get(key);
+		if (cacheElement != null && isCurrent(cacheElement, xmlTime, transTime)) {
+			log.trace("Returning cached DOM");
+			return (TransformResult) cacheElement.getObjectValue();
+		}
+		if (cacheElement != null && serveStaleWhileRevalidating) {
+			log.trace("Returning outdated DOM while it is re-transformed in the background");
+			scheduleRefresh(key, mXmlPtr, transformer, params, xmlTime, transTime);
+			return (TransformResult) cacheElement.getObjectValue();
 		}
-		// Still here?  Cache was empty or outdated.  Do a new transform.
+		// Still here?  Cache was empty or outdated.  Do a new transform, or wait for one already in progress.
 		log.trace("Cache {}, running transform", cacheElement==null ? "empty" : "outdated");
-		IDOMTransformer trans = getTransformer(transformName);
-		if (trans == null)
-			throw new IllegalArgumentException("Transformer not registered: " + transformName);
-		// Do the transform and cache the result.
+		return transformOnce(key, mXmlPtr, transformer, params, xmlTime, transTime);
+	}
+
+	/**
+	 * Check whether a cached transform result is newer than both the XML and the transformer.
+	 */
+	protected boolean isCurrent (net.sf.ehcache.Element cacheElement, Time xmlTime, Time transTime) {
+		Time cacheTime = Time.millis(cacheElement.getLastUpdateTime() != 0 ? cacheElement.getLastUpdateTime() : cacheElement.getCreationTime());
+		return (xmlTime==null || xmlTime.before(cacheTime)) && (transTime==null || transTime.before(cacheTime));
+	}
+
+	/**
+	 * Run a transform and cache its result, making sure that only one thread at a time does the work for any given key.
+	 * The first thread to request a key that is not in the cache runs the transform;
+	 * any other threads requesting the same key in the meantime wait for and share that result.
+	 */
+	protected TransformResult transformOnce (final Serializable key, final ICacheableModel<? extends IXmlPointer> mXmlPtr, 
+			final IDOMTransformer transformer, final TransformParameters params, final Time xmlTime, final Time transTime) {
+		FutureTask<TransformResult> task = new FutureTask<TransformResult>(new Callable<TransformResult>() {
+			@Override
+			public TransformResult call() {
+				// Another thread may have finished and cached this transform between our cache check and now.
+				net.sf.ehcache.Element cacheElement = getDomCache().get(key);
+				if (cacheElement != null && isCurrent(cacheElement, xmlTime, transTime))
+					return (TransformResult) cacheElement.getObjectValue();
+				return runTransform(key, mXmlPtr, transformer, params, xmlTime, transTime);
+			}
+		});
+		FutureTask<TransformResult> existing = pendingTransforms.putIfAbsent(key, task);
+		if (existing != null) {
+			coalescedCount.incrementAndGet();
+			log.trace("Waiting for transform already in progress for {}", mXmlPtr);
+			return await(existing);
+		}
+		try {
+			task.run();
+			return await(task);
+		} finally {
+			pendingTransforms.remove(key, task);
+		}
+	}
+	
+	private TransformResult runTransform (Serializable key, ICacheableModel<? extends IXmlPointer> mXmlPtr, IDOMTransformer trans, 
+			TransformParameters params, Time xmlTime, Time transTime) {
+		transformCount.incrementAndGet();
 		TransformResult tr;
 		IXmlPointer xmlObj = mXmlPtr.getObject();
 		if (xmlObj != null) {
-			tr= new TransformResult(trans.applyTransform((Element) xmlObj.getElement().cloneNode(true), params));
+			Element source = (Element) xmlObj.getElement().cloneNode(true);
+			if (retainTransformedDom) {
+				tr = new TransformResult(trans.applyTransform(source, params));
+			} else if (trans instanceof TransformChain) {
+				// Index the wicket:id elements in the chain's final walk rather than separately
+				WicketNodeIndex.Collector collector = new WicketNodeIndex.Collector();
+				Element result = ((TransformChain) trans).applyTransform(source, params, collector);
+				tr = new CompactTransformResult(result, collector.getIndex());
+			} else {
+				tr = new CompactTransformResult(trans.applyTransform(source, params));
+			}
+			// Stable for a given version of the XML and transformer, so re-transforming unchanged content
+			// (eg after eviction from the DomCache) doesn't leave orphaned entries in Wicket's markup cache.
+			// Only a fingerprint key's String form identifies its content; other results' markup is not cached.
+			if (key instanceof DomCache.DOMKey)
+				tr.setCacheKey(key + "@" + getMillis(xmlTime) + "/" + getMillis(transTime));
 		} else {
 			// TODO: What if mXmlPtr is now pointing to null due to a change in the XML document?
 			tr = null;
 			log.warn("XmlPointer points to nothing: {}", mXmlPtr);
 		}
-		domCache.put(mXmlPtr, transformName, tr, params);
-		return (tr);
+		// If the transformer was replaced while running (eg, a recompiled stylesheet became available),
+		// the result may come from the old version but would look newer than the new one; don't cache it.
+		if (sameTime(transTime, trans.getLastModified(params)))
+			getDomCache().put(key, tr);
+		else
+			log.debug("Transformer changed during transform of {}; result not cached", mXmlPtr);
+		return tr;
+	}
+	
+	private static String getMillis (Time time) {
+		return time == null ? "-" : String.valueOf(time.getMilliseconds());
+	}
+	
+	private static boolean sameTime (Time a, Time b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	/**
+	 * Queue a background re-transform of the given key, unless one is already queued or running.
+	 * If the background queue is full, nothing is done; the outdated result continues to be served
+	 * and a later request will try again.
+	 */
+	protected void scheduleRefresh (final Serializable key, final ICacheableModel<? extends IXmlPointer> mXmlPtr, 
+			final IDOMTransformer transformer, final TransformParameters params, final Time xmlTime, final Time transTime) {
+		if (!refreshingKeys.add(key))
+			return;
+		try {
+			getRefreshExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						transformOnce(key, mXmlPtr, transformer, params, xmlTime, transTime);
+					} catch (RuntimeException e) {
+						log.error("Background transform failed for " + mXmlPtr, e);
+					} finally {
+						refreshingKeys.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshingKeys.remove(key);
+			log.debug("Background transform queue is full; will retry {} later", mXmlPtr);
+		}
+	}
+	
+	protected synchronized ExecutorService getRefreshExecutor() {
+		if (refreshExecutor == null) {
+			refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS, 
+					new ArrayBlockingQueue<Runnable>(refreshQueueSize), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "XmlService-refresh-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			refreshExecutor.allowCoreThreadTimeOut(true);
+		}
+		return refreshExecutor;
+	}
+	
+	private TransformResult await (FutureTask<TransformResult> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for transform", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException("Transform failed", e.getCause());
+		}
+	}
+	
+	/**
+	 * @return the number of transforms that have actually been executed (that is, cache misses that were not coalesced).
+	 */
+	public long getTransformCount() {
+		return transformCount.get();
+	}
+
+	/**
+	 * @return the number of requests that found a transform for the same key already running, and waited for its result.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
 	}
 
 	protected DomCache getDomCache() {
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.transform;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+/**
+ * Walks a DOM once, depth first, calling any number of {@link IDOMVisitor}s at each node.
+ * <p>
+ * Visitors are called in order at each node, so each sees the changes made by those before it.
+ * When a text node is replaced, the walk continues after the first node that took its place, 
+ * as iterating over a live NodeList would.
+ */
+public class DOMWalker {
+	
+	private DOMWalker() { /* static methods only */ }
+	
+	public static Element walk(Element root, IDOMVisitor... visitors) {
+		return walk(root, Arrays.asList(visitors));
+	}
+
+	/**
+	 * Walk the tree under root with the given visitors, then finish each one in turn.
+	 * 
+	 * @param root the element to start at
+	 * @param visitors the visitors
+	 * @return the result of the last visitor's {@link IDOMVisitor#finish(Element)}, or null if any returned null
+	 */
+	public static Element walk(Element root, List<IDOMVisitor> visitors) {
+		if (visitors.isEmpty())
+			return root;
+		IDOMVisitor[] array = visitors.toArray(new IDOMVisitor[visitors.size()]);
+		boolean[] active = new boolean[array.length];
+		Arrays.fill(active, true);
+		visit(root, array, active);
+		Element result = root;
+		for (IDOMVisitor visitor : array) {
+			result = visitor.finish(result);
+			if (result == null)
+				break;
+		}
+		return result;
+	}
+	
+	private static void visit(Element elt, IDOMVisitor[] visitors, boolean[] active) {
+		boolean[] childActive = new boolean[visitors.length];
+		boolean descend = false;
+		for (int i=0; i<visitors.length; i++) {
+			if (active[i]) {
+				childActive[i] = visitors[i].enter(elt);
+				descend |= childActive[i];
+			}
+		}
+		if (descend) {
+			Node child = elt.getFirstChild();
+			while (child != null) {
+				if (child.getNodeType() == Node.ELEMENT_NODE) {
+					visit((Element) child, visitors, childActive);
+					child = child.getNextSibling();
+				} else if (child.getNodeType() == Node.TEXT_NODE) {
+					child = visitText((Text) child, visitors, childActive);
+				} else {
+					child = child.getNextSibling();
+				}
+			}
+		}
+		for (int i=0; i<visitors.length; i++) {
+			if (active[i])
+				visitors[i].leave(elt);
+		}
+	}
+	
+	/**
+	 * @return the node to visit next
+	 */
+	private static Node visitText(Text text, IDOMVisitor[] visitors, boolean[] active) {
+		Node parent = text.getParentNode();
+		Node previous = text.getPreviousSibling();
+		for (int i=0; i<visitors.length; i++) {
+			if (active[i] && text.getParentNode() == parent)
+				visitors[i].text(text);
+		}
+		Node current = (previous == null) ? parent.getFirstChild() : previous.getNextSibling();
+		return current == null ? null : current.getNextSibling();
+	}
+
+}
@@ -19,56 +19,117 @@
  */
 package org.cast.cwm.xml.transform;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
-import org.apache.wicket.injection.Injector;
 import org.apache.wicket.util.time.Time;
-import org.cast.cwm.xml.service.IXmlService;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
 
-import com.google.inject.Inject;
-
-public class EnsureUniqueWicketIds implements IDOMTransformer {
+/**
+ * Renames wicket:id attributes where necessary so that no two components in the same container
+ * have the same ID.  A duplicate ID gets the lowest numeric suffix that makes it unique, e.g. "x1".
+ */
+public class EnsureUniqueWicketIds implements IDOMVisitable {
 
 	private static final String WICKET_NS = "http://wicket.apache.org";
 	
-	@Inject
-	private IXmlService xmlService;
-
 	public EnsureUniqueWicketIds() {
 		super();
-		Injector.get().inject(this);
 	}
 
 	@Override
 	public Element applyTransform(Element elt, TransformParameters params) {
-		List<String> wicketIds = new ArrayList<String>();
-		NodeList wicketChildren = xmlService.getWicketNodes(elt, false);
-		
-		for (int i=0; i < wicketChildren.getLength(); i++) {
-			Element child = (Element) wicketChildren.item(i);
-			String id = child.getAttributeNS(WICKET_NS, "id");
-			if (!wicketIds.contains(id)) {
-				wicketIds.add(id);
-			} else {
-				int count = 1;
-				String newId = id + count;
-				while(wicketIds.contains(newId))
-					newId = id + count++;
-				wicketIds.add(newId);
-				child.setAttributeNS(WICKET_NS, "id", newId);
-				// log.trace("Found Duplicate Wicket Id ({}) when processing DOM Tree.  Generated new Id ({})", id, newId);
-			}
-			applyTransform(child, params);
-		}
-		return elt;
+		return DOMWalker.walk(elt, newVisitor(elt, params));
+	}
+	
+	@Override
+	public IDOMVisitor newVisitor(Element root, TransformParameters params) {
+		return new Visitor(root);
 	}
 
 	@Override
 	public Time getLastModified(TransformParameters params) {
 		return null;  // this transformation will not change over time.
 	}
+	
+	/**
+	 * IDs used in one container.
+	 */
+	private static class Scope {
+		
+		private final Set<String> used = new HashSet<String>();
+		
+		/**
+		 * ID -> lowest suffix that might still be free.  Suffixes below it are all in use, and stay in use.
+		 */
+		private final Map<String,Integer> nextSuffix = new HashMap<String,Integer>();
+		
+		/**
+		 * @return the given ID if it is not yet used here, otherwise the ID with the lowest free numeric suffix
+		 */
+		private String claim(String id) {
+			if (used.add(id))
+				return id;
+			Integer count = nextSuffix.get(id);
+			if (count == null)
+				count = 1;
+			String newId;
+			do {
+				newId = id + count++;
+			} while (!used.add(newId));
+			nextSuffix.put(id, count);
+			return newId;
+		}
+	}
+	
+	/**
+	 * Keeps the IDs used in each enclosing container.
+	 */
+	private static class Visitor implements IDOMVisitor {
+		
+		private final Deque<Element> containers = new ArrayDeque<Element>();
+		
+		private final Deque<Scope> scopes = new ArrayDeque<Scope>();
+		
+		private Visitor(Element root) {
+			containers.push(root);
+			scopes.push(new Scope());
+		}
+
+		@Override
+		public boolean enter(Element elt) {
+			if (elt == containers.peekLast() || !elt.hasAttributeNS(WICKET_NS, "id"))
+				return true;
+			String id = elt.getAttributeNS(WICKET_NS, "id");
+			String newId = scopes.peek().claim(id);
+			if (!newId.equals(id))
+				elt.setAttributeNS(WICKET_NS, "id", newId);
+			containers.push(elt);
+			scopes.push(new Scope());
+			return true;
+		}
+
+		@Override
+		public void text(Text text) {
+		}
+
+		@Override
+		public void leave(Element elt) {
+			if (elt == containers.peek() && containers.size() > 1) {
+				containers.pop();
+				scopes.pop();
+			}
+		}
+
+		@Override
+		public Element finish(Element root) {
+			return root;
+		}
+	}
 
 }
@@ -56,7 +56,15 @@ public class FilterElements implements IDOMTransformer, Serializable {
 	private static final long serialVersionUID = 1L;
 	public static final String XPATH = "FilterElements:xpath";
 	
-	private static final XPathFactory factory = XPathFactory.newInstance();
+	/**
+	 * XPathFactory and XPath are not thread-safe, so each thread gets its own XPath rather than sharing a factory.
+	 */
+	private static final ThreadLocal<XPath> xPaths = new ThreadLocal<XPath>() {
+		@Override
+		protected XPath initialValue() {
+			return XPathFactory.newInstance().newXPath();
+		}
+	};
 	
 	@Inject
 	IXmlService xmlService;
@@ -75,10 +83,8 @@ public class FilterElements implements IDOMTransformer, Serializable {
 			return n;
 
 		try {
-			XPath xPath;
-			synchronized(factory) {  // XPathFactory is not thread-safe
-				xPath = factory.newXPath();
-			}
+			XPath xPath = xPaths.get();
+			xPath.reset();
 			xPath.setNamespaceContext(xmlService.getNamespaceContext());
 			NodeList keep = (NodeList) xPath.evaluate((String) params.get(XPATH), n, XPathConstants.NODESET);
 
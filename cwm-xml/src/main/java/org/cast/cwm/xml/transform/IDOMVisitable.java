@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.transform;
+
+import org.w3c.dom.Element;
+
+/**
+ * A transformer that can do its work as part of a single walk of the DOM shared with other transformers.
+ * {@link TransformChain} combines consecutive visitable transformers into one walk.
+ */
+public interface IDOMVisitable extends IDOMTransformer {
+	
+	/**
+	 * Create a visitor that will do this transformer's work on the given DOM.
+	 * 
+	 * @param root the element that will be walked
+	 * @param params this can be null
+	 * @return a new visitor, or null if {@link #applyTransform(Element, TransformParameters)} must be used instead
+	 */
+	public IDOMVisitor newVisitor(Element root, TransformParameters params);
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.transform;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Text;
+
+/**
+ * Does the work of a transformer during a depth-first walk of a DOM, which may be shared with other visitors.
+ * A visitor is created by {@link IDOMVisitable#newVisitor(Element, TransformParameters)} for a single walk,
+ * so it can keep state.
+ * <p>
+ * A visitor may change the element it is given and that element's content, and may replace the text node it is given.
+ * It should not remove or move the element it is given.  
+ * 
+ * @see DOMWalker
+ */
+public interface IDOMVisitor {
+	
+	/**
+	 * Called when the walk reaches an element, before its content.
+	 * 
+	 * @param elt the element
+	 * @return false if this visitor need not see the element's content
+	 */
+	public boolean enter(Element elt);
+	
+	/**
+	 * Called for each text node in the content of elements that this visitor has entered.
+	 * 
+	 * @param text the text node
+	 */
+	public void text(Text text);
+	
+	/**
+	 * Called after an element's content.
+	 * 
+	 * @param elt the element
+	 */
+	public void leave(Element elt);
+	
+	/**
+	 * Called once the walk is complete.
+	 * 
+	 * @param root the root of the walk, or the result of the previous visitor's finish
+	 * @return the transformed element, normally the root; may be null
+	 */
+	public Element finish(Element root);
+
+}
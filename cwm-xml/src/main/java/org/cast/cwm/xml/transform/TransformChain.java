@@ -22,21 +22,46 @@ package org.cast.cwm.xml.transform;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.Setter;
 
 import org.apache.wicket.util.time.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
 /**
  * A transform that is composed of a chain of other transformers.
  * When applyTransform is called, it will run each of the sub-transforms in turn on the provided DOM.
+ * Consecutive transformers that implement {@link IDOMVisitable} are run together in a single walk of the DOM.
+ * Time spent in each stage is recorded; see {@link #getStageTimes()}.
  *
  * @author borisgoldowsky
  *
  */
 public class TransformChain implements IDOMTransformer {
 	
+	private static final Logger log = LoggerFactory.getLogger(TransformChain.class);
+
 	protected List<IDOMTransformer> transforms;
 	
+	/**
+	 * If false, each visitable transformer walks the DOM separately.
+	 */
+	@Getter @Setter
+	protected boolean fused = true;
+	
+	/**
+	 * Stage name -> total nanoseconds spent in it.
+	 */
+	private final ConcurrentMap<String, AtomicLong> stageTimes = new ConcurrentHashMap<String, AtomicLong>();
+	
 	/**
 	 * Construct a chain from zero or more specified transformers.
 	 * @param newtransformers
@@ -71,13 +96,95 @@ public class TransformChain implements IDOMTransformer {
 	 */
 	@Override
 	public Element applyTransform(Element n, TransformParameters params) {
+		return applyTransform(n, params, new IDOMVisitor[0]);
+	}
+	
+	/**
+	 * Apply the chain of transforms to the given DOM, and let the given visitors see the result.
+	 * They join the final walk of the DOM if the chain ends with visitable transformers,
+	 * so that, for instance, an index of the result can be built without another pass.
+	 * 
+	 * @param n the element to transform
+	 * @param params this can be null
+	 * @param visitors visitors to run after all the transformers
+	 * @return the transformed element
+	 */
+	public Element applyTransform(Element n, TransformParameters params, IDOMVisitor... visitors) {
+		List<IDOMVisitor> walk = new ArrayList<IDOMVisitor>();
+		List<String> walkNames = new ArrayList<String>();
 		for (IDOMTransformer trans : transforms) {
-			n = trans.applyTransform(n, params);
+			IDOMVisitor visitor = (trans instanceof IDOMVisitable) ? ((IDOMVisitable) trans).newVisitor(n, params) : null;
+			if (visitor != null) {
+				walk.add(visitor);
+				walkNames.add(getStageName(trans));
+				if (fused)
+					continue;
+			}
+			n = runWalk(n, walk, walkNames);
+			if (n != null && visitor == null) {
+				long start = System.nanoTime();
+				n = trans.applyTransform(n, params);
+				recordTime(getStageName(trans), start);
+			}
 			if (n == null)
-				break; // Some transforms can reduce the Element to null
+				return null; // Some transforms can reduce the Element to null
+		}
+		for (IDOMVisitor visitor : visitors) {
+			walk.add(visitor);
+			walkNames.add(getStageName(visitor));
 		}
+		return runWalk(n, walk, walkNames);
+	}
+	
+	/**
+	 * Run any pending visitors in a single walk, and clear the lists.
+	 */
+	private Element runWalk(Element n, List<IDOMVisitor> walk, List<String> walkNames) {
+		if (walk.isEmpty())
+			return n;
+		long start = System.nanoTime();
+		n = DOMWalker.walk(n, walk);
+		StringBuilder name = new StringBuilder();
+		for (String s : walkNames)
+			name.append(name.length() > 0 ? "+" : "").append(s);
+		recordTime(name.toString(), start);
+		walk.clear();
+		walkNames.clear();
 		return n;
 	}
+	
+	private void recordTime(String stage, long start) {
+		long elapsed = System.nanoTime() - start;
+		AtomicLong total = stageTimes.get(stage);
+		if (total == null) {
+			stageTimes.putIfAbsent(stage, new AtomicLong());
+			total = stageTimes.get(stage);
+		}
+		total.addAndGet(elapsed);
+		log.trace("Transform stage {} took {}us", stage, elapsed/1000);
+	}
+	
+	protected String getStageName(Object stage) {
+		String name = stage.getClass().getSimpleName();
+		return name.length() > 0 ? name : stage.getClass().getName();
+	}
+	
+	/**
+	 * Return the total time spent in each stage of this chain.  A stage is either a transformer,
+	 * or a walk shared by several visitable transformers, which is named by joining their names with "+".
+	 * 
+	 * @return map of stage name to milliseconds
+	 */
+	public Map<String, Long> getStageTimes() {
+		Map<String, Long> times = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> e : stageTimes.entrySet())
+			times.put(e.getKey(), e.getValue().get()/1000000);
+		return times;
+	}
+	
+	public void clearStageTimes() {
+		stageTimes.clear();
+	}
 
 	/**
 	 * Last modified date of any transform in the chain.
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.transform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Templates;
+
+import lombok.Getter;
+
+import org.apache.wicket.util.time.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Application-wide store of compiled XSLT {@link Templates}, one per {@link XslTransformer}.
+ * 
+ * Each compiled Templates is remembered along with the last-modified time of the stylesheet and its
+ * dependent files at the time it was compiled.  When the transformer reports a newer time, the 
+ * stylesheet is recompiled on a background thread, and the previous Templates continues to be used
+ * until the new one is ready.  Only the very first compilation of a stylesheet happens on the 
+ * requesting thread, and {@link #compileAll()} can be called at startup to avoid even that.
+ * 
+ * Since the previous Templates may still be in use after the stylesheet changes, transformers report
+ * {@link #getLastModified(XslTransformer, Time)} as their last-modified time rather than the time of
+ * the files themselves.  For a recompiled stylesheet, this is the time the new Templates became available,
+ * so that results cached from the previous Templates are seen as outdated once it is replaced.
+ * 
+ * @author borisgoldowsky
+ */
+public class XslTemplatesRegistry {
+	
+	private static final Logger log = LoggerFactory.getLogger(XslTemplatesRegistry.class);
+	
+	private final ConcurrentMap<XslTransformer, CompiledTemplates> compiled = new ConcurrentHashMap<XslTransformer, CompiledTemplates>();
+	
+	private final Set<XslTransformer> registered = Collections.newSetFromMap(new ConcurrentHashMap<XslTransformer, Boolean>());
+	
+	private final Set<XslTransformer> recompiling = Collections.newSetFromMap(new ConcurrentHashMap<XslTransformer, Boolean>());
+	
+	private ExecutorService recompileExecutor;
+	
+	/**
+	 * Time in milliseconds taken by the last call to {@link #compileAll()}.
+	 */
+	@Getter
+	private long warmUpTime = -1;
+
+	/**
+	 * Time in milliseconds of the longest compilation done on a request thread.
+	 * Should stay at 0 if {@link #compileAll()} was called at startup.
+	 */
+	@Getter
+	private volatile long maxFirstHitTime = 0;
+	
+	/**
+	 * Add a transformer to the set that will be compiled by {@link #compileAll()}.
+	 */
+	public void register (XslTransformer transformer) {
+		registered.add(transformer);
+	}
+	
+	/**
+	 * Compile all registered transformers in parallel, and wait until they are done.
+	 * Failures are logged; the affected transformers will be retried when first used.
+	 */
+	public void compileAll() {
+		long start = System.currentTimeMillis();
+		int threads = Math.max(1, Math.min(registered.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("XslTemplatesRegistry-warmup-"));
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (final XslTransformer transformer : registered) {
+				results.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						compile(transformer, transformer.getLastModified(null));
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					log.error("Could not compile XSL", e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+		}
+		warmUpTime = System.currentTimeMillis() - start;
+		log.info("Compiled {} XSL stylesheets in {}ms using {} threads", new Object[] { registered.size(), warmUpTime, threads });
+	}
+	
+	/**
+	 * Return compiled Templates for the given transformer.
+	 * If the stylesheet has never been compiled, this is done immediately.
+	 * If the stylesheet has been modified since it was compiled, the previous Templates are returned
+	 * and a background recompilation is started.
+	 */
+	public Templates getTemplates (XslTransformer transformer) throws Exception {
+		Time stamp = transformer.getXslLastModified();
+		if (stamp == null)
+			stamp = transformer.getLastModified(null);
+		CompiledTemplates current = compiled.get(transformer);
+		if (current == null) {
+			register(transformer);
+			synchronized (transformer) {
+				current = compiled.get(transformer);
+				if (current == null) {
+					long start = System.currentTimeMillis();
+					current = compile(transformer, stamp);
+					long elapsed = System.currentTimeMillis() - start;
+					maxFirstHitTime = Math.max(maxFirstHitTime, elapsed);
+					log.info("Compiled {} on request thread in {}ms", transformer.getXslFile(), elapsed);
+				}
+			}
+		} else if (current.isOlderThan(stamp)) {
+			scheduleRecompile(transformer, stamp);
+		}
+		return current.templates;
+	}
+	
+	/**
+	 * Return the last-modified time of the Templates that {@link #getTemplates(XslTransformer)} would currently
+	 * return for the transformer.  If the files are newer than those Templates, a background recompilation is started.
+	 * 
+	 * @param transformer the transformer
+	 * @param fileStamp the last-modified time of the transformer's files
+	 * @return time to use as the transformer's last-modified time
+	 */
+	public Time getLastModified (XslTransformer transformer, Time fileStamp) {
+		CompiledTemplates current = compiled.get(transformer);
+		if (current == null)
+			return fileStamp; // will be compiled from the current files when first used
+		if (current.isOlderThan(fileStamp))
+			scheduleRecompile(transformer, fileStamp);
+		return current.available;
+	}
+	
+	/**
+	 * Forget any compiled templates, so that all will be recompiled on next use.
+	 */
+	public void clear() {
+		compiled.clear();
+	}
+	
+	protected CompiledTemplates compile (XslTransformer transformer, Time stamp) throws Exception {
+		long start = System.currentTimeMillis();
+		Templates templates = transformer.compileTemplates();
+		// A replacement must look newer than anything cached from the Templates it replaces
+		Time available = compiled.containsKey(transformer) ? Time.now() : stamp;
+		CompiledTemplates result = new CompiledTemplates(templates, stamp, available);
+		compiled.put(transformer, result);
+		log.debug("Compiled {} in {}ms", transformer.getXslFile(), System.currentTimeMillis() - start);
+		return result;
+	}
+	
+	protected void scheduleRecompile (final XslTransformer transformer, final Time stamp) {
+		if (!recompiling.add(transformer))
+			return;
+		getRecompileExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compile(transformer, stamp);
+				} catch (Exception e) {
+					// Keep using the old templates, but don't retry until the files change again.
+					log.error("Could not recompile " + transformer.getXslFile() + "; continuing with previous version", e);
+					CompiledTemplates old = compiled.get(transformer);
+					if (old != null)
+						compiled.put(transformer, new CompiledTemplates(old.templates, stamp, old.available));
+				} finally {
+					recompiling.remove(transformer);
+				}
+			}
+		});
+	}
+	
+	protected synchronized ExecutorService getRecompileExecutor() {
+		if (recompileExecutor == null)
+			recompileExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("XslTemplatesRegistry-recompile-"));
+		return recompileExecutor;
+	}
+	
+	/**
+	 * Stop the background recompilation thread, abandoning any recompilation in progress.
+	 * It will be restarted if another recompilation is needed.
+	 */
+	public synchronized void shutdown() {
+		if (recompileExecutor != null) {
+			recompileExecutor.shutdownNow();
+			recompileExecutor = null;
+		}
+	}
+	
+	private static class CompiledTemplates {
+		private final Templates templates;
+		/** Last-modified time of the files these Templates were compiled from */
+		private final Time stamp;
+		/** Last-modified time reported for these Templates */
+		private final Time available;
+
+		private CompiledTemplates (Templates templates, Time stamp, Time available) {
+			this.templates = templates;
+			this.stamp = stamp;
+			this.available = available;
+		}
+		
+		private boolean isOlderThan (Time time) {
+			return time != null && (stamp == null || time.after(stamp));
+		}
+	}
+	
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		private NamedThreadFactory (String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
@@ -19,9 +19,12 @@
  */
 package org.cast.cwm.xml.transform;
 
-import java.util.HashSet;
+import java.io.File;
+import java.util.Collections;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
@@ -29,6 +32,7 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamSource;
@@ -40,6 +44,7 @@ import org.apache.wicket.util.time.Time;
 import org.cast.cwm.IInputStreamProvider;
 import org.cast.cwm.InputStreamNotFoundException;
 import org.cast.cwm.xml.FileXmlDocumentSource;
+import org.cast.cwm.xml.IFileChangeListener;
 import org.cast.cwm.xml.service.IXmlService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,10 +56,29 @@ import com.google.inject.Inject;
 public class XslTransformer implements IDOMTransformer {
 	
 	@Getter protected IInputStreamProvider xslFile;
-	private transient Templates xslTemplates;
+	private transient Templates xslTemplates; // only used if there is no XslTemplatesRegistry
+	private transient URIResolver uriResolver;
 	
 	protected Time lastCheckedTime;
-	private Time xslLastModified;
+	private volatile Time xslLastModified;
+	
+	/**
+	 * Set when the XmlService reports that one of the files has changed.  Initially true, so that the
+	 * first request reads the modification times.
+	 */
+	private final AtomicBoolean changed = new AtomicBoolean(true);
+	
+	/**
+	 * True if any of the files can't be watched by the XmlService, so they must be checked periodically.
+	 */
+	private volatile boolean pollingRequired;
+	
+	private final IFileChangeListener changeListener = new IFileChangeListener() {
+		@Override
+		public void fileChanged(File file) {
+			changed.set(true);
+		}
+	};
 	
 	@Inject
 	IXmlService xmlService;
@@ -62,14 +86,36 @@ public class XslTransformer implements IDOMTransformer {
 	/** 
 	 * Files, other than the main XSL file, to check for modifications.
 	 * These would typically be subsidiary XSL files that are imported by the main XSL.
+	 * Files that are included or imported are added automatically when the stylesheet is compiled.
 	 */
-	protected Set<IInputStreamProvider> dependentResources = new HashSet<IInputStreamProvider>();
+	protected Set<IInputStreamProvider> dependentResources = Collections.newSetFromMap(new ConcurrentHashMap<IInputStreamProvider, Boolean>());
 
 	private static final Logger log = LoggerFactory.getLogger(XslTransformer.class);
 
 	public XslTransformer (IInputStreamProvider xslFile) {
 		this.xslFile = xslFile;
 		Injector.get().inject(this);
+		// Created here, since its injection requires the application; compilation may happen on other threads.
+		this.uriResolver = newUriResolver();
+		watch(xslFile);
+	}
+	
+	private void watch(IInputStreamProvider resource) {
+		if (!xmlService.watchForChanges(resource, changeListener))
+			pollingRequired = true;
+	}
+	
+	/**
+	 * Stop watching the stylesheet and its dependent resources for changes, so that the
+	 * XmlService's file monitor no longer refers to this transformer.  Call this when a 
+	 * transformer is discarded.  Afterwards the files are checked periodically, as for
+	 * sources that can't be watched.
+	 */
+	public void unwatch() {
+		pollingRequired = true;
+		xmlService.stopWatching(xslFile, changeListener);
+		for (IInputStreamProvider r : dependentResources)
+			xmlService.stopWatching(r, changeListener);
 	}
 	
 	/**
@@ -83,7 +129,8 @@ public class XslTransformer implements IDOMTransformer {
 	 */
 	public XslTransformer addDependentResources (IInputStreamProvider... resources) {
 		for (IInputStreamProvider r : resources) {
-			dependentResources.add(r);
+			if (dependentResources.add(r))
+				watch(r);
 		}
 		return this;
 	}
@@ -114,14 +161,23 @@ public class XslTransformer implements IDOMTransformer {
 	/**
 	 * Returns the last modified time of the XSL file or any known dependent resources.
 	 * (That is, any that have been been made known to this class via {@link #addDependentResource}.
-	 * To avoid constantly reading the disk or DAV connection, this will only check as often as
+	 * To avoid constantly reading the disk or DAV connection, this will only check when the XmlService
+	 * has reported a change to one of the files, or if some of them can't be watched, as often as
 	 * specified by XmlService's updateCheckInterval; otherwise returning a remembered value.
+	 * 
+	 * If there is an {@link XslTemplatesRegistry}, the time returned is that of the compiled stylesheet
+	 * it will actually use, which lags behind the files while a changed stylesheet is being recompiled.
 	 */
 	@Override
 	public Time getLastModified(TransformParameters params) {
-		if (lastCheckedTime == null || lastCheckedTime.elapsedSince().seconds() > xmlService.getUpdateCheckInterval())
+		boolean due = pollingRequired 
+				&& (lastCheckedTime == null || lastCheckedTime.elapsedSince().seconds() > xmlService.getUpdateCheckInterval());
+		if (changed.getAndSet(false) || due)
 			updateLastModified();
-		return xslLastModified;
+		XslTemplatesRegistry registry = xmlService.getTemplatesRegistry();
+		if (registry == null)
+			return xslLastModified;
+		return registry.getLastModified(this, xslLastModified);
 	}
 
 	/**
@@ -142,10 +198,35 @@ public class XslTransformer implements IDOMTransformer {
 		}
 	}
 	
-	public synchronized Templates getXslTemplates() 
-	  throws TransformerConfigurationException, InputStreamNotFoundException, TransformerFactoryConfigurationError {
+	/**
+	 * @return the last-modified time found by the most recent check, without checking again.
+	 */
+	Time getXslLastModified() {
+		return xslLastModified;
+	}
+	
+	/**
+	 * Return compiled templates for this stylesheet.  These are held by the 
+	 * application's {@link XslTemplatesRegistry} if there is one, otherwise by this object.
+	 */
+	public Templates getXslTemplates() throws TransformerConfigurationException, InputStreamNotFoundException {
+		XslTemplatesRegistry registry = xmlService.getTemplatesRegistry();
+		if (registry == null)
+			return getLocalXslTemplates();
+		try {
+			return registry.getTemplates(this);
+		} catch (TransformerConfigurationException e) {
+			throw e;
+		} catch (InputStreamNotFoundException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private synchronized Templates getLocalXslTemplates() throws TransformerConfigurationException, InputStreamNotFoundException {
 		if (xslTemplates == null)
-			readXSL();
+			xslTemplates = compileTemplates();
 		return xslTemplates;
 	}
 	
@@ -158,15 +239,14 @@ public class XslTransformer implements IDOMTransformer {
 
 	/** 
 	 * Load XSLT Templates from the given stylesheet file. 
-	 * This is called when the DtbookDocument is created,
-	 * any time that the XSLT file is changed, and whenever the
-	 * DtbookDocument object is re-instantiated after serialization
-	 * since Templates is not serializable and is marked transient.
+	 * This is called when the stylesheet is first used, and any time that the
+	 * XSLT file is changed.  It does not require a request or application context,
+	 * so it can be called from a background thread.
 	 * @throws InputStreamNotFoundException 
 	 * @throws TransformerFactoryConfigurationError 
 	 * @throws TransformerConfigurationException 
 	 */
-	synchronized private void readXSL() 
+	public Templates compileTemplates() 
 	  throws InputStreamNotFoundException, TransformerConfigurationException, TransformerFactoryConfigurationError {
 		log.debug ("Reading XSL stylesheet {}", xslFile);
 		// Setup a transformer
@@ -178,9 +258,31 @@ public class XslTransformer implements IDOMTransformer {
 		if (xslFile instanceof FileXmlDocumentSource)
 			xslSource.setSystemId(((FileXmlDocumentSource)xslFile).getFile().getAbsolutePath());
 
+		// Compilation is rare enough that factories aren't worth keeping; they are not thread-safe,
+		// and holding them in a static ThreadLocal would pin the webapp classloader in container threads.
 		TransformerFactory tf = TransformerFactory.newInstance();
-		tf.setURIResolver(new TransformContextURIResolver());
-		xslTemplates = tf.newTemplates(xslSource);
+		tf.setURIResolver(getUriResolver());
+		return tf.newTemplates(xslSource);
+	}
+	
+	private URIResolver getUriResolver() {
+		if (uriResolver == null)
+			uriResolver = newUriResolver();
+		return uriResolver;
+	}
+	
+	/**
+	 * Create a resolver that also records each included or imported file as a dependent resource,
+	 * so that changes to it cause recompilation.
+	 */
+	private URIResolver newUriResolver() {
+		return new TransformContextURIResolver() {
+			@Override
+			protected StreamSource getValidStream(File file) {
+				addDependentResources(new FileXmlDocumentSource(new org.apache.wicket.util.file.File(file)));
+				return super.getValidStream(file);
+			}
+		};
 	}
 	
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import net.sf.ehcache.pool.sizeof.ReflectionSizeOf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+public class CompactTransformResultTest {
+	
+	private static final Logger log = LoggerFactory.getLogger(CompactTransformResultTest.class);
+
+	private Element dom;
+	
+	@Before
+	public void setUp() throws Exception {
+		StringBuilder sb = new StringBuilder("<div xmlns=\"http://www.w3.org/1999/xhtml\" xmlns:wicket=\"http://wicket.apache.org\">");
+		for (int i=0; i<200; i++) {
+			sb.append("<div class=\"section\" wicket:id=\"section\">")
+				.append("<h2>Section heading</h2>")
+				.append("<p>Some paragraph text, <em>with</em> <strong>inline</strong> markup, long enough to be typical of a book.</p>")
+				.append("<p>Another paragraph with a <a href=\"#\" wicket:id=\"glossaryLink\">glossary</a> term.</p>")
+				.append("<img src=\"picture.png\" alt=\"A picture\" wicket:id=\"image\"/>")
+				.append("</div>");
+		}
+		sb.append("</div>");
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		dom = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sb.toString().getBytes("UTF-8"))).getDocumentElement();
+	}
+
+	@Test
+	public void indexesWicketElements() {
+		WicketNodeIndex index = new CompactTransformResult(dom).getWicketNodeIndex();
+		assertEquals(600, index.size());
+		assertEquals("section", index.getWicketId(0));
+		assertEquals(-1, index.getParent(0));
+		assertEquals("glossaryLink", index.getWicketId(1));
+		assertEquals(0, index.getParent(1));
+		assertEquals("image", index.getWicketId(2));
+		assertEquals(0, index.getParent(2));
+		assertEquals(3, index.getParent(4));
+		
+		Element[] elements = index.toElements();
+		assertEquals("#", elements[1].getAttributeNS(null, "href"));
+		assertEquals("glossaryLink", elements[1].getAttributeNS(WicketNodeIndex.WICKET_NS, "id"));
+		assertEquals(elements[0], elements[1].getParentNode());
+	}
+	
+	@Test
+	public void preservesMarkup() {
+		TransformResult full = new TransformResult(dom);
+		CompactTransformResult compact = new CompactTransformResult(dom);
+		assertEquals(full.getString(), compact.getString());
+		assertEquals(dom.getElementsByTagNameNS("*", "p").getLength(), compact.getElement().getElementsByTagNameNS("*", "p").getLength());
+	}
+	
+	@Test
+	public void usesLessMemory() {
+		TransformResult full = new TransformResult(dom);
+		full.getString(); // as it would be after first render
+		CompactTransformResult compact = new CompactTransformResult(dom);
+		ReflectionSizeOf sizeOf = new ReflectionSizeOf();
+		long fullSize = sizeOf.deepSizeOf(Integer.MAX_VALUE, false, full).getCalculated();
+		long compactSize = sizeOf.deepSizeOf(Integer.MAX_VALUE, false, compact).getCalculated();
+		log.info("Transform result sizes: DOM+String {} bytes, compact {} bytes", fullSize, compactSize);
+		assertTrue("Compact form should be smaller", compactSize < fullSize);
+	}
+
+}
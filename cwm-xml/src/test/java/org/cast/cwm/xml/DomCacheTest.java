@@ -0,0 +1,239 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import net.sf.ehcache.CacheManager;
+
+import org.cast.cwm.xml.DomCache.DOMKey;
+import org.cast.cwm.xml.DomCache.ObjectKey;
+import org.cast.cwm.xml.transform.TransformParameters;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class DomCacheTest {
+	
+	private static final String WICKET_NS = "http://wicket.apache.org";
+	
+	@After
+	public void tearDown() {
+		// Let other tests create the cache with their own limits
+		CacheManager.getInstance().removeCache(DomCache.class.getName());
+	}
+
+	@Test
+	public void keyIgnoresParameterOrder() {
+		TransformParameters first = new TransformParameters();
+		first.put("a", "1");
+		first.put("b", Boolean.TRUE);
+		TransformParameters second = new TransformParameters();
+		second.put("b", Boolean.TRUE);
+		second.put("a", "1");
+		assertEquals(new DOMKey("doc_sec", "trans", first), new DOMKey("doc_sec", "trans", second));
+		assertEquals(new DOMKey("doc_sec", "trans", first).hashCode(), new DOMKey("doc_sec", "trans", second).hashCode());
+	}
+	
+	@Test
+	public void keyDistinguishesComponents() {
+		TransformParameters params = new TransformParameters();
+		params.put("a", "1");
+		DOMKey key = new DOMKey("doc_sec", "trans", params);
+		assertFalse(key.equals(new DOMKey("doc_sec2", "trans", params)));
+		assertFalse(key.equals(new DOMKey("doc_sec", "trans2", params)));
+		assertFalse(key.equals(new DOMKey("doc_sec", "trans", null)));
+		
+		TransformParameters other = new TransformParameters();
+		other.put("a", Integer.valueOf(1));
+		assertFalse("Same string form but different type", key.equals(new DOMKey("doc_sec", "trans", other)));
+		
+		// Adjacent values must not run together
+		assertFalse(new DOMKey("ab", "c", null).equals(new DOMKey("a", "bc", null)));
+	}
+	
+	@Test
+	public void enumKeyIgnoresToString() {
+		TransformParameters first = new TransformParameters();
+		first.put("a", Level.LOW);
+		TransformParameters second = new TransformParameters();
+		second.put("a", Level.HIGH);
+		assertFalse("Constants with the same toString()", new DOMKey("doc_sec", "trans", first).equals(new DOMKey("doc_sec", "trans", second)));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void fingerprintRejectsOtherValues() {
+		TransformParameters params = new TransformParameters();
+		params.put("a", new Value("1"));
+		new DOMKey("doc_sec", "trans", params);
+	}
+	
+	@Test
+	public void objectKeyComparesValues() {
+		TransformParameters first = new TransformParameters();
+		first.put("a", new Value("1"));
+		TransformParameters second = new TransformParameters();
+		second.put("a", new Value("1"));
+		TransformParameters other = new TransformParameters();
+		other.put("a", new Value("2"));
+		assertFalse(DOMKey.canFingerprint("doc_sec", first));
+		assertEquals("Equal values without a value-based toString()", 
+				new ObjectKey("doc_sec", "trans", first), new ObjectKey("doc_sec", "trans", second));
+		assertFalse("Different values with the same toString()", 
+				new ObjectKey("doc_sec", "trans", first).equals(new ObjectKey("doc_sec", "trans", other)));
+	}
+	
+	@Test
+	public void objectKeyCopiesParameters() {
+		TransformParameters params = new TransformParameters();
+		params.put("a", new Value("1"));
+		ObjectKey key = new ObjectKey("doc_sec", "trans", params);
+		int hash = key.hashCode();
+		params.put("b", "2");
+		assertEquals(hash, key.hashCode());
+		assertFalse(key.equals(new ObjectKey("doc_sec", "trans", params)));
+	}
+	
+	@Test
+	public void keySurvivesSerialization() throws Exception {
+		TransformParameters params = new TransformParameters();
+		params.put("a", "1");
+		DOMKey key = new DOMKey("doc_sec", "trans", params);
+		assertEquals(key, roundTrip(key));
+	}
+	
+	@Test
+	public void transformResultSurvivesSerialization() throws Exception {
+		Element elt = newElement("section", 10);
+		TransformResult result = new TransformResult(elt);
+		result.setCacheKey("key@1/2");
+		
+		TransformResult copy = roundTrip(result);
+		assertEquals("key@1/2", copy.getCacheKey());
+		assertFalse(copy.isEmpty());
+		Element parsed = copy.getElement();
+		assertNotNull("Element should be re-parsed from the serialized markup", parsed);
+		assertEquals("section", parsed.getLocalName());
+		assertEquals(10, parsed.getElementsByTagName("p").getLength());
+		assertEquals("p3", ((Element) parsed.getElementsByTagName("p").item(3)).getAttributeNS(WICKET_NS, "id"));
+		assertEquals(result.getString(), copy.getString());
+	}
+	
+	@Test
+	public void compactTransformResultSurvivesSerialization() throws Exception {
+		CompactTransformResult result = new CompactTransformResult(newElement("section", 5));
+		CompactTransformResult copy = roundTrip(result);
+		assertEquals(result.getString(), copy.getString());
+		assertEquals(5, copy.getWicketNodeIndex().size());
+		assertEquals("p4", copy.getWicketNodeIndex().getWicketId(4));
+	}
+	
+	@Test
+	public void evictsToStayWithinByteLimit() throws Exception {
+		CacheManager.getInstance().removeCache(DomCache.class.getName());
+		long maxBytes = 200000;
+		DomCache cache = new DomCache(maxBytes, 0);
+		int textLength = 30000; // so each entry measures at least this many bytes
+		int count = 50;
+		for (int i=0; i<count; i++) {
+			Element elt = newElement("section", 0);
+			StringBuilder text = new StringBuilder(textLength);
+			for (int c=0; c<textLength; c++)
+				text.append('x');
+			elt.appendChild(elt.getOwnerDocument().createTextNode(text.toString()));
+			cache.put(new DOMKey("doc_" + i, "trans", null), new TransformResult(elt));
+		}
+		int size = cache.getCache().getSize();
+		assertTrue("Cache should have evicted entries, but holds " + size, size < count);
+		assertTrue("Cache holds " + size + " entries, more than fit in " + maxBytes + " bytes", 
+				(long) size * textLength <= maxBytes);
+		assertNotNull("Most recent entry should be kept", cache.get(new DOMKey("doc_" + (count-1), "trans", null)));
+	}
+	
+	private Element newElement(String name, int children) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		Document doc = dbf.newDocumentBuilder().newDocument();
+		Element root = doc.createElementNS(null, name);
+		doc.appendChild(root);
+		for (int i=0; i<children; i++) {
+			Element p = doc.createElementNS(null, "p");
+			p.setAttributeNS(WICKET_NS, "wicket:id", "p" + i);
+			p.appendChild(doc.createTextNode("Paragraph " + i));
+			root.appendChild(p);
+		}
+		return root;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T extends Serializable> T roundTrip(T object) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		try {
+			return (T) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static enum Level {
+		LOW, HIGH;
+		@Override
+		public String toString() {
+			return "level";
+		}
+	}
+	
+	/**
+	 * A value with equals() and hashCode() but the default toString().
+	 */
+	private static class Value implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String value;
+		Value(String value) {
+			this.value = value;
+		}
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Value && ((Value) o).value.equals(value);
+		}
+		@Override
+		public int hashCode() {
+			return value.hashCode();
+		}
+	}
+
+}
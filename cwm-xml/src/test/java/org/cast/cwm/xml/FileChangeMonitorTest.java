@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileChangeMonitorTest {
+	
+	private FileChangeMonitor monitor;
+	
+	private File file;
+	
+	private List<File> changes;
+
+	@Before
+	public void setUp() throws IOException {
+		// Long interval, so that the test controls when checks happen
+		monitor = new FileChangeMonitor(60000);
+		file = File.createTempFile("monitor", ".xml");
+		write(file, "<a/>");
+		changes = Collections.synchronizedList(new ArrayList<File>());
+	}
+	
+	@After
+	public void tearDown() {
+		monitor.shutdown();
+		file.delete();
+	}
+	
+	@Test
+	public void reportsModification() throws IOException {
+		monitor.watch(file, new RecordingListener());
+		monitor.checkAll();
+		assertEquals("Nothing has changed yet", 0, changes.size());
+		
+		write(file, "<a>changed</a>");
+		monitor.checkAll();
+		assertEquals(1, changes.size());
+		assertEquals(file.getAbsoluteFile(), changes.get(0));
+		
+		monitor.checkAll();
+		assertEquals("Change should only be reported once", 1, changes.size());
+	}
+	
+	@Test
+	public void reportsCreationAndDeletion() throws IOException {
+		File missing = new File(file.getPath() + ".new");
+		monitor.watch(missing, new RecordingListener());
+		write(missing, "<a/>");
+		monitor.checkAll();
+		assertEquals(1, changes.size());
+		missing.delete();
+		monitor.checkAll();
+		assertEquals(2, changes.size());
+	}
+	
+	@Test
+	public void notifiesEachListenerOnce() throws IOException {
+		RecordingListener listener = new RecordingListener();
+		monitor.watch(file, new IFileChangeListener() {
+			@Override
+			public void fileChanged(File file) {
+				throw new IllegalStateException("should not stop other listeners");
+			}
+		});
+		monitor.watch(file, listener);
+		monitor.watch(file, listener);
+		assertEquals(1, monitor.getSize());
+
+		write(file, "<a>changed</a>");
+		monitor.checkAll();
+		assertEquals(1, changes.size());
+		assertEquals(1, monitor.getChangeCount().get());
+	}
+	
+	@Test
+	public void unwatchedListenerIsReleased() throws IOException {
+		RecordingListener kept = new RecordingListener();
+		RecordingListener removed = new RecordingListener();
+		monitor.watch(file, kept);
+		monitor.watch(file, removed);
+		monitor.unwatch(file, removed);
+		assertEquals("File still has a listener", 1, monitor.getSize());
+		
+		write(file, "<a>changed</a>");
+		monitor.checkAll();
+		assertEquals("Only the remaining listener should be told", 1, changes.size());
+		
+		monitor.unwatch(file, kept);
+		assertEquals("File without listeners should not be checked", 0, monitor.getSize());
+	}
+	
+	private static void write(File f, String content) throws IOException {
+		FileWriter writer = new FileWriter(f);
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+		// Make sure the timestamp moves even on filesystems with coarse resolution
+		f.setLastModified(f.lastModified() + 2000);
+	}
+
+	private class RecordingListener implements IFileChangeListener {
+		@Override
+		public void fileChanged(File file) {
+			changes.add(file);
+		}
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.when;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.cast.cwm.test.CwmBaseTestCase;
+import org.cast.cwm.test.InjectionTestHelper;
+import org.cast.cwm.xml.parser.XmlParser;
+import org.cast.cwm.xml.service.IXmlService;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class XmlDocumentListTest extends CwmBaseTestCase {
+	
+	private static final String PAGE = "page";
+	
+	private List<java.io.File> files = new ArrayList<java.io.File>();
+	
+	private XmlDocumentList list;
+	
+	@Override
+	protected boolean isApplicationThemed() {
+		return false;
+	}
+
+	@Override
+	protected InjectionTestHelper getInjectionTestHelper() {
+		return new InjectionTestHelper(); 
+	}
+
+	@Override
+	public void populateInjection() throws Exception {
+		IXmlService xmlService = injectionHelper.injectMock(IXmlService.class);
+		when(xmlService.getUpdateCheckInterval()).thenReturn(-1); // always check files
+	}
+	
+	@Override
+	public void setUpData() throws Exception {
+		list = new XmlDocumentList();
+		int[] pageCounts = { 3, 0, 2 };
+		for (int i=0; i<pageCounts.length; i++) {
+			java.io.File file = java.io.File.createTempFile("book" + i, ".xml");
+			files.add(file);
+			writePages(file, "d" + i, pageCounts[i]);
+		}
+	}
+	
+	private void addDocuments() {
+		for (int i=0; i<files.size(); i++)
+			list.add(new XmlDocument("book" + i, new FileXmlDocumentSource(files.get(i)), new PageParser(), null));
+	}
+	
+	@After
+	public void tearDown() {
+		for (java.io.File file : files)
+			file.delete();
+	}
+
+	@Test
+	public void countsLabelsAcrossDocuments() {
+		addDocuments();
+		assertEquals(5, list.getLabelCount(PAGE));
+		assertEquals(0, list.getLabelCount("chapter"));
+		String[] expected = { "d0p0", "d0p1", "d0p2", "d2p0", "d2p1" };
+		for (int n=1; n<=expected.length; n++) {
+			XmlSection sec = list.getByLabel(PAGE, n);
+			assertEquals(expected[n-1], sec.getId());
+			assertEquals(n, list.getLabelIndex(PAGE, sec));
+		}
+		assertNull(list.getByLabel(PAGE, 0));
+		assertNull(list.getByLabel(PAGE, 6));
+		assertNull(list.getByLabel("chapter", 1));
+		assertEquals(-1, list.getLabelIndex(PAGE, list.getDocumentList().get(0).getTocSection()));
+	}
+	
+	@Test
+	public void addingDocumentUpdatesIndex() {
+		addDocuments();
+		assertEquals(5, list.getLabelCount(PAGE));
+		XmlDocument extra = new XmlDocument("extra", new FileXmlDocumentSource(files.get(0)), new PageParser(), null);
+		list.add(extra);
+		assertEquals(8, list.getLabelCount(PAGE));
+		assertSame(extra, list.getByLabel(PAGE, 6).getXmlDocument());
+	}
+	
+	@Test
+	public void reusesIndexUntilReload() {
+		addDocuments();
+		XmlDocumentList.LabelIndex index = list.getLabelIndex();
+		assertSame(index, list.getLabelIndex());
+		assertEquals(5, list.getLabelCount(PAGE));
+		assertSame("Lookups should not rebuild the index", index, list.getLabelIndex());
+	}
+	
+	@Test
+	public void listsDoNotObserveDocuments() {
+		addDocuments();
+		XmlDocument doc = list.getDocumentList().get(0);
+		int observers = doc.getObservers() == null ? 0 : doc.getObservers().size();
+		for (int i=0; i<10; i++)
+			new XmlDocumentList().add(doc).getLabelCount(PAGE);
+		assertEquals("Lists should not be held by their documents",
+				observers, doc.getObservers() == null ? 0 : doc.getObservers().size());
+	}
+	
+	@Test
+	public void reloadUpdatesIndex() throws Exception {
+		addDocuments();
+		assertEquals(5, list.getLabelCount(PAGE));
+		java.io.File file = files.get(1);
+		long lastModified = file.lastModified();
+		writePages(file, "new", 4);
+		file.setLastModified(lastModified + 2000);
+		
+		long deadline = System.currentTimeMillis() + 10000;
+		while (list.getLabelCount(PAGE) != 9 && System.currentTimeMillis() < deadline) {
+			list.getDocumentList().get(1).getLastModified();
+			Thread.sleep(10);
+		}
+		assertEquals(9, list.getLabelCount(PAGE));
+		assertEquals("new0", list.getByLabel(PAGE, 4).getId());
+		assertEquals("d2p0", list.getByLabel(PAGE, 8).getId());
+		assertEquals(8, list.getLabelIndex(PAGE, list.getByLabel(PAGE, 8)));
+	}
+	
+	private void writePages(java.io.File file, String prefix, int pages) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write("<book>");
+			for (int p=0; p<pages; p++)
+				writer.write("<page id=\"" + prefix + (prefix.startsWith("d") ? "p" : "") + p + "\"/>");
+			writer.write("</book>");
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * A section that is labeled with its element name.
+	 */
+	public static class LabeledSection extends XmlSection {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public List<? extends Serializable> getLabels() {
+			return Collections.singletonList(getType());
+		}
+	}
+
+	/**
+	 * Makes a section for the root element and each of its children.
+	 */
+	private static class PageParser extends XmlParser {
+		
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public XmlSection parse(InputStream in) {
+			try {
+				DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+				factory.setNamespaceAware(true);
+				Document document = factory.newDocumentBuilder().parse(in);
+				XmlSection root = new LabeledSection();
+				root.init(doc, null, XmlSection.DOCUMENT_ID, document.getDocumentElement(), "book");
+				addToIdMap(root);
+				for (Node n = document.getDocumentElement().getFirstChild(); n != null; n = n.getNextSibling()) {
+					if (n instanceof Element) {
+						Element elt = (Element) n;
+						addToIdMap(root.addChild(elt.getAttribute("id"), elt, "page"));
+					}
+				}
+				return root;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+}
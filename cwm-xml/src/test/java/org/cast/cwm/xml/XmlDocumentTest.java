@@ -0,0 +1,271 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.time.Time;
+import org.cast.cwm.test.CwmBaseTestCase;
+import org.cast.cwm.test.InjectionTestHelper;
+import org.cast.cwm.xml.parser.XmlParser;
+import org.cast.cwm.xml.service.IXmlService;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class XmlDocumentTest extends CwmBaseTestCase {
+	
+	private static final int READERS = 8;
+	
+	private static final int VERSIONS = 20;
+
+	private File xmlFile;
+	
+	private long baseTime;
+	
+	private TestParser parser;
+	
+	@Override
+	protected boolean isApplicationThemed() {
+		return false;
+	}
+
+	@Override
+	protected InjectionTestHelper getInjectionTestHelper() {
+		return new InjectionTestHelper(); 
+	}
+
+	@Override
+	public void setUpData() throws Exception {
+		xmlFile = new File(java.io.File.createTempFile("document", ".xml"));
+		baseTime = xmlFile.lastModified();
+		writeVersion(1);
+		parser = new TestParser();
+	}
+
+	@Override
+	public void populateInjection() throws Exception {
+		IXmlService xmlService = injectionHelper.injectMock(IXmlService.class);
+		when(xmlService.getUpdateCheckInterval()).thenReturn(-1); // always check files
+	}
+	
+	@After
+	public void tearDown() {
+		xmlFile.delete();
+	}
+	
+	@Test
+	public void readersDoNotWaitForReload() throws Exception {
+		final List<String> observed = new CopyOnWriteArrayList<String>();
+		XmlDocument doc = new XmlDocument("test", new FileXmlDocumentSource(xmlFile), parser, null);
+		doc.addObserver(new IDocumentObserver() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public void xmlUpdated(XmlDocument doc) {
+				observed.add(getVersion(doc));
+			}
+		}, false);
+		Time original = doc.getLastModified();
+		
+		parser.gate = new CountDownLatch(1);
+		writeVersion(2);
+		doc.getLastModified();
+		waitFor(parser.started, 2);
+		
+		// The reload is now stuck in the parser; readers should still get the first version.
+		assertEquals("1", getVersion(doc));
+		assertNotNull(doc.getById("b1"));
+		assertEquals(original, doc.getLastModified());
+		
+		parser.gate.countDown();
+		waitForVersion(doc, 2);
+		assertNotNull(doc.getById("b2"));
+		assertNull(doc.getById("b1"));
+		waitFor(observed, 1);
+		assertEquals("Observers should be told after the new version is in place", "2", observed.get(0));
+	}
+	
+	@Test
+	public void reloadsUnderConcurrentReads() throws Exception {
+		final XmlDocument doc = new XmlDocument("test", new FileXmlDocumentSource(xmlFile), parser, null);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+		final AtomicInteger reads = new AtomicInteger();
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int i=0; i<READERS; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					int lastSeen = 0;
+					try {
+						while (!stop.get()) {
+							doc.getLastModified();
+							XmlSection toc = doc.getTocSection();
+							int version = Integer.parseInt(toc.getElement().getAttribute("version"));
+							assertTrue("Versions should never go backwards", version >= lastSeen);
+							lastSeen = version;
+							assertEquals("Snapshot should be complete", 2, toc.getChildren().size());
+							assertNotNull(doc.getById("a"));
+							reads.incrementAndGet();
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			readers.add(t);
+			t.start();
+		}
+		
+		for (int v=2; v<=VERSIONS; v++) {
+			writeVersion(v);
+			Thread.sleep(20);
+		}
+		waitForVersion(doc, VERSIONS);
+		stop.set(true);
+		for (Thread t : readers)
+			t.join(10000);
+		
+		if (!errors.isEmpty())
+			throw new AssertionError(errors.peek());
+		assertTrue(reads.get() > 0);
+		assertNotNull(doc.getById("b" + VERSIONS));
+	}
+	
+	@Test
+	public void unreadableDocumentHasNoSections() throws Exception {
+		FileWriter writer = new FileWriter(xmlFile);
+		try {
+			writer.write("<book><sec");
+		} finally {
+			writer.close();
+		}
+		XmlDocument doc = new XmlDocument("test", new FileXmlDocumentSource(xmlFile), parser, null);
+		assertNull(doc.getTocSection());
+		assertNull(doc.getDocumentNamespace());
+		assertNull(doc.getById("a"));
+		assertNull(doc.getDocument());
+		assertNull(doc.getLongDescSection("img"));
+		assertNull(doc.getByLabel("section", 1));
+		assertEquals(0, doc.getLabelCount("section"));
+	}
+	
+	private void writeVersion(int version) throws IOException {
+		// Write and then rename, as editors do, so the document never sees a partial file
+		java.io.File temp = new java.io.File(xmlFile.getPath() + ".tmp");
+		FileWriter writer = new FileWriter(temp);
+		try {
+			writer.write("<book version=\"" + version + "\"><sec id=\"a\"/><sec id=\"b" + version + "\"/></book>");
+		} finally {
+			writer.close();
+		}
+		// Make sure each version has a later timestamp, even with coarse filesystem resolution
+		temp.setLastModified(baseTime + version * 2000L);
+		if (!temp.renameTo(xmlFile))
+			throw new IOException("Could not replace " + xmlFile);
+	}
+	
+	private static String getVersion(XmlDocument doc) {
+		return doc.getTocSection().getElement().getAttribute("version");
+	}
+	
+	private static void waitForVersion(XmlDocument doc, int version) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!String.valueOf(version).equals(getVersion(doc)) && System.currentTimeMillis() < deadline) {
+			doc.getLastModified();
+			Thread.sleep(10);
+		}
+		assertEquals(String.valueOf(version), getVersion(doc));
+	}
+	
+	private static void waitFor(List<?> list, int size) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (list.size() < size && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(size, list.size());
+	}
+	
+	private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (counter.get() < value && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(value, counter.get());
+	}
+
+	/**
+	 * Makes a section for the root element and each of its children; optionally waits before parsing.
+	 */
+	private static class TestParser extends XmlParser {
+		
+		final AtomicInteger started = new AtomicInteger();
+		
+		volatile CountDownLatch gate;
+
+		@Override
+		public XmlSection parse(InputStream in) {
+			started.incrementAndGet();
+			try {
+				if (gate != null)
+					gate.await(10, TimeUnit.SECONDS);
+				Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+				XmlSection root = new XmlSection();
+				root.init(doc, null, XmlSection.DOCUMENT_ID, document.getDocumentElement(), "book");
+				addToIdMap(root);
+				for (Node n = document.getDocumentElement().getFirstChild(); n != null; n = n.getNextSibling()) {
+					if (n instanceof Element) {
+						Element elt = (Element) n;
+						addToIdMap(root.addChild(elt.getAttribute("id"), elt, "section"));
+					}
+				}
+				return root;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+public class XmlSectionTest {
+	
+	private static final Logger log = LoggerFactory.getLogger(XmlSectionTest.class);
+	
+	private static final String[] TYPES = { "level1", "level2", "level3", "sidebar" };
+	
+	private Document dom;
+	
+	private XmlDocument xmlDocument;
+	
+	@Before
+	public void setUp() throws Exception {
+		dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		xmlDocument = mock(XmlDocument.class);
+	}
+
+	@Test
+	public void navigationMatchesTreeWalk() {
+		XmlSection walked = makeRandomTree(new Random(3), 300);
+		XmlSection indexed = makeRandomTree(new Random(3), 300);
+		XmlSectionNavigation.build(indexed);
+		
+		List<XmlSection> walkedSections = preorder(walked);
+		List<XmlSection> indexedSections = preorder(indexed);
+		assertEquals(walkedSections.size(), indexedSections.size());
+		for (int i=0; i<walkedSections.size(); i++) {
+			XmlSection w = walkedSections.get(i);
+			XmlSection s = indexedSections.get(i);
+			assertEquals(-1, w.getPosition());
+			assertEquals(i, s.getPosition());
+			assertEquals(w.getIndex(), s.getIndex());
+			assertEquals(w.getNext(), s.getNext());
+			assertEquals(w.getPrev(), s.getPrev());
+			assertEquals(w.getFollowing(), s.getFollowing());
+			assertEquals(w.getPreceding(), s.getPreceding());
+			assertEquals(w.getFollowingSameType(), s.getFollowingSameType());
+			assertEquals(w.getPrecedingSameType(), s.getPrecedingSameType());
+			assertEquals(w.getNumbering(3, "."), s.getNumbering(3, "."));
+			for (String type : TYPES) {
+				assertEquals(w.getFollowingOfType(type), s.getFollowingOfType(type));
+				assertEquals(w.getPrecedingOfType(type), s.getPrecedingOfType(type));
+			}
+			for (int j=0; j<walkedSections.size(); j+=7)
+				assertEquals(w.isAncestorOf(walkedSections.get(j)), s.isAncestorOf(indexedSections.get(j)));
+		}
+	}
+	
+	@Test
+	public void addingChildFallsBackToTreeWalk() {
+		XmlSection root = makeBook(3, 3);
+		XmlSectionNavigation navigation = XmlSectionNavigation.build(root);
+		XmlSection chapter = root.getChild(1);
+		XmlSection added = chapter.addChild("added", dom.createElementNS(null, "level2"), "Added");
+		
+		assertTrue(navigation.isStale());
+		assertEquals(-1, chapter.getPosition());
+		assertEquals(3, added.getIndex());
+		assertSame(chapter.getChild(2), added.getPrev());
+		assertEquals(added, chapter.getChild(2).getFollowingSameType());
+		assertEquals(root.getChild(2).getChild(0), added.getFollowingSameType());
+		
+		XmlSectionNavigation.build(root);
+		assertEquals(9, added.getPosition());
+		assertEquals(added, chapter.getChild(2).getFollowingSameType());
+		assertTrue(chapter.isAncestorOf(added));
+		assertFalse(root.getChild(2).isAncestorOf(added));
+	}
+	
+	@Test
+	public void emptyTypeHasNoMatches() {
+		XmlSection root = makeBook(2, 2);
+		XmlSectionNavigation.build(root);
+		assertNull(root.getFollowingOfType("sidebar"));
+		assertNull(root.getChild(1).getPrecedingOfType("sidebar"));
+		assertNull(root.getFollowing());
+		assertNull(root.getPreceding());
+	}
+
+	@Test
+	public void benchmark() {
+		XmlSection walked = makeBook(10, 500);
+		XmlSection indexed = makeBook(10, 500);
+		long buildStart = System.nanoTime();
+		XmlSectionNavigation navigation = XmlSectionNavigation.build(indexed);
+		long buildTime = System.nanoTime() - buildStart;
+		assertEquals(5011, navigation.size());
+		
+		long walkStart = System.nanoTime();
+		int walkedCount = navigate(walked);
+		long walkTime = System.nanoTime() - walkStart;
+		
+		long indexedStart = System.nanoTime();
+		int indexedCount = navigate(indexed);
+		long indexedTime = System.nanoTime() - indexedStart;
+		
+		log.info("Navigating {} sections: tree walk {}ms, precomputed {}ms (built in {}ms)",
+				new Object[] { navigation.size(), walkTime/1000000, indexedTime/1000000, buildTime/1000000 });
+		assertEquals(walkedCount, indexedCount);
+	}
+	
+	/**
+	 * Ask each section for the things a page with breadcrumbs, numbering and next/previous links would.
+	 * @return a count of non-null results, so the work can't be skipped and the two trees can be compared
+	 */
+	private int navigate(XmlSection root) {
+		int found = 0;
+		for (XmlSection sec : preorder(root)) {
+			sec.getNumbering(2, ".");
+			if (sec.getNext() != null)
+				found++;
+			if (sec.getPrev() != null)
+				found++;
+			if (sec.getFollowingSameType() != null)
+				found++;
+			if (sec.getPrecedingSameType() != null)
+				found++;
+			if (sec.getIndex() % 50 == 0 && sec.getFollowingOfType("level1") != null)
+				found++;
+		}
+		return found;
+	}
+	
+	/**
+	 * A book with the given number of chapters, each with the given number of pages.
+	 */
+	private XmlSection makeBook(int chapters, int pages) {
+		XmlSection root = makeRoot();
+		for (int c=0; c<chapters; c++) {
+			XmlSection chapter = root.addChild("c" + c, dom.createElementNS(null, "level1"), "Chapter " + c);
+			for (int p=0; p<pages; p++)
+				chapter.addChild("c" + c + "p" + p, dom.createElementNS(null, "level2"), "Page " + p);
+		}
+		return root;
+	}
+	
+	/**
+	 * An irregular tree, including sections nested inside sections of the same type.
+	 */
+	private XmlSection makeRandomTree(Random random, int size) {
+		XmlSection root = makeRoot();
+		List<XmlSection> all = new ArrayList<XmlSection>();
+		all.add(root);
+		for (int i=1; i<size; i++) {
+			XmlSection parent = all.get(random.nextInt(all.size()));
+			String type = TYPES[random.nextInt(TYPES.length)];
+			all.add(parent.addChild("s" + i, dom.createElementNS(null, type), "Section " + i));
+		}
+		return root;
+	}
+	
+	private XmlSection makeRoot() {
+		XmlSection root = new XmlSection();
+		root.init(xmlDocument, null, XmlSection.DOCUMENT_ID, dom.createElementNS(null, "book"), "Book");
+		return root;
+	}
+	
+	private List<XmlSection> preorder(XmlSection root) {
+		List<XmlSection> list = new ArrayList<XmlSection>();
+		addAll(root, list);
+		return list;
+	}
+	
+	private void addAll(XmlSection sec, List<XmlSection> list) {
+		list.add(sec);
+		for (XmlSection child : sec.getChildren())
+			addAll(child, list);
+	}
+	
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.cast.cwm.test.CwmBaseTestCase;
+import org.cast.cwm.test.InjectionTestHelper;
+import org.cast.cwm.xml.CompactTransformResult;
+import org.cast.cwm.xml.ICacheableModel;
+import org.cast.cwm.xml.IXmlPointer;
+import org.cast.cwm.xml.TransformResult;
+import org.cast.cwm.xml.service.IXmlService;
+import org.cast.cwm.xml.transform.TransformParameters;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+public class XmlComponentTest extends CwmBaseTestCase {
+	
+	private static final Logger log = LoggerFactory.getLogger(XmlComponentTest.class);
+	
+	private static final int RENDERS = 200;
+	
+	private TransformResult transformResult;
+	
+	private ICacheableModel<IXmlPointer> mXml;
+	
+	private int markupRequests;
+	
+	@Override
+	protected boolean isApplicationThemed() {
+		return false;
+	}
+
+	@Override
+	protected InjectionTestHelper getInjectionTestHelper() {
+		return new InjectionTestHelper(); 
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void setUpData() throws Exception {
+		// A section of about the size and shape that a DTBook XSL produces
+		StringBuilder sb = new StringBuilder("<div xmlns=\"http://www.w3.org/1999/xhtml\" xmlns:wicket=\"http://wicket.apache.org\" class=\"level1\">");
+		for (int i=0; i<50; i++) {
+			sb.append("<h2>Heading</h2><p>Paragraph text with <em>emphasis</em> and a ")
+				.append("<a href=\"#\" wicket:id=\"glossaryLink\">glossary</a> link.</p>");
+		}
+		sb.append("<img src=\"picture.png\" alt=\"A picture\" wicket:id=\"image\"/></div>");
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		Element dom = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(sb.toString().getBytes("UTF-8"))).getDocumentElement();
+		// Transformers normally make wicket:ids unique; do the same here.
+		for (int i=0; i<50; i++)
+			((Element) dom.getElementsByTagNameNS("*", "a").item(i)).setAttributeNS("http://wicket.apache.org", "wicket:id", "glossaryLink" + i);
+		transformResult = new CompactTransformResult(dom);
+		transformResult.setCacheKey("section1@1");
+		mXml = mock(ICacheableModel.class);
+	}
+
+	@Override
+	public void populateInjection() throws Exception {
+		IXmlService xmlService = injectionHelper.injectMock(IXmlService.class);
+		when(xmlService.getTransformed(any(ICacheableModel.class), anyString(), any(TransformParameters.class))).thenReturn(transformResult);
+	}
+	
+	@Test
+	public void reusesParsedMarkup() {
+		for (int i=0; i<3; i++) {
+			tester.startComponentInPage(new CountingXmlComponent("xml", true));
+			tester.assertComponent("xml:image", Label.class);
+		}
+		assertEquals("Markup should only be generated once", 1, markupRequests);
+	}
+	
+	@Test
+	public void regeneratesMarkupWhenContentChanges() {
+		tester.startComponentInPage(new CountingXmlComponent("xml", true));
+		transformResult.setCacheKey("section1@2");
+		tester.startComponentInPage(new CountingXmlComponent("xml", true));
+		assertEquals("Markup should be generated for each result", 2, markupRequests);
+	}
+	
+	@Test
+	public void doesNotCacheOverriddenMarkup() {
+		XmlComponent custom = new XmlComponent("xml", mXml, "section") {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected String getTransformedMarkup() {
+				return "<wicket:panel>custom</wicket:panel>";
+			}
+		};
+		assertNull(custom.getCacheKey(custom, custom.getClass()));
+		XmlComponent plain = new CountingXmlComponent("xml", true);
+		assertNotNull(plain.getCacheKey(plain, plain.getClass()));
+	}
+	
+	@Test
+	public void renderThroughput() {
+		long uncached = timeRenders(false);
+		long cached = timeRenders(true);
+		log.info("{} renders of section: {}ms without markup caching, {}ms with", new Object[] { RENDERS, uncached, cached });
+		assertEquals("Markup should be generated once when cached, each time when not", RENDERS+1, markupRequests);
+	}
+	
+	private long timeRenders(boolean cacheMarkup) {
+		long start = System.currentTimeMillis();
+		for (int i=0; i<RENDERS; i++)
+			tester.startComponentInPage(new CountingXmlComponent("xml", cacheMarkup));
+		return System.currentTimeMillis() - start;
+	}
+	
+	private class CountingXmlComponent extends XmlComponent {
+		
+		private final boolean cacheMarkup;
+		
+		private static final long serialVersionUID = 1L;
+
+		public CountingXmlComponent(String id, boolean cacheMarkup) {
+			super(id, mXml, "section");
+			this.cacheMarkup = cacheMarkup;
+		}
+		
+		@Override
+		public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+			markupRequests++;
+			return super.getMarkupResourceStream(container, containerClass);
+		}
+		
+		@Override
+		public String getCacheKey(MarkupContainer container, Class<?> containerClass) {
+			return cacheMarkup ? super.getCacheKey(container, containerClass) : null;
+		}
+		
+		@Override
+		public Component getDynamicComponent(String wicketId, Element elt) {
+			return new Label(wicketId, wicketId);
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+
+import org.cast.cwm.test.CwmBaseTestCase;
+import org.cast.cwm.test.InjectionTestHelper;
+import org.cast.cwm.xml.XmlSection;
+import org.cast.cwm.xml.service.IXmlService;
+import org.cast.cwm.xml.service.XmlService;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+public class DtbookParserTest extends CwmBaseTestCase {
+	
+	private static final Logger log = LoggerFactory.getLogger(DtbookParserTest.class);
+	
+	private static final String SMALL_BOOK = "<dtbook xmlns=\"http://www.daisy.org/z3986/2005/dtbook/\">"
+			+ "<book><frontmatter><doctitle>  The\n Title </doctitle></frontmatter>"
+			+ "<bodymatter>"
+			+ "<level1 id=\"ch1\"><h1>Chapter 1</h1><p id=\"p1\">Intro</p>"
+			+ "<level2><h2>Section 1.1</h2><p id=\"p2\">Text</p></level2>"
+			+ "<level2 id=\"s12\" class=\"special\"><h2>Section 1.2</h2><covertitle>Sub</covertitle>"
+			+ "<level3 id=\"s121\"><h3>Section 1.2.1</h3><div><p id=\"p3\">Deep</p></div></level3></level2>"
+			+ "<p id=\"p4\">Closing</p></level1>"
+			+ "<level1><h1>Chapter 2</h1></level1>"
+			+ "</bodymatter></book></dtbook>";
+	
+	private Map<String,XmlSection> idMap;
+	
+	@Override
+	protected boolean isApplicationThemed() {
+		return false;
+	}
+
+	@Override
+	protected InjectionTestHelper getInjectionTestHelper() {
+		return new InjectionTestHelper(); 
+	}
+
+	@Override
+	public void populateInjection() throws Exception {
+		IXmlService xmlService = injectionHelper.injectMock(IXmlService.class);
+		when(xmlService.getNamespaceContext()).thenReturn(new XmlService.CwmNamespaceContext());
+		when(xmlService.newXmlSection()).thenAnswer(new Answer<XmlSection>() {
+			@Override
+			public XmlSection answer(InvocationOnMock invocation) {
+				return new XmlSection();
+			}
+		});
+	}
+	
+	@Test
+	public void buildsSectionTree() throws Exception {
+		XmlSection root = parse(SMALL_BOOK);
+		assertEquals("The Title", root.getTitle());
+		assertEquals(2, root.getChildren().size());
+		
+		XmlSection ch1 = root.getChild(0);
+		assertEquals("ch1", ch1.getId());
+		assertEquals("Chapter 1", ch1.getTitle());
+		assertEquals("gen0", ch1.getChild(0).getId());
+		assertEquals("Section 1.1", ch1.getChild(0).getTitle());
+		
+		XmlSection s12 = ch1.getChild(1);
+		assertEquals("Section 1.2", s12.getTitle());
+		assertEquals("Sub", s12.getSubTitle());
+		assertEquals("special", s12.getClassName());
+		assertEquals("Section 1.2.1", s12.getChild(0).getTitle());
+		
+		assertEquals("Generated IDs are assigned in document order", "gen1", root.getChild(1).getId());
+		
+		// Sort order is preorder, counting the non-TOC levels of the root
+		assertEquals(0, root.getSortOrder());
+		assertEquals(3, ch1.getSortOrder());
+		assertEquals(6, s12.getChild(0).getSortOrder());
+		assertEquals(7, root.getChild(1).getSortOrder());
+	}
+	
+	@Test
+	public void mapsIdsToInnermostSection() throws Exception {
+		XmlSection root = parse(SMALL_BOOK);
+		XmlSection ch1 = root.getChild(0);
+		assertSame(root, idMap.get(XmlSection.DOCUMENT_ID));
+		assertSame(ch1, idMap.get("ch1"));
+		assertSame(ch1, idMap.get("p1"));
+		assertSame(ch1, idMap.get("p4"));
+		assertSame(ch1.getChild(0), idMap.get("gen0"));
+		assertSame(ch1.getChild(0), idMap.get("p2"));
+		assertSame(ch1.getChild(1).getChild(0), idMap.get("p3"));
+		assertSame(root.getChild(1), idMap.get("gen1"));
+	}
+	
+	@Test
+	public void parsesLargeBook() throws Exception {
+		StringBuilder sb = new StringBuilder("<dtbook xmlns=\"http://www.daisy.org/z3986/2005/dtbook/\"><book><bodymatter>");
+		int paragraphs = 0;
+		for (int i=0; i<20; i++) {
+			sb.append("<level1><h1>Chapter</h1>");
+			for (int j=0; j<20; j++) {
+				sb.append("<level2><h2>Section</h2>");
+				for (int k=0; k<10; k++) {
+					sb.append("<level3><h3>Subsection</h3>");
+					for (int m=0; m<5; m++)
+						sb.append("<p id=\"p").append(paragraphs++).append("\">Paragraph <em>text</em></p>");
+					sb.append("</level3>");
+				}
+				sb.append("</level2>");
+			}
+			sb.append("</level1>");
+		}
+		sb.append("</bodymatter></book></dtbook>");
+		String book = sb.toString();
+		
+		parse(book); // warm up
+		Runtime runtime = Runtime.getRuntime();
+		long memBefore = runtime.totalMemory() - runtime.freeMemory();
+		long start = System.currentTimeMillis();
+		XmlSection root = parse(book);
+		long elapsed = System.currentTimeMillis() - start;
+		long memAfter = runtime.totalMemory() - runtime.freeMemory();
+		
+		// Not warmed up, since each run takes much longer than the parser's
+		long xpathStart = System.currentTimeMillis();
+		Map<String,Element> xpathIds = mapIdsWithXPath(book);
+		long xpathElapsed = System.currentTimeMillis() - xpathStart;
+		log.info("Parsed {} sections and {} paragraphs in {}ms; heap grew by about {}KB. "
+				+ "Parsing and mapping ids with an XPath query per section took {}ms", 
+				new Object[] { 20 + 20*20 + 20*20*10, paragraphs, elapsed, (memAfter-memBefore)/1024, xpathElapsed });
+		assertEquals(paragraphs, xpathIds.size());
+		
+		assertEquals(20, root.getChildren().size());
+		assertEquals(1 + 20 + 20*20 + 20*20*10 + paragraphs, idMap.size());
+		assertSame(root.getChild(19).getChild(19).getChild(9), idMap.get("p" + (paragraphs-1)));
+	}
+	
+	/**
+	 * Map each id to its innermost section element the way the parser used to: by evaluating
+	 * ".//@id" on every section, so that inner sections replace the entries of outer ones.
+	 */
+	private Map<String,Element> mapIdsWithXPath(String xml) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		Document document = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		XPathExpression idFinder = XPathFactory.newInstance().newXPath().compile(".//@id");
+		Map<String,Element> ids = new HashMap<String,Element>();
+		mapIdsWithXPath(document.getDocumentElement(), idFinder, ids);
+		return ids;
+	}
+	
+	private void mapIdsWithXPath(Element elt, XPathExpression idFinder, Map<String,Element> ids) throws Exception {
+		NodeList attributes = (NodeList) idFinder.evaluate(elt, XPathConstants.NODESET);
+		for (int i=0; i<attributes.getLength(); i++)
+			ids.put(attributes.item(i).getTextContent(), elt);
+		for (Node n = elt.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n instanceof Element && (n.getLocalName().startsWith("level") 
+					|| n.getLocalName().equals("book") || n.getLocalName().equals("bodymatter")))
+				mapIdsWithXPath((Element) n, idFinder, ids);
+		}
+	}
+	
+	private XmlSection parse(String xml) throws Exception {
+		DtbookParser parser = new DtbookParser();
+		idMap = new HashMap<String,XmlSection>();
+		parser.setIdMap(idMap);
+		return parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+
+}
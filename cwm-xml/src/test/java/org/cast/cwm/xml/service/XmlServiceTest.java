@@ -0,0 +1,197 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.wicket.util.time.Time;
+import org.cast.cwm.xml.FileChangeMonitor;
+import org.cast.cwm.xml.ICacheableModel;
+import org.cast.cwm.xml.IXmlPointer;
+import org.cast.cwm.xml.TransformResult;
+import org.cast.cwm.xml.transform.IDOMTransformer;
+import org.cast.cwm.xml.transform.TransformParameters;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class XmlServiceTest {
+
+	private static final int THREADS = 8;
+	
+	private XmlService xmlService;
+	
+	private CountingTransformer transformer;
+	
+	private ICacheableModel<IXmlPointer> mXml;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		final Element elt = doc.createElement("level1");
+		doc.appendChild(elt);
+		IXmlPointer pointer = new IXmlPointer() {
+			@Override
+			public Element getElement() {
+				return elt;
+			}
+		};
+		mXml = mock(ICacheableModel.class);
+		when(mXml.getKey()).thenReturn("XmlServiceTest_" + System.nanoTime());
+		when(mXml.getObject()).thenReturn(pointer);
+		when(mXml.getLastModified()).thenReturn(null);
+
+		xmlService = new XmlService();
+		transformer = new CountingTransformer();
+		xmlService.registerTransformer("counting", transformer);
+	}
+	
+	@Test
+	public void cachesTransformResult() {
+		TransformResult first = xmlService.getTransformed(mXml, "counting");
+		TransformResult second = xmlService.getTransformed(mXml, "counting");
+		assertNotNull(first);
+		assertSame("Second request should be served from cache", first, second);
+		assertEquals(1, transformer.count.get());
+	}
+	
+	@Test
+	public void concurrentRequestsCauseOneTransform() throws Exception {
+		transformer.expectedWaiters = THREADS-1;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<TransformResult>> results = new ArrayList<Future<TransformResult>>();
+		for (int i=0; i<THREADS; i++) {
+			results.add(executor.submit(new Callable<TransformResult>() {
+				@Override
+				public TransformResult call() throws Exception {
+					start.await();
+					return xmlService.getTransformed(mXml, "counting");
+				}
+			}));
+		}
+		start.countDown();
+		TransformResult first = results.get(0).get(10, TimeUnit.SECONDS);
+		for (Future<TransformResult> f : results)
+			assertSame("All callers should share one result", first, f.get(10, TimeUnit.SECONDS));
+		executor.shutdown();
+		
+		assertEquals("Exactly one transform should run", 1, transformer.count.get());
+		assertEquals(1, xmlService.getTransformCount());
+		assertEquals(THREADS-1, xmlService.getCoalescedCount());
+	}
+	
+	@Test
+	public void cacheKeyIdentifiesVersion() {
+		when(mXml.getLastModified()).thenReturn(Time.millis(1000));
+		TransformResult result = xmlService.getTransformed(mXml, "counting");
+		assertEquals("Cache key should not depend on when the transform ran",
+				xmlService.getDomCache().getKey(mXml, "counting", null) + "@1000/-", result.getCacheKey());
+	}
+	
+	@Test
+	public void shutdownStopsFileMonitor() throws Exception {
+		FileChangeMonitor monitor = xmlService.getFileChangeMonitor();
+		assertTrue(monitor.isRunning());
+		xmlService.shutdown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (monitor.isRunning() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertFalse("Monitor thread should stop", monitor.isRunning());
+		assertNotSame("A new monitor should be started if needed again", monitor, xmlService.getFileChangeMonitor());
+		xmlService.shutdown();
+	}
+	
+	@Test
+	public void servesStaleResultWhileRevalidating() throws Exception {
+		xmlService.setServeStaleWhileRevalidating(true);
+		TransformResult original = xmlService.getTransformed(mXml, "counting");
+		
+		// Content changes after the result was cached
+		Thread.sleep(20);
+		when(mXml.getLastModified()).thenReturn(Time.now());
+		Thread.sleep(20);
+		
+		assertSame("Outdated result should be served", original, xmlService.getTransformed(mXml, "counting"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (xmlService.getTransformCount() < 2 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("Background transform should have run", 2, transformer.count.get());
+		
+		// Wait for the background thread to release the key, then check that the new result is served
+		while (xmlService.getTransformed(mXml, "counting") == original && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		TransformResult refreshed = xmlService.getTransformed(mXml, "counting");
+		assertNotSame("Refreshed result should replace outdated one", original, refreshed);
+		assertEquals("No further transforms needed", 2, transformer.count.get());
+	}
+	
+	/**
+	 * Transformer that counts its invocations, and holds each one open until
+	 * the expected number of other threads have queued up behind it.
+	 */
+	private class CountingTransformer implements IDOMTransformer {
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		private volatile int expectedWaiters = 0;
+
+		@Override
+		public Element applyTransform(Element n, TransformParameters params) {
+			count.incrementAndGet();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (xmlService.getCoalescedCount() < expectedWaiters && System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return n;
+		}
+
+		@Override
+		public Time getLastModified(TransformParameters params) {
+			return null;
+		}
+	}
+
+}
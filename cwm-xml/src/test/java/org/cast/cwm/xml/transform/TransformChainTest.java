@@ -0,0 +1,204 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.wicket.util.time.Time;
+import org.cast.cwm.xml.TransformResult;
+import org.cast.cwm.xml.WicketNodeIndex;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+
+public class TransformChainTest {
+	
+	private static final Logger log = LoggerFactory.getLogger(TransformChainTest.class);
+	
+	private static final String WICKET_NS = "http://wicket.apache.org";
+
+	@Test
+	public void renamesDuplicateWicketIdsWithinEachContainer() throws Exception {
+		Element dom = parse("<div xmlns:wicket=\"http://wicket.apache.org\">"
+				+ "<a wicket:id=\"x\"/><a wicket:id=\"x\"/><p><a wicket:id=\"x1\"/></p>"
+				+ "<b wicket:id=\"c\"><a wicket:id=\"x\"/><i><a wicket:id=\"x\"/></i></b></div>");
+		new EnsureUniqueWicketIds().applyTransform(dom, null);
+		assertEquals("x", wicketId(dom, 0));
+		assertEquals("x1", wicketId(dom, 1));
+		assertEquals("x11", wicketId(dom, 2));
+		assertEquals("c", wicketId(dom, 3));
+		assertEquals("x", wicketId(dom, 4));
+		assertEquals("x1", wicketId(dom, 5));
+	}
+	
+	@Test
+	public void fusedChainMatchesSeparateWalks() throws Exception {
+		String book = makeBook(new Random(5), 200);
+		TransformChain chain = makeChain();
+		
+		chain.setFused(false);
+		Element separate = chain.applyTransform(parse(book), null);
+		assertTrue(chain.getStageTimes().containsKey("EnsureUniqueWicketIds"));
+		
+		chain.setFused(true);
+		WicketNodeIndex.Collector collector = new WicketNodeIndex.Collector();
+		Element fused = chain.applyTransform(parse(book), null, collector);
+		assertTrue(chain.getStageTimes().containsKey("EnsureUniqueWicketIds+CountWords"));
+		assertTrue(chain.getStageTimes().containsKey("AppendFooter"));
+		assertTrue(chain.getStageTimes().containsKey("EnsureUniqueWicketIds+Collector"));
+
+		assertEquals(new TransformResult(separate).getString(), new TransformResult(fused).getString());
+		
+		WicketNodeIndex walked = collector.getIndex();
+		WicketNodeIndex searched = new WicketNodeIndex(fused);
+		assertNotNull(walked);
+		assertEquals(searched.size(), walked.size());
+		for (int i=0; i<searched.size(); i++) {
+			assertEquals(searched.getWicketId(i), walked.getWicketId(i));
+			assertEquals(searched.getParent(i), walked.getParent(i));
+		}
+	}
+	
+	@Test
+	public void benchmark() throws Exception {
+		String book = makeBook(new Random(11), 5000);
+		TransformChain chain = new TransformChain(new EnsureUniqueWicketIds(), new CountWords(), new EnsureUniqueWicketIds());
+		for (boolean fused : new boolean[] { false, true }) {
+			chain.setFused(fused);
+			chain.applyTransform(parse(book), null, new WicketNodeIndex.Collector()); // warm up
+			chain.clearStageTimes();
+			for (int i=0; i<5; i++)
+				chain.applyTransform(parse(book), null, new WicketNodeIndex.Collector());
+			log.info("{} walks, per-stage times over 5 runs: {}", fused ? "Fused" : "Separate", chain.getStageTimes());
+		}
+	}
+	
+	private TransformChain makeChain() {
+		return new TransformChain(new EnsureUniqueWicketIds(), new CountWords(), new AppendFooter(), new EnsureUniqueWicketIds());
+	}
+	
+	/**
+	 * @return the wicket:id of the nth element under dom that has one
+	 */
+	private String wicketId(Element dom, int n) {
+		NodeList elements = dom.getElementsByTagNameNS("*", "*");
+		for (int i=0; i<elements.getLength(); i++) {
+			Element elt = (Element) elements.item(i);
+			if (elt.hasAttributeNS(WICKET_NS, "id") && n-- == 0)
+				return elt.getAttributeNS(WICKET_NS, "id");
+		}
+		return null;
+	}
+
+	/**
+	 * Sections with repeated wicket:ids, nested containers, and text.
+	 */
+	private String makeBook(Random random, int sections) {
+		StringBuilder sb = new StringBuilder("<div xmlns=\"http://www.w3.org/1999/xhtml\" xmlns:wicket=\"http://wicket.apache.org\">");
+		for (int i=0; i<sections; i++) {
+			sb.append("<div class=\"section\" wicket:id=\"section\">")
+				.append("<h2>Section heading</h2>")
+				.append("<p>Some paragraph text, <em>with</em> <strong>inline</strong> markup.</p>");
+			for (int j=random.nextInt(4); j>0; j--)
+				sb.append("<p>A <a href=\"#\" wicket:id=\"glossaryLink\">glossary</a> term.</p>");
+			if (random.nextBoolean())
+				sb.append("<img src=\"picture.png\" alt=\"A picture\" wicket:id=\"image\"/>");
+			sb.append("</div>");
+		}
+		sb.append("</div>");
+		return sb.toString();
+	}
+
+	private Element parse(String xml) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+	}
+	
+	/**
+	 * Visitable transformer that records the number of words in each element's own text.
+	 */
+	private static class CountWords implements IDOMVisitable {
+
+		@Override
+		public Element applyTransform(Element n, TransformParameters params) {
+			return DOMWalker.walk(n, newVisitor(n, params));
+		}
+
+		@Override
+		public IDOMVisitor newVisitor(Element root, TransformParameters params) {
+			return new IDOMVisitor() {
+				@Override
+				public boolean enter(Element elt) {
+					return true;
+				}
+				@Override
+				public void text(Text text) {
+					Element parent = (Element) text.getParentNode();
+					int words = text.getData().trim().length() == 0 ? 0 : text.getData().trim().split("\\s+").length;
+					String previous = parent.getAttribute("words");
+					parent.setAttribute("words", String.valueOf(words + (previous.length() == 0 ? 0 : Integer.parseInt(previous))));
+				}
+				@Override
+				public void leave(Element elt) {
+				}
+				@Override
+				public Element finish(Element root) {
+					return root;
+				}
+			};
+		}
+
+		@Override
+		public Time getLastModified(TransformParameters params) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Transformer that is not visitable; adds an element with a wicket:id that may duplicate another.
+	 */
+	private static class AppendFooter implements IDOMTransformer {
+
+		@Override
+		public Element applyTransform(Element n, TransformParameters params) {
+			Element footer = n.getOwnerDocument().createElementNS(n.getNamespaceURI(), "div");
+			footer.setAttributeNS(WICKET_NS, "wicket:id", "section");
+			n.appendChild(footer);
+			return n;
+		}
+
+		@Override
+		public Time getLastModified(TransformParameters params) {
+			return null;
+		}
+	}
+
+}
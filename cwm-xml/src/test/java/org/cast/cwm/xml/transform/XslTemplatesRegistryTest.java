@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011-2016 CAST, Inc.
+ *
+ * This file is part of the CAST Wicket Modules:
+ * see <http://code.google.com/p/cast-wicket-modules>.
+ *
+ * The CAST Wicket Modules are free software: you can redistribute and/or
+ * modify them under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * The CAST Wicket Modules are distributed in the hope that they will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cast.cwm.xml.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.io.FileWriter;
+import java.io.IOException;
+
+import javax.xml.transform.Templates;
+
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.time.Time;
+import org.cast.cwm.test.CwmBaseTestCase;
+import org.cast.cwm.test.InjectionTestHelper;
+import org.cast.cwm.xml.FileXmlDocumentSource;
+import org.cast.cwm.xml.service.IXmlService;
+import org.junit.After;
+import org.junit.Test;
+
+public class XslTemplatesRegistryTest extends CwmBaseTestCase {
+	
+	private static final String XSL = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+			+ "<xsl:template match=\"/\"><out/></xsl:template></xsl:stylesheet>";
+	
+	private XslTemplatesRegistry registry;
+	
+	private File xslFile;
+	
+	@Override
+	protected boolean isApplicationThemed() {
+		return false;
+	}
+
+	@Override
+	protected InjectionTestHelper getInjectionTestHelper() {
+		return new InjectionTestHelper(); 
+	}
+
+	@Override
+	public void setUpData() throws Exception {
+		registry = new XslTemplatesRegistry();
+		xslFile = new File(java.io.File.createTempFile("registry", ".xsl"));
+		writeXsl();
+	}
+
+	@Override
+	public void populateInjection() throws Exception {
+		IXmlService xmlService = injectionHelper.injectMock(IXmlService.class);
+		when(xmlService.getTemplatesRegistry()).thenReturn(registry);
+		when(xmlService.getUpdateCheckInterval()).thenReturn(-1); // always check files
+	}
+	
+	@After
+	public void tearDown() {
+		xslFile.delete();
+	}
+	
+	@Test
+	public void compilesRegisteredTransformersAtStartup() throws Exception {
+		XslTransformer first = new XslTransformer(new FileXmlDocumentSource(xslFile));
+		XslTransformer second = new XslTransformer(new FileXmlDocumentSource(xslFile));
+		registry.register(first);
+		registry.register(second);
+		registry.compileAll();
+		assertTrue(registry.getWarmUpTime() >= 0);
+		
+		Templates templates = first.getXslTemplates();
+		assertNotNull(templates);
+		assertSame("Templates should be reused", templates, first.getXslTemplates());
+		second.getXslTemplates();
+		assertTrue("No compilation should happen on request threads", registry.getMaxFirstHitTime() == 0);
+	}
+	
+	@Test
+	public void recompilesInBackground() throws Exception {
+		XslTransformer transformer = new XslTransformer(new FileXmlDocumentSource(xslFile));
+		transformer.getLastModified(null);
+		Templates original = transformer.getXslTemplates();
+		
+		// Modify the file, and make sure its timestamp moves forward.
+		writeXsl();
+		xslFile.setLastModified(System.currentTimeMillis() + 5000);
+		transformer.getLastModified(null);
+		
+		assertSame("Previous templates should continue to be used during recompile", original, transformer.getXslTemplates());
+		long deadline = System.currentTimeMillis() + 5000;
+		Templates updated = original;
+		while (updated == original && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			updated = transformer.getXslTemplates();
+		}
+		assertNotSame("Templates should have been recompiled", original, updated);
+	}
+	
+	@Test
+	public void reportsTimeOfTemplatesInUse() throws Exception {
+		XslTransformer transformer = new XslTransformer(new FileXmlDocumentSource(xslFile));
+		Time compiledTime = transformer.getLastModified(null);
+		Templates original = transformer.getXslTemplates();
+		
+		Time changeTime = Time.now();
+		writeXsl();
+		xslFile.setLastModified(System.currentTimeMillis() + 5000);
+		assertEquals("Time of the previous templates should be reported until they are replaced",
+				compiledTime, transformer.getLastModified(null));
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while (transformer.getXslTemplates() == original && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Time replacedTime = transformer.getLastModified(null);
+		assertTrue(replacedTime.after(compiledTime));
+		assertFalse("Results cached before the replacement should be outdated", replacedTime.before(changeTime));
+	}
+	
+	private void writeXsl() throws IOException {
+		FileWriter writer = new FileWriter(xslFile);
+		try {
+			writer.write(XSL);
+		} finally {
+			writer.close();
+		}
+	}
+
+}